@@ -2,23 +2,14 @@ package vml.com.animation;
 
 import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.xml.sax.SAXException;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import vml.com.vm.avatar.VMAvatar;
-import vml.com.vm.utils.FacePose;
-import vml.com.vm.utils.KeyFrame;
+import vml.com.vm.utils.AudioClock;
+import vml.com.vm.utils.ClipFormat;
+import vml.com.vm.utils.KeyFrameParser;
+import vml.com.vm.utils.StreamingClip;
 
 /**
  *  @author Sunjin Jung
@@ -45,86 +36,65 @@ public class AvatarAnimation {
         renderedAvatar.updateAudioTiming(time);
     }
 
+    /**
+     * Drives the animation from an audio playback instead of updateAnimation()
+     * @param clock audio clock of the playback, null to stop following it
+     */
+    public void followAudio(AudioClock clock){
+        if(clock != null) renderedAvatar.doBlinking(false);
+        renderedAvatar.setAudioClock(clock);
+    }
+
     public void setAnimation(InputStream animation){
         try{
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(animation);
-            Element element = doc.getDocumentElement();
-            element.normalize();
-
-            Element animEl = doc.getDocumentElement();
-            animName = element.getAttributes().getNamedItem("name").getNodeValue();
-
-            Element genderEl = (Element) animEl.getElementsByTagName("gender").item(0);
-            gender = genderEl.getAttribute("gender");
-
-            Element hairEl = (Element) animEl.getElementsByTagName("hair_model").item(0);
-            hair = hairEl.getAttribute("hair_model");
-
-            if(Integer.parseInt(gender) == 30001) {
-                mFragment.mGLView.mRenderer.isMan = true;
-                renderedAvatar = mFragment.mGLView.mRenderer.mAvatarMan;
-            }
-            else if(Integer.parseInt(hair) == 0) {
-                mFragment.mGLView.mRenderer.isMan = false;
-                mFragment.mGLView.mRenderer.hair_model = 0;
-                renderedAvatar = mFragment.mGLView.mRenderer.mAvatar_1;
-            }
-            else if(Integer.parseInt(hair) == 1) {
-                mFragment.mGLView.mRenderer.isMan = false;
-                mFragment.mGLView.mRenderer.hair_model = 1;
-                renderedAvatar = mFragment.mGLView.mRenderer.mAvatar_2;
-            }
-
-            List<KeyFrame> keys = new ArrayList<KeyFrame>();
-
-            Element keyFrameNodes = (Element) animEl.getElementsByTagName("keyframeList").item(0);
-            if (keyFrameNodes.hasChildNodes()) {
-                NodeList keyList = keyFrameNodes.getElementsByTagName("key");
-                for (int k = 0; k < keyList.getLength(); k++) {
-                    Element curEl = (Element) keyList.item(k);
-
-                    String keyTime = curEl.getAttribute("t");
-                    Element faceWNode = (Element) curEl.getElementsByTagName("faceWeights").item(0);
-                    Text faceWText = (Text) faceWNode.getFirstChild();
-                    String stringFaceWeights = faceWText.getNodeValue();
-                    String[] partsFW = stringFaceWeights.split(" ");
-
-                    float[] fw = new float[partsFW.length];
-                    for (int j = 0; j < partsFW.length; j++) {
-                        fw[j] = Float.parseFloat(partsFW[j]);
-                    }
-
-
-                    //START seonghyeon
-                    Element headNoddingNode = (Element) curEl.getElementsByTagName("headNodding").item(0);
-                    Text headNoddingText = (Text) headNoddingNode.getFirstChild();
-                    String stringHeadNodding = headNoddingText.getNodeValue();
-                    String[] partsHN = stringHeadNodding.split(" ");
-                    //END   seonghyeon
-
-                    KeyFrame key = new KeyFrame();
-                    key.time = Integer.parseInt(keyTime);
-                    key.pose = new FacePose(fw);
-                    //START seonghyeon
-                    key.noddingValue = Float.parseFloat(partsHN[0]);
-                    //END   seonghyeon
-                    keys.add(key);
-                }
-            }
-            renderedAvatar.addAnimation(animName, keys);
+            //animation XML or .vclip
+            KeyFrameParser.Clip clip = ClipFormat.load(animation);
+            animName = clip.name;
+            gender = clip.gender;
+            hair = clip.hairModel;
+
+            selectAvatar();
+            renderedAvatar.addAnimation(animName, clip.keys);
             animation.close();
-        } catch (SAXException e) {
-            e.printStackTrace();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
         renderedAvatar.setAnimation(animName);
         renderedAvatar.startAnimation();
     }
-}
\ No newline at end of file
+
+    /**
+     * Plays an animation while it is being downloaded: returns once the first keys are buffered,
+     * the rest is read in the background.
+     * @param animation animation XML stream (from the server), closed at the end
+     */
+    public void streamAnimation(InputStream animation){
+        StreamingClip clip = new StreamingClip();
+        try{
+            clip.open(animation);
+            animName = clip.getHeader().name;
+            gender = clip.getHeader().gender;
+            hair = clip.getHeader().hairModel;
+            selectAvatar();
+            clip.awaitLead();
+        } catch (IOException e) {
+            e.printStackTrace();
+            clip.close();
+            return;
+        }
+        renderedAvatar.playStream(clip);
+    }
+
+    private void selectAvatar(){
+        if(Integer.parseInt(gender) == 30001) {
+            mFragment.mGLView.mRenderer.isMan = true;
+            renderedAvatar = mFragment.mGLView.mRenderer.mAvatarMan;
+        }
+        else {
+            //one girl head, the hair and cloth are swapped on it
+            mFragment.mGLView.mRenderer.isMan = false;
+            mFragment.mGLView.mRenderer.setHairModel(Integer.parseInt(hair));
+            renderedAvatar = mFragment.mGLView.mRenderer.mAvatar_1;
+        }
+    }
+}
@@ -16,6 +16,9 @@ import javax.microedition.khronos.opengles.GL10;
 
 import vml.com.vm.avatar.VMAvatar;
 import vml.com.vm.avatar.VMAvatarLoader;
+import vml.com.vm.blend.BlendEngine;
+import vml.com.vm.blend.BlendPipeline;
+import vml.com.vm.blend.SparseBlendShapes;
 import vml.com.vm.utils.FPSCounter;
 import vml.com.vm.utils.VMShaderUtil;
 import vml.com.vm.utils.VMShaderUtil;
@@ -45,11 +48,17 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
     private Context mContext;
 
     VMAvatar mAvatar_1;
-	VMAvatar mAvatar_2;
 	VMAvatar mAvatarMan;
 	public boolean isMan = false;
 	public int hair_model = 0;
 
+	/** cloth and hair of the girl for every hair_model: cloth model, cloth material, hair model, hair material.
+	 *  Girl_1.xml and Girl_2.xml only differ by these, the variants are swapped on one head (see setHairModel())*/
+	private static final String[][] GIRL_ACCESSORIES = {
+		{"Data/girl_cloth.bob", "Data/girlCloth.mtl", 	"Data/girl_new_hair.bob", 	"Data/girlHair_20200220.mtl"},
+		{"Data/girl_cloth.bob", "Data/girlCloth_2.mtl", "Data/girl_new_hair2.bob", 	"Data/girlHair_20200220.mtl"},
+	};
+
     public String currentEmotion="Neutral";
     public String currentViseme ="Neutral";
     public boolean loopVisemes=false;
@@ -61,10 +70,18 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
     private static FPSCounter fps;
     private static String TAG = "BODemoRend";
 
+    /** blend with the deprecated RenderScript kernel instead of the multi-core Java engine*/
+    private static final boolean USE_RENDERSCRIPT = false;
+    /** blending engine shared by all the avatars*/
+    private BlendEngine mBlendEngine;
+
     public BODemoRenderer(Context context)
     {
 		fps= new FPSCounter();
 		mContext = context;
+		mBlendEngine = new BlendEngine();
+		mBlendEngine.setMode(BlendEngine.MODE_INCREMENTAL);
+		mBlendEngine.setDeformNormals(true);
 
 		Thread thread1 = new Thread(new Runnable() {
 			Context ctx;
@@ -72,7 +89,14 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
 			@Override
 			public void run() {
 				mAvatar_1 = VMAvatarLoader.loadAvatar(ctx, avatarFileName);
-				mAvatar_1.initRenderScript();
+				if(USE_RENDERSCRIPT)
+					mAvatar_1.initRenderScript();
+				else
+				{
+					mAvatar_1.setBlendEngine(mBlendEngine);
+					mAvatar_1.useSparseBlendShapes(SparseBlendShapes.DEFAULT_THRESHOLD);
+					mAvatar_1.setBlendDepth(BlendPipeline.DEPTH_THROUGHPUT);
+				}
 				mAvatar_1.enableBlinking(true);
 			}
 			public Runnable init(Context ctx, String avatarFileName) {
@@ -83,31 +107,20 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
 		}.init(context, "Girl_1.xml"));
 		thread1.start();
 
-		Thread thread2 = new Thread(new Runnable() {
-			Context ctx;
-			String avatarFileName;
-			@Override
-			public void run() {
-				mAvatar_2 = VMAvatarLoader.loadAvatar(ctx, avatarFileName);
-				mAvatar_2.initRenderScript();
-				mAvatar_2.enableBlinking(true);
-			}
-			public Runnable init(Context ctx, String avatarFileName) {
-				this.ctx=ctx;
-				this.avatarFileName=avatarFileName;
-				return(this);
-			}
-		}.init(context, "Girl_2.xml"));
-		thread2.start();
-
-
 		Thread thread3 = new Thread(new Runnable() {
 			Context ctx;
 			String avatarFileName;
 			@Override
 			public void run() {
 				mAvatarMan = VMAvatarLoader.loadAvatar(ctx, avatarFileName);
-				mAvatarMan.initRenderScript();
+				if(USE_RENDERSCRIPT)
+					mAvatarMan.initRenderScript();
+				else
+				{
+					mAvatarMan.setBlendEngine(mBlendEngine);
+					mAvatarMan.useSparseBlendShapes(SparseBlendShapes.DEFAULT_THRESHOLD);
+					mAvatarMan.setBlendDepth(BlendPipeline.DEPTH_THROUGHPUT);
+				}
 				mAvatarMan.enableBlinking(true);
 			}
 			public Runnable init(Context ctx, String avatarFileName) {
@@ -120,13 +133,28 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
 
 		try {
 			thread1.join();
-			thread2.join();
 			thread3.join();
 		}catch (InterruptedException e){
 			//TODO
 		}
     }
 
+	/**
+	 * Switches the girl to another hair and cloth variant.
+	 * The new models load in the background, the girl keeps the current ones until they are ready.
+	 *
+	 * @param hair index of the variant (0: Girl_1.xml, 1: Girl_2.xml)
+	 */
+	public void setHairModel(int hair)
+	{
+		if(hair == hair_model || hair < 0 || hair >= GIRL_ACCESSORIES.length)
+			return;
+		String[] from = GIRL_ACCESSORIES[hair_model];
+		String[] to = GIRL_ACCESSORIES[hair];
+		mAvatar_1.replaceExtraModelsOnHead(new String[]{from[0], from[2]}, new String[]{to[0], to[2]}, new String[]{to[1], to[3]});
+		hair_model = hair;
+	}
+
 	@Override
 	public void onDrawFrame(GL10 gl)
 	{
@@ -150,17 +178,14 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
 
 			if (controlHead) {
 				mAvatar_1.setHeadRotation(new float[]{mAngleY, mAngleX, 0.0f});
-				mAvatar_2.setHeadRotation(new float[]{mAngleY, mAngleX, 0.0f});
 				mAvatarMan.setHeadRotation(new float[]{mAngleY, mAngleX, 0.0f});
 			}
 		}
 
 		if(isMan)
 			mAvatarMan.Render(mmatModel, mmatView, mmatProjection);
-		else if(hair_model==0)
+		else
 			mAvatar_1.Render(mmatModel, mmatView, mmatProjection);
-		else if(hair_model==1)
-			mAvatar_2.Render(mmatModel, mmatView, mmatProjection);
 
         //fps.logFrame("FPS");
 	}
@@ -190,7 +215,6 @@ public class BODemoRenderer implements GLSurfaceView.Renderer
 		Matrix.setLookAtM(mmatView, 0, mfvEyePosition[0], mfvEyePosition[1], mfvEyePosition[2], 0f, 3.0f, 0f, 0f, 1.0f, 0.0f);
 
 		mAvatar_1.loadTextures(); //loads textures in OpenGL and sets up the shader
-		mAvatar_2.loadTextures(); //loads textures in OpenGL and sets up the shader
 		mAvatarMan.loadTextures(); //loads textures in OpenGL and sets up the shader
 	}
 
@@ -17,6 +17,7 @@ public class MainActivity extends AppCompatActivity { //for test
     //TODO: Create AvatarAnimation instance
     private AvatarAnimation avatarAnimation;
     private MediaPlayer mediaPlayer; //for test
+    private MediaPlayerClock audioClock;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,6 +30,7 @@ public class MainActivity extends AppCompatActivity { //for test
         avatarAnimation = new AvatarAnimation(fragment);
 
         mediaPlayer = MediaPlayer.create(this, R.raw.surprise); //for test
+        audioClock = new MediaPlayerClock(mediaPlayer);
 
         Button button = (Button) findViewById(R.id.button); // Girl 1
         button.setOnClickListener(new View.OnClickListener() {
@@ -42,16 +44,7 @@ public class MainActivity extends AppCompatActivity { //for test
                     e.printStackTrace();
                 }
 
-                mediaPlayer.start();
-                while(true){ //This is just for testing the audio with animation.
-                    if(!mediaPlayer.isPlaying()) {
-                        //TODO: PlayIdleMotion when the audio ends
-                        avatarAnimation.playIdleMotion();
-                        break;
-                    }
-                    //TODO: Update animation by getting the current audio timing
-                    avatarAnimation.updateAnimation(mediaPlayer.getCurrentPosition());
-                }
+                playAudio();
             }
         });
 
@@ -67,16 +60,7 @@ public class MainActivity extends AppCompatActivity { //for test
                     e.printStackTrace();
                 }
 
-                mediaPlayer.start();
-                while(true){ //This is just for testing the audio with animation.
-                    if(!mediaPlayer.isPlaying()) {
-                        //TODO: PlayIdleMotion when the audio ends
-                        avatarAnimation.playIdleMotion();
-                        break;
-                    }
-                    //TODO: Update animation by getting the current audio timing
-                    avatarAnimation.updateAnimation(mediaPlayer.getCurrentPosition());
-                }
+                playAudio();
             }
         });
 
@@ -92,16 +76,7 @@ public class MainActivity extends AppCompatActivity { //for test
                     e.printStackTrace();
                 }
 
-                mediaPlayer.start();
-                while(true){ //This is just for testing the audio with animation.
-                    if(!mediaPlayer.isPlaying()) {
-                        //TODO: PlayIdleMotion when the audio ends
-                        avatarAnimation.playIdleMotion();
-                        break;
-                    }
-                    //TODO: Update animation by getting the current audio timing
-                    avatarAnimation.updateAnimation(mediaPlayer.getCurrentPosition());
-                }
+                playAudio();
             }
         });
         //float endTime = SystemClock.elapsedRealtime();
@@ -110,6 +85,20 @@ public class MainActivity extends AppCompatActivity { //for test
     }
 
 
+    /**
+     * Plays the audio, the animation follows its position until it ends
+     */
+    private void playAudio() {
+        avatarAnimation.followAudio(audioClock.getClock());
+        audioClock.start(new Runnable() {
+            @Override
+            public void run() {
+                avatarAnimation.followAudio(null);
+                avatarAnimation.playIdleMotion();
+            }
+        });
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -0,0 +1,70 @@
+package vml.com.animation;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+
+import vml.com.vm.utils.AudioClock;
+
+/**
+ * Audio clock of a MediaPlayer. The position is read a few times per second from the main thread,
+ * and the clock is started and stopped by the callbacks of the player; the animation reads the
+ * clock at every frame.
+ *
+ * @author Sunjin Jung
+ */
+class MediaPlayerClock implements MediaPlayer.OnCompletionListener, MediaPlayer.OnSeekCompleteListener {
+    /** time between two position reads in ms */
+    private static final int SAMPLE_MS = 200;
+
+    private final MediaPlayer mPlayer;
+    private final AudioClock mClock = new AudioClock();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Runnable mOnCompletion;
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPlayer.isPlaying()) return;
+            mClock.onPosition(mPlayer.getCurrentPosition());
+            mHandler.postDelayed(this, SAMPLE_MS);
+        }
+    };
+
+    MediaPlayerClock(MediaPlayer player) {
+        mPlayer = player;
+        player.setOnCompletionListener(this);
+        player.setOnSeekCompleteListener(this);
+    }
+
+    AudioClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Starts the playback
+     * @param onCompletion run on the main thread when the playback ends
+     */
+    void start(Runnable onCompletion) {
+        mOnCompletion = onCompletion;
+        mHandler.removeCallbacks(mSample);
+        mPlayer.start();
+        mClock.start(mPlayer.getCurrentPosition());
+        mHandler.postDelayed(mSample, SAMPLE_MS);
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        mHandler.removeCallbacks(mSample);
+        mClock.stop();
+        if (mOnCompletion != null) mOnCompletion.run();
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        if (mp.isPlaying())
+            mClock.onPosition(mp.getCurrentPosition());
+        else
+            mClock.pause(mp.getCurrentPosition());
+    }
+}
@@ -0,0 +1,226 @@
+package vml.com.vm.avatar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.util.Log;
+
+import vml.com.vm.blend.AssetCache;
+import vml.com.vm.blend.VMBOModel;
+import vml.com.vm.utils.VMMaterial;
+
+/**
+ * Extra models attached to the head (hair, clothes, hats...), which can be changed while rendering.
+ * <p>
+ * Every model is identified by a name, the path of its model file for the ones loaded from the
+ * avatar XML file. Attach, detach and replace requests can come from any thread: they are queued
+ * and applied together by {@link #applyPending()} at the start of the next frame, on the rendering
+ * thread, so a frame never sees half a change. The models and materials removed are given back
+ * to the AssetCache.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMAvatar#replaceExtraModelOnHead(String, String, String)
+ */
+public class AccessorySet
+{
+	private static String TAG = "AccessorySet";
+
+	/**
+	 * Queued change, a null name means nothing to remove, a null model nothing to add
+	 */
+	private static class Change
+	{
+		final String removeName;
+		final String addName;
+		final VMBOModel model;
+		final VMMaterial material;
+
+		Change(String removeName, String addName, VMBOModel model, VMMaterial material)
+		{
+			this.removeName = removeName;
+			this.addName = addName;
+			this.model = model;
+			this.material = material;
+		}
+	}
+
+	/**names of the attached models*/
+	final List<String> names = new ArrayList<String>();
+	/**attached models, only modified on the rendering thread*/
+	final List<VMBOModel> models = new ArrayList<VMBOModel>();
+	/**materials of the attached models*/
+	final List<VMMaterial> materials = new ArrayList<VMMaterial>();
+
+	private final List<Change> mPending = new ArrayList<Change>();
+	/**copy of the names for the other threads*/
+	private volatile List<String> mNamesSnapshot = Collections.emptyList();
+	private final AssetCache mCache;
+
+	public AccessorySet()
+	{
+		this(AssetCache.getInstance());
+	}
+
+	/**
+	 * @param cache cache the removed models and materials are given back to
+	 */
+	AccessorySet(AssetCache cache)
+	{
+		mCache = cache;
+	}
+
+	/**
+	 * Attaches a model right away. Only for the setup, before the avatar is rendered.
+	 * @param name model name, can be null
+	 * @param model loaded model
+	 * @param material loaded material
+	 */
+	public void add(String name, VMBOModel model, VMMaterial material)
+	{
+		names.add(name);
+		models.add(model);
+		materials.add(material);
+		mNamesSnapshot = new ArrayList<String>(names);
+	}
+
+	/**
+	 * Attaches a model at the next frame
+	 * @param name model name
+	 * @param model loaded model
+	 * @param material loaded material
+	 */
+	public void queueAttach(String name, VMBOModel model, VMMaterial material)
+	{
+		queue(new Change(null, name, model, material));
+	}
+
+	/**
+	 * Detaches a model at the next frame
+	 * @param name name of the model to remove
+	 */
+	public void queueDetach(String name)
+	{
+		queue(new Change(name, null, null, null));
+	}
+
+	/**
+	 * Replaces a model at the next frame, the new one takes the place of the old one in the drawing order.
+	 * If there is no model with the old name the new one is attached at the end.
+	 * @param oldName name of the model to remove
+	 * @param name name of the new model
+	 * @param model loaded model
+	 * @param material loaded material
+	 */
+	public void queueReplace(String oldName, String name, VMBOModel model, VMMaterial material)
+	{
+		queue(new Change(oldName, name, model, material));
+	}
+
+	/**
+	 * Replaces several models at the same frame, see queueReplace()
+	 * @param oldNames names of the models to remove, null entries to only attach
+	 * @param names names of the new models
+	 * @param models loaded models
+	 * @param materials loaded materials
+	 */
+	public void queueReplace(String[] oldNames, String[] names, VMBOModel[] models, VMMaterial[] materials)
+	{
+		synchronized (mPending)
+		{
+			for(int i=0; i<names.length; i++)
+				mPending.add(new Change(oldNames[i], names[i], models[i], materials[i]));
+		}
+	}
+
+	private void queue(Change change)
+	{
+		synchronized (mPending)
+		{
+			mPending.add(change);
+		}
+	}
+
+	/**
+	 * Applies the queued changes. Called by the rendering thread at the start of a frame,
+	 * the textures of the new materials are loaded here.
+	 * @return number of changes applied
+	 */
+	public int applyPending()
+	{
+		List<Change> changes;
+		synchronized (mPending)
+		{
+			if(mPending.isEmpty()) return 0;
+			changes = new ArrayList<Change>(mPending);
+			mPending.clear();
+		}
+		for(Change c : changes)
+		{
+			int index = models.size();
+			if(c.removeName != null)
+			{
+				int found = names.indexOf(c.removeName);
+				if(found >= 0)
+				{
+					index = found;
+					mCache.release(models.remove(found));
+					mCache.release(materials.remove(found));
+					names.remove(found);
+				}
+				else
+					Log.w(TAG, c.removeName + " is not attached");
+			}
+			if(c.model != null)
+			{
+				if(c.material.textureID == -1) c.material.loadTexture();
+				names.add(index, c.addName);
+				models.add(index, c.model);
+				materials.add(index, c.material);
+			}
+		}
+		mNamesSnapshot = new ArrayList<String>(names);
+		return changes.size();
+	}
+
+	/**
+	 * @return true if some changes wait for the next frame
+	 */
+	public boolean hasPending()
+	{
+		synchronized (mPending)
+		{
+			return !mPending.isEmpty();
+		}
+	}
+
+	/**
+	 * @return names of the attached models, as of the last applied frame
+	 */
+	public List<String> getNames()
+	{
+		return Collections.unmodifiableList(mNamesSnapshot);
+	}
+
+	/**
+	 * Gives every model and material, attached or queued, back to the cache
+	 */
+	public void release()
+	{
+		synchronized (mPending)
+		{
+			for(Change c : mPending)
+			{
+				mCache.release(c.model);
+				mCache.release(c.material);
+			}
+			mPending.clear();
+		}
+		for(int i=0; i<models.size(); i++)
+		{
+			mCache.release(models.get(i));
+			mCache.release(materials.get(i));
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package vml.com.vm.avatar;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+/**
+ * Ticks the animation of all the avatars from one clock, at a fixed time step.
+ * <p>
+ * The clock calls {@link #doFrame(long)} once per display frame. The time elapsed is accumulated
+ * and every client is ticked once per whole time step, MAX_STEPS times per frame at most: after a
+ * stall the animation skips ahead instead of running many steps in a row. Idle clients are ticked
+ * every IDLE_STEPS steps only, with the time of all those steps, and sleeping clients not at all.
+ * When every client sleeps no frame is requested from the clock anymore, until {@link #wake()}.
+ * <p>
+ * On a device the {@link VsyncClock} calls doFrame() on a shared thread at every vsync.
+ * Any other clock can drive the scheduler, tests call doFrame() themselves.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ */
+public class AnimationScheduler
+{
+	/**time step of the animation in ms*/
+	public static final int STEP_MS = 1000 / 60;
+	/**steps between two ticks of an idle client*/
+	public static final int IDLE_STEPS = 4;
+	/**steps run for a frame at most*/
+	public static final int MAX_STEPS = 5;
+
+	/**client animating, ticked every step*/
+	public static final int RATE_FULL = 2;
+	/**client waiting for something to animate, ticked every IDLE_STEPS steps*/
+	public static final int RATE_IDLE = 1;
+	/**client with nothing to animate, not ticked*/
+	public static final int RATE_NONE = 0;
+
+	private static final long STEP_NS = STEP_MS * 1000000L;
+
+	/**
+	 * Animation ticked by the scheduler
+	 */
+	public interface Client
+	{
+		/**
+		 * Advances the animation, called on the thread of the clock
+		 * @param dt time elapsed since the previous tick in ms
+		 */
+		void tick(int dt);
+
+		/**
+		 * @return RATE_FULL, RATE_IDLE or RATE_NONE
+		 */
+		int getRate();
+	}
+
+	/**
+	 * Source of the frames
+	 */
+	public interface Clock
+	{
+		/**
+		 * Calls scheduler.doFrame() at the next frame, once however many times it is requested before
+		 * @param scheduler scheduler to call
+		 */
+		void requestFrame(AnimationScheduler scheduler);
+	}
+
+	/**scheduler of the avatars*/
+	private static AnimationScheduler sDefault;
+
+	private final Clock mClock;
+	private final Object mLock = new Object();
+	/**clients, copied on change so a frame does not allocate*/
+	private volatile Entry[] mEntries = new Entry[0];
+	/**time of the last frame, -1 after a wake up*/
+	private long mLastNs = -1;
+	/**time not stepped yet*/
+	private long mAccumulatorNs;
+
+	private static class Entry
+	{
+		final Client client;
+		/**time since the last tick of the client*/
+		int pendingMs;
+
+		Entry(Client client)
+		{
+			this.client = client;
+		}
+	}
+
+	/**
+	 * @param clock source of the frames
+	 */
+	public AnimationScheduler(Clock clock)
+	{
+		mClock = clock;
+	}
+
+	/**
+	 * @return the scheduler shared by the avatars, driven by the display vsync
+	 */
+	public static synchronized AnimationScheduler getDefault()
+	{
+		if(sDefault == null)
+			sDefault = new AnimationScheduler(new VsyncClock());
+		return sDefault;
+	}
+
+	/**
+	 * Adds a client, ticked from the next frame
+	 * @param client animation to tick
+	 */
+	public void register(Client client)
+	{
+		synchronized (mLock)
+		{
+			Entry[] entries = Arrays.copyOf(mEntries, mEntries.length + 1);
+			entries[entries.length - 1] = new Entry(client);
+			mEntries = entries;
+		}
+		wake();
+	}
+
+	/**
+	 * Removes a client, it may be ticked during a frame running at the same time
+	 * @param client animation to remove
+	 */
+	public void unregister(Client client)
+	{
+		synchronized (mLock)
+		{
+			Entry[] entries = mEntries;
+			for(int i=0; i<entries.length; i++)
+			{
+				if(entries[i].client == client)
+				{
+					Entry[] removed = new Entry[entries.length - 1];
+					System.arraycopy(entries, 0, removed, 0, i);
+					System.arraycopy(entries, i + 1, removed, i, removed.length - i);
+					mEntries = removed;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of clients
+	 */
+	public int getClientCount()
+	{
+		return mEntries.length;
+	}
+
+	/**
+	 * Requests frames again, to call when a client may not sleep anymore (an animation was started...)
+	 */
+	public void wake()
+	{
+		mClock.requestFrame(this);
+	}
+
+	/**
+	 * Runs the steps due at a frame, called by the clock
+	 * @param frameTimeNs time of the frame
+	 */
+	public void doFrame(long frameTimeNs)
+	{
+		Entry[] entries = mEntries;
+		if(mLastNs < 0)
+		{
+			//first frame after a sleep: the time slept is not animated
+			mLastNs = frameTimeNs;
+			mAccumulatorNs = STEP_NS;
+		}
+		else if(frameTimeNs > mLastNs)
+		{
+			mAccumulatorNs += frameTimeNs - mLastNs;
+			mLastNs = frameTimeNs;
+		}
+
+		int steps = 0;
+		for(; mAccumulatorNs >= STEP_NS && steps < MAX_STEPS; steps++)
+		{
+			mAccumulatorNs -= STEP_NS;
+			step(entries);
+		}
+		if(steps == MAX_STEPS) mAccumulatorNs %= STEP_NS;
+
+		for(Entry e : entries)
+		{
+			if(e.client.getRate() != RATE_NONE)
+			{
+				mClock.requestFrame(this);
+				return;
+			}
+		}
+		//every client sleeps
+		mLastNs = -1;
+	}
+
+	private static void step(Entry[] entries)
+	{
+		for(Entry e : entries)
+		{
+			int rate = e.client.getRate();
+			if(rate == RATE_NONE)
+			{
+				e.pendingMs = 0;
+				continue;
+			}
+			e.pendingMs += STEP_MS;
+			if(rate == RATE_FULL || e.pendingMs >= IDLE_STEPS * STEP_MS)
+			{
+				int dt = e.pendingMs;
+				e.pendingMs = 0;
+				e.client.tick(dt);
+			}
+		}
+	}
+
+	/**
+	 * Calls the scheduler at every vsync on a thread of its own, through the Choreographer.
+	 * Before Android 4.1 the frames are posted every STEP_MS instead.
+	 */
+	public static class VsyncClock implements Clock
+	{
+		private final Handler mHandler;
+		private final AtomicBoolean mRequested = new AtomicBoolean();
+		private volatile AnimationScheduler mScheduler;
+		/**FrameCallback from Android 4.1, typed Object so older versions do not load it*/
+		private Object mCallback;
+
+		public VsyncClock()
+		{
+			HandlerThread thread = new HandlerThread("AnimationScheduler");
+			thread.start();
+			mHandler = new Handler(thread.getLooper());
+		}
+
+		@Override
+		public void requestFrame(AnimationScheduler scheduler)
+		{
+			if(!mRequested.compareAndSet(false, true)) return;
+			mScheduler = scheduler;
+			mHandler.post(mRequest);
+		}
+
+		/**waits for the next frame, on the thread of the clock*/
+		private final Runnable mRequest = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(Build.VERSION.SDK_INT >= 16)
+					FrameCallback.post(VsyncClock.this);
+				else
+					mHandler.postDelayed(mTick, STEP_MS);
+			}
+		};
+
+		private final Runnable mTick = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				doFrame(System.nanoTime());
+			}
+		};
+
+		private void doFrame(long frameTimeNs)
+		{
+			mRequested.set(false);
+			mScheduler.doFrame(frameTimeNs);
+		}
+
+		/**
+		 * Choreographer callback, in a class of its own so older versions do not load it
+		 */
+		private static class FrameCallback implements Choreographer.FrameCallback
+		{
+			private final VsyncClock mClock;
+
+			private FrameCallback(VsyncClock clock)
+			{
+				mClock = clock;
+			}
+
+			static void post(VsyncClock clock)
+			{
+				if(clock.mCallback == null) clock.mCallback = new FrameCallback(clock);
+				Choreographer.getInstance().postFrameCallback((FrameCallback) clock.mCallback);
+			}
+
+			@Override
+			public void doFrame(long frameTimeNanos)
+			{
+				mClock.doFrame(frameTimeNanos);
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package vml.com.vm.avatar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the parts of an avatar (models, materials, animations) as independent tasks.
+ * <p>
+ * All the loads of all the avatars go through one shared executor with a bounded number of threads,
+ * so loading several avatars at once does not start a thread per asset. Every task is timed,
+ * see {@link #getTimings()}.
+ * <p>
+ * The results are waited for with {@link #get(Future)}, which must not be called from one of the
+ * loader threads: a task waiting for another task could starve the pool.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMAvatarLoader#loadAvatar(android.content.Context, String)
+ */
+public class AvatarPartLoader
+{
+	/**maximum number of loader threads. Loading is mostly inflating and decoding, more threads only fight for memory bandwidth*/
+	public static final int MAX_THREADS = 4;
+
+	private static ExecutorService sExecutor;
+
+	private final ExecutorService mExecutor;
+	private final LoadTimings mTimings;
+	private final List<Future<?>> mFutures = new ArrayList<Future<?>>();
+
+	/**
+	 * Creates a loader running on the shared executor
+	 * @param name name of the load, used for the timings
+	 */
+	public AvatarPartLoader(String name)
+	{
+		this(sharedExecutor(), name);
+	}
+
+	/**
+	 * Creates a loader running on the given executor
+	 * @param executor executor running the tasks
+	 * @param name name of the load, used for the timings
+	 */
+	public AvatarPartLoader(ExecutorService executor, String name)
+	{
+		mExecutor = executor;
+		mTimings = new LoadTimings(name);
+	}
+
+	/**
+	 * @return the executor shared by all the avatar loads, created on first use.
+	 * Its threads are daemon threads, released after some idle time.
+	 */
+	public static synchronized ExecutorService sharedExecutor()
+	{
+		if(sExecutor == null)
+		{
+			int threads = Math.max(2, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "AvatarLoader-" + mCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			sExecutor = executor;
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Runs tasks one at a time, in the order they are submitted, on the threads of another executor.
+	 * Used for the changes of one avatar, which must complete in order, while different avatars still
+	 * load in parallel.
+	 */
+	public static class SerialExecutor implements Executor
+	{
+		private final Executor mExecutor;
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+		/**task running or handed to mExecutor, null when idle*/
+		private Runnable mActive;
+
+		/**
+		 * @param executor executor running the tasks
+		 */
+		public SerialExecutor(Executor executor)
+		{
+			mExecutor = executor;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable task)
+		{
+			mTasks.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						scheduleNext();
+					}
+				}
+			});
+			if(mActive == null) scheduleNext();
+		}
+
+		private synchronized void scheduleNext()
+		{
+			mActive = mTasks.poll();
+			if(mActive != null) mExecutor.execute(mActive);
+		}
+	}
+
+	/**
+	 * Submits the load of a part
+	 * @param part part name, usually the asset path
+	 * @param task the load
+	 * @return the pending result
+	 */
+	public <T> Future<T> submit(final String part, final Callable<T> task)
+	{
+		Future<T> future = mExecutor.submit(new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				long start = System.nanoTime();
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					mTimings.add(part, start, System.nanoTime());
+				}
+			}
+		});
+		synchronized (mFutures)
+		{
+			mFutures.add(future);
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for a part
+	 * @param future result of submit()
+	 * @return the loaded part
+	 * @throws IOException the exception thrown by the load, or InterruptedIOException if interrupted while waiting
+	 */
+	public <T> T get(Future<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading " + mTimings.name);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Cancels the parts not loaded yet, after a failure
+	 */
+	public void cancel()
+	{
+		synchronized (mFutures)
+		{
+			for(Future<?> f : mFutures) f.cancel(false);
+		}
+	}
+
+	/**
+	 * Waits for a part that may fail
+	 * @param future result of submit()
+	 * @return the loaded part, null if the load failed or was cancelled
+	 */
+	public <T> T getQuietly(Future<T> future)
+	{
+		try
+		{
+			return get(future);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Cancels the parts not started yet and waits for the others, after a failure
+	 * @return the parts loaded successfully, so that they can be released
+	 */
+	public List<Object> cancelAndCollect()
+	{
+		cancel();
+		List<Future<?>> futures;
+		synchronized (mFutures)
+		{
+			futures = new ArrayList<Future<?>>(mFutures);
+		}
+		List<Object> loaded = new ArrayList<Object>();
+		for(Future<?> f : futures)
+		{
+			if(f.isCancelled()) continue;
+			Object part = getQuietly(f);
+			if(part != null) loaded.add(part);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Stops the wall clock of the timings, call once every part has been waited for
+	 * @return the timings
+	 */
+	public LoadTimings finish()
+	{
+		mTimings.finish();
+		return mTimings;
+	}
+
+	/**
+	 * @return the per part timings
+	 */
+	public LoadTimings getTimings()
+	{
+		return mTimings;
+	}
+}
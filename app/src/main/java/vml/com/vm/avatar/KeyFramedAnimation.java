@@ -0,0 +1,528 @@
+package vml.com.vm.avatar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import vml.com.vm.utils.AudioClock;
+import vml.com.vm.utils.FacePose;
+import vml.com.vm.utils.KeyFrame;
+import vml.com.vm.utils.PackedClip;
+import vml.com.vm.utils.SparseClip;
+import vml.com.vm.utils.StreamingClip;
+
+/**
+ * Class Key Framed Animation
+ * <p>
+ * Interpolates the face pose of the keyframes at the current audio timing. The keys can be at any
+ * times (decimated or variable rate clips): the pair of keys around the audio timing is found from
+ * the previous one, moving forward a few keys at most, and by binary search on a seek.
+ * A decimated clip (SparseClip) is evaluated channel by channel the same way.
+ * <p>
+ * The keys are held in a PackedClip, whose weights are contiguous, so the interpolation reads two runs
+ * of one array instead of following a KeyFrame and a FacePose per key. Keys added while playing are
+ * handed over under a lock and merged into the clip by the updating thread, which reads the clip
+ * without copying it: adding n keys between the updates costs O(n), whatever the length of the clip.
+ * <p>
+ * Updates do not allocate: the poses are interpolated into two weight buffers owned by the animation,
+ * used in turn, so the buffer handed to the avatar at one update is not written at the next one.
+ *
+ * @author  Roger Blanco i Ribera, Sunjin Jung
+ *
+ */
+class KeyFramedAnimation
+{
+	/**
+	 * Receives the animated face, implemented by the avatar
+	 */
+	interface Target
+	{
+		/**
+		 * Sets the face blendshape weights. The array belongs to the animation, it is rewritten two updates later.
+		 * @param weights blendshape weights
+		 */
+		void setFaceWeights(float[] weights);
+
+		/**
+		 * @param value head nodding value
+		 */
+		void headNod(float value);
+
+		/**
+		 * @param doBlink enables the random blinking if true
+		 */
+		void doBlinking(boolean doBlink);
+
+		/**
+		 * @return number of face blendshape weights
+		 */
+		int getWeightCount();
+	}
+
+	/**duration of the blend to the neutral face in ms*/
+	private static final int BLEND_TIME = 500;
+	/**keys the cursor steps through before searching*/
+	private static final int MAX_CURSOR_STEPS = 4;
+	/**animation without keys*/
+	private static final PackedClip EMPTY = PackedClip.pack(Collections.<KeyFrame>emptyList());
+
+	/**keyframes of the animation*/
+	private PackedClip keyframes = EMPTY;
+	/**keys added since the last update, from any thread. Guarded by keyLock*/
+	private final List<KeyFrame> pendingKeys = new ArrayList<KeyFrame>();
+	private final Object keyLock = new Object();
+	/**pendingKeys is not empty*/
+	private volatile boolean liveKeysAdded;
+	/**gathers the added keys, keyframes reads its arrays. Used under keyLock by the updating thread*/
+	private PackedClip.Builder liveKeys;
+	/**current position of the animation*/
+	private int timeline;
+	/**The last frame time of the animation (update when keyFrames are added)*/
+	private int lastFrame=0;		//
+	/**Animation state*/
+	private boolean run_speech=false;	//
+	private boolean run_blend=false;	//
+	/**the pose the blend to neutral starts from has to be saved*/
+	private boolean blendStarting=false;
+	/**current keyframe, the cursor of the key lookup*/
+	private int currentIdx = -1;
+	/** update audio timing (ms) */
+	private int audioTiming = 0;
+	/**audio position read at every update when not null, instead of setAudioTiming()*/
+	private volatile AudioClock audioClock;
+	/**clip being received, played instead of the keyframes when not null*/
+	private StreamingClip stream;
+	/**decimated clip, played instead of the keyframes when not null*/
+	private SparseClip sparse;
+	/**key of each channel of the sparse clip at the last update*/
+	private int[] sparseCursor;
+
+	/**the face is set here*/
+	private final Target target;
+	/**weight buffers, written in turn*/
+	private float[][] weights = new float[2][0];
+	/**index of the buffer written at the next update*/
+	private int back = 0;
+	/**current face pose, one of the weight buffers, null before the first update*/
+	private float[] facePose;
+	/**face pose the blend to neutral starts from*/
+	private float[] blendStart = new float[0];
+	/**facePose was valid when the blend started*/
+	private boolean hasBlendStart;
+
+	/**Animation needs to be setup by adding keys
+	 * @param target receives the animated face
+	 */
+	public KeyFramedAnimation(Target target)
+	{
+		this.target = target;
+	}
+
+	/**
+	 * Clears the animation.
+	 * Removes all the keys.
+	 */
+	public void clearKeys()
+	{
+		lastFrame=0;
+		synchronized (keyLock)
+		{
+			keyframes = EMPTY;
+			liveKeys = null;
+			pendingKeys.clear();
+			liveKeysAdded = false;
+		}
+		if(stream != null)
+		{
+			stream.close();
+			stream = null;
+		}
+		sparse = null;
+	}
+
+	/**
+	 * Sets the animation to a decimated clip, whose channels are evaluated directly
+	 * @param clip sparse clip
+	 */
+	public void setSparseClip(SparseClip clip)
+	{
+		clearKeys();
+		sparseCursor = clip.newCursor();
+		sparse = clip;
+	}
+
+	/**
+	 * Sets the animation to a clip being received, the keys are read as they arrive
+	 * @param clip opened clip, with its lead time buffered
+	 */
+	public void setStream(StreamingClip clip)
+	{
+		clearKeys();
+		stream = clip;
+	}
+
+	/**
+	 * Adds a key frame to the existing animation at the given time.
+	 * Can be called from any thread, the key is merged in time order at the next update: keys added
+	 * late are moved back past the later keys only.
+	 *
+	 * @param time time of the key frame
+	 * @param keyPose expression, copied
+	 */
+	public void addKey(int time, FacePose keyPose)
+	{
+		KeyFrame key = new KeyFrame();
+		key.time = time;
+		key.pose = new FacePose(keyPose.faceWeights);
+		synchronized (keyLock)
+		{
+			pendingKeys.add(key);
+			liveKeysAdded = true;
+		}
+		if(lastFrame < time) lastFrame=time;
+	}
+	/**
+	 * Adds key frames to the existing animation, merged in time order in one pass at the next update
+	 * @param animKeys keyframes, sorted only if they are not. They must not be changed afterwards
+	 */
+	public void addKeys(List<KeyFrame> animKeys)
+	{
+		synchronized (keyLock)
+		{
+			pendingKeys.addAll(animKeys);
+			liveKeysAdded = !pendingKeys.isEmpty();
+		}
+		for(int i=0; i<animKeys.size(); i++)
+		{
+			if(lastFrame < animKeys.get(i).time) lastFrame=animKeys.get(i).time;
+		}
+	}
+	/**
+	 * Sets animation from the given list of keys.
+	 * Linear in the number of keys when they are sorted, they are sorted once otherwise.
+	 * @param animKeys List of keyframes
+	 */
+	public void setKeys(List<KeyFrame> animKeys)
+	{
+		setClip(PackedClip.pack(animKeys));
+	}
+	/**
+	 * Sets animation from a packed clip
+	 * @param clip keyframes
+	 */
+	public void setClip(PackedClip clip)
+	{
+		synchronized (keyLock)
+		{
+			keyframes = clip;
+			liveKeys = null;
+			pendingKeys.clear();
+			liveKeysAdded = false;
+		}
+		lastFrame = clip.getEndTime();
+	}
+	/**
+	 * Starts the animation from the beginning
+	 */
+	public void start()
+	{
+		timeline = 0;
+		currentIdx = -1;
+		if(stream != null)
+			run_speech = stream.getKeyCount() > 0;
+		else if(sparse != null)
+			run_speech = true;
+		else
+			run_speech = keyframes.getKeyCount() > 0 || liveKeysAdded;
+	}
+	/**
+	 * Stops and rewinds the animation.
+	 * The current animation is reset to its starting position
+	 */
+	public void stop()
+	{
+		timeline=0;
+		currentIdx = -1;
+		run_speech=false;
+	}
+	/**
+	 * Blends animation from stop position to neutral position
+	 */
+	public void blend()
+	{
+		stop();
+		blendStarting = true;
+		run_blend = true;
+	}
+	/**
+	 * Pauses/ unpauses the animation
+	 * the current animation position is maintained
+	 */
+	public void togglePause()
+	{
+		if(keyframes.getKeyCount() > 0 || liveKeysAdded) //if there is an animation ready for play
+		{
+			if(timeline < lastFrame && timeline >0) //we can only pause/resume in the middle of the sequence
+				run_speech= !run_speech;
+		}
+	}
+
+	/**
+	 * @return true while playing the keys or blending to neutral
+	 */
+	public boolean isRunning()
+	{
+		return run_speech || run_blend;
+	}
+
+	/**
+	 * Follows the position of an audio playback, read at every update
+	 * @param clock audio clock, null to go back to setAudioTiming()
+	 */
+	public void setAudioClock(AudioClock clock)
+	{
+		audioClock = clock;
+	}
+
+	public void setAudioTiming(int _audioTiming){
+		//run_speech=true;
+		audioTiming = _audioTiming;
+	}
+
+	public int getCurrentIdxFromAudioTiming(){
+		return findKey(audioTiming);
+	}
+
+	/**
+	 * Finds the last key at or before a time, moving the cursor
+	 * @param time animation time in ms
+	 * @return index of the key, -1 before the first key
+	 */
+	int findKey(int time)
+	{
+		packLiveKeys();
+		int first = stream != null ? stream.getFirstIndex() : 0;
+		int count = keyCount();
+		if(count <= first || keyTime(first) > time) return -1;
+
+		int idx = Math.max(currentIdx, first);
+		if(idx < count && keyTime(idx) <= time)
+		{
+			//forward playback, usually the same key or the next one
+			for(int steps=0; steps<MAX_CURSOR_STEPS; steps++)
+			{
+				if(idx + 1 >= count || keyTime(idx + 1) > time)
+				{
+					currentIdx = idx;
+					return idx;
+				}
+				idx++;
+			}
+			first = idx;
+		}
+
+		//seek: last key with keyTime <= time in [first, count)
+		int lo = first, hi = count - 1;
+		while(lo < hi)
+		{
+			int mid = (lo + hi + 1) >>> 1;
+			if(keyTime(mid) <= time)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		currentIdx = lo;
+		return lo;
+	}
+
+	/**
+	 * Merges the keys added since the last update into the clip, on the updating thread
+	 */
+	private void packLiveKeys()
+	{
+		if(!liveKeysAdded) return;
+		synchronized (keyLock)
+		{
+			if(liveKeys == null) liveKeys = new PackedClip.Builder(keyframes);
+			//the clip of the last update is only read by this thread, which is done with it
+			liveKeys.recycle();
+			liveKeys.addAll(pendingKeys);
+			pendingKeys.clear();
+			liveKeysAdded = false;
+			keyframes = liveKeys.build();
+		}
+	}
+
+	private int keyCount()
+	{
+		return stream != null ? stream.getKeyCount() : keyframes.getKeyCount();
+	}
+
+	private int keyTime(int index)
+	{
+		return stream != null ? stream.getKey(index).time : keyframes.getTime(index);
+	}
+
+	/**
+	 * update the animation for the given passed time
+	 * @param dt update time in ms
+	 */
+	public void update(int dt)
+	{
+		AudioClock clock = audioClock;
+		if(clock != null) audioTiming = clock.getPosition();
+		StreamingClip clip = stream;
+		SparseClip sparseClip = sparse;
+		if(run_speech && clip != null)
+		{
+			updateStream(clip);
+		}
+		else if(run_speech && sparseClip != null)
+		{
+			float[] pose = nextBuffer(sparseClip.nWeights);
+			float nodding = sparseClip.evaluate(audioTiming, sparseCursor, pose);
+			facePose = pose;
+			target.setFaceWeights(pose);
+			target.headNod(nodding);
+		}
+		else if(run_speech)
+		{
+			int idx = findKey(audioTiming);
+			//before the first key or after the last one the pose is held
+			PackedClip keys = keyframes;
+			if(idx < 0 || keys.getKeyCount()<=idx+1) return;
+
+			int curTime = keys.getTime(idx);
+			float weight= (float)(audioTiming - curTime)/(float)(keys.getTime(idx+1) - curTime);
+			float[] pose = nextBuffer(keys.nWeights);
+			keys.interpolate(idx, weight, pose);
+			facePose = pose;
+			target.setFaceWeights(pose);
+			target.headNod(smoothStep(keys.getNodding(idx), keys.getNodding(idx+1), weight));
+		}
+
+		if(run_blend)
+		{
+			if(blendStarting)
+			{
+				saveBlendStart();
+				blendStarting = false;
+			}
+			timeline += dt;
+
+			float weight= (float)timeline/(float)BLEND_TIME;
+			float[] pose = nextBuffer(target.getWeightCount());
+			smoothStep(pose, 0.0f, weight);
+			facePose = pose;
+			target.setFaceWeights(pose);
+
+			if(timeline >= BLEND_TIME){
+				run_blend = false;
+				target.doBlinking(true);
+			}
+		}
+	}
+
+	/**
+	 * update the animation from the keys received so far. When the next key has not arrived yet
+	 * the last pose is held.
+	 */
+	private void updateStream(StreamingClip clip)
+	{
+		int idx = findKey(audioTiming);
+		if(idx < 0) return;
+		if(idx + 1 >= clip.getKeyCount())
+		{
+			if(!clip.isComplete()) clip.underrun();
+			return;
+		}
+		KeyFrame cur = clip.getKey(idx);
+		KeyFrame next = clip.getKey(idx + 1);
+		float weight= (float)(audioTiming - cur.time)/(float)(next.time - cur.time);
+		setPose(cur, next, weight);
+		clip.release(idx);
+	}
+
+	/**
+	 * Interpolates two keys into the next weight buffer and sets it to the target
+	 */
+	private void setPose(KeyFrame cur, KeyFrame next, float weight)
+	{
+		float[] pose = nextBuffer(next.pose.faceWeights.length);
+		smoothStep(cur.pose.faceWeights, next.pose.faceWeights, weight, pose);
+		facePose = pose;
+		target.setFaceWeights(pose);
+		target.headNod(smoothStep(cur.noddingValue, next.noddingValue, weight));
+	}
+
+	/**
+	 * @param length number of weights
+	 * @return the buffer to write at this update, reallocated only when the number of weights changes
+	 */
+	private float[] nextBuffer(int length)
+	{
+		if(weights[back].length != length) weights[back] = new float[length];
+		float[] buffer = weights[back];
+		back ^= 1;
+		return buffer;
+	}
+
+	/**
+	 * Keeps the current pose for the blend to neutral, whose buffers are reused while blending
+	 */
+	private void saveBlendStart()
+	{
+		int count = target.getWeightCount();
+		hasBlendStart = facePose != null && facePose.length == count;
+		if(!hasBlendStart) return;
+		if(blendStart.length != count) blendStart = new float[count];
+		System.arraycopy(facePose, 0, blendStart, 0, count);
+	}
+
+	/**
+	 * Interpolations the face expression between current key pose and next key pose
+	 *
+	 * @param curPose  weights of the current key frame
+	 * @param nextPose weights of the next key frame
+	 * @param weight interpolation step
+	 * @param interPose resulting face expression
+	 */
+	private static void smoothStep(float[] curPose, float[] nextPose, float weight, float[] interPose)
+	{
+		for(int i=0; i<nextPose.length; i++)
+		{
+			interPose[i]=weight*nextPose[i]+(1-weight)*curPose[i];
+		}
+	}
+
+	/**
+	 * Interpolates the head nodding between current key and next key, like the face weights
+	 *
+	 * @param a value of the current key frame
+	 * @param b value of the next key frame
+	 * @param weight interpolation step
+	 * @return interpolated value
+	 */
+	private static float smoothStep(float a, float b, float weight)
+	{
+		return weight * b + (1 - weight) * a;
+	}
+
+	/**
+	 * Interpolates from the pose saved when the blend started to the same weight on every blendshape
+	 *
+	 * @param interPose resulting face expression
+	 * @param allWeights weight of every blendshape at the end of the blend
+	 * @param weight interpolation step
+	 */
+	private void smoothStep(float[] interPose, float allWeights, float weight)
+	{
+		for(int i=0; i<interPose.length; i++) interPose[i] = allWeights;
+
+		if(hasBlendStart)
+		{
+			for(int i=0; i<interPose.length; i++)
+				interPose[i]=weight*interPose[i]+(1-weight)*blendStart[i];
+		}
+	}
+}
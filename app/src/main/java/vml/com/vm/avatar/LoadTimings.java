@@ -0,0 +1,146 @@
+package vml.com.vm.avatar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per part timing breakdown of an avatar load.
+ * <p>
+ * With the parts loaded in parallel the wall time is bounded by the slowest part,
+ * the sum of the part times is what a sequential load would have cost.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see AvatarPartLoader
+ */
+public class LoadTimings
+{
+	/**
+	 * Timing of one loaded part
+	 */
+	public static class Part
+	{
+		/**part name, usually the asset path*/
+		public final String name;
+		/**name of the thread that loaded it*/
+		public final String thread;
+		/**start time relative to the start of the load, in nanoseconds*/
+		public final long startNs;
+		/**load time in nanoseconds*/
+		public final long durationNs;
+
+		Part(String name, String thread, long startNs, long durationNs)
+		{
+			this.name = name;
+			this.thread = thread;
+			this.startNs = startNs;
+			this.durationNs = durationNs;
+		}
+	}
+
+	/**name of the load (avatar file)*/
+	public final String name;
+	private final long mStartNs;
+	private long mEndNs = -1;
+	private final List<Part> mParts = new ArrayList<Part>();
+
+	LoadTimings(String name)
+	{
+		this.name = name;
+		mStartNs = System.nanoTime();
+	}
+
+	/**
+	 * Records a part, called by the loading threads
+	 * @param part part name
+	 * @param startNs System.nanoTime() when the part started
+	 * @param endNs System.nanoTime() when the part ended
+	 */
+	void add(String part, long startNs, long endNs)
+	{
+		Part p = new Part(part, Thread.currentThread().getName(), startNs - mStartNs, endNs - startNs);
+		synchronized (mParts)
+		{
+			mParts.add(p);
+		}
+	}
+
+	/**
+	 * Stops the wall clock
+	 */
+	void finish()
+	{
+		if(mEndNs < 0) mEndNs = System.nanoTime();
+	}
+
+	/**
+	 * @return the recorded parts, by start time
+	 */
+	public List<Part> getParts()
+	{
+		List<Part> parts;
+		synchronized (mParts)
+		{
+			parts = new ArrayList<Part>(mParts);
+		}
+		Collections.sort(parts, new Comparator<Part>()
+		{
+			@Override
+			public int compare(Part a, Part b)
+			{
+				return a.startNs < b.startNs ? -1 : (a.startNs == b.startNs ? 0 : 1);
+			}
+		});
+		return parts;
+	}
+
+	/**
+	 * @return elapsed time from the start to the end of the load (or now if not finished), in nanoseconds
+	 */
+	public long getWallTimeNs()
+	{
+		return (mEndNs < 0 ? System.nanoTime() : mEndNs) - mStartNs;
+	}
+
+	/**
+	 * @return sum of the part times, in nanoseconds
+	 */
+	public long getSumNs()
+	{
+		long sum = 0;
+		synchronized (mParts)
+		{
+			for(Part p : mParts) sum += p.durationNs;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the part that took the longest, null if there is none
+	 */
+	public Part getSlowest()
+	{
+		Part slowest = null;
+		synchronized (mParts)
+		{
+			for(Part p : mParts)
+			{
+				if(slowest == null || p.durationNs > slowest.durationNs) slowest = p;
+			}
+		}
+		return slowest;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%s: %.1f ms wall, %.1f ms summed over the parts", name, getWallTimeNs() / 1e6, getSumNs() / 1e6));
+		for(Part p : getParts())
+			sb.append(String.format(Locale.US, "%n  %-32s %8.1f ms  (+%.1f ms, %s)", p.name, p.durationNs / 1e6, p.startNs / 1e6, p.thread));
+		return sb.toString();
+	}
+}
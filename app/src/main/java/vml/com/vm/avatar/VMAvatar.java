@@ -2,11 +2,14 @@ package vml.com.vm.avatar;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import vml.com.animation.R;
 import android.content.Context;
@@ -16,6 +19,9 @@ import android.os.Debug;
 import android.os.SystemClock;
 import android.util.Log;
 
+import vml.com.vm.blend.AssetCache;
+import vml.com.vm.blend.BlendEngine;
+import vml.com.vm.blend.BlendPipeline;
 import vml.com.vm.blend.VMBOLoader;
 import vml.com.vm.blend.VMBOModel;
 import vml.com.vm.utils.*;
@@ -61,9 +67,12 @@ public class VMAvatar
 	 *  @see FacePose */
 	private Map<String,FacePose> visemes    = new LinkedHashMap <String,FacePose>();
 	/** List of keyframed animations 
-	 * @see KeyFrame 
+	 * @see PackedClip 
 	 * @see KeyFramedAnimation */
-	private Map<String,List<KeyFrame> > animations    =new LinkedHashMap <String,List<KeyFrame> >();
+	private Map<String,PackedClip> animations    =new LinkedHashMap <String,PackedClip>();
+	/** decimated animations
+	 * @see SparseClip */
+	private Map<String,SparseClip> sparseAnimations = new LinkedHashMap<String,SparseClip>();
 
 	/** index of blendshapes affecting mouth region*/
 	public int[] mouthRegionBlends;
@@ -85,6 +94,20 @@ public class VMAvatar
 	/** animation manager.
 	 *  @see Animator*/
 	private Animator animator;
+	/** face poses handed from the animator thread to the render thread
+	 *  @see PoseFrame*/
+	private TripleBuffer<PoseFrame> poses;
+	/** face weights set by the animation, copied into the next published pose*/
+	private volatile float[] animPose;
+	/** head nodding set by the animation*/
+	private volatile float animNodding;
+	/** blending of the face, teeth and tongue
+	 *  @see BlendPipeline*/
+	private BlendPipeline blending;
+	/** runs the changes of the extra models one at a time, so they are queued in the order they were requested*/
+	private final Executor mSwaps = new AvatarPartLoader.SerialExecutor(AvatarPartLoader.sharedExecutor());
+	/** per part load timings, set by VMAvatarLoader*/
+	LoadTimings mLoadTimings;
 	
 	//Transforms	///////////////////////////////////////////////////////
 	/**Scene Model View Matrix */
@@ -106,6 +129,9 @@ public class VMAvatar
 	//Shader variables	///////////////////////////////////////////////////
 	/** compiled shader program handle*/
 	private int mProgram;	
+	/** compiled shader program, with the locations of its attributes and uniforms
+	 *  @see ShaderProgram*/
+	private ShaderProgram mShader;
 	/*vertex array handle*/
 	private int mrm_VertexHandle;
 	/*Normal array handle*/
@@ -121,6 +147,8 @@ public class VMAvatar
 	private int mmatViewProjectionHandle;
 	private int mmatViewProjectionInverseTransposeHandle;
 	private int mfvLightPositionHandle;    
+	private int mfvLightPosition0Handle;
+	private int mfvLightPosition1Handle;
 	private int mfvEyePositionHandle;
 	private int mfvEyeRotationHandle;
 	private int mfvAmbientHandle;
@@ -131,6 +159,10 @@ public class VMAvatar
     private int mfvEyeTranslationHandle;
     private int miIndexHandle;
 	private int mfHeadNoddingAngleHandle;
+	/*texture sampler handles*/
+	private int mBaseMapHandle;
+	private int mBumpMapHandle;
+	private int mNormalMapHandle;
 	///////////////////////////////////////////////////////////////////////
 	
     /**
@@ -147,12 +179,7 @@ public class VMAvatar
 		 try 
 		 {
 			 mHead= new AvatarHead( faceBobFile, faceBobMatFile, teethBobFile, teethMatFile, tongueBobFile, tongueMatFile, eyeBobFile, eyeMatFile);
-			 if((mHead.faceModel.nBS!=mHead.teethModel.nBS)||(mHead.faceModel.nBS!=mHead.tongueModel.nBS))
-			     Log.e("error","Different blendshape number: Face, Teeth, Tongue !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-             for(int idx=0; idx < mHead.faceModel.nBS; idx++)
-                addMouthLink(idx, idx);
-			 animator=new Animator();			 
-			 animator.start();
+			 initHead();
 		}
 		 catch (IOException e) 
 		{		
@@ -160,6 +187,48 @@ public class VMAvatar
 		}
 	}
 
+	/**
+	 * Creates an avatar from already loaded parts
+	 *
+	 * @param context Activity context
+	 * @see VMAvatarLoader#loadAvatar(Context, String)
+	 */
+	public VMAvatar(Context context, 	VMBOModel faceModel,  VMMaterial faceMaterial,
+										VMBOModel teethModel, VMMaterial teethMaterial,
+										VMBOModel tongueModel, VMMaterial tongueMaterial,
+										VMBOModel eyeModel,	 VMMaterial eyeMaterial)
+	{
+		mContext=context;
+		blinkLID=0; blinkRID=0;
+		mHead= new AvatarHead(faceModel, faceMaterial, teethModel, teethMaterial, tongueModel, tongueMaterial, eyeModel, eyeMaterial);
+		initHead();
+	}
+
+	/**
+	 * Links the face and mouth blendshapes and starts the animator
+	 */
+	private void initHead()
+	{
+		if((mHead.faceModel.nBS!=mHead.teethModel.nBS)||(mHead.faceModel.nBS!=mHead.tongueModel.nBS))
+			Log.e("error","Different blendshape number: Face, Teeth, Tongue !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+		for(int idx=0; idx < mHead.faceModel.nBS; idx++)
+			addMouthLink(idx, idx);
+		animPose = mHead.faceModel.BSWeights;
+		poses = new TripleBuffer<PoseFrame>(new PoseFrame(animPose), new PoseFrame(animPose), new PoseFrame(animPose));
+		blending = new BlendPipeline(BlendPipeline.DEPTH_LATENCY, mHead.faceModel, mHead.teethModel, mHead.tongueModel);
+		animator=new Animator(AnimationScheduler.getDefault());
+		animator.setRunning(true);
+		animator.doBlinking(true);
+	}
+
+	/**
+	 * @return per part timings of the load of this avatar, null if it was not loaded by VMAvatarLoader
+	 */
+	public LoadTimings getLoadTimings()
+	{
+		return mLoadTimings;
+	}
+
 
 	/**
 	 * Initiate the setup for using RenderScript.
@@ -172,7 +241,58 @@ public class VMAvatar
 		mHead.teethModel.initRenderScript(mContext);
 		mHead.tongueModel.initRenderScript(mContext);
 	}
+
+	/**
+	 * Blends the face, teeth and tongue with the given multi-core Java engine instead of RenderScript.
+	 * When an engine is set, initRenderScript() does not need to be called.
+	 * The engine can be shared between avatars.
+	 *
+	 * @param engine blending engine, null to go back to RenderScript
+	 * @see BlendEngine
+	 */
+	public void setBlendEngine(BlendEngine engine)
+	{
+		mHead.faceModel.setBlendEngine(engine);
+		mHead.teethModel.setBlendEngine(engine);
+		mHead.tongueModel.setBlendEngine(engine);
+	}
 	
+	/**
+	 * Selects whether the face is blended before it is drawn (DEPTH_LATENCY, the default) or while the
+	 * previous frame is drawn (DEPTH_THROUGHPUT, needs a BlendEngine).
+	 *
+	 * @param depth BlendPipeline.DEPTH_LATENCY or BlendPipeline.DEPTH_THROUGHPUT
+	 * @see BlendPipeline
+	 */
+	public void setBlendDepth(int depth)
+	{
+		blending.setDepth(depth);
+	}
+
+	/**
+	 * @param out timings to fill
+	 * @return the blend, wait and submission times of the last frame rendered
+	 */
+	public BlendPipeline.Timings getBlendTimings(BlendPipeline.Timings out)
+	{
+		return blending.getTimings(out);
+	}
+
+	/**
+	 * Replaces the dense blendshape deltas of the face, teeth and tongue by sparse ones.
+	 * Reduces memory and per frame work with BlendEngine.MODE_SPARSE. Afterwards the avatar
+	 * can only be blended with a BlendEngine, not with RenderScript.
+	 *
+	 * @param threshold zero-threshold of the deltas
+	 * @see vml.com.vm.blend.SparseBlendShapes
+	 */
+	public void useSparseBlendShapes(float threshold)
+	{
+		mHead.faceModel.buildSparseBlendShapes(threshold, true);
+		mHead.teethModel.buildSparseBlendShapes(threshold, true);
+		mHead.tongueModel.buildSparseBlendShapes(threshold, true);
+	}
+
 	/**
 	 * get list of animations
 	 */
@@ -201,15 +321,29 @@ public class VMAvatar
 		//remove any existing animation
 		clearAnimation();
 		if (animations.containsKey(AnimChoice))			
-			animator.animEngine.setKeys(animations.get(AnimChoice));
+			animator.animEngine.setClip(animations.get(AnimChoice));
+		else if (sparseAnimations.containsKey(AnimChoice))
+			animator.animEngine.setSparseClip(sparseAnimations.get(AnimChoice));
 	}
 	
+	/**
+	 * Plays a clip while it is being received, the audio timing drives it as for setAnimation()
+	 * @param clip opened clip, with its lead time buffered (see StreamingClip#awaitLead())
+	 */
+	public void playStream(StreamingClip clip)
+	{
+		animator.animEngine.setStream(clip);
+		animator.animEngine.start();
+		animator.wake();
+	}
+
 	/**
 	 * Starts the animation engine to play the current setup animation
 	 */
 	public void startAnimation()
 	{		
 		animator.animEngine.start();
+		animator.wake();
 	}
 
 	/**
@@ -220,6 +354,16 @@ public class VMAvatar
 		animator.animEngine.setAudioTiming(time);
 	}
 
+	/**
+	 * Follows an audio playback: the animation reads its position at every frame, instead of
+	 * updateAudioTiming()
+	 * @param clock audio clock of the playback, null to stop following it
+	 */
+	public void setAudioClock(AudioClock clock)
+	{
+		animator.animEngine.setAudioClock(clock);
+	}
+
     /**
      * Disable, enable the blinking motion
      */
@@ -232,19 +376,43 @@ public class VMAvatar
 	 * Adds an animation to the existing animation list VMAvatar.animations.
 	 * 
 	 * @param animName name of the animation
-	 * @param keyList	: list of key frames
+	 * @param keyList	: list of key frames, packed into a PackedClip
 	 * @see KeyFrame
 	 */
 	public void addAnimation(String animName,List<KeyFrame> keyList)
 	{
-		animations.put(animName, keyList);
-		return;
+		addAnimation(animName, PackedClip.pack(keyList));
+	}
+
+	/**
+	 * Adds a packed animation to the existing animation list VMAvatar.animations.
+	 *
+	 * @param animName name of the animation
+	 * @param clip keyframes
+	 */
+	public void addAnimation(String animName, PackedClip clip)
+	{
+		sparseAnimations.remove(animName);
+		animations.put(animName, clip);
 	}
 
+	/**
+	 * Adds a decimated animation to the existing animation list.
+	 *
+	 * @param animName name of the animation
+	 * @param clip decimated keys, see ClipOptimizer
+	 */
+	public void addAnimation(String animName, SparseClip clip)
+	{
+		animations.remove(animName);
+		sparseAnimations.put(animName, clip);
+	}
+
+	/** head nodding of the pose being rendered, render thread only*/
 	private float GlobalHeadNoddingValue;
 	public void headNod(float inputHeadNoddingValue)
 	{
-        GlobalHeadNoddingValue = inputHeadNoddingValue;
+        animNodding = inputHeadNoddingValue;
 	}
 
 	
@@ -293,15 +461,104 @@ public class VMAvatar
 //			mHead.faceModel.BSWeights = pose.faceWeights;
 //			mHead.mouthModel.BSWeights= pose.mouthWeights;
 //		}
-		if(	pose.faceWeights.length==mHead.faceModel.BSWeights.length)
+		setFaceWeights(pose.faceWeights);
+	}
+
+	/**
+	 * sets the current blendshape weights. The array is copied into the next pose published by the
+	 * animator, it must not change until then. The animator is woken up to publish it when nothing
+	 * is animated.
+	 *
+	 * @param weights blendshape weights of the face
+	 */
+	void setFaceWeights(float[] weights)
+	{
+		if(setAnimPose(weights) && animator != null)
+			animator.requestPose();
+	}
+
+	/**
+	 * sets the weights copied into the next published pose
+	 *
+	 * @param weights blendshape weights of the face
+	 * @return false if the number of weights is wrong
+	 */
+	private boolean setAnimPose(float[] weights)
+	{
+		if(	weights.length!=mHead.faceModel.nBS)
 		{
-			mHead.faceModel.BSWeights = pose.faceWeights;
-			mHead.teethModel.BSWeights= pose.faceWeights;
-			mHead.tongueModel.BSWeights= pose.faceWeights;
-		}
-		else
 			Log.e("xml","Different Size of Blendshape Weights");
+			return false;
+		}
+		animPose = weights;
+		return true;
+	}
+
+	/**
+	 * Publishes the pose of this animation frame to the render thread, called by the animator
+	 *
+	 * @param blink weight of the blink blendshapes, negative when not blinking
+	 */
+	private void publishPose(float blink)
+	{
+		PoseFrame frame = poses.getBack();
+		float[] pose = animPose;
+		System.arraycopy(pose, 0, frame.weights, 0, pose.length);
+		if(blink >= 0.0f)
+		{
+			frame.weights[blinkLID] = blink;
+			frame.weights[blinkRID] = blink;
+		}
+		frame.nodding = animNodding;
+		poses.publish();
+	}
 
+	/**
+	 * Face pose of one animation frame: written by the animator thread, then read by the render thread
+	 * @see TripleBuffer
+	 */
+	private static class PoseFrame
+	{
+		/**blendshape weights of the face, teeth and tongue*/
+		final float[] weights;
+		/**head nodding value*/
+		float nodding;
+
+		PoseFrame(float[] initial)
+		{
+			weights = initial.clone();
+		}
+	}
+
+	/**
+	 * Gives the key framed animation access to the face
+	 */
+	private class AnimationTarget implements KeyFramedAnimation.Target
+	{
+		@Override
+		public void setFaceWeights(float[] weights)
+		{
+			//published by the tick setting it
+			setAnimPose(weights);
+		}
+
+		@Override
+		public void headNod(float value)
+		{
+			VMAvatar.this.headNod(value);
+		}
+
+		@Override
+		public void doBlinking(boolean doBlink)
+		{
+			VMAvatar.this.doBlinking(doBlink);
+		}
+
+		@Override
+		public int getWeightCount()
+		{
+			return mHead.faceModel.nBS;
+		}
 	}
 	
 
@@ -312,6 +569,7 @@ public class VMAvatar
 	public void setNeutralFace()
 	{
 		animator.animEngine.blend();
+		animator.wake();
 	}
 	
 	/**
@@ -356,6 +614,174 @@ public class VMAvatar
 		}
 	}
 
+	/**
+	 *Attaches an already loaded model to the Extra Models group
+	 *
+	 * @param model			loaded model
+	 * @param material		loaded material
+	 */
+	public void addExtraModel(VMBOModel model, VMMaterial material)
+	{
+		extraModels.add(model);
+		extraMaterials.add(material);
+	}
+
+	/**
+	 *Attaches an already loaded model to the Head Models group
+	 *
+	 * @param model			loaded model
+	 * @param material		loaded material
+	 */
+	public void addExtraModelToHead(VMBOModel model, VMMaterial material)
+	{
+		mHead.addExtraModel(model, material);
+	}
+
+	/**
+	 *Attaches an already loaded model to the Head Models group, before the avatar is rendered
+	 *
+	 * @param name			name identifying the model, usually its file
+	 * @param model			loaded model
+	 * @param material		loaded material
+	 */
+	public void addExtraModelToHead(String name, VMBOModel model, VMMaterial material)
+	{
+		mHead.extras.add(name, model, material);
+	}
+
+	/**
+	 *Loads a model in the background and attaches it to the Head Models group at the next frame.
+	 *
+	 * @param modfile			bob model file, also the name of the model
+	 * @param matfile			material file
+	 * @return 					completes with true once the model is loaded and queued, false if it could not be loaded
+	 */
+	public Future<Boolean> attachExtraModelToHead(String modfile, String matfile)
+	{
+		return replaceExtraModelsOnHead(new String[]{null}, new String[]{modfile}, new String[]{matfile});
+	}
+
+	/**
+	 *Loads a model in the background and replaces an extra head model with it at the next frame,
+	 *without reloading the rest of the avatar. The old model is kept until the new one is ready.
+	 *
+	 * @param oldModfile		name of the model to replace
+	 * @param modfile			bob model file, also the name of the new model
+	 * @param matfile			material file
+	 * @return 					completes with true once the model is loaded and queued, false if it could not be loaded
+	 */
+	public Future<Boolean> replaceExtraModelOnHead(String oldModfile, String modfile, String matfile)
+	{
+		return replaceExtraModelsOnHead(new String[]{oldModfile}, new String[]{modfile}, new String[]{matfile});
+	}
+
+	/**
+	 *Loads several models in the background and swaps them in at the same frame (eg. hair and clothes).
+	 *Nothing changes if one of them can not be loaded. The changes of an avatar are applied in the order
+	 *they are requested.
+	 *
+	 * @param oldModfiles		names of the models to replace, null entries to only attach
+	 * @param modfiles			bob model files, also the names of the new models
+	 * @param matfiles			material files
+	 * @return 					completes with true once the models are loaded and queued, false if one could not be loaded
+	 */
+	public Future<Boolean> replaceExtraModelsOnHead(final String[] oldModfiles, final String[] modfiles, final String[] matfiles)
+	{
+		FutureTask<Boolean> swap = new FutureTask<Boolean>(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				AssetCache cache = AssetCache.getInstance();
+				VMBOModel[] models = new VMBOModel[modfiles.length];
+				VMMaterial[] materials = new VMMaterial[modfiles.length];
+				boolean loaded = true;
+				for(int i=0; i<modfiles.length && loaded; i++)
+				{
+					try
+					{
+						models[i] = cache.acquireModel(mContext, modfiles[i]);
+						if(matfiles[i].equals("") || matfiles[i].equalsIgnoreCase("default"))
+							materials[i] = new VMMaterial();
+						else
+							materials[i] = cache.acquireMaterial(mContext, matfiles[i]);
+					}
+					catch (IOException e)
+					{
+						Log.e(TAG, "Error: Could not load " + modfiles[i]);
+					}
+					loaded = models[i] != null && materials[i] != null;
+				}
+				if(!loaded)
+				{
+					for(int i=0; i<modfiles.length; i++)
+					{
+						cache.release(models[i]);
+						cache.release(materials[i]);
+					}
+					return false;
+				}
+				mHead.extras.queueReplace(oldModfiles, modfiles, models, materials);
+				return true;
+			}
+		});
+		mSwaps.execute(swap);
+		return swap;
+	}
+
+	/**
+	 *Detaches an extra head model at the next frame
+	 *
+	 * @param modfile			name of the model
+	 */
+	public void detachExtraModelFromHead(final String modfile)
+	{
+		//after the swaps requested before
+		mSwaps.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				mHead.extras.queueDetach(modfile);
+			}
+		});
+	}
+
+	/**
+	 * @return names of the extra head models, as of the last rendered frame
+	 */
+	public List<String> getExtraHeadModelNames()
+	{
+		return mHead.extras.getNames();
+	}
+
+	/**
+	 * Stops the animator and the blending worker, the models and materials are kept
+	 */
+	void stop()
+	{
+		if(animator != null) animator.setRunning(false);
+		if(blending != null) blending.release();
+	}
+
+	/**
+	 * Stops the animation and the blending worker and gives the models and materials back to the AssetCache,
+	 * the ones not coming from the cache are left to the garbage collector.
+	 * The avatar can not be used anymore afterwards.
+	 */
+	public void release()
+	{
+		stop();
+		AssetCache cache = AssetCache.getInstance();
+		mHead.release(cache);
+		mHead.extras.release();
+		for(int i=0; i<extraModels.size(); i++)
+		{
+			cache.release(extraModels.get(i));
+			cache.release(extraMaterials.get(i));
+		}
+	}
+
 	/**
 	 *Attaches the given model to the Head Models group from the specified file in the SD card.
 	 *The model will be subject to head transformations (ie. it will follow the head)
@@ -398,12 +824,14 @@ public class VMAvatar
 		final int vertexShaderHandle = VMShaderUtil.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);	
 		final int fragmentShaderHandle = VMShaderUtil.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
 		
-		mProgram = VMShaderUtil.createAndLinkProgram(vertexShaderHandle,fragmentShaderHandle, null);
+		mShader = ShaderProgram.create(vertexShaderHandle,fragmentShaderHandle, null);
+		mProgram = mShader.getHandle();
 
 		if (mProgram == 0) 
 		{
 			throw new RuntimeException("Error compiling the shader programs");
 		}
+		getShaderHandles();
 
 		mHead.loadTextures();
 
@@ -414,97 +842,52 @@ public class VMAvatar
 	}
 
 	/**
-	 * Binds the attributes and uniforms
+	 * Gets the locations of the attributes and uniforms, once the program is linked
 	 */
-    private void useShader()
-    {
-        GLES20.glUseProgram(mProgram);
-        VMShaderUtil.checkGlError("glUseProgram");
-
-        // get handles for the vertex attributes
-        mrm_VertexHandle = GLES20.glGetAttribLocation(mProgram, "rm_Vertex");
-        VMShaderUtil.checkGlError("glGetAttribLocation rm_Vertex");
-        if (mrm_VertexHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for rm_Vertex");
-        }
-        mrm_NormalHandle = GLES20.glGetAttribLocation(mProgram, "rm_Normal");
-        VMShaderUtil.checkGlError("glGetAttribLocation rm_Normal");
-        if (mrm_NormalHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for rm_Normal");
-        }
-
-        if(YES_TAN) {
-			mrm_TangentHandle = GLES20.glGetAttribLocation(mProgram, "rm_Tangent");
-			VMShaderUtil.checkGlError("glGetAttribLocation rm_Tangent");
-			if (mrm_TangentHandle == -1) {
-				throw new RuntimeException("Could not get attrib location for rm_Tangent");
-			}
-		}
+	private void getShaderHandles()
+	{
+		// handles of the vertex attributes
+		mrm_VertexHandle = mShader.requireAttribLocation("rm_Vertex");
+		mrm_NormalHandle = mShader.requireAttribLocation("rm_Normal");
+		if(YES_TAN)
+			mrm_TangentHandle = mShader.requireAttribLocation("rm_Tangent");
+		mrm_TexCoord0Handle = mShader.requireAttribLocation("rm_TexCoord0");
+
+		// handles of the light and eye positions
+		mfvLightPositionHandle = mShader.requireUniformLocation("fvLightPosition");
+		mfvLightPosition0Handle = mShader.getUniformLocation("fvLightPosition[0]");
+		mfvLightPosition1Handle = mShader.getUniformLocation("fvLightPosition[1]");
+		mfvEyePositionHandle = mShader.requireUniformLocation("fvEyePosition");
+
+		// handles of the transform matrices
+		mmatViewProjectionHandle = mShader.requireUniformLocation("matViewProjection");
+		mmatViewProjectionInverseTransposeHandle = mShader.getUniformLocation("matViewProjectionInverseTranspose");
+
+		// handles of the material properties
+		mfvAmbientHandle = mShader.getUniformLocation("fvAmbient");
+		mfvDiffuseHandle = mShader.getUniformLocation("fvDiffuse");
+		mfvSpecularHandle = mShader.getUniformLocation("fvSpecular");
+		mfSpecularPowerHandle = mShader.getUniformLocation("fSpecularPower");
+		miTexturedHandle = mShader.getUniformLocation("iTextured");
+		mBaseMapHandle = mShader.getUniformLocation("baseMap");
+		mBumpMapHandle = mShader.getUniformLocation("bumpMap");
+		mNormalMapHandle = mShader.getUniformLocation("normalMap");
+
+		mfTestTimeHandle = mShader.getUniformLocation("iTime");
+		mfvEyeTranslationHandle = mShader.getUniformLocation("fvEyeTranslation");
+		miIndexHandle = mShader.getUniformLocation("iIndex");
+		mfHeadNoddingAngleHandle = mShader.getUniformLocation("fHeadNoddingAngle");
+		mfvEyeRotationHandle = mShader.getUniformLocation("fvEyeRotation");
+	}
 
-		mrm_TexCoord0Handle = GLES20.glGetAttribLocation(mProgram, "rm_TexCoord0");
-        VMShaderUtil.checkGlError("glGetAttribLocation rm_TexCoord0");
-        if (mrm_TexCoord0Handle == -1) {
-            throw new RuntimeException("Could not get attrib location for rm_TexCoord0");
-        }
-
-        // get handles for the light and eye positions
-        mfvLightPositionHandle = GLES20.glGetUniformLocation(mProgram, "fvLightPosition");
-        VMShaderUtil.checkGlError("glGetUniformLocation fvLightPosition");
-        if (mfvLightPositionHandle == -1) {
-            throw new RuntimeException("Could not get uniform location for fvLightPosition");
-        }
-        mfvEyePositionHandle = GLES20.glGetUniformLocation(mProgram, "fvEyePosition");
-        VMShaderUtil.checkGlError("glGetUniformLocation fvEyePosition");
-        if (mfvEyePositionHandle == -1) {
-            throw new RuntimeException("Could not get uniform location for fvEyePosition");
-        }
-
-        // get handles for the transform matrices
-        mmatViewProjectionHandle = GLES20.glGetUniformLocation(mProgram, "matViewProjection");
-        VMShaderUtil.checkGlError("glGetUniformLocation matViewProjection");
-        if (mmatViewProjectionHandle == -1) {
-            throw new RuntimeException("Could not get uniform location for matViewProjection");
-        }
-        mmatViewProjectionInverseTransposeHandle = GLES20.glGetUniformLocation(mProgram, "matViewProjectionInverseTranspose");
-        VMShaderUtil.checkGlError("glGetUniformLocation matViewProjectionInverseTranspose");
-        if (mmatViewProjectionInverseTransposeHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for matViewProjectionInverseTranspose");
-        }
-
-        // get handles for the material properties
-
-        mfvAmbientHandle = GLES20.glGetUniformLocation(mProgram, "fvAmbient");
-        VMShaderUtil.checkGlError("glGetUniformLocation fvAmbient");
-        if (mfvAmbientHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for fvAmbient");
-        }
-        mfvDiffuseHandle = GLES20.glGetUniformLocation(mProgram, "fvDiffuse");
-        VMShaderUtil.checkGlError("glGetUniformLocation fvDiffuse");
-        if (mfvDiffuseHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for fvDiffuse");
-        }
-        mfvSpecularHandle = GLES20.glGetUniformLocation(mProgram, "fvSpecular");
-        VMShaderUtil.checkGlError("glGetUniformLocation fvSpecular");
-        if (mfvSpecularHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for fvSpecular");
-        }
-        mfSpecularPowerHandle = GLES20.glGetUniformLocation(mProgram, "fSpecularPower");
-        VMShaderUtil.checkGlError("glGetUniformLocation fSpecularPower");
-        if (mfSpecularPowerHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for fSpecularPower");
-        }
-        miTexturedHandle = GLES20.glGetUniformLocation(mProgram, "iTextured");
-        VMShaderUtil.checkGlError("glGetUniformLocation iTextured");
-        if (miTexturedHandle == -1) {
-            //throw new RuntimeException("Could not get uniform location for iTextured");
-        }
-
-        mfTestTimeHandle = GLES20.glGetUniformLocation(mProgram, "iTime");
-        mfvEyeTranslationHandle = GLES20.glGetUniformLocation(mProgram, "fvEyeTranslation");
-        miIndexHandle = GLES20.glGetUniformLocation(mProgram, "iIndex");
-		mfHeadNoddingAngleHandle = GLES20.glGetUniformLocation(mProgram, "fHeadNoddingAngle");
-		mfvEyeRotationHandle = GLES20.glGetUniformLocation(mProgram, "fvEyeRotation");
-    }
+	/**
+	 * Makes the avatar program current
+	 */
+	private void useShader()
+	{
+		mShader.use();
+		VMShaderUtil.checkGlError("glUseProgram");
+	}
 
 	/**
 	 * Associates a face blendshape to a mouth blendshape
@@ -546,21 +929,29 @@ public class VMAvatar
 	 */
 	public void Render(float[] M, float[] V, float P[] )
 	{
-		//apply the blendshapes to the neutral face
-    	mHead.faceModel.applyBlendShapes();
-
-    	//ensure the connected blendshapes between face and mouth
-    	doMouthLinks();
-    	mHead.teethModel.applyBlendShapes();
-		mHead.tongueModel.applyBlendShapes();
+		//frame boundary: swap in the extra models loaded in the background
+		mHead.extras.applyPending();
+		VMMaterial.deleteReleasedTextures();
+
+		//the newest complete pose, owned by this thread until the next frame
+		PoseFrame pose = poses.acquire();
+		mHead.faceModel.BSWeights = pose.weights;
+		mHead.teethModel.BSWeights= pose.weights;
+		mHead.tongueModel.BSWeights= pose.weights;
+		GlobalHeadNoddingValue = pose.nodding;
+
+		//ensure the connected blendshapes between face and mouth
+		doMouthLinks();
+		//apply the blendshapes to the neutral face, or swap in the ones blended during the previous frame
+		blending.beginFrame();
 
 		useShader();
 
 		//bind global Attributes
 		//bind the light and eye positions
-        GLES20.glUniform3f(GLES20.glGetUniformLocation(mProgram, "fvLightPosition[0]"), mfvLightPosition[0], mfvLightPosition[1], mfvLightPosition[2]); VMShaderUtil.checkGlError("glUniform3f mfvLightPositionHandle");
-        GLES20.glUniform3f(GLES20.glGetUniformLocation(mProgram, "fvLightPosition[1]"), mfvLightPosition[3], mfvLightPosition[4], mfvLightPosition[5]); VMShaderUtil.checkGlError("glUniform3f mfvLightPositionHandle");
-		GLES20.glUniform3f(mfvEyePositionHandle,mfvEyePosition[0], mfvEyePosition[1], mfvEyePosition[2]);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
+        mShader.uniform3f(mfvLightPosition0Handle, mfvLightPosition[0], mfvLightPosition[1], mfvLightPosition[2]); VMShaderUtil.checkGlError("glUniform3f mfvLightPositionHandle");
+        mShader.uniform3f(mfvLightPosition1Handle, mfvLightPosition[3], mfvLightPosition[4], mfvLightPosition[5]); VMShaderUtil.checkGlError("glUniform3f mfvLightPositionHandle");
+		mShader.uniform3f(mfvEyePositionHandle,mfvEyePosition[0], mfvEyePosition[1], mfvEyePosition[2]);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
 
 
         Matrix.multiplyMM(mmatModelView, 0, V, 0, M, 0);
@@ -571,12 +962,12 @@ public class VMAvatar
         Matrix.transposeM(mmatViewProjection_inv_t, 0, mmatViewProjection_inv, 0);
 
         // bind the transform matrices
-        GLES20.glUniformMatrix4fv(mmatViewProjectionHandle, 1, false, mmatViewProjection, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
-        GLES20.glUniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, mmatViewProjection_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
+        mShader.uniformMatrix4fv(mmatViewProjectionHandle, 1, false, mmatViewProjection, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
+        mShader.uniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, mmatViewProjection_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
 
         //renderExtraModels();
         mHead.render(mmatViewProjection);
-
+		blending.endFrame();
 	}
 	
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -601,8 +992,10 @@ public class VMAvatar
 		private VMBOModel tongueModel;
 		private VMMaterial tongueMaterial;
 
-		private List<VMBOModel> extraHeadModels	= new ArrayList<VMBOModel>();
-		private List<VMMaterial> extraHeadMaterials= new ArrayList<VMMaterial>();
+		/**extra models, can be changed while rendering*/
+		private final AccessorySet extras = new AccessorySet();
+		private final List<VMBOModel> extraHeadModels	= extras.models;
+		private final List<VMMaterial> extraHeadMaterials= extras.materials;
 
 		private boolean followEyes=false;
 
@@ -629,6 +1022,26 @@ public class VMAvatar
 			mEye= new AvatarEye(eyeBobFile,eyeMatFile);
 		}
 
+		/**
+		 * Creates the head from already loaded parts
+		 */
+		public AvatarHead(VMBOModel faceModel,  VMMaterial faceMaterial,
+							VMBOModel teethModel, VMMaterial teethMaterial,
+						    VMBOModel tongueModel, VMMaterial tongueMaterial,
+							VMBOModel eyeModel,	 VMMaterial eyeMaterial)
+		{
+			this.faceModel = faceModel;
+			this.faceMaterial = faceMaterial;
+
+			this.teethModel = teethModel;
+			this.teethMaterial = teethMaterial;
+
+			this.tongueModel = tongueModel;
+			this.tongueMaterial = tongueMaterial;
+
+			mEye= new AvatarEye(eyeModel, eyeMaterial);
+		}
+
 		/**
 		 * New version not considering mouth model
 		 */
@@ -706,11 +1119,29 @@ public class VMAvatar
 		 */
 		public void addExtraModel(VMBOModel mod, VMMaterial mat) //throws IOException
 		{
-			extraHeadModels.add(mod);
-			extraHeadMaterials.add(mat);
+			extras.add(null, mod, mat);
 
 			//Log.i(TAG,"added material succesfully"+ extraHeadModels.size()+" "+extraHeadMaterials.size());
 		}
+		/**
+		 * @return the extra models of the head, see AccessorySet for changing them while rendering
+		 */
+		public AccessorySet getExtraModels()
+		{
+			return extras;
+		}
+
+		/**
+		 * Gives the head models and materials back to the cache
+		 */
+		void release(AssetCache cache)
+		{
+			cache.release(faceModel);		cache.release(faceMaterial);
+			cache.release(teethModel);		cache.release(teethMaterial);
+			cache.release(tongueModel);		cache.release(tongueMaterial);
+			cache.release(mEye.eyeModel);	cache.release(mEye.eyeMaterial);
+		}
+
 		/**
 		 * loads the textures associated with the head group model
 		 */
@@ -741,7 +1172,7 @@ public class VMAvatar
 		private void renderFace()
 		{
 			testTime++;
-			GLES20.glUniform1f(mfTestTimeHandle, testTime);
+			mShader.uniform1f(mfTestTimeHandle, testTime);
 
 
 			//bind buffers
@@ -772,36 +1203,34 @@ public class VMAvatar
 			VMShaderUtil.checkGlError("glEnableVertexAttribArray mrm_TexCoord0Handle");
 
 	        //bind material, textures
-			GLES20.glUniform4f(mfvAmbientHandle,faceMaterial.matrix[0], faceMaterial.matrix[1], faceMaterial.matrix[2],  faceMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
-			GLES20.glUniform4f(mfvDiffuseHandle,faceMaterial.matrix[4], faceMaterial.matrix[5], faceMaterial.matrix[6],  faceMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
-			GLES20.glUniform4f(mfvSpecularHandle,faceMaterial.matrix[8], faceMaterial.matrix[9], faceMaterial.matrix[10],  faceMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
-			GLES20.glUniform1f(mfSpecularPowerHandle, faceMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
+			mShader.uniform4f(mfvAmbientHandle,faceMaterial.matrix[0], faceMaterial.matrix[1], faceMaterial.matrix[2],  faceMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
+			mShader.uniform4f(mfvDiffuseHandle,faceMaterial.matrix[4], faceMaterial.matrix[5], faceMaterial.matrix[6],  faceMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
+			mShader.uniform4f(mfvSpecularHandle,faceMaterial.matrix[8], faceMaterial.matrix[9], faceMaterial.matrix[10],  faceMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
+			mShader.uniform1f(mfSpecularPowerHandle, faceMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
 
-			GLES20.glUniform3f(mfvEyeTranslationHandle, 0.0f, 0.0f, 0.0f);
+			mShader.uniform3f(mfvEyeTranslationHandle, 0.0f, 0.0f, 0.0f);
 
 			// turn on the texture if there is one
 			if (faceMaterial.textureID != -1)
 			{
-				int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "baseMap");
 				GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, faceMaterial.textureID);
-				GLES20.glUniform1i(mTextureUniformHandle, 0);
-				GLES20.glUniform1i(miTexturedHandle, 1);
+				mShader.uniform1i(mBaseMapHandle, 0);
+				mShader.uniform1i(miTexturedHandle, 1);
 			}
 			else
-				GLES20.glUniform1i(miTexturedHandle, 0);
+				mShader.uniform1i(miTexturedHandle, 0);
 
 			if (faceMaterial.bumpID != -1)
 			{
-				int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "bumpMap");
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, faceMaterial.bumpID);
-				GLES20.glUniform1i(mTextureUniformHandle, 1);
+				mShader.uniform1i(mBumpMapHandle, 1);
 			}
 
 			//draw models
-            GLES20.glUniform1i(miIndexHandle, 3);
+            mShader.uniform1i(miIndexHandle, 3);
 			GLES20.glDrawElements(GLES20.GL_TRIANGLES,faceModel.mIndexBuffer.capacity(), GLES20.GL_UNSIGNED_SHORT, faceModel.mIndexBuffer);		VMShaderUtil.checkGlError("glDrawElements");
 		}
 		/**
@@ -830,10 +1259,10 @@ public class VMAvatar
 			GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);														VMShaderUtil.checkGlError("glEnableVertexAttribArray mrm_TexCoord0Handle");
 
 	        //bind material, textures
-			GLES20.glUniform4f(mfvAmbientHandle,teethMaterial.matrix[0], teethMaterial.matrix[1], teethMaterial.matrix[2],  teethMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
-			GLES20.glUniform4f(mfvDiffuseHandle,teethMaterial.matrix[4], teethMaterial.matrix[5], teethMaterial.matrix[6],  teethMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
-			GLES20.glUniform4f(mfvSpecularHandle,teethMaterial.matrix[8], teethMaterial.matrix[9], teethMaterial.matrix[10],  teethMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
-			GLES20.glUniform1f(mfSpecularPowerHandle, teethMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
+			mShader.uniform4f(mfvAmbientHandle,teethMaterial.matrix[0], teethMaterial.matrix[1], teethMaterial.matrix[2],  teethMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
+			mShader.uniform4f(mfvDiffuseHandle,teethMaterial.matrix[4], teethMaterial.matrix[5], teethMaterial.matrix[6],  teethMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
+			mShader.uniform4f(mfvSpecularHandle,teethMaterial.matrix[8], teethMaterial.matrix[9], teethMaterial.matrix[10],  teethMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
+			mShader.uniform1f(mfSpecularPowerHandle, teethMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
 
 			// turn on the texture if there is one
 			if (teethMaterial.textureID != -1)
@@ -841,18 +1270,17 @@ public class VMAvatar
 				GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, teethMaterial.textureID);
-				GLES20.glUniform1i(miTexturedHandle, 1);
+				mShader.uniform1i(miTexturedHandle, 1);
 
 			}
 			else
-				GLES20.glUniform1i(miTexturedHandle, 0);
+				mShader.uniform1i(miTexturedHandle, 0);
 
 			if (teethMaterial.bumpID != -1)
 			{
-				int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "bumpMap");
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, teethMaterial.bumpID);
-				GLES20.glUniform1i(mTextureUniformHandle, 1);
+				mShader.uniform1i(mBumpMapHandle, 1);
 			}
 
 			//draw models
@@ -883,10 +1311,10 @@ public class VMAvatar
 			GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);														VMShaderUtil.checkGlError("glEnableVertexAttribArray mrm_TexCoord0Handle");
 
 			//bind material, textures
-			GLES20.glUniform4f(mfvAmbientHandle,tongueMaterial.matrix[0], tongueMaterial.matrix[1], tongueMaterial.matrix[2],  tongueMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
-			GLES20.glUniform4f(mfvDiffuseHandle,tongueMaterial.matrix[4], tongueMaterial.matrix[5], tongueMaterial.matrix[6],  tongueMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
-			GLES20.glUniform4f(mfvSpecularHandle,tongueMaterial.matrix[8], tongueMaterial.matrix[9], tongueMaterial.matrix[10],  tongueMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
-			GLES20.glUniform1f(mfSpecularPowerHandle, tongueMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
+			mShader.uniform4f(mfvAmbientHandle,tongueMaterial.matrix[0], tongueMaterial.matrix[1], tongueMaterial.matrix[2],  tongueMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
+			mShader.uniform4f(mfvDiffuseHandle,tongueMaterial.matrix[4], tongueMaterial.matrix[5], tongueMaterial.matrix[6],  tongueMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
+			mShader.uniform4f(mfvSpecularHandle,tongueMaterial.matrix[8], tongueMaterial.matrix[9], tongueMaterial.matrix[10],  tongueMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
+			mShader.uniform1f(mfSpecularPowerHandle, tongueMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
 
 
 			// turn on the texture if there is one
@@ -895,11 +1323,11 @@ public class VMAvatar
 				GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tongueMaterial.textureID);
-				GLES20.glUniform1i(miTexturedHandle, 1);
+				mShader.uniform1i(miTexturedHandle, 1);
 
 			}
 			else
-				GLES20.glUniform1i(miTexturedHandle, 0);
+				mShader.uniform1i(miTexturedHandle, 0);
 			//draw models
 			GLES20.glDrawElements(GLES20.GL_TRIANGLES,tongueModel.mIndexBuffer.capacity(), GLES20.GL_UNSIGNED_SHORT, tongueModel.mIndexBuffer);		VMShaderUtil.checkGlError("glDrawElements");
 
@@ -936,12 +1364,12 @@ public class VMAvatar
 				GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 
 				//bind material, textures
-				GLES20.glUniform4f(mfvAmbientHandle,	 extraHeadMaterials.get(i).matrix[0], extraHeadMaterials.get(i).matrix[1], extraHeadMaterials.get(i).matrix[2],  extraHeadMaterials.get(i).matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
-				GLES20.glUniform4f(mfvDiffuseHandle,	 extraHeadMaterials.get(i).matrix[4], extraHeadMaterials.get(i).matrix[5], extraHeadMaterials.get(i).matrix[6],  extraHeadMaterials.get(i).matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
-				GLES20.glUniform4f(mfvSpecularHandle,	 extraHeadMaterials.get(i).matrix[8], extraHeadMaterials.get(i).matrix[9], extraHeadMaterials.get(i).matrix[10],  extraHeadMaterials.get(i).matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
-				GLES20.glUniform1f(mfSpecularPowerHandle,extraHeadMaterials.get(i).matrix[12]);																														VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
+				mShader.uniform4f(mfvAmbientHandle,	 extraHeadMaterials.get(i).matrix[0], extraHeadMaterials.get(i).matrix[1], extraHeadMaterials.get(i).matrix[2],  extraHeadMaterials.get(i).matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");
+				mShader.uniform4f(mfvDiffuseHandle,	 extraHeadMaterials.get(i).matrix[4], extraHeadMaterials.get(i).matrix[5], extraHeadMaterials.get(i).matrix[6],  extraHeadMaterials.get(i).matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");
+				mShader.uniform4f(mfvSpecularHandle,	 extraHeadMaterials.get(i).matrix[8], extraHeadMaterials.get(i).matrix[9], extraHeadMaterials.get(i).matrix[10],  extraHeadMaterials.get(i).matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");
+				mShader.uniform1f(mfSpecularPowerHandle,extraHeadMaterials.get(i).matrix[12]);																														VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
 
-				GLES20.glUniform3f(mfvEyeTranslationHandle, 0.0f, 0.0f, 0.0f);
+				mShader.uniform3f(mfvEyeTranslationHandle, 0.0f, 0.0f, 0.0f);
 
 				// turn on the texture if there is one
 				if (extraHeadMaterials.get(i).textureID != -1 )
@@ -950,28 +1378,26 @@ public class VMAvatar
 					GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 					GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 					GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, extraHeadMaterials.get(i).textureID);
-					GLES20.glUniform1i(miTexturedHandle, 1);
+					mShader.uniform1i(miTexturedHandle, 1);
 
 				}
 				else
-					GLES20.glUniform1i(miTexturedHandle, 0);
+					mShader.uniform1i(miTexturedHandle, 0);
 
 				if (extraHeadMaterials.get(i).bumpID != -1)
 				{
-					int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "bumpMap");
 					GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
 					GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, extraHeadMaterials.get(i).bumpID);
-					GLES20.glUniform1i(mTextureUniformHandle, 1);
+					mShader.uniform1i(mBumpMapHandle, 1);
 				}
                 if (extraHeadMaterials.get(i).normalID != -1)
                 {
-                    int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "normalMap");
                     GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
                     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, extraHeadMaterials.get(i).normalID);
-                    GLES20.glUniform1i(mTextureUniformHandle, 2);
+                    mShader.uniform1i(mNormalMapHandle, 2);
                 }
 
-				GLES20.glUniform1i(miIndexHandle, 2);
+				mShader.uniform1i(miIndexHandle, 2);
                 GLES20.glDrawElements(GLES20.GL_TRIANGLES,extraHeadModels.get(i).mIndexBuffer.capacity(), GLES20.GL_UNSIGNED_SHORT, extraHeadModels.get(i).mIndexBuffer);		VMShaderUtil.checkGlError("glDrawElements");
 			}
 		}
@@ -994,15 +1420,15 @@ public class VMAvatar
 	        Matrix.transposeM(MVP_inv_t, 0, MVP_inv, 0);
 
 	        // bind the transform matrices
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
-	        GLES20.glUniform1f(mfHeadNoddingAngleHandle, GlobalHeadNoddingValue);
+	        mShader.uniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
+	        mShader.uniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
+	        mShader.uniform1f(mfHeadNoddingAngleHandle, GlobalHeadNoddingValue);
 
 
 
 
 			//draw Face
-			GLES20.glUniform3f(mfvEyeRotationHandle, 0, 0, 0);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
+			mShader.uniform3f(mfvEyeRotationHandle, 0, 0, 0);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
 	        renderFace();
 
 			//draw extraModels
@@ -1010,7 +1436,7 @@ public class VMAvatar
 
 
 			//draw the mouth
-			GLES20.glUniform1i(miIndexHandle, 4);
+			mShader.uniform1i(miIndexHandle, 4);
 	        renderTeeth();
 			renderTongue();
 
@@ -1022,8 +1448,8 @@ public class VMAvatar
 				mEye.rotation[1]*=-1;
 			}
 			//draw Eye
-			GLES20.glUniform3f(mfvEyeRotationHandle, currentEyeRotation[0], currentEyeRotation[1], currentEyeRotation[2]);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
-			GLES20.glUniform1i(miIndexHandle, 1);
+			mShader.uniform3f(mfvEyeRotationHandle, currentEyeRotation[0], currentEyeRotation[1], currentEyeRotation[2]);			VMShaderUtil.checkGlError("glUniform3f mfvEyePositionHandle");
+			mShader.uniform1i(miIndexHandle, 1);
 			mEye.render(MVP);
 
 		}
@@ -1055,6 +1481,12 @@ public class VMAvatar
 			eyeModel = VMBOLoader.loadModel(mContext, bobFile);
 			eyeMaterial = VMBOLoader.loadMaterials(mContext, MatFile);
 		}
+
+		public AvatarEye(VMBOModel model, VMMaterial material)
+		{
+			eyeModel = model;
+			eyeMaterial = material;
+		}
 		/**
 		 * Eye translation with respect of the head coordinate system 
 		 * 
@@ -1106,10 +1538,10 @@ public class VMAvatar
 			GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);														VMShaderUtil.checkGlError("glEnableVertexAttribArray mrm_TexCoord0Handle");
 
 	        //bind material, textures
-			GLES20.glUniform4f(mfvAmbientHandle,eyeMaterial.matrix[0], eyeMaterial.matrix[1], eyeMaterial.matrix[2],  eyeMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");		
-			GLES20.glUniform4f(mfvDiffuseHandle,eyeMaterial.matrix[4], eyeMaterial.matrix[5], eyeMaterial.matrix[6],  eyeMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");		
-			GLES20.glUniform4f(mfvSpecularHandle,eyeMaterial.matrix[8], eyeMaterial.matrix[9], eyeMaterial.matrix[10],  eyeMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");		
-			GLES20.glUniform1f(mfSpecularPowerHandle, eyeMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
+			mShader.uniform4f(mfvAmbientHandle,eyeMaterial.matrix[0], eyeMaterial.matrix[1], eyeMaterial.matrix[2],  eyeMaterial.matrix[3]);		VMShaderUtil.checkGlError("glUniform4f mfvAmbientHandle");		
+			mShader.uniform4f(mfvDiffuseHandle,eyeMaterial.matrix[4], eyeMaterial.matrix[5], eyeMaterial.matrix[6],  eyeMaterial.matrix[7]);		VMShaderUtil.checkGlError("glUniform4f mfvDiffuseHandle");		
+			mShader.uniform4f(mfvSpecularHandle,eyeMaterial.matrix[8], eyeMaterial.matrix[9], eyeMaterial.matrix[10],  eyeMaterial.matrix[11]);	VMShaderUtil.checkGlError("glUniform4f mfvSpecularHandle");		
+			mShader.uniform1f(mfSpecularPowerHandle, eyeMaterial.matrix[12]);																			VMShaderUtil.checkGlError("glUniform1f mfSpecularPowerHandle");
 			
 			// turn on the texture if there is one
 			if (eyeMaterial.textureID != -1) 
@@ -1117,18 +1549,17 @@ public class VMAvatar
 				GLES20.glEnableVertexAttribArray(mrm_TexCoord0Handle);
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, eyeMaterial.textureID);
-				GLES20.glUniform1i(miTexturedHandle, 1);
+				mShader.uniform1i(miTexturedHandle, 1);
 				
 			}
 			else
-				GLES20.glUniform1i(miTexturedHandle, 0);
+				mShader.uniform1i(miTexturedHandle, 0);
 
 			if (eyeMaterial.bumpID != -1)
 			{
-				int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "bumpMap");
 				GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
 				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, eyeMaterial.bumpID);
-				GLES20.glUniform1i(mTextureUniformHandle, 1);
+				mShader.uniform1i(mBumpMapHandle, 1);
 			}
 
 
@@ -1143,10 +1574,10 @@ public class VMAvatar
 	        Matrix.transposeM(MVP_inv_t, 0, MVP_inv, 0);
 	        
 	        // bind the transform matrices
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
+	        mShader.uniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
+	        mShader.uniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);	VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
 
-			GLES20.glUniform3f(mfvEyeTranslationHandle, translation_left[0], translation_left[1], translation_left[2]);
+			mShader.uniform3f(mfvEyeTranslationHandle, translation_left[0], translation_left[1], translation_left[2]);
 
 			//draw models
 			GLES20.glDrawElements(GLES20.GL_TRIANGLES,eyeModel.mIndexBuffer.capacity(), GLES20.GL_UNSIGNED_SHORT, eyeModel.mIndexBuffer);		VMShaderUtil.checkGlError("glDrawElements");
@@ -1165,10 +1596,10 @@ public class VMAvatar
 	        Matrix.transposeM(MVP_inv_t, 0, MVP_inv, 0);
 	        
 	        // bind the transform matrices
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
-	        GLES20.glUniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);		VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
+	        mShader.uniformMatrix4fv(mmatViewProjectionHandle, 1, false, MVP, 0);							VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionHandle");
+	        mShader.uniformMatrix4fv(mmatViewProjectionInverseTransposeHandle, 1, false, MVP_inv_t, 0);		VMShaderUtil.checkGlError("glUniformMatrix4fv mmatViewProjectionInverseTransposeHandle");
 
-			GLES20.glUniform3f(mfvEyeTranslationHandle, translation_right[0], translation_right[1], translation_right[2]);
+			mShader.uniform3f(mfvEyeTranslationHandle, translation_right[0], translation_right[1], translation_right[2]);
 
 			//draw right eye
 			GLES20.glDrawElements(GLES20.GL_TRIANGLES,eyeModel.mIndexBuffer.capacity(), GLES20.GL_UNSIGNED_SHORT, eyeModel.mIndexBuffer);		VMShaderUtil.checkGlError("glDrawElements");
@@ -1178,21 +1609,16 @@ public class VMAvatar
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	/**
-	 * Class Animator Thread
+	 * Class Animator
 	 * Manages the animation of the avatar whether is a key framed animation 
-	 * or the random blinking
+	 * or the random blinking. Ticked by the AnimationScheduler shared by the avatars:
+	 * at every step when animating, less often when only blinking, not at all otherwise.
 	 *   
 	 * @author Roger Blanco i Ribera, Sunjin Jung
 	 *
 	 */
-	class Animator extends Thread 
-	{	/** Target Frames Per Second*/
-		//private final static int 	MAX_FPS = 70;				// desired fps
-		private final static int 	MAX_FPS = 60;				// desired fps
-		//** maximum number of allowed frames to skip*/
-		private final static int	MAX_FRAME_SKIPS = 5;			// maximum number of frames to be skipped
-		//**target time for a single frame*/
-		private final static int	FRAME_PERIOD = 1000 / MAX_FPS;	// the frame period
+	class Animator implements AnimationScheduler.Client
+	{
 
 //		/** range in degrees for the procedural head motion */
 //		float[] headMotionMultiplier= new float[]{5,10,3};
@@ -1200,22 +1626,22 @@ public class VMAvatar
 //		/** speed of the procedural head motion*/
 //		float[] headMotionSpeeds= new float[]{10000.0f, 9000.0f, 11000.0f};
 		
-		/**FPS counter*/
-		private FPSCounter sfps;
-		
-		/**animation play state*/
-		private boolean running;		// flag to hold game state
+		/**scheduler ticking this animator*/
+		private final AnimationScheduler scheduler;
 		
 		/** procedural head motion state	 */
 		private boolean headMotion=false;
 		
 		/**keyframe animation manager.
 		 * @see KeyFramedAnimation*/
-		public KeyFramedAnimation animEngine = new KeyFramedAnimation();
+		public KeyFramedAnimation animEngine = new KeyFramedAnimation(new AnimationTarget());
 
 		/**Procedural blinking engine
 		 * @see Blinker*/
 		private Blinker blinkEngine=new Blinker();
+
+		/**a pose was set outside of the ticks, it is published at the next step*/
+		private volatile boolean posePending;
 		
 		/**
 		 * enables the random blinking 
@@ -1229,6 +1655,7 @@ public class VMAvatar
 				blinkEngine.start();
 			else
 				blinkEngine.stop();
+			scheduler.wake();
 		}
 		/**
 		 * enables/disables the procedural headMotion
@@ -1274,65 +1701,59 @@ public class VMAvatar
 //			headMotionSpeeds[2]=(1.0f-roll)*19000+1000;
 		}
 		
+		/**
+		 * Stops or restarts the ticks of the animator
+		 * @param running ticked if true
+		 */
 		public void setRunning(boolean running) 
 		{
-			this.running = running;
+			if(running)
+				scheduler.register(this);
+			else
+				scheduler.unregister(this);
 		}
 	
-		public Animator() 
+		/**
+		 * @param scheduler scheduler ticking this animator, from setRunning(true)
+		 */
+		public Animator(AnimationScheduler scheduler) 
 		{
-			super();
-			sfps= new FPSCounter();
+			this.scheduler = scheduler;
+		}
+
+		/**
+		 * Requests ticks, after an animation was started
+		 */
+		void wake()
+		{
+			scheduler.wake();
+		}
+
+		/**
+		 * Requests a tick publishing the pose set by VMAvatar.setFaceWeights(), also while sleeping
+		 */
+		void requestPose()
+		{
+			posePending = true;
+			scheduler.wake();
 		}
 	
 		@Override
-		public void run() 
+		public void tick(int dt) 
 		{
-			//Canvas canvas;
-			running=true;
-			
-			long timeline;
-			long beginTime;		// the time when the cycle begun
-			long timeDiff;		// the time it took for the cycle to execute
-			int sleepTime;		// ms to sleep (<0 if we're behind)
-			int framesSkipped;	// number of frames being skipped 
-	
-			sleepTime = 0;
-			
-			blinkEngine.start();
-			
-			timeline=0;
-			while (running) 
-			{
-				beginTime = System.currentTimeMillis();
-				framesSkipped = 0;	// resetting the frames skipped
-				
-				timeline+=FRAME_PERIOD;
-
-				animEngine.update(FRAME_PERIOD);
-				blinkEngine.update(FRAME_PERIOD);
+			//a pose set from now on is published by this tick or the next one
+			posePending = false;
+			animEngine.update(dt);
+			blinkEngine.update(dt);
+			publishPose(blinkEngine.weight);
+		}
 
-				timeDiff = System.currentTimeMillis() - beginTime;
-				
-				// calculate sleep time
-				sleepTime = (int)(FRAME_PERIOD - timeDiff);
-				
-				if (sleepTime > 0)
-				{
-					// if sleepTime > 0 we're OK
-					try {
-						// send the thread to sleep for a short period
-						Thread.sleep(sleepTime);	
-					} catch (InterruptedException e) {}
-				}
-				
-				while (sleepTime < 0 && framesSkipped < MAX_FRAME_SKIPS) 
-				{
-					// we need to catch up
-					sleepTime += FRAME_PERIOD;	// add frame period to check if in next frame
-					framesSkipped++;
-				}
-			}
+		@Override
+		public int getRate()
+		{
+			if(posePending || animEngine.isRunning() || blinkEngine.isBlinking())
+				return AnimationScheduler.RATE_FULL;
+			return blinkEngine.run ? AnimationScheduler.RATE_IDLE : AnimationScheduler.RATE_NONE;
 		}
 		
 		/**
@@ -1359,6 +1780,8 @@ public class VMAvatar
 			private int state=1;
 			/**starting open eyes*/
 			private float startWeight[] ={0,0};
+			/**weight of the blink blendshapes at this frame, negative when the animation sets them*/
+			float weight = -1.0f;
 			/**waiting time until next blink*/
 			int timeToNextBlink;
 			
@@ -1373,9 +1796,18 @@ public class VMAvatar
 			{
 				run=false;
 			}
+
+			/**
+			 * @return true during a blink, false while waiting for the next one
+			 */
+			boolean isBlinking()
+			{
+				return run && timeToNextBlink<=0;
+			}
 			
 			void update(float dt)
 			{
+				weight = -1.0f;
 				if(run)
 				{	
 					if(timeToNextBlink<=0)
@@ -1401,17 +1833,15 @@ public class VMAvatar
 
 							weight = Math.min(1.0f, Math.max(0.0f, weight));
 
-							//applyBlink here
-							mHead.faceModel.BSWeights[blinkLID] = weight + (1 - weight) * startWeight[0];
-							mHead.faceModel.BSWeights[blinkRID] = weight + (1 - weight) * startWeight[1];
+							//applyBlink here, published with the pose
+							this.weight = weight + (1 - weight) * startWeight[0];
 
 							if (timeline >= blinkTiming[currentIdx + 1] && currentIdx != blinkTiming.length - 2) {
 								currentIdx++;
 							}
 
 							if (timeline >= blinkTiming[blinkTiming.length - 1]) {
-								mHead.faceModel.BSWeights[blinkLID] = startWeight[0];
-								mHead.faceModel.BSWeights[blinkRID] = startWeight[1];
+								this.weight = startWeight[0];
 
 								timeToNextBlink = 4800 * 2 / 3 + (int) (Math.random() * 1000 - 500);
 
@@ -1430,208 +1860,4 @@ public class VMAvatar
 		}
 		
 	}
-	
-	/**
-	 * Class Key Framed Animation
-	 * @author  Roger Blanco i Ribera, Sunjin Jung
-	 *
-	 */
-	class KeyFramedAnimation
-	{
-		/**list of keyframes in the animation*/
-		private List<KeyFrame> keyframes	= new ArrayList<KeyFrame>();
-		/**current position of the animation*/
-		private int timeline;
-		/**The last frame time of the animation (update when keyFrames are added)*/
-		private int lastFrame=0;		//
-		/**Animation state*/
-		private boolean run_speech=false;	//
-		private boolean run_blend=false;	//
-		/**current facePose*/
-		private FacePose facePose;
-		/**current keyframe*/
-		private int currentIdx = -1;
-		/**given animation time step*/
-		private int xmlTimeStep = 16;
-		/** update audio timing (ms) */
-		private int audioTiming = 0;
-		
-		/**Empty constructor. Animation needs to be setup by adding keys*/
-		public KeyFramedAnimation(){	}
-		
-		/**
-		 * Clears the animation.
-		 * Removes all the keys.
-		 */
-		public void clearKeys()
-		{
-			lastFrame=0;
-			keyframes.clear();
-		}		
-		
-		/**
-		 * Adds a key frame to the existing animation at the given time.
-		 * 
-		 * @param time time of the key frame
-		 * @param keyPose expression 
-		 */
-		public void addKey(int time, FacePose keyPose)
-		{
-			KeyFrame key = new KeyFrame();
-			key.time = time;
-			key.pose = keyPose;
-			keyframes.add(key);
-			Collections.sort(keyframes, new KeyFrameComparator() ); //sort with respect to time			
-			if(lastFrame < time) lastFrame=time;			
-		}
-		/**
-		 * Sets animation from the given list of keys
-		 * @param animKeys List of keyframes
-		 */
-		public void setKeys(List<KeyFrame> animKeys)
-		{
-			lastFrame=0;
-			keyframes.clear();
-			for(int i=0; i<animKeys.size(); i++)
-			{
-				KeyFrame key = new KeyFrame();
-				key.time = animKeys.get(i).time;
-				key.pose = animKeys.get(i).pose;
-				key.noddingValue = animKeys.get(i).noddingValue;
-				keyframes.add(key);
-				Collections.sort(keyframes, new KeyFrameComparator() ); //sort with respect to time			
-				if(lastFrame < key.time) lastFrame=key.time;
-			}
-		}
-		/**
-		 * Starts the animation from the beginning
-		 */
-		public void start()
-		{
-			timeline = 0;
-			currentIdx = -1;
-			xmlTimeStep = keyframes.get(1).time -  keyframes.get(0).time;
-			if(!keyframes.isEmpty()) run_speech=true;
-		}
-		/**
-		 * Stops and rewinds the animation.
-		 * The current animation is reset to its starting position
-		 */
-		public void stop()
-		{
-			timeline=0;
-			currentIdx = -1;
-			run_speech=false;
-		}
-		/**
-		 * Blends animation from stop position to neutral position
-		 */
-		public void blend()
-		{
-			stop();
-			run_blend = true;
-		}
-		/**
-		 * Pauses/ unpauses the animation
-		 * the current animation position is maintained
-		 */
-		public void togglePause()
-		{
-			if(!keyframes.isEmpty()) //if there is an animation ready for play
-			{
-				if(timeline < lastFrame && timeline >0) //we can only pause/resume in the middle of the sequence 
-					run_speech= !run_speech;
-			}
-		}
-
-		public void setAudioTiming(int _audioTiming){
-			//run_speech=true;
-			audioTiming = _audioTiming;
-		}
-
-		public int getCurrentIdxFromAudioTiming(){
-			return audioTiming/xmlTimeStep;
-		}
-
-		/**
-		 * update the animation for the given passed time
-		 * @param dt update time in ms
-		 */
-		public void update(int dt)
-		{
-			if(run_speech)
-			{
-				currentIdx = getCurrentIdxFromAudioTiming();
-
-				if(keyframes.size()<=currentIdx+1) return;
-
-				float weight= (float)(audioTiming - keyframes.get(currentIdx).time)/(float)( keyframes.get(currentIdx+1).time- keyframes.get(currentIdx).time);
-				facePose = smoothStep(  keyframes.get(currentIdx).pose, keyframes.get(currentIdx+1).pose, weight );
-                float headNoddingValue = smoothStep(  keyframes.get(currentIdx).noddingValue, keyframes.get(currentIdx+1).noddingValue, weight );
-				setFacePose(facePose);
-                headNod(headNoddingValue);
-			}
-
-			if(run_blend)
-			{
-				timeline += dt;
-
-				float weight= (float)timeline/500.0f;
-				FacePose tmpPose = smoothStep(facePose, 0.0f, weight);
-				setFacePose(tmpPose);
-
-				if(timeline >= 500){
-					run_blend = false;
-					doBlinking(true);
-					facePose = tmpPose;
-				}
-			}
-		}
-		
-		/**
-		 * Interpolations the face expression between current key pose and next key pose
-		 * 
-		 * @param curPose  face pose of the current key frame
-		 * @param nextPose face pose of the next key frame
-		 * @param weight interpolation step
-		 * @return FacePose resulting face expression
-		 */
-
-		private FacePose smoothStep(FacePose curPose, FacePose nextPose, float weight)
-		{
-			//FacePose interPose= new FacePose(nextPose.faceWeights,nextPose.mouthWeights);
-			FacePose interPose= new FacePose(nextPose.faceWeights);
-
-			for(int i=0; i<nextPose.faceWeights.length; i++)
-			{
-				interPose.faceWeights[i]=weight*interPose.faceWeights[i]+(1-weight)*curPose.faceWeights[i];
-			}
-//			for(int i=0; i<nextPose.mouthWeights.length; i++)
-//			{
-//				interPose.mouthWeights[i]=weight*interPose.mouthWeights[i]+(1-weight)*curPose.mouthWeights[i];
-//			}
-			
-			return interPose;
-		}
-
-        private float smoothStep(float a, float b, float weight)
-        {
-            return weight * a + (1 - weight) * b;
-        }
-
-		private FacePose smoothStep(FacePose curPose, float allWeights, float weight)
-		{
-			float[] weights = new float[mHead.faceModel.BSWeights.length];
-			for(int i=0; i<weights.length; i++) weights[i] = allWeights;
-			FacePose interPose= new FacePose(weights);
-
-			if((curPose != null) && ( curPose.faceWeights.length==mHead.faceModel.BSWeights.length))
-			{
-				for(int i=0; i<curPose.faceWeights.length; i++)
-					interPose.faceWeights[i]=weight*interPose.faceWeights[i]+(1-weight)*curPose.faceWeights[i];
-			}
-
-			return interPose;
-		}
-	}
 }
\ No newline at end of file
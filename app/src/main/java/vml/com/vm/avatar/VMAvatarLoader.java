@@ -5,20 +5,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
 import org.xml.sax.SAXException;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.util.Log;
 
-import vml.com.vm.utils.FacePose;
-import vml.com.vm.utils.KeyFrame;
+import vml.com.vm.blend.AssetCache;
+import vml.com.vm.blend.VMBOModel;
+import vml.com.vm.utils.ClipFormat;
+import vml.com.vm.utils.KeyFrameParser;
+import vml.com.vm.utils.VMMaterial;
 
 
 /**
@@ -33,8 +37,25 @@ public class VMAvatarLoader
 	private static String TAG = "AvatarLoader";
 	static final String outputEncoding = "UTF-8";
 
+	/**
+	 * @param matfile material file name from the avatar XML file
+	 * @return true if the default material should be used instead
+	 */
+	private static boolean isDefaultMaterial(String matfile)
+	{
+		return matfile.equals("") || matfile.equalsIgnoreCase("default");
+	}
+
 	/**
 	 * load Avatar from a XML file on the Assets
+	 * <p>
+	 * Every model, material and animation file is loaded as an independent task on the executor
+	 * shared by all the avatar loads (see AvatarPartLoader), the avatar is assembled once all of them
+	 * are done. The per part timings are kept in the avatar, see VMAvatar#getLoadTimings().
+	 * Models and materials come from the AssetCache: avatars using the same files share them,
+	 * VMAvatar#release() gives them back.
+	 * Must not be called from one of the loader threads.
+	 *
 	 * @param ctx					Activity context
 	 * @param avatarFileName		complete path to the avatar XML file
 	 * @return 					returns the loaded avatar
@@ -42,6 +63,9 @@ public class VMAvatarLoader
 	public static VMAvatar loadAvatar(Context ctx, String avatarFileName)
 	{
 		AssetManager assetManager = ctx.getResources().getAssets();
+		AvatarPartLoader loader = new AvatarPartLoader(avatarFileName);
+		VMAvatar avatar = null;
+		boolean loaded = false;
 		try
 		{
 			String sAvatarName="";
@@ -50,12 +74,13 @@ public class VMAvatarLoader
 			String stongueModel,stongueMaterial;
 			String seyeModel,seyeMaterial;
 
-
+			long parseStart = System.nanoTime();
 			InputStream is = assetManager.open(avatarFileName);
 			
 			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();  
 			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();  
 			Document doc = dBuilder.parse(is);  
+			is.close();
 			
 			Element element = doc.getDocumentElement();
 			element.normalize();
@@ -85,34 +110,20 @@ public class VMAvatarLoader
 			seyeModel	 = eyeNode.getAttribute("model");
 			seyeMaterial = eyeNode.getAttribute("material");
 
-			VMAvatar  avatar = new VMAvatar( ctx,	sfaceModel, sfaceMaterial, steethModel, steethMaterial, stongueModel, stongueMaterial, seyeModel, seyeMaterial);
-
-			//////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-
-			//Translations
-			float[] eyeleftTrans= new float[3];
-			float[] eyerightTrans= new float[3];
-			Element leftTransNode = (Element) eyesNode.getElementsByTagName("leftPos").item(0);
-			eyeleftTrans[0]=Float.parseFloat(leftTransNode.getAttribute("tx"));
-			eyeleftTrans[1]=Float.parseFloat(leftTransNode.getAttribute("ty"));
-			eyeleftTrans[2]=Float.parseFloat(leftTransNode.getAttribute("tz"));
-
-			Element rightTransNode = (Element) eyesNode.getElementsByTagName("rightPos").item(0);
-			eyerightTrans[0]=Float.parseFloat(rightTransNode.getAttribute("tx"));
-			eyerightTrans[1]=Float.parseFloat(rightTransNode.getAttribute("ty"));
-			eyerightTrans[2]=Float.parseFloat(rightTransNode.getAttribute("tz"));
-
-			avatar.setEyePos(eyeleftTrans,eyerightTrans);
-
-			//get Blink
-			Element blinkNode=(Element) headNode.getElementsByTagName("blink").item(0);
-			int leftBlink = Integer.parseInt(blinkNode.getAttribute("left"));
-			int rightBlink = Integer.parseInt(blinkNode.getAttribute("right"));
-
-			avatar.setBlinkIDs(leftBlink, rightBlink);
+			//the biggest parts first, they bound the load time
+			Future<VMBOModel> faceModel = submitModel(loader, ctx, sfaceModel);
+			Future<VMMaterial> faceMaterial = submitMaterial(loader, ctx, sfaceMaterial);
+			Future<VMBOModel> teethModel = submitModel(loader, ctx, steethModel);
+			Future<VMMaterial> teethMaterial = submitMaterial(loader, ctx, steethMaterial);
+			Future<VMBOModel> tongueModel = submitModel(loader, ctx, stongueModel);
+			Future<VMMaterial> tongueMaterial = submitMaterial(loader, ctx, stongueMaterial);
+			Future<VMBOModel> eyeModel = submitModel(loader, ctx, seyeModel);
+			Future<VMMaterial> eyeMaterial = submitMaterial(loader, ctx, seyeMaterial);
 
-			//////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 			//ExtraNodes--HEAD !!!!
+			List<String> extraHeadFiles = new ArrayList<String>();
+			List<Future<VMBOModel>> extraHeadModels = new ArrayList<Future<VMBOModel>>();
+			List<Future<VMMaterial>> extraHeadMaterials = new ArrayList<Future<VMMaterial>>();
 			Element extraHeadNodes = (Element) headNode.getElementsByTagName("extraHeadModels").item(0);
 			if(extraHeadNodes.hasChildNodes())
 			{
@@ -125,11 +136,16 @@ public class VMAvatarLoader
 					String cExtMod = curEl.getAttributes().getNamedItem("model").getNodeValue();
 					String cExtMat = curEl.getAttributes().getNamedItem("material").getNodeValue();
 
-					avatar.addExtraModelToHead( cExtMod, cExtMat);
+					extraHeadFiles.add(cExtMod);
+					extraHeadModels.add(submitModel(loader, ctx, cExtMod));
+					extraHeadMaterials.add(submitMaterial(loader, ctx, cExtMat));
 				}
 			}
 
 			//ExtraNodes--GLOBAL !!!!
+			List<String> extraGlobalFiles = new ArrayList<String>();
+			List<Future<VMBOModel>> extraGlobalModels = new ArrayList<Future<VMBOModel>>();
+			List<Future<VMMaterial>> extraGlobalMaterials = new ArrayList<Future<VMMaterial>>();
 			Element extraGlobalNodes = (Element) avatarEl.getElementsByTagName("extraGlobalModels").item(0);
 			if(extraGlobalNodes.hasChildNodes())
 			{
@@ -142,13 +158,15 @@ public class VMAvatarLoader
 					String cExtMod = curEl.getAttributes().getNamedItem("model").getNodeValue();
 					String cExtMat = curEl.getAttributes().getNamedItem("material").getNodeValue();
 
-					avatar.addExtraModel( cExtMod, cExtMat);
+					extraGlobalFiles.add(cExtMod);
+					extraGlobalModels.add(submitModel(loader, ctx, cExtMod));
+					extraGlobalMaterials.add(submitMaterial(loader, ctx, cExtMat));
 				}
 			}
 
 			//////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 			//Animations
-			List<String> animFiles= new ArrayList<String>();
+			List<Future<KeyFrameParser.Clip>> animations = new ArrayList<Future<KeyFrameParser.Clip>>();
 
 			NodeList animListNodes=avatarEl.getElementsByTagName("animationList");
 			if(animListNodes.getLength()==1)
@@ -161,65 +179,77 @@ public class VMAvatarLoader
 					for(int i=0; i<animList.getLength(); i++)
 					{
 						Element curEl=(Element) animList.item(i);
-						String animName= curEl.getAttribute("filename");
-
-						animFiles.add(animName);
-						//Log.i("AniXML",animName);
+						animations.add(submitAnimation(loader, assetManager, curEl.getAttribute("filename")));
 					}
 				}
 			}
+			loader.getTimings().add(avatarFileName, parseStart, System.nanoTime());
 
-			//navigate through animation files
-			if(!animFiles.isEmpty())
-			{
-				for(int i=0; i<animFiles.size(); i++)
-				{
-					//open file
-					is = assetManager.open(animFiles.get(i));
+			//////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+			//assembly, in the order of the XML file
+			avatar = new VMAvatar( ctx,	loader.get(faceModel), loader.get(faceMaterial),
+												loader.get(teethModel), loader.get(teethMaterial),
+												loader.get(tongueModel), loader.get(tongueMaterial),
+												loader.get(eyeModel), loader.get(eyeMaterial));
 
-					dbFactory = DocumentBuilderFactory.newInstance();
-					dBuilder = dbFactory.newDocumentBuilder();
-					doc = dBuilder.parse(is);
-					element = doc.getDocumentElement();
-					element.normalize();
+			//Translations
+			float[] eyeleftTrans= new float[3];
+			float[] eyerightTrans= new float[3];
+			Element leftTransNode = (Element) eyesNode.getElementsByTagName("leftPos").item(0);
+			eyeleftTrans[0]=Float.parseFloat(leftTransNode.getAttribute("tx"));
+			eyeleftTrans[1]=Float.parseFloat(leftTransNode.getAttribute("ty"));
+			eyeleftTrans[2]=Float.parseFloat(leftTransNode.getAttribute("tz"));
 
-					Element animEl = doc.getDocumentElement(); //parent node
-					String animName=element.getAttributes().getNamedItem("name").getNodeValue();
-					List<KeyFrame> keys=new ArrayList<KeyFrame>();
+			Element rightTransNode = (Element) eyesNode.getElementsByTagName("rightPos").item(0);
+			eyerightTrans[0]=Float.parseFloat(rightTransNode.getAttribute("tx"));
+			eyerightTrans[1]=Float.parseFloat(rightTransNode.getAttribute("ty"));
+			eyerightTrans[2]=Float.parseFloat(rightTransNode.getAttribute("tz"));
 
-					Element keyFrameNodes = (Element) animEl.getElementsByTagName("keyframeList").item(0);
-					if(keyFrameNodes.hasChildNodes())
-					{
-						NodeList keyList = keyFrameNodes.getElementsByTagName("key");
-						for(int k=0; k<keyList.getLength(); k++)
-						{
-							Element curEl=(Element) keyList.item(k);
-
-							String keyTime= curEl.getAttribute("t");
-							Element faceWNode = (Element) curEl.getElementsByTagName("faceWeights").item(0);
-							Text faceWText = (Text) faceWNode.getFirstChild();
-							String stringFaceWeights=faceWText.getNodeValue();
-
-							String[] partsFW = stringFaceWeights.split(" ");
-
-							float[] fw= new float[partsFW.length];
-							for( int j=0; j< partsFW.length;j++)
-							{
-								fw[j]= Float.parseFloat(partsFW[j]);
-							}
-
-							KeyFrame key = new KeyFrame();
-							key.time= Integer.parseInt(keyTime);
-							key.pose= new FacePose(fw);
-							keys.add(key);
-						}
-					}
-					avatar.addAnimation(animName, keys);
+			avatar.setEyePos(eyeleftTrans,eyerightTrans);
 
-					//close file
-					is.close();
+			//get Blink
+			Element blinkNode=(Element) headNode.getElementsByTagName("blink").item(0);
+			int leftBlink = Integer.parseInt(blinkNode.getAttribute("left"));
+			int rightBlink = Integer.parseInt(blinkNode.getAttribute("right"));
+
+			avatar.setBlinkIDs(leftBlink, rightBlink);
+
+			for(int i=0; i<extraHeadModels.size(); i++)
+			{
+				VMBOModel model = loader.getQuietly(extraHeadModels.get(i));
+				VMMaterial material = loader.getQuietly(extraHeadMaterials.get(i));
+				if(model != null && material != null)
+					avatar.addExtraModelToHead(extraHeadFiles.get(i), model, material);
+				else
+				{
+					releasePart(model);
+					releasePart(material);
+					Log.e(TAG,"Error: Could not add "+extraHeadFiles.get(i)+" to head");
+				}
+			}
+			for(int i=0; i<extraGlobalModels.size(); i++)
+			{
+				VMBOModel model = loader.getQuietly(extraGlobalModels.get(i));
+				VMMaterial material = loader.getQuietly(extraGlobalMaterials.get(i));
+				if(model != null && material != null)
+					avatar.addExtraModel(model, material);
+				else
+				{
+					releasePart(model);
+					releasePart(material);
+					Log.e(TAG,"Error: Could not add "+extraGlobalFiles.get(i)+" to the scene");
 				}
 			}
+
+			for(int i=0; i<animations.size(); i++)
+			{
+				KeyFrameParser.Clip anim = loader.get(animations.get(i));
+				avatar.addAnimation(anim.name, anim.keys);
+			}
+
+			avatar.mLoadTimings = loader.finish();
+			Log.d(TAG, avatar.mLoadTimings.toString());
+			loaded = true;
 			return avatar;
 		} catch (SAXException e) {
 			// TODO Auto-generated catch block
@@ -230,7 +260,78 @@ public class VMAvatarLoader
 		} catch (ParserConfigurationException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			//failed, runtime exceptions included: every loaded part came from one acquire, give them all back
+			if(!loaded)
+			{
+				if(avatar != null) avatar.stop();
+				for(Object part : loader.cancelAndCollect())
+					releasePart(part);
+			}
 		}
 		return null;
 	}
+
+	private static void releasePart(Object part)
+	{
+		if(part instanceof VMBOModel)
+			AssetCache.getInstance().release((VMBOModel) part);
+		else if(part instanceof VMMaterial)
+			AssetCache.getInstance().release((VMMaterial) part);
+	}
+
+	private static Future<VMBOModel> submitModel(AvatarPartLoader loader, final Context ctx, final String file)
+	{
+		return loader.submit(file, new Callable<VMBOModel>()
+		{
+			@Override
+			public VMBOModel call() throws IOException
+			{
+				return AssetCache.getInstance().acquireModel(ctx, file);
+			}
+		});
+	}
+
+	private static Future<VMMaterial> submitMaterial(AvatarPartLoader loader, final Context ctx, final String file)
+	{
+		return loader.submit(file, new Callable<VMMaterial>()
+		{
+			@Override
+			public VMMaterial call() throws IOException
+			{
+				return isDefaultMaterial(file) ? new VMMaterial() : AssetCache.getInstance().acquireMaterial(ctx, file);
+			}
+		});
+	}
+
+	private static Future<KeyFrameParser.Clip> submitAnimation(AvatarPartLoader loader, final AssetManager assetManager, final String file)
+	{
+		return loader.submit(file, new Callable<KeyFrameParser.Clip>()
+		{
+			@Override
+			public KeyFrameParser.Clip call() throws Exception
+			{
+				return loadAnimation(assetManager, file);
+			}
+		});
+	}
+
+	/**
+	 * Reads an animation file from the assets, animation XML or .vclip
+	 * @param assetManager assets
+	 * @param fileName path of the animation file
+	 * @return the animation
+	 */
+	private static KeyFrameParser.Clip loadAnimation(AssetManager assetManager, String fileName) throws IOException
+	{
+		InputStream is = assetManager.open(fileName);
+		try
+		{
+			return ClipFormat.load(is);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
 }
@@ -0,0 +1,453 @@
+package vml.com.vm.blend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+import vml.com.vm.utils.VMMaterial;
+
+/**
+ * Process-wide cache of the loaded models and materials, shared by all the avatars.
+ * <p>
+ * Assets are keyed by their path plus a hash (CRC32) of their content, so two avatars referencing
+ * the same file share one copy while a file changing behind the same path is loaded again.
+ * The hash of a path is computed once per length of the file: the content of the application assets
+ * does not change while the process runs, so acquiring a cached asset does not read it again.
+ * The cached model is never handed out: every acquireModel() gets its own instance
+ * (VMBOModel.createInstance()) sharing the immutable geometry and blendshape deltas, with its own
+ * weights and blended buffers. Materials are shared as they are.
+ * <p>
+ * Entries are reference counted: every acquire must be paired with a release, the entry is dropped
+ * when its last user releases it and the data is garbage collected once no instance refers to it anymore.
+ * The textures of a dropped material are deleted at the next frame, see VMMaterial#releaseTextures().
+ * Concurrent acquires of the same asset load it once.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMBOModel#createInstance()
+ */
+public class AssetCache
+{
+	private static String TAG = "AssetCache";
+
+	/**
+	 * Access to the asset files
+	 */
+	public interface Source
+	{
+		/**
+		 * @param path asset path
+		 * @return the content of the asset, closed by the caller
+		 * @throws IOException when the asset can not be opened
+		 */
+		InputStream open(String path) throws IOException;
+
+		/**
+		 * @param path asset path
+		 * @return the size of the asset in bytes, without reading it
+		 * @throws IOException when the asset can not be opened
+		 */
+		long getLength(String path) throws IOException;
+
+		/**
+		 * @param path asset path
+		 * @param layout VMBOLoader.LAYOUT_SHAPE_MAJOR or VMBOLoader.LAYOUT_TILED
+		 * @return the loaded model, null if not found
+		 * @throws IOException loading problem
+		 */
+		VMBOModel loadModel(String path, int layout) throws IOException;
+
+		/**
+		 * @param path asset path
+		 * @return the loaded material, null if not found
+		 */
+		VMMaterial loadMaterial(String path);
+	}
+
+	/**
+	 * Source reading the assets of an application
+	 */
+	public static class AssetSource implements Source
+	{
+		private final Context mContext;
+
+		public AssetSource(Context context)
+		{
+			mContext = context;
+		}
+
+		@Override
+		public InputStream open(String path) throws IOException
+		{
+			return mContext.getResources().getAssets().open(path);
+		}
+
+		@Override
+		public long getLength(String path) throws IOException
+		{
+			//the stream of an asset knows its length, even for compressed assets
+			InputStream is = open(path);
+			try
+			{
+				return is.available();
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+
+		@Override
+		public VMBOModel loadModel(String path, int layout) throws IOException
+		{
+			return VMBOLoader.loadModel(mContext, path, layout);
+		}
+
+		@Override
+		public VMMaterial loadMaterial(String path)
+		{
+			return VMBOLoader.loadMaterials(mContext, path);
+		}
+	}
+
+	/**
+	 * Cached asset
+	 */
+	private static class Entry
+	{
+		final String key;
+		/**loads the asset, run by the first acquirer*/
+		FutureTask<Object> load;
+		/**number of acquires not released yet*/
+		int refCount;
+
+		Entry(String key)
+		{
+			this.key = key;
+		}
+	}
+
+	private static AssetCache sInstance;
+
+	/**entries by key*/
+	private final Map<String,Entry> mEntries = new HashMap<String,Entry>();
+	/**entry of every model instance and material handed out*/
+	private final Map<Object,Entry> mOwners = new IdentityHashMap<Object,Entry>();
+	/**content hash by path and length, computed once*/
+	private final Map<String,String> mHashes = new HashMap<String,String>();
+	private int mHits = 0;
+	private int mMisses = 0;
+
+	/**
+	 * @return the cache shared by the whole process
+	 */
+	public static synchronized AssetCache getInstance()
+	{
+		if(sInstance == null) sInstance = new AssetCache();
+		return sInstance;
+	}
+
+	/**
+	 * Acquires a model from the assets
+	 * @param ctx application context
+	 * @param path path of the model file in the assets
+	 * @return a new instance of the model, null if not found
+	 * @throws IOException loading problem
+	 */
+	public VMBOModel acquireModel(Context ctx, String path) throws IOException
+	{
+		return acquireModel(new AssetSource(ctx), path, VMBOLoader.LAYOUT_SHAPE_MAJOR);
+	}
+
+	/**
+	 * Acquires a model
+	 * @param source asset access
+	 * @param path path of the model file
+	 * @param layout VMBOLoader.LAYOUT_SHAPE_MAJOR or VMBOLoader.LAYOUT_TILED
+	 * @return a new instance of the model, to be released with release(); null if not found
+	 * @throws IOException loading problem
+	 */
+	public VMBOModel acquireModel(final Source source, final String path, final int layout) throws IOException
+	{
+		Entry entry = acquire(source, path, "model" + layout, new Callable<Object>()
+		{
+			@Override
+			public Object call() throws IOException
+			{
+				return source.loadModel(path, layout);
+			}
+		});
+		VMBOModel shared = (VMBOModel) get(entry);
+		if(shared == null)
+		{
+			release(entry);
+			return null;
+		}
+		VMBOModel instance = shared.createInstance();
+		synchronized (this)
+		{
+			mOwners.put(instance, entry);
+		}
+		return instance;
+	}
+
+	/**
+	 * Acquires a material from the assets
+	 * @param ctx application context
+	 * @param path path of the .mtl file in the assets
+	 * @return the shared material, null if it can not be loaded
+	 * @throws IOException when the file can not be read
+	 */
+	public VMMaterial acquireMaterial(Context ctx, String path) throws IOException
+	{
+		return acquireMaterial(new AssetSource(ctx), path);
+	}
+
+	/**
+	 * Acquires a material
+	 * @param source asset access
+	 * @param path path of the .mtl file
+	 * @return the shared material, to be released with release(); null if it can not be loaded
+	 * @throws IOException when the file can not be read
+	 */
+	public VMMaterial acquireMaterial(final Source source, final String path) throws IOException
+	{
+		Entry entry = acquire(source, path, "material", new Callable<Object>()
+		{
+			@Override
+			public Object call()
+			{
+				return source.loadMaterial(path);
+			}
+		});
+		VMMaterial material = (VMMaterial) get(entry);
+		if(material == null)
+		{
+			release(entry);
+			return null;
+		}
+		synchronized (this)
+		{
+			//the same material is handed out several times, one reference per acquire
+			mOwners.put(material, entry);
+		}
+		return material;
+	}
+
+	/**
+	 * Releases a model acquired from this cache
+	 * @param model instance returned by acquireModel()
+	 * @return false if the model does not come from this cache
+	 */
+	public boolean release(VMBOModel model)
+	{
+		Entry entry;
+		synchronized (this)
+		{
+			entry = mOwners.remove(model);
+		}
+		if(entry == null) return false;
+		release(entry);
+		return true;
+	}
+
+	/**
+	 * Releases a material acquired from this cache
+	 * @param material material returned by acquireMaterial()
+	 * @return false if the material does not come from this cache
+	 */
+	public boolean release(VMMaterial material)
+	{
+		Entry entry;
+		synchronized (this)
+		{
+			entry = mOwners.get(material);
+			if(entry == null) return false;
+			if(entry.refCount == 1) mOwners.remove(material);
+		}
+		release(entry);
+		return true;
+	}
+
+	/**
+	 * @return number of cached assets
+	 */
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+
+	/**
+	 * @param path asset path
+	 * @return number of users of the asset, 0 if it is not cached
+	 */
+	public synchronized int getRefCount(String path)
+	{
+		int count = 0;
+		for(Entry e : mEntries.values())
+		{
+			if(e.key.startsWith(path + "#")) count += e.refCount;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of acquires served from the cache
+	 */
+	public synchronized int getHitCount()
+	{
+		return mHits;
+	}
+
+	/**
+	 * @return number of acquires that loaded the asset
+	 */
+	public synchronized int getMissCount()
+	{
+		return mMisses;
+	}
+
+	/**
+	 * Finds or creates the entry of an asset and takes a reference on it
+	 */
+	private Entry acquire(Source source, String path, String kind, Callable<Object> loader) throws IOException
+	{
+		String key = path + "#" + kind + "#" + getHash(source, path);
+		Entry entry;
+		boolean load = false;
+		synchronized (this)
+		{
+			entry = mEntries.get(key);
+			if(entry == null)
+			{
+				entry = new Entry(key);
+				entry.load = new FutureTask<Object>(loader);
+				mEntries.put(key, entry);
+				load = true;
+				mMisses++;
+			}
+			else
+				mHits++;
+			entry.refCount++;
+		}
+		//loaded outside of the lock, other acquirers of the same asset wait in get()
+		if(load) entry.load.run();
+		return entry;
+	}
+
+	private Object get(Entry entry) throws IOException
+	{
+		try
+		{
+			return entry.load.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			release(entry);
+			throw new InterruptedIOException("interrupted while loading " + entry.key);
+		}
+		catch (ExecutionException e)
+		{
+			//not cached, the next acquire tries again
+			synchronized (this)
+			{
+				if(mEntries.get(entry.key) == entry) mEntries.remove(entry.key);
+			}
+			release(entry);
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private void release(Entry entry)
+	{
+		synchronized (this)
+		{
+			if(--entry.refCount > 0) return;
+			if(mEntries.get(entry.key) == entry) mEntries.remove(entry.key);
+		}
+		//nothing draws the material anymore, its textures can go
+		Object asset = getLoaded(entry);
+		if(asset instanceof VMMaterial) ((VMMaterial) asset).releaseTextures();
+		Log.d(TAG, "released " + entry.key);
+	}
+
+	/**
+	 * @return the asset of an entry, null if it was not loaded successfully
+	 */
+	private static Object getLoaded(Entry entry)
+	{
+		if(!entry.load.isDone() || entry.load.isCancelled()) return null;
+		try
+		{
+			return entry.load.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return CRC32 of the content of the asset, in hexadecimal, only read if the length changed
+	 */
+	private String getHash(Source source, String path) throws IOException
+	{
+		String version = path + "#" + source.getLength(path);
+		String hash;
+		synchronized (this)
+		{
+			hash = mHashes.get(version);
+		}
+		if(hash == null)
+		{
+			hash = hash(source, path);
+			synchronized (this)
+			{
+				mHashes.put(version, hash);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return CRC32 of the content of the asset, in hexadecimal
+	 */
+	private static String hash(Source source, String path) throws IOException
+	{
+		InputStream is = source.open(path);
+		try
+		{
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while((n = is.read(buffer)) > 0)
+				crc.update(buffer, 0, n);
+			return String.format(Locale.US, "%08x", crc.getValue());
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+}
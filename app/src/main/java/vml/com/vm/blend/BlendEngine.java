@@ -0,0 +1,539 @@
+package vml.com.vm.blend;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Multi-core Blendshape interpolation engine.
+ * <p>
+ * Pure Java replacement of the RenderScript kernel (blend.rs). The blending vertices are split
+ * in chunks which are evaluated in parallel on a bounded pool of worker threads, the calling
+ * thread blends the first chunk itself. Every chunk is written straight into the
+ * model vertex buffer.
+ * <p>
+ * For every coordinate the accumulation order is the same as in blend.rs:
+ * the neutral position followed by the weighted deltas of blendshape 0..nBS-1,
+ * so the results are bit-for-bit identical to the RenderScript kernel.
+ * <p>
+ * In MODE_ACTIVE_SET the weights are first compacted into a list of (index, weight) pairs
+ * whose magnitude is above an epsilon and only those blendshapes are accumulated, so the cost
+ * of a frame follows the complexity of the expression instead of the total number of blendshapes.
+ * <p>
+ * MODE_SPARSE uses the same active set but scatters only the vertices touched by each active
+ * blendshape, from the sparse deltas of the model (see SparseBlendShapes).
+ * Models whose dense deltas have been released are always blended this way.
+ * <p>
+ * MODE_INCREMENTAL keeps the previously blended positions and the weights they were blended with,
+ * and only applies (w_new - w_old) * B_j for the blendshapes whose weight changed by more than
+ * the epsilon. The positions are fully rebuilt every few frames to bound the float drift.
+ * It uses the sparse deltas when the model has them.
+ * <p>
+ * When the model has tiled deltas (see TiledBlendShapes) the dense, active set and incremental
+ * modes walk them sequentially instead of the shape major BSVertices.
+ * <p>
+ * With setDeformNormals(true) the normals are blended from BSNormals in the same pass,
+ * only the vertices touched by the active blendshapes are renormalized and get their static
+ * tangent re-orthogonalized (Gram-Schmidt) against the blended normal.
+ * <p>
+ * A single engine can be shared by several models and avatars, blend calls are serialized.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMBOModel#setBlendEngine(BlendEngine)
+ */
+public class BlendEngine
+{
+	/**logcat Tag*/
+	private static String TAG = "BlendEngine";
+	/**maximum number of threads, the big cores of current mobile SoCs*/
+	private static final int MAX_THREADS = 4;
+	/**minimum number of vertices per chunk. Smaller chunks cost more to dispatch than to blend*/
+	private static final int MIN_CHUNK_VTX = 128;
+
+	/**accumulates every blendshape, same arithmetic as blend.rs*/
+	public static final int MODE_DENSE = 0;
+	/**accumulates only the blendshapes whose weight magnitude is above the epsilon*/
+	public static final int MODE_ACTIVE_SET = 1;
+	/**active set on the sparse deltas, scatters only the touched vertices*/
+	public static final int MODE_SPARSE = 2;
+	/**applies only the weight changes since the previous frame*/
+	public static final int MODE_INCREMENTAL = 3;
+
+	/**default number of incremental frames between two full rebuilds*/
+	public static final int DEFAULT_REBUILD_INTERVAL = 60;
+
+	/**current blending mode*/
+	private int mMode = MODE_DENSE;
+	/**weights (or weight changes) with magnitude lower or equal are skipped*/
+	private float mEpsilon = 0.0f;
+	/**incremental frames between two full rebuilds*/
+	private int mRebuildInterval = DEFAULT_REBUILD_INTERVAL;
+	/**blend the normals and tangents along with the positions*/
+	private boolean mDeformNormals = false;
+
+	/**worker pool, null when running on the calling thread only*/
+	private final ExecutorService mPool;
+	/**number of threads blending a model, including the calling thread*/
+	private final int mThreads;
+	/**one reusable task per chunk*/
+	private final ChunkTask[] mTasks;
+
+	/**chunk completion lock*/
+	private final Object mLock = new Object();
+	/**number of chunks still running on the workers*/
+	private int mPending;
+	/**first error thrown by a worker*/
+	private Throwable mError;
+
+	/**model being blended*/
+	private VMBOModel mModel;
+	/**weights the current model is blended with*/
+	private float[] mWeights;
+	/**scratch data of the model being blended*/
+	private BlendState mState;
+	/**number of chunks of the current model*/
+	private int mChunks;
+	/**the current model is blended with the dense kernel*/
+	private boolean mDense;
+	/**the current model is blended from its sparse deltas*/
+	private boolean mSparse;
+	/**the current frame starts from the neutral positions (not incremental)*/
+	private boolean mFromNeutral;
+	/**the normals of the current model are blended*/
+	private boolean mNormals;
+
+	/**
+	 * Creates an engine using the default number of threads
+	 * @see #defaultThreadCount()
+	 */
+	public BlendEngine()
+	{
+		this(defaultThreadCount());
+	}
+
+	/**
+	 * Creates an engine blending on the given number of threads
+	 * @param threads number of threads including the calling thread (at least 1)
+	 */
+	public BlendEngine(int threads)
+	{
+		mThreads = Math.max(1, threads);
+		mTasks = new ChunkTask[mThreads];
+		for(int i=0; i<mThreads; i++) mTasks[i] = new ChunkTask(i);
+
+		if(mThreads > 1)
+		{
+			mPool = Executors.newFixedThreadPool(mThreads - 1, new ThreadFactory()
+			{
+				private int count = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, TAG + "-" + (count++));
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY + 1);
+					return t;
+				}
+			});
+		}
+		else
+			mPool = null;
+	}
+
+	/**
+	 * Default number of threads: half of the available cores (the big cluster on big.LITTLE devices),
+	 * between 1 and 4.
+	 * @return number of threads
+	 */
+	public static int defaultThreadCount()
+	{
+		return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * @return number of threads blending a model, including the calling thread
+	 */
+	public int getThreadCount()
+	{
+		return mThreads;
+	}
+
+	/**
+	 * Selects the blending mode
+	 * @param mode MODE_DENSE, MODE_ACTIVE_SET, MODE_SPARSE or MODE_INCREMENTAL
+	 */
+	public synchronized void setMode(int mode)
+	{
+		mMode = mode;
+	}
+
+	/**
+	 * @return the current blending mode
+	 */
+	public int getMode()
+	{
+		return mMode;
+	}
+
+	/**
+	 * Sets the threshold of the active set.
+	 * Blendshapes with |weight| lower or equal to epsilon are skipped, in MODE_INCREMENTAL
+	 * the weight changes lower or equal to epsilon are delayed until they grow larger.
+	 * The default 0 only skips the blendshapes with a null weight, which leaves the result unchanged.
+	 *
+	 * @param epsilon weight threshold
+	 */
+	public synchronized void setActiveSetEpsilon(float epsilon)
+	{
+		mEpsilon = Math.abs(epsilon);
+	}
+
+	/**
+	 * Sets how often MODE_INCREMENTAL rebuilds the positions from the neutral face
+	 * @param frames number of incremental frames between two full rebuilds (at least 1)
+	 */
+	public synchronized void setRebuildInterval(int frames)
+	{
+		mRebuildInterval = Math.max(1, frames);
+	}
+
+	/**
+	 * Enables the deformation of the normals (and tangents) by the blendshapes.
+	 * Models without normal deltas keep their neutral normals.
+	 * @param deform true to blend the normals along with the positions
+	 */
+	public synchronized void setDeformNormals(boolean deform)
+	{
+		mDeformNormals = deform;
+	}
+
+	/**
+	 * @return true if the normals are blended along with the positions
+	 */
+	public boolean getDeformNormals()
+	{
+		return mDeformNormals;
+	}
+
+	/**
+	 * Stops the worker threads. The engine can not be used afterwards.
+	 */
+	public void release()
+	{
+		if(mPool != null) mPool.shutdown();
+	}
+
+	/**
+	 * Applies the Blendshape interpolation of the model current weights
+	 * and writes the result into the model vertex buffer.
+	 *
+	 * @param model model to blend
+	 */
+	public void blend(VMBOModel model)
+	{
+		blend(model, model.BSWeights, model.mVerticesBuffer, model.mNormalsBuffer, model.mTangentsBuffer);
+	}
+
+	/**
+	 * Applies the Blendshape interpolation of the given weights and writes the result into the given buffers
+	 * instead of the ones of the model, so a model can be blended while its buffers are drawn.
+	 * The buffers must hold the content of the model buffers outside of the blended range.
+	 *
+	 * @param model model to blend
+	 * @param weights blendshape weights (nBS)
+	 * @param vertices output vertex buffer
+	 * @param normals output normal buffer
+	 * @param tangents output tangent buffer, the normals are not blended when null
+	 * @see BlendPipeline
+	 */
+	public synchronized void blend(VMBOModel model, float[] weights, FloatBuffer vertices, FloatBuffer normals, FloatBuffer tangents)
+	{
+		long startTime = System.nanoTime();
+		if(model.mBlendState == null) model.mBlendState = new BlendState(model);
+
+		int nChunks = Math.max(1, Math.min(mThreads, model.nBlendVtx / MIN_CHUNK_VTX));
+		mModel = model;
+		mWeights = weights;
+		mState = model.mBlendState;
+		mChunks = nChunks;
+		mState.prepareViews(vertices, nChunks);
+
+		boolean hasDense = model.BSVertices != null || model.tiledBS != null;
+		mDense  = mMode == MODE_DENSE && hasDense;
+		mSparse = !hasDense || ((mMode == MODE_SPARSE || mMode == MODE_INCREMENTAL) && model.sparseBS != null);
+		mFromNeutral = true;
+		mNormals = mDeformNormals && model.NNormals != null && tangents != null
+				&& (mSparse ? model.sparseBS.normalDeltas != null : model.BSNormals != null);
+
+		if(mNormals)
+		{
+			mState.initNormals(model, tangents);
+			mState.prepareNormalViews(normals, tangents, nChunks);
+			mState.stamp++;
+		}
+		if(mMode != MODE_INCREMENTAL || mNormals != mState.normalsBlended)
+			mState.incrementalFrames = -1;
+		mState.normalsBlended = mNormals;
+
+		if(mDense)
+			mState.activeCount = model.nBS;
+		else if(mMode == MODE_INCREMENTAL && mState.incrementalFrames >= 0 && mState.incrementalFrames < mRebuildInterval)
+		{
+			mState.buildChangedSet(weights, model.nBS, mEpsilon);
+			mState.incrementalFrames++;
+			mFromNeutral = false;
+		}
+		else
+		{
+			mState.buildActiveSet(weights, model.nBS, mEpsilon);
+			if(mMode == MODE_INCREMENTAL)
+				mState.startIncremental();
+		}
+
+		synchronized (mLock)
+		{
+			mPending = nChunks - 1;
+			mError = null;
+		}
+		for(int c=1; c<nChunks; c++) mPool.execute(mTasks[c]);
+
+		//the calling thread takes the first chunk
+		blendChunk(0);
+
+		boolean interrupted = false;
+		synchronized (mLock)
+		{
+			while(mPending > 0)
+			{
+				try { mLock.wait(); }
+				catch (InterruptedException e) { interrupted = true; }
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+
+		mState.blendTime = System.nanoTime() - startTime;
+		mModel = null;
+		mWeights = null;
+		mState = null;
+		if(mError != null)
+			throw new RuntimeException("Blendshape interpolation failed", mError);
+	}
+
+	/**
+	 * Blends the vertices of the given chunk of the current model
+	 * @param chunk chunk index
+	 */
+	private void blendChunk(int chunk)
+	{
+		int nVtx = mModel.nBlendVtx;
+		int start = 3 * (int)((long)nVtx * chunk / mChunks);
+		int end   = 3 * (int)((long)nVtx * (chunk + 1) / mChunks);
+
+		float[] out = mState.outVertices;
+		TiledBlendShapes tiled = mModel.tiledBS;
+		if(mDense && tiled != null)
+			tiled.blend(mModel.NVertices, mWeights, out, start / 3, end / 3);
+		else if(mDense)
+			blendDense(mModel.NVertices, mModel.BSVertices, mWeights, mModel.nBS, out, start, end);
+		else
+		{
+			if(mFromNeutral)
+				System.arraycopy(mModel.NVertices, start, out, start, end - start);
+			if(mSparse)
+			{
+				if(mNormals)
+					blendSparseNormals(start, end);
+				else
+					mModel.sparseBS.scatter(mState.activeIdx, mState.activeW, mState.activeCount, out, start / 3, end / 3);
+			}
+			else if(tiled != null)
+				tiled.accumulate(mState.activeIdx, mState.activeW, mState.activeCount, out, start / 3, end / 3);
+			else
+				accumulate(mModel.BSVertices, mModel.NVertices.length, mState.activeIdx, mState.activeW, mState.activeCount, out, start, end);
+		}
+
+		FloatBuffer view = mState.views[chunk];
+		view.position(start);
+		view.put(out, start, end - start);
+
+		if(mNormals)
+		{
+			if(!mSparse)
+				blendDenseNormals(start, end);
+
+			view = mState.normalViews[chunk];
+			view.position(start);
+			view.put(mState.unitNormals, start, end - start);
+			view = mState.tangentViews[chunk];
+			view.position(start);
+			view.put(mState.unitTangents, start, end - start);
+		}
+	}
+
+	/**
+	 * Blends the normals of the coordinates [start,end) from the dense normal deltas,
+	 * every vertex of the range is renormalized
+	 */
+	private void blendDenseNormals(int start, int end)
+	{
+		BlendState s = mState;
+		float[] raw = s.outNormals;
+		if(mDense)
+			blendDense(mModel.NNormals, mModel.BSNormals, mWeights, mModel.nBS, raw, start, end);
+		else
+		{
+			if(mFromNeutral)
+				System.arraycopy(mModel.NNormals, start, raw, start, end - start);
+			accumulate(mModel.BSNormals, mModel.NNormals.length, s.activeIdx, s.activeW, s.activeCount, raw, start, end);
+		}
+		for(int o=start; o<end; o+=3)
+			orthonormalize(raw, s.NTangents, s.unitNormals, s.unitTangents, o);
+	}
+
+	/**
+	 * Scatters the sparse position and normal deltas on the coordinates [start,end),
+	 * only the vertices touched in this frame are renormalized
+	 */
+	private void blendSparseNormals(int start, int end)
+	{
+		BlendState s = mState;
+		float[] raw = s.outNormals;
+		if(mFromNeutral)
+		{
+			//untouched vertices keep the neutral normal and the static tangent
+			System.arraycopy(mModel.NNormals, start, raw, start, end - start);
+			System.arraycopy(mModel.NNormals, start, s.unitNormals, start, end - start);
+			System.arraycopy(s.NTangents, start, s.unitTangents, start, end - start);
+		}
+		mModel.sparseBS.scatter(s.activeIdx, s.activeW, s.activeCount, mState.outVertices, raw,
+				s.touched, s.stamp, start / 3, end / 3);
+
+		int stamp = s.stamp;
+		int[] touched = s.touched;
+		for(int v=start/3; v<end/3; v++)
+			if(touched[v] == stamp)
+				orthonormalize(raw, s.NTangents, s.unitNormals, s.unitTangents, 3*v);
+	}
+
+	/**
+	 * Normalizes the blended normal of a vertex and re-orthogonalizes its static tangent
+	 * against it (Gram-Schmidt): t' = normalize(t - (n.t) n).
+	 * Degenerate normals or tangents keep their previous value.
+	 *
+	 * @param raw blended normals
+	 * @param T static tangents
+	 * @param unitN normalized normals
+	 * @param unitT orthogonalized tangents
+	 * @param o first coordinate of the vertex
+	 */
+	static void orthonormalize(float[] raw, float[] T, float[] unitN, float[] unitT, int o)
+	{
+		float nx = raw[o], ny = raw[o+1], nz = raw[o+2];
+		float len2 = nx*nx + ny*ny + nz*nz;
+		if(len2 > 1e-20f)
+		{
+			float inv = (float)(1.0 / Math.sqrt(len2));
+			nx *= inv; ny *= inv; nz *= inv;
+			unitN[o] = nx; unitN[o+1] = ny; unitN[o+2] = nz;
+		}
+		else
+		{
+			nx = unitN[o]; ny = unitN[o+1]; nz = unitN[o+2];
+		}
+
+		float tx = T[o], ty = T[o+1], tz = T[o+2];
+		float d = nx*tx + ny*ty + nz*tz;
+		tx -= d * nx; ty -= d * ny; tz -= d * nz;
+		len2 = tx*tx + ty*ty + tz*tz;
+		if(len2 > 1e-20f)
+		{
+			float inv = (float)(1.0 / Math.sqrt(len2));
+			unitT[o] = tx * inv; unitT[o+1] = ty * inv; unitT[o+2] = tz * inv;
+		}
+	}
+
+	/**
+	 * Dense blendshape kernel, same arithmetic as blend.rs:
+	 * out[i] = N[i] + sum_j( W[j] * B[j*n+i] ) for i in [start,end)
+	 *
+	 * @param N neutral positions
+	 * @param B blendshape deltas, shape major (n floats per blendshape)
+	 * @param W blendshape weights
+	 * @param nBS number of blendshapes
+	 * @param out blended positions
+	 * @param start first coordinate to blend
+	 * @param end last coordinate to blend (exclusive)
+	 */
+	static void blendDense(float[] N, float[] B, float[] W, int nBS, float[] out, int start, int end)
+	{
+		int n = N.length;
+		for(int i=start; i<end; i++) out[i] = N[i];
+		for(int j=0; j<nBS; j++)
+		{
+			float w = W[j];
+			int base = j * n;
+			for(int i=start; i<end; i++)
+				out[i] += w * B[base + i];
+		}
+	}
+
+	/**
+	 * Active set blendshape kernel.
+	 * Adds the weighted deltas of the given blendshapes to out. When out holds the neutral positions
+	 * and the indices are increasing the arithmetic is the same as blendDense() restricted to them.
+	 *
+	 * @param B blendshape deltas, shape major (n floats per blendshape)
+	 * @param n number of floats per blendshape
+	 * @param idx indices of the active blendshapes
+	 * @param W weights of the active blendshapes
+	 * @param count number of active blendshapes
+	 * @param out blended positions
+	 * @param start first coordinate to blend
+	 * @param end last coordinate to blend (exclusive)
+	 */
+	static void accumulate(float[] B, int n, int[] idx, float[] W, int count, float[] out, int start, int end)
+	{
+		for(int a=0; a<count; a++)
+		{
+			float w = W[a];
+			int base = idx[a] * n;
+			for(int i=start; i<end; i++)
+				out[i] += w * B[base + i];
+		}
+	}
+
+	/**
+	 * Reusable task blending one chunk on a worker thread
+	 */
+	private class ChunkTask implements Runnable
+	{
+		/**chunk index*/
+		private final int chunk;
+
+		ChunkTask(int chunk)
+		{
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void run()
+		{
+			Throwable error = null;
+			try
+			{
+				blendChunk(chunk);
+			}
+			catch (Throwable t)
+			{
+				error = t;
+			}
+			synchronized (mLock)
+			{
+				if(error != null && mError == null) mError = error;
+				if(--mPending == 0) mLock.notifyAll();
+			}
+		}
+	}
+}
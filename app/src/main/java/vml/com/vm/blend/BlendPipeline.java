@@ -0,0 +1,355 @@
+package vml.com.vm.blend;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Overlaps the Blendshape interpolation of a group of models with the GL submission of their draws.
+ * <p>
+ * With a depth of 1 the models are blended on the GL thread before they are drawn, as
+ * applyBlendShapes() does: the frame shows the weights it was started with, the blend and the
+ * submission add up. With a depth of 2 every model gets a second set of position, normal and tangent
+ * buffers. While the GL thread draws frame N from one set, a worker thread blends the weights of
+ * frame N+1 into the other one, and the sets are swapped at the next frame boundary: the frame time
+ * is the longest of the two stages instead of their sum, for one frame of latency.
+ * The draws read the buffers when they are issued (client side arrays), so a set can be written again
+ * as soon as the frame drawing it has been submitted.
+ * <p>
+ * The GL thread calls {@link #beginFrame()} once the weights of the models are set, draws the models
+ * from their mVerticesBuffer, mNormalsBuffer and mTangentsBuffer, which are switched by the pipeline,
+ * and calls {@link #endFrame()}. The weights are copied by beginFrame(), they can be changed right after.
+ * Depth 2 needs every model to be blended by a BlendEngine, otherwise they are blended at depth 1.
+ * <p>
+ * The time of each stage is measured, see {@link Timings}.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see BlendEngine#blend(VMBOModel, float[], FloatBuffer, FloatBuffer, FloatBuffer)
+ */
+public class BlendPipeline
+{
+	/**logcat Tag*/
+	private static String TAG = "BlendPipeline";
+
+	/**blend and draw the same frame, lowest latency*/
+	public static final int DEPTH_LATENCY = 1;
+	/**blend the next frame while drawing this one, highest frame rate*/
+	public static final int DEPTH_THROUGHPUT = 2;
+
+	/**
+	 * Per stage timings of the frames
+	 */
+	public static class Timings
+	{
+		/**depth of the last frame*/
+		public int depth;
+		/**number of frames measured*/
+		public long frames;
+		/**time spent blending the models of the last frame, in ns*/
+		public long blendNs;
+		/**time the GL thread waited for the worker in the last frame, in ns*/
+		public long waitNs;
+		/**time between beginFrame() and endFrame() in the last frame, in ns*/
+		public long submitNs;
+		/**total of blendNs over the frames measured*/
+		public long totalBlendNs;
+		/**total of waitNs over the frames measured*/
+		public long totalWaitNs;
+		/**total of submitNs over the frames measured*/
+		public long totalSubmitNs;
+
+		void set(Timings t)
+		{
+			depth = t.depth;
+			frames = t.frames;
+			blendNs = t.blendNs;
+			waitNs = t.waitNs;
+			submitNs = t.submitNs;
+			totalBlendNs = t.totalBlendNs;
+			totalWaitNs = t.totalWaitNs;
+			totalSubmitNs = t.totalSubmitNs;
+		}
+	}
+
+	/**models blended together*/
+	private final VMBOModel[] mModels;
+	/**[model][set] output buffers: vertices, normals and tangents. Set 0 holds the buffers of the model*/
+	private FloatBuffer[][][] mSets;
+	/**set the models are drawn from*/
+	private int mFront = 0;
+	/**copy of the weights of every model for the worker*/
+	private float[][] mJobWeights;
+
+	private volatile int mDepth;
+	/**worker thread, created for the first frame at depth 2*/
+	private ExecutorService mWorker;
+	/**blends the back set on the worker*/
+	private final Runnable mJob = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			Throwable error = null;
+			long start = System.nanoTime();
+			try
+			{
+				blendInto(mJobSet);
+			}
+			catch (Throwable t)
+			{
+				error = t;
+			}
+			long blendNs = System.nanoTime() - start;
+			synchronized (mLock)
+			{
+				mJobBlendNs = blendNs;
+				mError = error;
+				mInFlight = false;
+				mLock.notifyAll();
+			}
+		}
+	};
+
+	/**job completion lock*/
+	private final Object mLock = new Object();
+	/**a job was posted and has not completed*/
+	private boolean mInFlight;
+	/**a job was posted whose set has not been swapped in yet, GL thread only*/
+	private boolean mJobReady;
+	/**set blended by the job*/
+	private int mJobSet;
+	/**blend time of the last job*/
+	private long mJobBlendNs;
+	/**error thrown by the last job*/
+	private Throwable mError;
+
+	/**timings being measured, GL thread only*/
+	private final Timings mCurrent = new Timings();
+	/**timings of the last complete frame*/
+	private final Timings mLast = new Timings();
+	/**end of the last beginFrame()*/
+	private long mBeginEndNs;
+
+	/**
+	 * @param depth DEPTH_LATENCY or DEPTH_THROUGHPUT
+	 * @param models models blended together, drawn between beginFrame() and endFrame()
+	 */
+	public BlendPipeline(int depth, VMBOModel... models)
+	{
+		mModels = models.clone();
+		setDepth(depth);
+	}
+
+	/**
+	 * Changes the depth, applied at the next frame
+	 * @param depth DEPTH_LATENCY or DEPTH_THROUGHPUT
+	 */
+	public void setDepth(int depth)
+	{
+		mDepth = Math.max(DEPTH_LATENCY, Math.min(DEPTH_THROUGHPUT, depth));
+	}
+
+	/**
+	 * @return DEPTH_LATENCY or DEPTH_THROUGHPUT
+	 */
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	/**
+	 * Starts a frame, on the GL thread: blends the current weights of the models, or at depth 2 swaps in
+	 * the ones blended during the previous frame and hands the current weights to the worker.
+	 * Returns when the buffers of the models can be drawn.
+	 */
+	public void beginFrame()
+	{
+		int depth = mDepth;
+		if(depth == DEPTH_THROUGHPUT && !canPipeline()) depth = DEPTH_LATENCY;
+
+		long start = System.nanoTime();
+		//the frame blended during the previous one, also when the depth has just been lowered
+		long waitNs = 0;
+		long blendNs = 0;
+		if(mSets != null)
+		{
+			awaitJob();
+			waitNs = System.nanoTime() - start;
+			if(mJobReady)
+			{
+				mJobReady = false;
+				blendNs = mJobBlendNs;
+				swap();
+			}
+		}
+
+		if(depth == DEPTH_THROUGHPUT)
+		{
+			if(mSets == null) createSets();
+			for(int m=0; m<mModels.length; m++)
+				System.arraycopy(mModels[m].BSWeights, 0, mJobWeights[m], 0, mModels[m].nBS);
+			mJobSet = 1 - mFront;
+			mJobReady = true;
+			synchronized (mLock)
+			{
+				mInFlight = true;
+			}
+			mWorker.execute(mJob);
+		}
+		else
+		{
+			long blendStart = System.nanoTime();
+			for(VMBOModel model : mModels)
+				model.applyBlendShapes();
+			blendNs = System.nanoTime() - blendStart;
+		}
+
+		Timings t = mCurrent;
+		t.depth = depth;
+		t.blendNs = blendNs;
+		t.waitNs = waitNs;
+		mBeginEndNs = System.nanoTime();
+	}
+
+	/**
+	 * Ends a frame once the draws of the models have been issued, on the GL thread
+	 */
+	public void endFrame()
+	{
+		Timings t = mCurrent;
+		t.submitNs = System.nanoTime() - mBeginEndNs;
+		t.frames++;
+		t.totalBlendNs += t.blendNs;
+		t.totalWaitNs += t.waitNs;
+		t.totalSubmitNs += t.submitNs;
+		synchronized (mLast)
+		{
+			mLast.set(t);
+		}
+	}
+
+	/**
+	 * Copies the timings of the last frame, from any thread
+	 * @param out timings to fill
+	 * @return out
+	 */
+	public Timings getTimings(Timings out)
+	{
+		synchronized (mLast)
+		{
+			out.set(mLast);
+		}
+		return out;
+	}
+
+	/**
+	 * Waits for the frame being blended and stops the worker. The models are left on the buffers
+	 * of the last blended frame, the pipeline can not be used afterwards.
+	 */
+	public void release()
+	{
+		if(mSets == null) return;
+		awaitJob();
+		if(mJobReady)
+		{
+			mJobReady = false;
+			swap();
+		}
+		mWorker.shutdown();
+	}
+
+	/**
+	 * @return true if every model is blended by a BlendEngine
+	 */
+	private boolean canPipeline()
+	{
+		for(VMBOModel model : mModels)
+			if(model.getBlendEngine() == null) return false;
+		return true;
+	}
+
+	/**
+	 * Allocates the second set of buffers (copies of the model ones) and the worker
+	 */
+	private void createSets()
+	{
+		mSets = new FloatBuffer[mModels.length][2][];
+		mJobWeights = new float[mModels.length][];
+		for(int m=0; m<mModels.length; m++)
+		{
+			VMBOModel model = mModels[m];
+			mSets[m][0] = new FloatBuffer[]{ model.mVerticesBuffer, model.mNormalsBuffer, model.mTangentsBuffer };
+			mSets[m][1] = new FloatBuffer[]{ VMBOModel.copy(model.mVerticesBuffer), VMBOModel.copy(model.mNormalsBuffer),
+					VMBOModel.copy(model.mTangentsBuffer) };
+			mJobWeights[m] = new float[model.nBS];
+		}
+		mFront = 0;
+		mWorker = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, TAG);
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY + 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Blends the copied weights of every model into the given set, on the worker
+	 */
+	private void blendInto(int set)
+	{
+		for(int m=0; m<mModels.length; m++)
+		{
+			VMBOModel model = mModels[m];
+			FloatBuffer[] buffers = mSets[m][set];
+			model.getBlendEngine().blend(model, mJobWeights[m], buffers[0], buffers[1], buffers[2]);
+		}
+	}
+
+	/**
+	 * Waits for the job in flight, if any
+	 */
+	private void awaitJob()
+	{
+		boolean interrupted = false;
+		Throwable error;
+		synchronized (mLock)
+		{
+			while(mInFlight)
+			{
+				try { mLock.wait(); }
+				catch (InterruptedException e) { interrupted = true; }
+			}
+			error = mError;
+			mError = null;
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		if(error != null)
+		{
+			//the set was not completely blended, it is not drawn
+			mJobReady = false;
+			throw new RuntimeException("Blendshape interpolation failed", error);
+		}
+	}
+
+	/**
+	 * Draws the models from the back set, the front set becomes the back one
+	 */
+	private void swap()
+	{
+		mFront = 1 - mFront;
+		for(int m=0; m<mModels.length; m++)
+		{
+			FloatBuffer[] buffers = mSets[m][mFront];
+			mModels[m].mVerticesBuffer = buffers[0];
+			mModels[m].mNormalsBuffer = buffers[1];
+			mModels[m].mTangentsBuffer = buffers[2];
+		}
+	}
+}
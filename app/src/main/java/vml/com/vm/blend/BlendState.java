@@ -0,0 +1,214 @@
+package vml.com.vm.blend;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Per model scratch data used by the BlendEngine.
+ * <p>
+ * The engine itself is shared between models and avatars, everything that depends
+ * on the size or the output buffers of a given model is kept here so that blending
+ * a frame does not allocate.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see BlendEngine
+ */
+class BlendState
+{
+	/**blended positions (3*nBlendVtx)*/
+	float[] outVertices;
+
+	/**indices of the blendshapes in the active set*/
+	int[] activeIdx;
+	/**weights of the blendshapes in the active set*/
+	float[] activeW;
+	/**number of blendshapes accumulated in the last frame*/
+	int activeCount;
+	/**duration of the last blend in ns*/
+	long blendTime;
+
+	/**weights outVertices have been blended with, for MODE_INCREMENTAL*/
+	float[] appliedWeights;
+	/**incremental frames since the last full rebuild, -1 when outVertices can not be updated incrementally*/
+	int incrementalFrames = -1;
+
+	/**one independent view of the vertex buffer per chunk*/
+	FloatBuffer[] views;
+	private final ViewCache vertexViews = new ViewCache();
+
+	//normal deformation, allocated by initNormals()
+	/**blended normals before normalization (3*nBlendVtx)*/
+	float[] outNormals;
+	/**normalized blended normals*/
+	float[] unitNormals;
+	/**tangents orthogonalized against the blended normals*/
+	float[] unitTangents;
+	/**static tangents of the blending vertices*/
+	float[] NTangents;
+	/**stamp of the last frame each blending vertex was touched in*/
+	int[] touched;
+	/**stamp of the current frame*/
+	int stamp;
+	/**outNormals holds the normals of the last frame, required by MODE_INCREMENTAL*/
+	boolean normalsBlended;
+	/**one independent view of the normal buffer per chunk*/
+	FloatBuffer[] normalViews;
+	private final ViewCache normalViewCache = new ViewCache();
+	/**one independent view of the tangent buffer per chunk*/
+	FloatBuffer[] tangentViews;
+	private final ViewCache tangentViewCache = new ViewCache();
+
+	/**
+	 * Creates the scratch data for the given model
+	 * @param model model to be blended
+	 */
+	BlendState(VMBOModel model)
+	{
+		outVertices = new float[model.NVertices.length];
+		activeIdx = new int[model.nBS];
+		activeW = new float[model.nBS];
+		appliedWeights = new float[model.nBS];
+	}
+
+	/**
+	 * Allocates the normal deformation data on first use.
+	 * The tangents are read from the output tangent buffer, which must still hold the static tangents.
+	 *
+	 * @param model model to be blended
+	 * @param tangents output tangent buffer
+	 */
+	void initNormals(VMBOModel model, FloatBuffer tangents)
+	{
+		if(outNormals != null) return;
+		int n = model.NNormals.length;
+		outNormals = new float[n];
+		unitNormals = new float[n];
+		unitTangents = new float[n];
+		NTangents = new float[n];
+		FloatBuffer src = tangents.duplicate();
+		src.position(0);
+		src.get(NTangents);
+		System.arraycopy(model.NNormals, 0, unitNormals, 0, n);
+		System.arraycopy(NTangents, 0, unitTangents, 0, n);
+		touched = new int[n / 3];
+	}
+
+	/**
+	 * Compacts the weights into the list of (index, weight) pairs whose magnitude is above epsilon.
+	 * Indices are kept in increasing order.
+	 *
+	 * @param weights blendshape weights
+	 * @param nBS number of blendshapes
+	 * @param epsilon weight threshold
+	 */
+	void buildActiveSet(float[] weights, int nBS, float epsilon)
+	{
+		int count = 0;
+		for(int j=0; j<nBS; j++)
+		{
+			float w = weights[j];
+			if(w > epsilon || w < -epsilon)
+			{
+				activeIdx[count] = j;
+				activeW[count] = w;
+				count++;
+			}
+		}
+		activeCount = count;
+	}
+
+	/**
+	 * Starts a new incremental sequence after a full rebuild with the active set:
+	 * the applied weights are the active weights, the skipped ones count as 0.
+	 */
+	void startIncremental()
+	{
+		for(int j=0; j<appliedWeights.length; j++) appliedWeights[j] = 0.0f;
+		for(int a=0; a<activeCount; a++) appliedWeights[activeIdx[a]] = activeW[a];
+		incrementalFrames = 0;
+	}
+
+	/**
+	 * Compacts the weight changes since the applied weights into the active set.
+	 * Changes lower or equal to epsilon are left for a later frame, so they can not drift away.
+	 *
+	 * @param weights new blendshape weights
+	 * @param nBS number of blendshapes
+	 * @param epsilon weight change threshold
+	 */
+	void buildChangedSet(float[] weights, int nBS, float epsilon)
+	{
+		int count = 0;
+		for(int j=0; j<nBS; j++)
+		{
+			float dw = weights[j] - appliedWeights[j];
+			if(dw > epsilon || dw < -epsilon)
+			{
+				activeIdx[count] = j;
+				activeW[count] = dw;
+				appliedWeights[j] = weights[j];
+				count++;
+			}
+		}
+		activeCount = count;
+	}
+
+	/**
+	 * Makes sure there is one view of the target buffer per chunk.
+	 * Views are recreated only when the target buffer or the number of chunks change,
+	 * the views of the previous target are kept for models blended into two buffers in turn.
+	 * Must be called from the thread dispatching the chunks.
+	 *
+	 * @param buffer output vertex buffer of the model
+	 * @param nChunks number of chunks
+	 */
+	void prepareViews(FloatBuffer buffer, int nChunks)
+	{
+		views = vertexViews.get(buffer, nChunks);
+	}
+
+	/**
+	 * Same as prepareViews() for the normal and tangent buffers
+	 *
+	 * @param normals output normal buffer of the model
+	 * @param tangents output tangent buffer of the model
+	 * @param nChunks number of chunks
+	 */
+	void prepareNormalViews(FloatBuffer normals, FloatBuffer tangents, int nChunks)
+	{
+		normalViews = normalViewCache.get(normals, nChunks);
+		tangentViews = tangentViewCache.get(tangents, nChunks);
+	}
+
+	/**
+	 * Chunk views of the last two output buffers
+	 */
+	private static class ViewCache
+	{
+		private FloatBuffer target;
+		private FloatBuffer[] views;
+		private FloatBuffer previousTarget;
+		private FloatBuffer[] previousViews;
+
+		FloatBuffer[] get(FloatBuffer buffer, int nChunks)
+		{
+			if(target == buffer && views != null && views.length == nChunks)
+				return views;
+
+			FloatBuffer[] reuse = previousTarget == buffer && previousViews != null && previousViews.length == nChunks
+					? previousViews : createViews(buffer, nChunks);
+			previousTarget = target;
+			previousViews = views;
+			target = buffer;
+			views = reuse;
+			return views;
+		}
+	}
+
+	private static FloatBuffer[] createViews(FloatBuffer buffer, int nChunks)
+	{
+		FloatBuffer[] views = new FloatBuffer[nChunks];
+		for(int i=0; i<nChunks; i++) views[i] = buffer.duplicate();
+		return views;
+	}
+}
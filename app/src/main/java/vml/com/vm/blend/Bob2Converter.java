@@ -0,0 +1,150 @@
+package vml.com.vm.blend;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Command-line converter from .bob to .bob2, runs on a plain JVM (no Android classes needed).
+ * <pre>
+ * java -cp &lt;app classes&gt; vml.com.vm.blend.Bob2Converter [--sparse threshold] [--sparse-only] input output
+ * </pre>
+ * input and output are either two files or two directories, in which case every .bob file
+ * of the input directory is converted.
+ * <ul>
+ * <li>--sparse threshold: also store the sparse deltas built with the given threshold</li>
+ * <li>--sparse-only: store the sparse deltas only (threshold 1e-4 unless given)</li>
+ * </ul>
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see Bob2Format
+ */
+public class Bob2Converter
+{
+	/**sparse deltas threshold, negative when they are not stored*/
+	private float mSparseThreshold = -1.0f;
+	/**drop the dense deltas*/
+	private boolean mSparseOnly = false;
+
+	/**
+	 * Wrong command line
+	 */
+	static class UsageException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		UsageException(String message)
+		{
+			super(message);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			run(args);
+		}
+		catch (UsageException e)
+		{
+			System.err.println(e.getMessage());
+			System.err.println("usage: Bob2Converter [--sparse threshold] [--sparse-only] input.bob|dir output.bob2|dir");
+			System.exit(2);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the command line
+	 * @param args options, input and output
+	 * @throws UsageException wrong command line
+	 * @throws IOException conversion problem
+	 */
+	static void run(String[] args) throws UsageException, IOException
+	{
+		Bob2Converter converter = new Bob2Converter();
+		int i = 0;
+		try
+		{
+			for(; i < args.length && args[i].startsWith("--"); i++)
+			{
+				if(args[i].equals("--sparse"))
+					converter.mSparseThreshold = Float.parseFloat(args[++i]);
+				else if(args[i].equals("--sparse-only"))
+					converter.mSparseOnly = true;
+				else
+					throw new UsageException("unknown option " + args[i]);
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new UsageException("invalid threshold");
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new UsageException("missing option value");
+		}
+		if(args.length - i != 2)
+			throw new UsageException("expected an input and an output");
+		if(converter.mSparseOnly && converter.mSparseThreshold < 0.0f)
+			converter.mSparseThreshold = SparseBlendShapes.DEFAULT_THRESHOLD;
+
+		File in = new File(args[i]);
+		File out = new File(args[i + 1]);
+		if(in.isDirectory())
+		{
+			if(!out.isDirectory() && !out.mkdirs())
+				throw new IOException("can not create " + out);
+			File[] files = in.listFiles();
+			if(files == null)
+				throw new IOException("can not list " + in);
+			for(File f : files)
+			{
+				if(f.getName().endsWith(".bob"))
+					converter.convert(f, new File(out, f.getName() + "2"));
+			}
+		}
+		else
+			converter.convert(in, out);
+	}
+
+	/**
+	 * Converts one file
+	 * @param in .bob file
+	 * @param out .bob2 file
+	 * @throws IOException conversion problem, also for a truncated or corrupted .bob file
+	 */
+	void convert(File in, File out) throws IOException
+	{
+		VMBOModel model;
+		try
+		{
+			model = VMBOLoader.readModel(new FileInputStream(in), VMBOLoader.LAYOUT_SHAPE_MAJOR);
+		}
+		catch (IOException e)
+		{
+			throw new IOException("can not read " + in + ": " + e.getMessage(), e);
+		}
+		if(mSparseThreshold >= 0.0f)
+			model.buildSparseBlendShapes(mSparseThreshold, mSparseOnly);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+		try
+		{
+			Bob2Format.write(model, os);
+		}
+		finally
+		{
+			os.close();
+		}
+		System.out.println(in.getName() + " (" + in.length() + " bytes) -> " + out.getName() + " (" + out.length() + " bytes)");
+	}
+}
@@ -0,0 +1,305 @@
+package vml.com.vm.blend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The .bob2 mesh format: the .bob data laid out so that it can be used in place.
+ * <p>
+ * Everything is little-endian (the byte order of the ARM and x86 devices we run on).
+ * The file starts with a fixed size header followed by a section table:
+ * <pre>
+ *  0  magic "BOB2"
+ *  4  version
+ *  8  nBlendVtx
+ * 12  nVtx
+ * 16  nFcs
+ * 20  nBS
+ * 24  flags (FLAG_NORMALS, FLAG_UVS)
+ * 28  sparse threshold (float, 0 without sparse sections)
+ * 32  number of sections
+ * 36  reserved
+ * 48  section table, 16 bytes per section: id, offset, size in bytes, number of elements
+ * </pre>
+ * Every section starts on a 16 byte boundary. The tangents computed by VMBOLoader are stored,
+ * the indices are stored as 16 bit values, the sparse deltas (see SparseBlendShapes) are optional
+ * and so are the dense deltas when the sparse ones are present.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMBOLoader#loadModel(ByteBuffer, String)
+ * @see Bob2Converter
+ */
+public final class Bob2Format
+{
+	/**file extension*/
+	public static final String EXTENSION = ".bob2";
+	/**"BOB2" read as a little-endian int*/
+	public static final int MAGIC = 'B' | ('O' << 8) | ('B' << 16) | ('2' << 24);
+	/**current version*/
+	public static final int VERSION = 1;
+
+	/**size of the fixed header*/
+	static final int HEADER_SIZE = 48;
+	/**size of a section table entry*/
+	static final int SECTION_ENTRY_SIZE = 16;
+	/**section alignment*/
+	static final int ALIGNMENT = 16;
+
+	/**model has normals*/
+	static final int FLAG_NORMALS = 1;
+	/**model has a UV mapping*/
+	static final int FLAG_UVS = 2;
+
+	//section ids
+	/**blendshape names: for every name its UTF-8 length (int) and bytes*/
+	static final int SECTION_NAMES = 1;
+	/**3*nVtx floats*/
+	static final int SECTION_POSITIONS = 2;
+	/**3*nVtx floats*/
+	static final int SECTION_NORMALS = 3;
+	/**2*nVtx floats*/
+	static final int SECTION_UVS = 4;
+	/**3*nVtx floats*/
+	static final int SECTION_TANGENTS = 5;
+	/**3*nFcs shorts*/
+	static final int SECTION_INDICES = 6;
+	/**3*nBS*nBlendVtx floats, shape major*/
+	static final int SECTION_BS_DELTAS = 7;
+	/**3*nBS*nBlendVtx floats, shape major*/
+	static final int SECTION_BS_NORMALS = 8;
+	/**nBS+1 ints*/
+	static final int SECTION_SPARSE_ROWS = 9;
+	/**one int per sparse entry*/
+	static final int SECTION_SPARSE_VERTICES = 10;
+	/**3 floats per sparse entry*/
+	static final int SECTION_SPARSE_DELTAS = 11;
+	/**3 floats per sparse entry*/
+	static final int SECTION_SPARSE_NORMALS = 12;
+
+	private Bob2Format()
+	{
+	}
+
+	/**
+	 * @param name file name
+	 * @return true if the file is a .bob2 file
+	 */
+	public static boolean isBob2(String name)
+	{
+		return name.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Writes a model in the .bob2 format
+	 *
+	 * @param model loaded model, with its dense or sparse deltas
+	 * @param out destination, not closed
+	 * @throws IOException writing problem
+	 */
+	public static void write(VMBOModel model, OutputStream out) throws IOException
+	{
+		ByteBuffer data = encode(model);
+		out.write(data.array(), 0, data.limit());
+	}
+
+	/**
+	 * Encodes a model in the .bob2 format
+	 *
+	 * @param model loaded model, with its dense or sparse deltas
+	 * @return little-endian heap buffer holding the whole file
+	 * @throws IOException when the model can not be encoded
+	 */
+	public static ByteBuffer encode(VMBOModel model) throws IOException
+	{
+		if(model.BSVertices == null && model.sparseBS == null)
+			throw new IOException("model has neither dense nor sparse blendshape deltas");
+
+		List<Section> sections = new ArrayList<Section>();
+		byte[][] names = new byte[model.nBS][];
+		int namesSize = 0;
+		for(int i=0; i<model.nBS; i++)
+		{
+			names[i] = model.BSNames[i].getBytes("UTF-8");
+			namesSize += 4 + names[i].length;
+		}
+		sections.add(new Section(SECTION_NAMES, namesSize, model.nBS));
+		sections.add(new Section(SECTION_POSITIONS, 4 * 3 * model.nVtx, 3 * model.nVtx));
+		sections.add(new Section(SECTION_NORMALS, 4 * 3 * model.nVtx, 3 * model.nVtx));
+		sections.add(new Section(SECTION_UVS, 4 * 2 * model.nVtx, 2 * model.nVtx));
+		sections.add(new Section(SECTION_TANGENTS, 4 * 3 * model.nVtx, 3 * model.nVtx));
+		sections.add(new Section(SECTION_INDICES, 2 * 3 * model.nFcs, 3 * model.nFcs));
+		if(model.BSVertices != null)
+		{
+			sections.add(new Section(SECTION_BS_DELTAS, 4 * model.BSVertices.length, model.BSVertices.length));
+			sections.add(new Section(SECTION_BS_NORMALS, 4 * model.BSNormals.length, model.BSNormals.length));
+		}
+		SparseBlendShapes sparse = model.sparseBS;
+		if(sparse != null)
+		{
+			sections.add(new Section(SECTION_SPARSE_ROWS, 4 * sparse.rowStart.length, sparse.rowStart.length));
+			sections.add(new Section(SECTION_SPARSE_VERTICES, 4 * sparse.vtxIdx.length, sparse.vtxIdx.length));
+			sections.add(new Section(SECTION_SPARSE_DELTAS, 4 * sparse.deltas.length, sparse.deltas.length));
+			if(sparse.normalDeltas != null)
+				sections.add(new Section(SECTION_SPARSE_NORMALS, 4 * sparse.normalDeltas.length, sparse.normalDeltas.length));
+		}
+
+		//layout
+		int offset = align(HEADER_SIZE + SECTION_ENTRY_SIZE * sections.size());
+		for(Section s : sections)
+		{
+			s.offset = offset;
+			offset = align(offset + s.size);
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(offset);
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		data.putInt(MAGIC);
+		data.putInt(VERSION);
+		data.putInt(model.nBlendVtx);
+		data.putInt(model.nVtx);
+		data.putInt(model.nFcs);
+		data.putInt(model.nBS);
+		data.putInt((model.uNorm ? FLAG_NORMALS : 0) | (model.uUV ? FLAG_UVS : 0));
+		data.putFloat(sparse != null ? sparse.threshold : 0.0f);
+		data.putInt(sections.size());
+		data.position(HEADER_SIZE);
+		for(Section s : sections)
+		{
+			data.putInt(s.id);
+			data.putInt(s.offset);
+			data.putInt(s.size);
+			data.putInt(s.count);
+		}
+
+		for(Section s : sections)
+		{
+			data.position(s.offset);
+			ByteBuffer body = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+			switch(s.id)
+			{
+				case SECTION_NAMES:
+					for(byte[] name : names)
+					{
+						body.putInt(name.length);
+						body.put(name);
+					}
+					break;
+				case SECTION_POSITIONS:  putFloats(body, model.mVerticesBuffer); break;
+				case SECTION_NORMALS:    putFloats(body, model.mNormalsBuffer); break;
+				case SECTION_UVS:        putFloats(body, model.mTexCoordsBuffer); break;
+				case SECTION_TANGENTS:   putFloats(body, model.mTangentsBuffer); break;
+				case SECTION_INDICES:
+					ShortBuffer indices = model.mIndexBuffer.duplicate();
+					indices.position(0);
+					body.asShortBuffer().put(indices);
+					break;
+				case SECTION_BS_DELTAS:  body.asFloatBuffer().put(model.BSVertices); break;
+				case SECTION_BS_NORMALS: body.asFloatBuffer().put(model.BSNormals); break;
+				case SECTION_SPARSE_ROWS:     body.asIntBuffer().put(sparse.rowStart); break;
+				case SECTION_SPARSE_VERTICES: body.asIntBuffer().put(sparse.vtxIdx); break;
+				case SECTION_SPARSE_DELTAS:   body.asFloatBuffer().put(sparse.deltas); break;
+				case SECTION_SPARSE_NORMALS:  body.asFloatBuffer().put(sparse.normalDeltas); break;
+			}
+		}
+		data.position(0);
+		return data;
+	}
+
+	private static void putFloats(ByteBuffer body, FloatBuffer src)
+	{
+		FloatBuffer values = src.duplicate();
+		values.position(0);
+		body.asFloatBuffer().put(values);
+	}
+
+	/**
+	 * @param offset byte offset
+	 * @return offset rounded up to the section alignment
+	 */
+	static int align(int offset)
+	{
+		return (offset + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+	}
+
+	/**
+	 * Reads the section table of a .bob2 file
+	 *
+	 * @param data little-endian view of the whole file
+	 * @return the sections, indexed by id (null entries for missing sections)
+	 * @throws IOException when the data is not a supported .bob2 file
+	 */
+	static Section[] readSections(ByteBuffer data) throws IOException
+	{
+		if(data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+			throw new IOException("not a .bob2 file");
+		int version = data.getInt(4);
+		if(version > VERSION)
+			throw new IOException("unsupported .bob2 version " + version);
+
+		Section[] sections = new Section[SECTION_SPARSE_NORMALS + 1];
+		int count = data.getInt(32);
+		for(int i=0; i<count; i++)
+		{
+			int entry = HEADER_SIZE + i * SECTION_ENTRY_SIZE;
+			Section s = new Section(data.getInt(entry), data.getInt(entry + 8), data.getInt(entry + 12));
+			s.offset = data.getInt(entry + 4);
+			if(s.offset % ALIGNMENT != 0 || s.offset < 0 || s.size < 0 || (long)s.offset + s.size > data.limit())
+				throw new IOException("corrupted .bob2 section " + s.id);
+			//unknown sections are skipped, newer files can add some
+			if(s.id > 0 && s.id < sections.length) sections[s.id] = s;
+		}
+		return sections;
+	}
+
+	/**
+	 * Entry of the section table
+	 */
+	static class Section
+	{
+		/**section id*/
+		final int id;
+		/**size in bytes*/
+		final int size;
+		/**number of elements*/
+		final int count;
+		/**byte offset from the start of the file*/
+		int offset;
+
+		Section(int id, int size, int count)
+		{
+			this.id = id;
+			this.size = size;
+			this.count = count;
+		}
+
+		/**
+		 * @param data little-endian view of the whole file
+		 * @return little-endian view of the section, sharing the content of data
+		 */
+		ByteBuffer slice(ByteBuffer data)
+		{
+			ByteBuffer view = data.duplicate();
+			view.limit(offset + size);
+			view.position(offset);
+			return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		FloatBuffer floats(ByteBuffer data)
+		{
+			return slice(data).asFloatBuffer();
+		}
+
+		IntBuffer ints(ByteBuffer data)
+		{
+			return slice(data).asIntBuffer();
+		}
+	}
+}
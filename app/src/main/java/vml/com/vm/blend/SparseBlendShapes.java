@@ -0,0 +1,234 @@
+package vml.com.vm.blend;
+
+/**
+ * Sparse (CSR) storage of the Blendshape position and normal deltas.
+ * <p>
+ * Most blendshapes (a blink, a brow raise...) only move a small part of the model.
+ * For every blendshape only the touched vertices are kept: their indices, in increasing order,
+ * and their packed x,y,z deltas. A vertex is touched by a blendshape when one of its position
+ * or normal delta coordinates has a magnitude above the threshold given at build time.
+ * <p>
+ * The touched vertices of blendshape j are vtxIdx[rowStart[j]] .. vtxIdx[rowStart[j+1]-1]
+ * and their deltas start at deltas[3*rowStart[j]] (normalDeltas[3*rowStart[j]]).
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMBOModel#buildSparseBlendShapes(float, boolean)
+ */
+public class SparseBlendShapes
+{
+	/**threshold used when none is given, far below the visible range for our models*/
+	public static final float DEFAULT_THRESHOLD = 1e-4f;
+
+	/**number of blendshapes*/
+	public final int nBS;
+	/**number of blending vertices*/
+	public final int nBlendVtx;
+	/**zero threshold used to build the deltas*/
+	public final float threshold;
+	/**start of each blendshape in vtxIdx (nBS+1 entries)*/
+	public final int[] rowStart;
+	/**touched vertex indices, increasing within each blendshape*/
+	public final int[] vtxIdx;
+	/**packed x,y,z deltas of the touched vertices*/
+	public final float[] deltas;
+	/**packed x,y,z normal deltas of the touched vertices, null when built without normals*/
+	public final float[] normalDeltas;
+
+	SparseBlendShapes(int nBS, int nBlendVtx, float threshold, int[] rowStart, int[] vtxIdx, float[] deltas, float[] normalDeltas)
+	{
+		this.nBS = nBS;
+		this.nBlendVtx = nBlendVtx;
+		this.threshold = threshold;
+		this.rowStart = rowStart;
+		this.vtxIdx = vtxIdx;
+		this.deltas = deltas;
+		this.normalDeltas = normalDeltas;
+	}
+
+	/**
+	 * Builds the sparse deltas from the dense, shape major, deltas loaded from a .bob file
+	 *
+	 * @param BSVertices dense deltas (3*nBlendVtx floats per blendshape)
+	 * @param nBS number of blendshapes
+	 * @param nBlendVtx number of blending vertices
+	 * @param threshold vertices whose delta coordinates are all lower or equal in magnitude are dropped
+	 * @return the sparse deltas
+	 */
+	public static SparseBlendShapes build(float[] BSVertices, int nBS, int nBlendVtx, float threshold)
+	{
+		return build(BSVertices, null, nBS, nBlendVtx, threshold);
+	}
+
+	/**
+	 * Builds the sparse position and normal deltas from the dense, shape major, deltas loaded from a .bob file
+	 *
+	 * @param BSVertices dense position deltas (3*nBlendVtx floats per blendshape)
+	 * @param BSNormals dense normal deltas (3*nBlendVtx floats per blendshape), can be null
+	 * @param nBS number of blendshapes
+	 * @param nBlendVtx number of blending vertices
+	 * @param threshold vertices whose position and normal delta coordinates are all lower or equal in magnitude are dropped
+	 * @return the sparse deltas
+	 */
+	public static SparseBlendShapes build(float[] BSVertices, float[] BSNormals, int nBS, int nBlendVtx, float threshold)
+	{
+		threshold = Math.abs(threshold);
+		int n = 3 * nBlendVtx;
+
+		//first pass: count the touched vertices
+		int[] rowStart = new int[nBS + 1];
+		for(int j=0; j<nBS; j++)
+		{
+			int count = 0;
+			for(int v=0; v<nBlendVtx; v++)
+				if(isTouched(BSVertices, BSNormals, j*n + 3*v, threshold)) count++;
+			rowStart[j+1] = rowStart[j] + count;
+		}
+
+		//second pass: pack them
+		int nnz = rowStart[nBS];
+		int[] vtxIdx = new int[nnz];
+		float[] deltas = new float[3 * nnz];
+		float[] normalDeltas = BSNormals != null ? new float[3 * nnz] : null;
+		int k = 0;
+		for(int j=0; j<nBS; j++)
+		{
+			for(int v=0; v<nBlendVtx; v++)
+			{
+				int src = j*n + 3*v;
+				if(isTouched(BSVertices, BSNormals, src, threshold))
+				{
+					vtxIdx[k] = v;
+					deltas[3*k]   = BSVertices[src];
+					deltas[3*k+1] = BSVertices[src+1];
+					deltas[3*k+2] = BSVertices[src+2];
+					if(normalDeltas != null)
+					{
+						normalDeltas[3*k]   = BSNormals[src];
+						normalDeltas[3*k+1] = BSNormals[src+1];
+						normalDeltas[3*k+2] = BSNormals[src+2];
+					}
+					k++;
+				}
+			}
+		}
+		return new SparseBlendShapes(nBS, nBlendVtx, threshold, rowStart, vtxIdx, deltas, normalDeltas);
+	}
+
+	private static boolean isTouched(float[] d, float[] dn, int i, float threshold)
+	{
+		return isTouched(d, i, threshold) || (dn != null && isTouched(dn, i, threshold));
+	}
+
+	private static boolean isTouched(float[] d, int i, float threshold)
+	{
+		return Math.abs(d[i]) > threshold || Math.abs(d[i+1]) > threshold || Math.abs(d[i+2]) > threshold;
+	}
+
+	/**
+	 * @return total number of (blendshape, vertex) entries
+	 */
+	public int size()
+	{
+		return rowStart[nBS];
+	}
+
+	/**
+	 * @return memory used by the sparse deltas in bytes
+	 */
+	public long sizeInBytes()
+	{
+		return 4L * (rowStart.length + vtxIdx.length + deltas.length + (normalDeltas != null ? normalDeltas.length : 0));
+	}
+
+	/**
+	 * First entry of blendshape j whose vertex index is greater or equal to vtx
+	 *
+	 * @param j blendshape index
+	 * @param vtx vertex index
+	 * @return entry index in [rowStart[j], rowStart[j+1]]
+	 */
+	int lowerBound(int j, int vtx)
+	{
+		int lo = rowStart[j];
+		int hi = rowStart[j+1];
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(vtxIdx[mid] < vtx) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Scatters the weighted deltas of the active blendshapes on the vertices [vtxStart, vtxEnd).
+	 * out must already hold the neutral positions of those vertices. Blendshapes are accumulated
+	 * in the order of idx, which keeps the arithmetic of the dense kernel when idx is increasing.
+	 *
+	 * @param idx indices of the active blendshapes
+	 * @param W weights of the active blendshapes
+	 * @param count number of active blendshapes
+	 * @param out blended positions
+	 * @param vtxStart first vertex
+	 * @param vtxEnd last vertex (exclusive)
+	 */
+	void scatter(int[] idx, float[] W, int count, float[] out, int vtxStart, int vtxEnd)
+	{
+		for(int a=0; a<count; a++)
+		{
+			int j = idx[a];
+			float w = W[a];
+			int end = rowStart[j+1];
+			for(int k=lowerBound(j, vtxStart); k<end; k++)
+			{
+				int v = vtxIdx[k];
+				if(v >= vtxEnd) break;
+				int o = 3*v;
+				int d = 3*k;
+				out[o]   += w * deltas[d];
+				out[o+1] += w * deltas[d+1];
+				out[o+2] += w * deltas[d+2];
+			}
+		}
+	}
+
+	/**
+	 * Same as scatter() but also accumulates the normal deltas in the same pass
+	 * and stamps every vertex it touches, so that only those get renormalized.
+	 * Requires the normal deltas.
+	 *
+	 * @param idx indices of the active blendshapes
+	 * @param W weights of the active blendshapes
+	 * @param count number of active blendshapes
+	 * @param out blended positions
+	 * @param outNormals blended (not normalized) normals
+	 * @param touched last stamp of every vertex
+	 * @param stamp stamp of the current frame
+	 * @param vtxStart first vertex
+	 * @param vtxEnd last vertex (exclusive)
+	 */
+	void scatter(int[] idx, float[] W, int count, float[] out, float[] outNormals, int[] touched, int stamp, int vtxStart, int vtxEnd)
+	{
+		for(int a=0; a<count; a++)
+		{
+			int j = idx[a];
+			float w = W[a];
+			int end = rowStart[j+1];
+			for(int k=lowerBound(j, vtxStart); k<end; k++)
+			{
+				int v = vtxIdx[k];
+				if(v >= vtxEnd) break;
+				int o = 3*v;
+				int d = 3*k;
+				out[o]   += w * deltas[d];
+				out[o+1] += w * deltas[d+1];
+				out[o+2] += w * deltas[d+2];
+				outNormals[o]   += w * normalDeltas[d];
+				outNormals[o+1] += w * normalDeltas[d+1];
+				outNormals[o+2] += w * normalDeltas[d+2];
+				touched[v] = stamp;
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package vml.com.vm.blend;
+
+import java.util.Arrays;
+
+/**
+ * Per vertex tangent generation from positions, UVs and triangles.
+ * <p>
+ * Every triangle contributes its (not normalized) tangent, the direction of increasing u, to its
+ * three vertices. The sums are normalized once at the end, orthogonalized against the vertex normal
+ * when normals are given. Triangles with degenerate UVs contribute nothing, vertices without any
+ * contribution get an arbitrary unit tangent perpendicular to their normal.
+ * <p>
+ * Nothing is allocated per triangle. Large meshes can be split over several threads,
+ * each one accumulating a range of triangles into its own buffer. The buffers are summed in
+ * thread order, so the result does not depend on the scheduling.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ */
+public class TangentGenerator
+{
+	/**minimum number of triangles per thread. Below, starting a thread costs more than it saves (hair_center: 36k triangles, under 1 ms)*/
+	public static final int MIN_TRIANGLES_PER_THREAD = 65536;
+	/**UV determinants lower or equal in magnitude are degenerate*/
+	private static final float UV_EPSILON = 1e-12f;
+
+	private TangentGenerator()
+	{
+	}
+
+	/**
+	 * Default number of threads for a mesh
+	 * @param nFcs number of triangles
+	 * @return number of threads, 1 for the small meshes
+	 */
+	public static int defaultThreadCount(int nFcs)
+	{
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), nFcs / MIN_TRIANGLES_PER_THREAD);
+		return Math.max(1, Math.min(4, threads));
+	}
+
+	/**
+	 * Computes the tangents of a mesh
+	 *
+	 * @param positions x,y,z per vertex
+	 * @param normals x,y,z per vertex, null to skip the orthogonalization
+	 * @param uvs u,v per vertex
+	 * @param indices 3 vertex indices per triangle, read as unsigned 16 bit values
+	 * @param nFcs number of triangles
+	 * @param tangents x,y,z per vertex, output
+	 * @param threads number of threads to use
+	 */
+	public static void generate(final float[] positions, float[] normals, final float[] uvs,
+								final short[] indices, int nFcs, float[] tangents, int threads)
+	{
+		threads = Math.max(1, Math.min(threads, nFcs));
+		if(threads == 1)
+		{
+			Arrays.fill(tangents, 0.0f);
+			accumulate(positions, uvs, indices, 0, nFcs, tangents);
+		}
+		else
+		{
+			final float[][] partial = new float[threads][];
+			partial[0] = tangents;
+			Thread[] workers = new Thread[threads - 1];
+			for(int t=1; t<threads; t++)
+			{
+				final int k = t;
+				final int first = (int)((long)nFcs * t / threads);
+				final int last = (int)((long)nFcs * (t + 1) / threads);
+				partial[k] = new float[tangents.length];
+				workers[t-1] = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						accumulate(positions, uvs, indices, first, last, partial[k]);
+					}
+				}, "TangentGenerator-" + t);
+				workers[t-1].start();
+			}
+			Arrays.fill(tangents, 0.0f);
+			accumulate(positions, uvs, indices, 0, nFcs / threads, tangents);
+
+			boolean interrupted = false;
+			for(int t=0; t<workers.length; t++)
+			{
+				try
+				{
+					workers[t].join();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+					t--;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			for(int t=1; t<threads; t++)
+			{
+				float[] p = partial[t];
+				for(int i=0; i<tangents.length; i++) tangents[i] += p[i];
+			}
+		}
+		finish(normals, tangents);
+	}
+
+	/**
+	 * Adds the tangents of the triangles [first, last) to their vertices
+	 */
+	static void accumulate(float[] positions, float[] uvs, short[] indices, int first, int last, float[] sum)
+	{
+		for(int f=first; f<last; f++)
+		{
+			int i0 = indices[3*f]   & 0xFFFF;
+			int i1 = indices[3*f+1] & 0xFFFF;
+			int i2 = indices[3*f+2] & 0xFFFF;
+
+			float du1 = uvs[2*i1]   - uvs[2*i0];
+			float dv1 = uvs[2*i1+1] - uvs[2*i0+1];
+			float du2 = uvs[2*i2]   - uvs[2*i0];
+			float dv2 = uvs[2*i2+1] - uvs[2*i0+1];
+			float det = du1 * dv2 - du2 * dv1;
+			if(det <= UV_EPSILON && det >= -UV_EPSILON)
+				continue;
+			float r = 1.0f / det;
+
+			float e1x = positions[3*i1]   - positions[3*i0];
+			float e1y = positions[3*i1+1] - positions[3*i0+1];
+			float e1z = positions[3*i1+2] - positions[3*i0+2];
+			float e2x = positions[3*i2]   - positions[3*i0];
+			float e2y = positions[3*i2+1] - positions[3*i0+1];
+			float e2z = positions[3*i2+2] - positions[3*i0+2];
+
+			float tx = r * (dv2 * e1x - dv1 * e2x);
+			float ty = r * (dv2 * e1y - dv1 * e2y);
+			float tz = r * (dv2 * e1z - dv1 * e2z);
+
+			sum[3*i0] += tx; sum[3*i0+1] += ty; sum[3*i0+2] += tz;
+			sum[3*i1] += tx; sum[3*i1+1] += ty; sum[3*i1+2] += tz;
+			sum[3*i2] += tx; sum[3*i2+1] += ty; sum[3*i2+2] += tz;
+		}
+	}
+
+	/**
+	 * Orthogonalizes the summed tangents against the normals and normalizes them
+	 */
+	private static void finish(float[] normals, float[] tangents)
+	{
+		for(int o=0; o<tangents.length; o+=3)
+		{
+			float tx = tangents[o], ty = tangents[o+1], tz = tangents[o+2];
+			float nx = 0.0f, ny = 0.0f, nz = 0.0f;
+			if(normals != null)
+			{
+				nx = normals[o]; ny = normals[o+1]; nz = normals[o+2];
+				float d = nx*tx + ny*ty + nz*tz;
+				tx -= d * nx; ty -= d * ny; tz -= d * nz;
+			}
+			float len2 = tx*tx + ty*ty + tz*tz;
+			if(len2 > 1e-24f)
+			{
+				float inv = (float)(1.0 / Math.sqrt(len2));
+				tangents[o] = tx * inv; tangents[o+1] = ty * inv; tangents[o+2] = tz * inv;
+			}
+			else
+				perpendicular(nx, ny, nz, tangents, o);
+		}
+	}
+
+	/**
+	 * Writes a unit vector perpendicular to n, (1,0,0) when n is null
+	 */
+	private static void perpendicular(float nx, float ny, float nz, float[] out, int o)
+	{
+		//cross n with the axis it is the least aligned with
+		float ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+		float tx, ty, tz;
+		if(ax <= ay && ax <= az) { tx = 0.0f; ty = nz; tz = -ny; }
+		else if(ay <= az)        { tx = -nz; ty = 0.0f; tz = nx; }
+		else                     { tx = ny; ty = -nx; tz = 0.0f; }
+		float len2 = tx*tx + ty*ty + tz*tz;
+		if(len2 > 1e-24f)
+		{
+			float inv = (float)(1.0 / Math.sqrt(len2));
+			out[o] = tx * inv; out[o+1] = ty * inv; out[o+2] = tz * inv;
+		}
+		else
+		{
+			out[o] = 1.0f; out[o+1] = 0.0f; out[o+2] = 0.0f;
+		}
+	}
+}
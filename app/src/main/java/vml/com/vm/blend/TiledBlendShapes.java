@@ -0,0 +1,175 @@
+package vml.com.vm.blend;
+
+/**
+ * Cache-blocked (tiled) storage of the Blendshape position deltas.
+ * <p>
+ * The .bob files store the deltas shape major: B[j*n+i]. Blending a vertex then reads one float
+ * every n floats, which walks several megabytes per frame with no locality at all.
+ * Here the blending vertices are grouped in tiles of TILE_VTX vertices, and for every tile the
+ * deltas of all the blendshapes are stored one after the other:
+ * <pre>
+ * tile 0: shape 0 (3*TILE_VTX floats) | shape 1 | ... | shape nBS-1
+ * tile 1: shape 0 | shape 1 | ...
+ * </pre>
+ * A tile holds 3*TILE_VTX floats of output, small enough to stay in L1 while every blendshape
+ * streams through it, and the deltas are read strictly sequentially.
+ * <p>
+ * For every coordinate the accumulation order is the same as blend.rs, results are bit-for-bit identical.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMBOModel#buildTiledBlendShapes(boolean)
+ */
+public class TiledBlendShapes
+{
+	/**number of vertices per tile: 768 bytes of output, 75 blendshapes fit in 56KB of deltas*/
+	public static final int TILE_VTX = 64;
+
+	/**number of blendshapes*/
+	public final int nBS;
+	/**number of blending vertices*/
+	public final int nBlendVtx;
+	/**number of vertices per tile*/
+	public final int tileVtx;
+	/**tiled deltas, the last tile may be shorter*/
+	public final float[] data;
+
+	/**
+	 * Creates an empty tiled storage, filled by VMBOLoader or build()
+	 *
+	 * @param nBS number of blendshapes
+	 * @param nBlendVtx number of blending vertices
+	 * @param tileVtx number of vertices per tile
+	 */
+	TiledBlendShapes(int nBS, int nBlendVtx, int tileVtx)
+	{
+		this.nBS = nBS;
+		this.nBlendVtx = nBlendVtx;
+		this.tileVtx = Math.max(1, tileVtx);
+		this.data = new float[3 * nBS * nBlendVtx];
+	}
+
+	/**
+	 * Builds the tiled deltas from the dense, shape major, deltas loaded from a .bob file
+	 *
+	 * @param BSVertices dense deltas (3*nBlendVtx floats per blendshape)
+	 * @param nBS number of blendshapes
+	 * @param nBlendVtx number of blending vertices
+	 * @param tileVtx number of vertices per tile
+	 * @return the tiled deltas
+	 */
+	public static TiledBlendShapes build(float[] BSVertices, int nBS, int nBlendVtx, int tileVtx)
+	{
+		TiledBlendShapes tiled = new TiledBlendShapes(nBS, nBlendVtx, tileVtx);
+		int n = 3 * nBlendVtx;
+		for(int j=0; j<nBS; j++)
+			tiled.putShapeRow(j, BSVertices, j * n, n);
+		return tiled;
+	}
+
+	/**
+	 * Copies a run of coordinates of blendshape j, given in the shape major order, to their tiles
+	 *
+	 * @param j blendshape index
+	 * @param src shape major deltas
+	 * @param srcPos position of the first coordinate of the blendshape in src
+	 * @param count number of coordinates (3*nBlendVtx for a full blendshape)
+	 */
+	void putShapeRow(int j, float[] src, int srcPos, int count)
+	{
+		int tileFloats = 3 * tileVtx;
+		for(int i=0; i<count; i+=tileFloats)
+		{
+			int len = Math.min(tileFloats, count - i);
+			System.arraycopy(src, srcPos + i, data, offset(i / tileFloats, j), len);
+		}
+	}
+
+	/**
+	 * @param tile tile index
+	 * @param j blendshape index
+	 * @return position of the deltas of blendshape j in the tile
+	 */
+	private int offset(int tile, int j)
+	{
+		int tileStart = tile * tileVtx;
+		return 3 * (nBS * tileStart + j * tileLength(tile));
+	}
+
+	/**
+	 * @param tile tile index
+	 * @return number of vertices of the tile
+	 */
+	private int tileLength(int tile)
+	{
+		return Math.min(tileVtx, nBlendVtx - tile * tileVtx);
+	}
+
+	/**
+	 * @return memory used by the tiled deltas in bytes
+	 */
+	public long sizeInBytes()
+	{
+		return 4L * data.length;
+	}
+
+	/**
+	 * Blends every blendshape on the vertices [vtxStart, vtxEnd), same arithmetic as blend.rs
+	 *
+	 * @param N neutral positions
+	 * @param W blendshape weights
+	 * @param out blended positions
+	 * @param vtxStart first vertex
+	 * @param vtxEnd last vertex (exclusive)
+	 */
+	void blend(float[] N, float[] W, float[] out, int vtxStart, int vtxEnd)
+	{
+		for(int tile=vtxStart/tileVtx; tile*tileVtx<vtxEnd; tile++)
+		{
+			int t0 = tile * tileVtx;
+			int len = 3 * tileLength(tile);
+			int from = 3 * Math.max(vtxStart, t0);
+			int to = 3 * Math.min(vtxEnd, t0 + tileLength(tile));
+			System.arraycopy(N, from, out, from, to - from);
+
+			int base = 3 * nBS * t0 - 3 * t0;
+			for(int j=0; j<nBS; j++)
+			{
+				float w = W[j];
+				for(int i=from; i<to; i++)
+					out[i] += w * data[base + i];
+				base += len;
+			}
+		}
+	}
+
+	/**
+	 * Adds the weighted deltas of the given blendshapes on the vertices [vtxStart, vtxEnd)
+	 *
+	 * @param idx indices of the active blendshapes
+	 * @param W weights of the active blendshapes
+	 * @param count number of active blendshapes
+	 * @param out blended positions
+	 * @param vtxStart first vertex
+	 * @param vtxEnd last vertex (exclusive)
+	 */
+	void accumulate(int[] idx, float[] W, int count, float[] out, int vtxStart, int vtxEnd)
+	{
+		for(int tile=vtxStart/tileVtx; tile*tileVtx<vtxEnd; tile++)
+		{
+			int t0 = tile * tileVtx;
+			int len = 3 * tileLength(tile);
+			int from = 3 * Math.max(vtxStart, t0);
+			int to = 3 * Math.min(vtxEnd, t0 + tileLength(tile));
+
+			int base = 3 * nBS * t0 - 3 * t0;
+			for(int a=0; a<count; a++)
+			{
+				float w = W[a];
+				int b = base + idx[a] * len;
+				for(int i=from; i<to; i++)
+					out[i] += w * data[b + i];
+			}
+		}
+	}
+}
@@ -2,17 +2,24 @@ package vml.com.vm.blend;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -101,8 +108,15 @@ public class VMBOLoader
 	private static String TAG = "BOLoader";
 	private static final int BytesPerFloat = 4;
 	private static final int BytesPerShort = 2;
+	/**longest blendshape name accepted, in UTF-8 bytes*/
+	private static final int MAX_NAME_BYTES = 0xFFFF;
 	private static Pattern whitespacePattern = Pattern.compile("\\s+");
 
+	/**blendshape deltas kept as stored in the file, shape major (BSVertices)*/
+	public static final int LAYOUT_SHAPE_MAJOR = 0;
+	/**blendshape deltas stored in tiles of vertices (tiledBS), BSVertices is not allocated*/
+	public static final int LAYOUT_TILED = 1;
+
 	/**
 	 * load material file
 	 * @param ctx application context
@@ -228,49 +242,552 @@ public class VMBOLoader
 		return vmMat;
 	}
 
-	private static float[] subtract(float[] arr1, float[] arr2)
+	/**
+	 * Computes the per vertex tangents from the positions, UVs and faces of the model
+	 * and writes them into its tangent buffer
+	 * @param model model with its vertex, normal, texture coordinate and index buffers loaded
+	 * @see TangentGenerator
+	 */
+	private static void computeTangents(VMBOModel model)
+	{
+		float[] positions = new float[3*model.nVtx];
+		float[] normals = new float[3*model.nVtx];
+		float[] uvs = new float[2*model.nVtx];
+		short[] indices = new short[3*model.nFcs];
+		((FloatBuffer) model.mVerticesBuffer.duplicate().position(0)).get(positions);
+		((FloatBuffer) model.mNormalsBuffer.duplicate().position(0)).get(normals);
+		((FloatBuffer) model.mTexCoordsBuffer.duplicate().position(0)).get(uvs);
+		((ShortBuffer) model.mIndexBuffer.duplicate().position(0)).get(indices);
+
+		float[] tangents = new float[3*model.nVtx];
+		TangentGenerator.generate(positions, normals, uvs, indices, model.nFcs, tangents,
+				TangentGenerator.defaultThreadCount(model.nFcs));
+		model.mTangentsBuffer.put(tangents);
+	}
+
+	/**
+	 * Loads a BO model from a (.bob) file
+	 * @param ctx application context
+	 * @param bobFilePath path to the model file in the SD card
+	 * @return returns the loaded model
+	 * @throws IOException Loading problem
+	 */
+	public static VMBOModel loadModel(Context ctx, String bobFilePath) throws IOException
+	{
+		return loadModel(ctx, bobFilePath, LAYOUT_SHAPE_MAJOR);
+	}
+
+	/**
+	 * Loads a BO model from a (.bob) file and keeps its blendshape deltas in sparse form only.
+	 * The returned model must be blended by the Java BlendEngine.
+	 *
+	 * @param ctx application context
+	 * @param bobFilePath path to the model file in the assets
+	 * @param sparseThreshold zero-threshold of the sparse deltas
+	 * @return returns the loaded model
+	 * @throws IOException Loading problem
+	 * @see SparseBlendShapes
+	 */
+	public static VMBOModel loadModel(Context ctx, String bobFilePath, float sparseThreshold) throws IOException
 	{
-		int len = arr1.length;
-		float[] val = new float[len];
-		for(int i = 0; i < len; i++) {
-			val[i] = arr1[i] - arr2[i];
+		VMBOModel model = loadModel(ctx, bobFilePath);
+		if(model != null)
+		{
+			model.buildSparseBlendShapes(sparseThreshold, true);
+			if(model.sparseBS != null)
+				Log.d(TAG, bobFilePath + " sparse deltas: " + model.sparseBS.size() + " / " + (model.nBS * model.nBlendVtx) + " vertices");
 		}
-		return val;
+		return model;
 	}
 
-	private static float[] normalize(float[] arr){
-		int len = arr.length;
-		float[] val = new float[len];
-		float sum = 0.0f;
-		for(int i = 0; i < len; i++) {
-			sum += (arr[i] * arr[i]);
+	/**
+	 * Loads a BO model from a (.bob) file with the given blendshape delta layout
+	 * @param ctx application context
+	 * @param bobFilePath path to the model file in the assets
+	 * @param layout LAYOUT_SHAPE_MAJOR or LAYOUT_TILED
+	 * @return returns the loaded model
+	 * @throws IOException Loading problem
+	 * @see TiledBlendShapes
+	 */
+	public static VMBOModel loadModel(Context ctx, String bobFilePath, int layout) throws IOException
+	{
+		if(Bob2Format.isBob2(bobFilePath))
+		{
+			VMBOModel model = loadBob2Asset(ctx, bobFilePath);
+			if(model != null && layout == LAYOUT_TILED)
+				model.buildTiledBlendShapes(true);
+			return model;
 		}
-		sum = (float)Math.sqrt(sum);
-		for(int i = 0; i < len; i++) {
-			val[i] = arr[i] / sum;
+
+		InputStream is;
+		try
+		{
+			is = ctx.getResources().getAssets().open(bobFilePath);
 		}
-		return val;
+		catch (FileNotFoundException ex1)
+		{
+			Log.e(TAG,bobFilePath + " BOB file not found");
+			ex1.printStackTrace();
+			return null;
+		}
+		return loadModel(is, bobFilePath, layout);
 	}
 
 	/**
-	 * Loads a BO model from a (.bob) file
+	 * Loads a BO model from an already opened (.bob) stream.
+	 * The stream is closed once the model has been read.
+	 * @param is stream positioned at the beginning of the .bob data
+	 * @param bobFilePath name of the model, only used for logging
+	 * @return returns the loaded model
+	 * @throws IOException Loading problem
+	 */
+	public static VMBOModel loadModel(InputStream is, String bobFilePath) throws IOException
+	{
+		return loadModel(is, bobFilePath, LAYOUT_SHAPE_MAJOR);
+	}
+
+	/**
+	 * Loads a BO model from an already opened (.bob) stream.
+	 * The stream is closed once the model has been read.
+	 * <p>
+	 * Every section is read in one bulk transfer into a big-endian buffer and converted in bulk
+	 * into the native order direct buffers used for rendering.
+	 * @param is stream positioned at the beginning of the .bob data
+	 * @param bobFilePath name of the model, only used for logging
+	 * @param layout LAYOUT_SHAPE_MAJOR or LAYOUT_TILED
+	 * @return returns the loaded model, null if the data can not be read
+	 * @throws IOException Loading problem
+	 */
+	public static VMBOModel loadModel(InputStream is, String bobFilePath, int layout) throws IOException
+	{
+		try
+		{
+			return readModel(is, layout);
+		}
+		catch (IOException ex)
+		{
+			Log.e(TAG,"cannot read the BOB file " + bobFilePath);
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a BO model from a (.bob) stream, see loadModel(InputStream, String, int).
+	 * Does not log, so it also runs on a plain JVM (see Bob2Converter).
+	 * The stream is closed once the model has been read.
+	 * @param is stream positioned at the beginning of the .bob data
+	 * @param layout LAYOUT_SHAPE_MAJOR or LAYOUT_TILED
+	 * @return returns the loaded model
+	 * @throws IOException truncated or corrupted data
+	 */
+	static VMBOModel readModel(InputStream is, int layout) throws IOException
+	{
+		VMBOModel model = new VMBOModel();
+		DataInputStream reader = null;
+		try
+		{
+			reader = new DataInputStream(new BufferedInputStream(is));
+			readHeader(reader, model);
+
+			int nBlendCoords = 3*model.nBlendVtx;
+			int nCoords = 3*model.nVtx;
+			int nBSCoords = model.nBS*nBlendCoords;
+
+			//one scratch buffer, large enough for the biggest section
+			int maxFloats = Math.max(Math.max(nCoords, 3*model.nFcs), nBSCoords);
+			SectionReader section = new SectionReader(reader, maxFloats*BytesPerFloat);
+
+			//Vertices
+			model.mVerticesBuffer = newFloatBuffer(nCoords);
+			model.mVerticesBuffer.put(section.floats(nCoords));
+			model.NVertices = new float[nBlendCoords];
+			model.mVerticesBuffer.position(0);
+			model.mVerticesBuffer.get(model.NVertices);
+
+			//Normals
+			model.mNormalsBuffer = newFloatBuffer(nCoords);
+			model.mNormalsBuffer.put(section.floats(nCoords));
+			model.NNormals = new float[nBlendCoords];
+			model.mNormalsBuffer.position(0);
+			model.mNormalsBuffer.get(model.NNormals);
+
+			//Tex Coords
+			model.mTexCoordsBuffer = newFloatBuffer(2*model.nVtx);
+			model.mTexCoordsBuffer.put(section.floats(2*model.nVtx));
+
+			//Indices, stored as int in the file
+			ByteBuffer ibb = ByteBuffer.allocateDirect(model.nFcs*3*BytesPerShort);
+			ibb.order(ByteOrder.nativeOrder());
+			model.mIndexBuffer = ibb.asShortBuffer();
+			IntBuffer indices = section.ints(3*model.nFcs);
+			short[] shortIndices = new short[3*model.nFcs];
+			for (int i = 0; i < shortIndices.length; i++)
+			{
+				int index = indices.get(i);
+				if(index < 0 || index >= model.nVtx)
+					throw new IOException("vertex index " + index + " out of range");
+				shortIndices[i] = (short) index;
+			}
+			model.mIndexBuffer.put(shortIndices);
+
+			//Tangents
+			model.mTangentsBuffer = newFloatBuffer(nCoords);
+			model.mVerticesBuffer.position(0);
+			model.mTexCoordsBuffer.position(0);
+			model.mIndexBuffer.position(0);
+			computeTangents(model);
+
+			//BlendShapes
+			model.BSWeights = new float[model.nBS];
+			FloatBuffer deltas = section.floats(nBSCoords);
+			if(layout == LAYOUT_TILED)
+			{
+				model.tiledBS = new TiledBlendShapes(model.nBS, model.nBlendVtx, TiledBlendShapes.TILE_VTX);
+				float[] row = new float[nBlendCoords];
+				for (int j = 0; j < model.nBS; j++)
+				{
+					deltas.get(row);
+					model.tiledBS.putShapeRow(j, row, 0, row.length);
+				}
+			}
+			else
+			{
+				model.BSVertices = new float[nBSCoords];
+				deltas.get(model.BSVertices);
+			}
+			model.BSNormals = new float[nBSCoords];
+			section.floats(nBSCoords).get(model.BSNormals);
+
+			model.mVerticesBuffer.position(0);
+			model.mNormalsBuffer.position(0);
+			model.mTangentsBuffer.position(0);
+			model.mTexCoordsBuffer.position(0);
+			model.mIndexBuffer.position(0);
+		}
+		finally
+		{
+			if(reader != null) reader.close();
+			else is.close();
+		}
+		return model;
+	}
+
+	/**
+	 * Maps a .bob2 asset and wraps it. Assets must be stored uncompressed to be mapped,
+	 * compressed ones are read once into a direct buffer.
 	 * @param ctx application context
-	 * @param bobFilePath path to the model file in the SD card
+	 * @param bob2FilePath path to the model file in the assets
 	 * @return returns the loaded model
 	 * @throws IOException Loading problem
 	 */
-	public static VMBOModel loadModel(Context ctx, String bobFilePath) throws IOException
+	private static VMBOModel loadBob2Asset(Context ctx, String bob2FilePath) throws IOException
+	{
+		AssetManager assetManager = ctx.getResources().getAssets();
+		ByteBuffer data;
+		try
+		{
+			AssetFileDescriptor fd = assetManager.openFd(bob2FilePath);
+			FileInputStream fis = fd.createInputStream();
+			try
+			{
+				//read-only mapping, the buffers written by the blend are copied by loadModel()
+				data = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+			}
+			finally
+			{
+				fis.close();
+			}
+		}
+		catch (FileNotFoundException ex1)
+		{
+			//compressed asset, openFd() can not give a file descriptor
+			InputStream is;
+			try
+			{
+				is = assetManager.open(bob2FilePath);
+			}
+			catch (FileNotFoundException ex2)
+			{
+				Log.e(TAG,bob2FilePath + " BOB2 file not found");
+				ex2.printStackTrace();
+				return null;
+			}
+			data = readDirect(is);
+		}
+		return loadModel(data, bob2FilePath);
+	}
+
+	/**
+	 * Reads a whole stream into a direct buffer
+	 * @param is stream, closed once read
+	 * @return native order direct buffer holding the stream content
+	 * @throws IOException Loading problem
+	 */
+	private static ByteBuffer readDirect(InputStream is) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(is.available(), 4096));
+			byte[] chunk = new byte[64 * 1024];
+			int n;
+			while((n = is.read(chunk)) > 0) bytes.write(chunk, 0, n);
+			ByteBuffer data = ByteBuffer.allocateDirect(bytes.size());
+			data.put(bytes.toByteArray());
+			data.position(0);
+			return data;
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Loads a BO model from .bob2 data (see Bob2Format).
+	 * <p>
+	 * Nothing is parsed per element: on little-endian devices the rendering buffers are views of the
+	 * given buffer when it is direct (a mapped file for instance). Positions, normals and tangents
+	 * of blending models are copied in bulk when the buffer is read-only, since the blend writes them.
+	 * The arrays used for the blending are filled with bulk copies.
+	 * @param data .bob2 file content, its position and byte order are not used
+	 * @param name name of the model, only used for logging
+	 * @return returns the loaded model, null if the data is not a valid .bob2 file
+	 */
+	public static VMBOModel loadModel(ByteBuffer data, String name)
+	{
+		try
+		{
+			ByteBuffer file = data.duplicate();
+			file.clear();
+			file.order(ByteOrder.LITTLE_ENDIAN);
+			Bob2Format.Section[] sections = Bob2Format.readSections(file);
+
+			VMBOModel model = new VMBOModel();
+			model.nBlendVtx = file.getInt(8);
+			model.nVtx      = file.getInt(12);
+			model.nFcs      = file.getInt(16);
+			model.nBS       = (short) file.getInt(20);
+			int flags       = file.getInt(24);
+			model.uNorm     = (flags & Bob2Format.FLAG_NORMALS) != 0;
+			model.uUV       = (flags & Bob2Format.FLAG_UVS) != 0;
+			int nBlendCoords = 3*model.nBlendVtx;
+
+			//names
+			model.BSNames = new String[model.nBS];
+			ByteBuffer names = section(sections, Bob2Format.SECTION_NAMES).slice(file);
+			for(int i=0; i<model.nBS; i++)
+			{
+				byte[] curStr = new byte[names.getInt()];
+				names.get(curStr);
+				model.BSNames[i] = new String(curStr, "UTF-8");
+			}
+
+			boolean inPlace = file.isDirect() && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+			boolean writable = inPlace && !file.isReadOnly();
+			boolean blending = model.nBS > 0;
+
+			model.mVerticesBuffer  = floatSection(file, sections, Bob2Format.SECTION_POSITIONS, inPlace && (writable || !blending));
+			model.mNormalsBuffer   = floatSection(file, sections, Bob2Format.SECTION_NORMALS, inPlace && (writable || !blending));
+			model.mTangentsBuffer  = floatSection(file, sections, Bob2Format.SECTION_TANGENTS, inPlace && (writable || !blending));
+			model.mTexCoordsBuffer = floatSection(file, sections, Bob2Format.SECTION_UVS, inPlace);
+
+			ShortBuffer indices = section(sections, Bob2Format.SECTION_INDICES).slice(file).asShortBuffer();
+			if(inPlace)
+				model.mIndexBuffer = indices;
+			else
+			{
+				ByteBuffer ibb = ByteBuffer.allocateDirect(model.nFcs*3*BytesPerShort);
+				ibb.order(ByteOrder.nativeOrder());
+				model.mIndexBuffer = ibb.asShortBuffer();
+				model.mIndexBuffer.put(indices);
+				model.mIndexBuffer.position(0);
+			}
+
+			model.NVertices = new float[nBlendCoords];
+			model.mVerticesBuffer.get(model.NVertices);
+			model.mVerticesBuffer.position(0);
+			model.NNormals = new float[nBlendCoords];
+			model.mNormalsBuffer.get(model.NNormals);
+			model.mNormalsBuffer.position(0);
+
+			//blendshapes
+			model.BSWeights = new float[model.nBS];
+			Bob2Format.Section deltas = sections[Bob2Format.SECTION_BS_DELTAS];
+			if(deltas != null)
+			{
+				model.BSVertices = new float[deltas.count];
+				deltas.floats(file).get(model.BSVertices);
+				model.BSNormals = new float[deltas.count];
+				section(sections, Bob2Format.SECTION_BS_NORMALS).floats(file).get(model.BSNormals);
+			}
+			Bob2Format.Section rows = sections[Bob2Format.SECTION_SPARSE_ROWS];
+			if(rows != null)
+			{
+				int[] rowStart = new int[rows.count];
+				rows.ints(file).get(rowStart);
+				Bob2Format.Section vertices = section(sections, Bob2Format.SECTION_SPARSE_VERTICES);
+				int[] vtxIdx = new int[vertices.count];
+				vertices.ints(file).get(vtxIdx);
+				float[] sparseDeltas = new float[3*vtxIdx.length];
+				section(sections, Bob2Format.SECTION_SPARSE_DELTAS).floats(file).get(sparseDeltas);
+				float[] sparseNormals = null;
+				if(sections[Bob2Format.SECTION_SPARSE_NORMALS] != null)
+				{
+					sparseNormals = new float[3*vtxIdx.length];
+					sections[Bob2Format.SECTION_SPARSE_NORMALS].floats(file).get(sparseNormals);
+				}
+				model.sparseBS = new SparseBlendShapes(model.nBS, model.nBlendVtx, file.getFloat(28),
+						rowStart, vtxIdx, sparseDeltas, sparseNormals);
+			}
+			if(model.BSVertices == null && model.sparseBS == null)
+				throw new IOException("no blendshape deltas");
+			return model;
+		}
+		catch (IOException ex)
+		{
+			Log.e(TAG,"cannot read the BOB2 file " + name);
+			ex.printStackTrace();
+			return null;
+		}
+		catch (RuntimeException ex)
+		{
+			//BufferUnderflowException, IndexOutOfBoundsException... on truncated sections
+			Log.e(TAG,"corrupted BOB2 file " + name);
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	private static Bob2Format.Section section(Bob2Format.Section[] sections, int id) throws IOException
+	{
+		if(sections[id] == null)
+			throw new IOException("missing .bob2 section " + id);
+		return sections[id];
+	}
+
+	/**
+	 * @param file little-endian view of the .bob2 file
+	 * @param sections section table
+	 * @param id float section id
+	 * @param inPlace true to return a view of the file, false for a native order direct copy
+	 * @return the section as a float buffer at position 0
+	 * @throws IOException missing section
+	 */
+	private static FloatBuffer floatSection(ByteBuffer file, Bob2Format.Section[] sections, int id, boolean inPlace) throws IOException
+	{
+		FloatBuffer values = section(sections, id).floats(file);
+		if(inPlace) return values;
+		FloatBuffer copy = newFloatBuffer(values.remaining());
+		copy.put(values);
+		copy.position(0);
+		return copy;
+	}
+
+	/**
+	 * Reads the .bob header and the blendshape names
+	 * @param reader stream positioned at the beginning of the .bob data
+	 * @param model model to fill
+	 * @throws IOException Loading problem
+	 */
+	private static void readHeader(DataInputStream reader, VMBOModel model) throws IOException
+	{
+		model.nBlendVtx =	reader.readInt();
+		model.nVtx =		reader.readInt();
+		model.nFcs =		reader.readInt();
+		model.uNorm=		reader.readBoolean();
+		model.uUV  =		reader.readBoolean();
+		model.nBS  =(short)	reader.readInt();
+		//the sections are read into int indexed byte arrays
+		if(model.nBlendVtx < 0 || model.nVtx < model.nBlendVtx || model.nFcs < 0 || model.nBS < 0
+				|| 3L*model.nVtx*BytesPerFloat > Integer.MAX_VALUE || 3L*model.nFcs*BytesPerFloat > Integer.MAX_VALUE
+				|| 3L*model.nBS*model.nBlendVtx*BytesPerFloat > Integer.MAX_VALUE)
+			throw new IOException("corrupted header: " + model.nBlendVtx + " blending vertices, " + model.nVtx
+					+ " vertices, " + model.nFcs + " faces, " + model.nBS + " blendshapes");
+		model.BSNames= new String[model.nBS];
+		for(int i=0; i<model.nBS; ++i)
+		{
+			int length = reader.readInt();
+			if(length < 0 || length > MAX_NAME_BYTES)
+				throw new IOException("corrupted name of blendshape " + i);
+			byte[] curStr= new byte[length];
+			reader.readFully(curStr);
+			model.BSNames[i]=new String(curStr,"UTF-8");
+		}
+	}
+
+	/**
+	 * @param size number of floats
+	 * @return a native order direct float buffer
+	 */
+	static FloatBuffer newFloatBuffer(int size)
+	{
+		ByteBuffer bb = ByteBuffer.allocateDirect(size*BytesPerFloat);
+		bb.order(ByteOrder.nativeOrder());
+		return bb.asFloatBuffer();
+	}
+
+	/**
+	 * Reads consecutive .bob sections into a reused big-endian scratch buffer
+	 */
+	private static class SectionReader
+	{
+		private final DataInputStream reader;
+		private final byte[] scratch;
+		private final ByteBuffer buffer;
+
+		SectionReader(DataInputStream reader, int capacity)
+		{
+			this.reader = reader;
+			this.scratch = new byte[capacity];
+			this.buffer = ByteBuffer.wrap(scratch); //big-endian, as written by the exporter
+		}
+
+		/**
+		 * Reads the next section of 4 byte values
+		 * @param count number of values
+		 * @return the section as a byte buffer, valid until the next read
+		 */
+		private ByteBuffer read(int count) throws IOException
+		{
+			int bytes = 4*count;
+			reader.readFully(scratch, 0, bytes);
+			buffer.clear();
+			buffer.limit(bytes);
+			return buffer;
+		}
+
+		FloatBuffer floats(int count) throws IOException
+		{
+			return read(count).asFloatBuffer();
+		}
+
+		IntBuffer ints(int count) throws IOException
+		{
+			return read(count).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Reference .bob reader, one DataInputStream call per value.
+	 * Kept to check and benchmark the bulk loader.
+	 * @param is stream positioned at the beginning of the .bob data
+	 * @param bobFilePath name of the model, only used for logging
+	 * @param layout LAYOUT_SHAPE_MAJOR or LAYOUT_TILED
+	 * @return returns the loaded model
+	 * @throws IOException Loading problem
+	 */
+	static VMBOModel loadModelStreamed(InputStream is, String bobFilePath, int layout) throws IOException
 	{
 		//XXX TODO XXX : Deal with the case when there is no Normals or no UVS
 
-        AssetManager assetManager = ctx.getResources().getAssets();
 		VMBOModel model = new VMBOModel();
 		DataInputStream reader;
 
 		//opening the file
 		try
 			{
-				reader = new DataInputStream(assetManager.open(bobFilePath));
+				reader = new DataInputStream(new BufferedInputStream(is));
 
 				//Parsing header
 				model.nBlendVtx =	reader.readInt();
@@ -288,15 +805,19 @@ public class VMBOLoader
 					int curStrSize=reader.readInt();
 					byte[] curStr= new byte[curStrSize];
 
-					reader.read(curStr);
-					model.BSNames[i]=new String(curStr,"UTF_8");
+					reader.readFully(curStr);
+					model.BSNames[i]=new String(curStr,"UTF-8");
 
 					//Log.i(TAG,"blendshape "+i+" : "+curStrSize+"  "+model.BSNames[i]);
 				}
 
 				//Parsing Body
 				model.NVertices = new float[3*model.nBlendVtx];
-				model.BSVertices= new float[3*model.nBS*model.nBlendVtx];
+				model.NNormals  = new float[3*model.nBlendVtx];
+				if(layout == LAYOUT_TILED)
+					model.tiledBS = new TiledBlendShapes(model.nBS, model.nBlendVtx, TiledBlendShapes.TILE_VTX);
+				else
+					model.BSVertices= new float[3*model.nBS*model.nBlendVtx];
 				model.BSNormals = new float[3*model.nBS*model.nBlendVtx];
 				model.BSWeights = new float[model.nBS];
 
@@ -327,6 +848,10 @@ public class VMBOLoader
 			{
 				float val= reader.readFloat();
 				model.mNormalsBuffer.put(val);			
+				//Neutral Face blending normals ( up to nBlendVertices x 3)
+				if(i < model.NNormals.length) {
+					model.NNormals[i] = val;
+				}
 			}
 
 			//Tex Coord Buffer
@@ -357,191 +882,32 @@ public class VMBOLoader
 			Log.d("size of array: ", model.nFcs + "," + model.nVtx);
 
 
-			// Index 순서대로 vertex position으로 저장한거.
-			float[] orderedX = new float[model.nVtx];
-			float[] orderedY = new float[model.nVtx];
-			float[] orderedZ = new float[model.nVtx];
+			computeTangents(model);
 
-			float[] orderedTanX = new float[model.nVtx];
-			float[] orderedTanY = new float[model.nVtx];
-			float[] orderedTanZ = new float[model.nVtx];
-
-/*
-			for(int face_i = 0; face_i < 3 * model.nFcs; face_i++)
-			{
-				int idx = model.mIndexBuffer.get(face_i);
-				orderedX[idx] = 1;
-				orderedY[idx] = 1;
-				orderedZ[idx] = 1;
-			}
-*/
-
-			for(int face_i = 0; face_i < 3 * model.nFcs; face_i += 3)
-			{
-				int idx0 = model.mIndexBuffer.get(face_i + 0); // pointer to the vertex position X,Y,Z
-				int idx1 = model.mIndexBuffer.get(face_i + 1);
-				int idx2 = model.mIndexBuffer.get(face_i + 2);
-
-				float[] v0 = new float[3];
-				v0[0] = model.mVerticesBuffer.get(3 * idx0 + 0);
-				v0[1] = model.mVerticesBuffer.get(3 * idx0 + 1);
-				v0[2] = model.mVerticesBuffer.get(3 * idx0 + 2);
-				orderedX[idx0] = v0[0];
-				orderedY[idx0] = v0[1];
-				orderedZ[idx0] = v0[2];
-
-				float[] v1 = new float[3];
-				v1[0] = model.mVerticesBuffer.get(3 * idx1 + 0);
-				v1[1] = model.mVerticesBuffer.get(3 * idx1 + 1);
-				v1[2] = model.mVerticesBuffer.get(3 * idx1 + 2);
-				orderedX[idx1] = v1[0];
-				orderedY[idx1] = v1[1];
-				orderedZ[idx1] = v1[2];
-
-				float[] v2 = new float[3];
-				v2[0] = model.mVerticesBuffer.get(3 * idx2 + 0);
-				v2[1] = model.mVerticesBuffer.get(3 * idx2 + 1);
-				v2[2] = model.mVerticesBuffer.get(3 * idx2 + 2);
-				orderedX[idx2] = v2[0];
-				orderedY[idx2] = v2[1];
-				orderedZ[idx2] = v2[2];
-
-				// idx0
-				float[] uv0 = new float[2];
-				uv0[0] = model.mTexCoordsBuffer.get(2 * idx0 + 0);
-				uv0[1] = model.mTexCoordsBuffer.get(2 * idx0 + 1);
-
-				// idx1
-				float[] uv1 = new float[2];
-				uv1[0] = model.mTexCoordsBuffer.get(2 * idx1 + 0);
-				uv1[1] = model.mTexCoordsBuffer.get(2 * idx1 + 1);
-
-				// idx2
-				float[] uv2 = new float[2];
-				uv2[0] = model.mTexCoordsBuffer.get(2 * idx2 + 0);
-				uv2[1] = model.mTexCoordsBuffer.get(2 * idx2 + 1);
-
-				float[] edge1 = subtract(v1, v0);
-				float[] edge2 = subtract(v2, v0);
-				float[] deltaUV1 = subtract(uv1, uv0);
-				float[] deltaUV2 = subtract(uv2, uv0);
-
-				float f = 1.0f / (deltaUV1[0] * deltaUV2[1] - deltaUV2[0] * deltaUV1[1]);
-
-				float[] tangent = new float[3];
-				tangent[0] = f * (deltaUV2[1] * edge1[0] - deltaUV1[1] * edge2[0]);
-				tangent[1] = f * (deltaUV2[1] * edge1[1] - deltaUV1[1] * edge2[1]);
-				tangent[2] = f * (deltaUV2[1] * edge1[2] - deltaUV1[1] * edge2[2]);
-
-				tangent = normalize(tangent);
-
-				orderedTanX[idx0] = (orderedTanX[idx0] + tangent[0]) * 0.5f;
-				orderedTanY[idx0] = (orderedTanY[idx0] + tangent[1]) * 0.5f;
-				orderedTanZ[idx0] = (orderedTanZ[idx0] + tangent[2]) * 0.5f;
-
-				orderedTanX[idx1] = (orderedTanX[idx1] + tangent[0]) * 0.5f;
-				orderedTanY[idx1] = (orderedTanY[idx1] + tangent[1]) * 0.5f;
-				orderedTanZ[idx1] = (orderedTanZ[idx1] + tangent[2]) * 0.5f;
-
-				orderedTanX[idx2] = (orderedTanX[idx2] + tangent[0]) * 0.5f;
-				orderedTanY[idx2] = (orderedTanY[idx2] + tangent[1]) * 0.5f;
-				orderedTanZ[idx2] = (orderedTanZ[idx2] + tangent[2]) * 0.5f;
-
-				// COMPUTE TANGENT //
-				// v0, v1, v2, uv
-			}
-
-			for (int i = 0 ; i < model.nVtx; i++)
-			{
-				model.mTangentsBuffer.put(orderedTanX[i]);
-				model.mTangentsBuffer.put(orderedTanY[i]);
-				model.mTangentsBuffer.put(orderedTanZ[i]);
-			}
-
-/*
-			for (int i = 0; i < model.nVtx - 2; )
-			{
-				int uv_idx_0_u = i * 2 + 0;
-				int uv_idx_0_v = i * 2 + 1;
-				int uv_idx_1_u = i * 2 + 2; // (i +1) *2 + 0
-				int uv_idx_1_v = i * 2 + 3;
-				int uv_idx_2_u = i * 2 + 4;
-				int uv_idx_2_v = i * 2 + 5;
-
-				int vtx_idx_0_x = i * 3 + 0;
-				int vtx_idx_0_y = i * 3 + 1;
-				int vtx_idx_0_z = i * 3 + 2;
-				int vtx_idx_1_x = i * 3 + 3;
-				int vtx_idx_1_y = i * 3 + 4;
-				int vtx_idx_1_z = i * 3 + 5;
-				int vtx_idx_2_x = i * 3 + 6;
-				int vtx_idx_2_y = i * 3 + 7;
-				int vtx_idx_2_z = i * 3 + 8;
-
-				float[] v0 = new float[3];
-				v0[0] = model.mVerticesBuffer.get(vtx_idx_0_x);
-				v0[1] = model.mVerticesBuffer.get(vtx_idx_0_y);
-				v0[2] = model.mVerticesBuffer.get(vtx_idx_0_z);
-
-				float[] v1 = new float[3];
-				v1[0] = model.mVerticesBuffer.get(vtx_idx_1_x);
-				v1[1] = model.mVerticesBuffer.get(vtx_idx_1_y);
-				v1[2] = model.mVerticesBuffer.get(vtx_idx_1_z);
-
-				float[] v2 = new float[3];
-				v2[0] = model.mVerticesBuffer.get(vtx_idx_2_x);
-				v2[1] = model.mVerticesBuffer.get(vtx_idx_2_y);
-				v2[2] = model.mVerticesBuffer.get(vtx_idx_2_z);
-
-				float[] uv0 = new float[2];
-				uv0[0] = model.mTexCoordsBuffer.get(uv_idx_0_u);
-				uv0[1] = model.mTexCoordsBuffer.get(uv_idx_0_v);
-				float[] uv1 = new float[2];
-				uv1[0] = model.mTexCoordsBuffer.get(uv_idx_1_u);
-				uv1[1] = model.mTexCoordsBuffer.get(uv_idx_1_v);
-				float[] uv2 = new float[2];
-				uv2[0] = model.mTexCoordsBuffer.get(uv_idx_2_u);
-				uv2[1] = model.mTexCoordsBuffer.get(uv_idx_2_v);
-
-				float[] edge1 = subtract(v1, v0);
-				float[] edge2 = subtract(v2, v0);
-				float[] deltaUV1 = subtract(uv1, uv0);
-				float[] deltaUV2 = subtract(uv2, uv0);
-
-				float f = 1.0f / (deltaUV1[0] * deltaUV2[1] - deltaUV2[0] * deltaUV1[1]);
-				float[] tangent1 = new float[3];
-				tangent1[0] = f * (deltaUV2[1] * edge1[0] - deltaUV1[1] * edge2[0]);
-				tangent1[1] = f * (deltaUV2[1] * edge1[1] - deltaUV1[1] * edge2[1]);
-				tangent1[2] = f * (deltaUV2[1] * edge1[2] - deltaUV1[1] * edge2[2]);
-
-				tangent1 = normalize(tangent1);
-
-				model.mTangentsBuffer.put(v1[0]);
-				model.mTangentsBuffer.put(v1[1]);
-				model.mTangentsBuffer.put(v1[2]);
-				i++;
-
-				model.mTangentsBuffer.put(v1[0]);
-				model.mTangentsBuffer.put(v1[1]);
-				model.mTangentsBuffer.put(v1[2]);
-				i++;
-
-				model.mTangentsBuffer.put(v1[0]);
-				model.mTangentsBuffer.put(v1[1]);
-				model.mTangentsBuffer.put(v1[2]);
-				i++;
-			}
-*/
 			//BlendShapes
 			//BSverts
-			for (int i = 0; i < model.BSVertices.length; i ++)
+			if(model.tiledBS != null)
 			{
-				float val= reader.readFloat();
-				model.BSVertices[i]=val;
+				//one blendshape at a time, straight to its tiles
+				float[] row = new float[3*model.nBlendVtx];
+				for (int j = 0; j < model.nBS; j++)
+				{
+					for (int i = 0; i < row.length; i ++)
+						row[i] = reader.readFloat();
+					model.tiledBS.putShapeRow(j, row, 0, row.length);
+				}
+			}
+			else
+			{
+				for (int i = 0; i < model.BSVertices.length; i ++)
+				{
+					float val= reader.readFloat();
+					model.BSVertices[i]=val;
+				}
 			}
 
 			//BSNormals
-			for (int i = 0; i < model.BSVertices.length; i ++)
+			for (int i = 0; i < model.BSNormals.length; i ++)
 			{
 				float val= reader.readFloat();
 				model.BSNormals[i]=val;
@@ -23,7 +23,7 @@ public class VMBOModel
 	public FloatBuffer mVerticesBuffer	= null;		
 	/**Normals for rendering*/
 	public FloatBuffer mNormalsBuffer 	= null;
-	/**Normals for rendering*/
+	/**Tangents for rendering*/
 	public FloatBuffer mTangentsBuffer 	= null;
 	/**UV texture coordinates for rendering*/
 	public FloatBuffer mTexCoordsBuffer= null;		
@@ -32,11 +32,18 @@ public class VMBOModel
 	
 	/**Face positions for computation*/
 	public float[] NVertices  = null;		
+	/**Face normals for computation*/
+	public float[] NNormals   = null;
 	/**BS position deltas for computation*/
 	public float[] BSVertices = null;		
-	/**BS position deltas for computation*/
+	/**BS normal deltas for computation*/
 	public float[] BSNormals  = null;		
 			
+	/**sparse BS position and normal deltas, null until buildSparseBlendShapes() is called*/
+	public SparseBlendShapes sparseBS = null;
+	/**tiled BS position deltas, null unless loaded with VMBOLoader.LAYOUT_TILED or buildTiledBlendShapes() is called*/
+	public TiledBlendShapes tiledBS = null;
+
 	/**current blendshape weights*/
 	public float[] BSWeights  = null;		
 	
@@ -90,8 +97,100 @@ public class VMBOModel
 	/**input number of columns of A*/
 	private int[] kSize;
 		
+	/////////////////////////////////////////////////////////////////////////
+	//Java blending
+
+	/**pure Java blending engine, null when blending with RenderScript*/
+	private BlendEngine mBlendEngine = null;
+	/**per model scratch data of the blending engine*/
+	BlendState mBlendState = null;
+
+	/**model the geometry is shared with, null when the model owns it
+	 * @see #createInstance()*/
+	private VMBOModel mShared = null;
+
 	/**logcat Tag*/
 	private static String TAG = "BO Model";	
+
+	/**
+	 * Creates a model sharing the geometry of this one.
+	 * <p>
+	 * The neutral shape, the blendshape deltas (dense, sparse and tiled), the UVs and the indices
+	 * are shared and must not be modified. The instance gets its own weights, blending state and,
+	 * when the model has blendshapes, its own position, normal and tangent buffers, which are
+	 * the ones written by the blending.
+	 *
+	 * @return a new model, blended independently from this one
+	 * @see AssetCache
+	 */
+	public VMBOModel createInstance()
+	{
+		VMBOModel source = mShared != null ? mShared : this;
+		VMBOModel instance = new VMBOModel();
+		instance.mShared = source;
+		synchronized (source)
+		{
+			instance.NVertices = source.NVertices;
+			instance.NNormals = source.NNormals;
+			instance.BSVertices = source.BSVertices;
+			instance.BSNormals = source.BSNormals;
+			instance.sparseBS = source.sparseBS;
+			instance.tiledBS = source.tiledBS;
+		}
+		instance.BSNames = source.BSNames;
+		instance.nBlendVtx = source.nBlendVtx;
+		instance.nVtx = source.nVtx;
+		instance.nBS = source.nBS;
+		instance.nFcs = source.nFcs;
+		instance.uNorm = source.uNorm;
+		instance.uUV = source.uUV;
+		instance.mLongestAxisLength = source.mLongestAxisLength;
+		instance.BSWeights = new float[source.nBS];
+
+		instance.mTexCoordsBuffer = share(source.mTexCoordsBuffer);
+		instance.mIndexBuffer = source.mIndexBuffer != null ? source.mIndexBuffer.duplicate() : null;
+		if(source.nBS > 0)
+		{
+			instance.mVerticesBuffer = copy(source.mVerticesBuffer);
+			instance.mNormalsBuffer = copy(source.mNormalsBuffer);
+			instance.mTangentsBuffer = copy(source.mTangentsBuffer);
+		}
+		else
+		{
+			//never blended, nothing writes them
+			instance.mVerticesBuffer = share(source.mVerticesBuffer);
+			instance.mNormalsBuffer = share(source.mNormalsBuffer);
+			instance.mTangentsBuffer = share(source.mTangentsBuffer);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if the geometry of this model is shared with other models
+	 * @see #createInstance()
+	 */
+	public boolean isInstance()
+	{
+		return mShared != null;
+	}
+
+	private static FloatBuffer share(FloatBuffer buffer)
+	{
+		if(buffer == null) return null;
+		FloatBuffer view = buffer.duplicate();
+		view.position(0);
+		return view;
+	}
+
+	static FloatBuffer copy(FloatBuffer buffer)
+	{
+		if(buffer == null) return null;
+		FloatBuffer src = share(buffer);
+		FloatBuffer dst = VMBOLoader.newFloatBuffer(src.capacity());
+		dst.put(src);
+		dst.position(0);
+		return dst;
+	}
 	/**
 	 * initializes the renderscript to perform the Blendshape interpolation
 	 * 
@@ -144,11 +243,120 @@ public class VMBOModel
 		mScript.bind_kSize(allocationKSize);
 		mScript.bind_nSize(allocationNSize);
 	}
+	/**
+	 * Builds the sparse representation of the blendshape position and normal deltas used by BlendEngine.MODE_SPARSE.
+	 * Releasing the dense deltas reduces the memory used by the model, but then the model can
+	 * only be blended by the Java engine (initRenderScript() needs the dense deltas).
+	 *
+	 * @param threshold deltas with all coordinates lower or equal in magnitude are dropped
+	 * @param releaseDense drop the dense BSVertices and BSNormals once the sparse deltas are built
+	 * @see SparseBlendShapes
+	 */
+	public void buildSparseBlendShapes(float threshold, boolean releaseDense)
+	{
+		if(mShared != null)
+		{
+			//built once for all the instances, the first request decides the threshold
+			synchronized (mShared)
+			{
+				if(mShared.sparseBS == null)
+					mShared.buildSparseBlendShapes(threshold, releaseDense);
+				sparseBS = mShared.sparseBS;
+			}
+			if(releaseDense && sparseBS != null)
+			{
+				BSVertices = null;
+				BSNormals = null;
+			}
+			return;
+		}
+		if(BSVertices != null)
+			sparseBS = SparseBlendShapes.build(BSVertices, BSNormals, nBS, nBlendVtx, threshold);
+		if(releaseDense && sparseBS != null)
+		{
+			BSVertices = null;
+			BSNormals = null;
+		}
+	}
+
+	/**
+	 * Builds the cache-blocked layout of the blendshape position deltas, used by the
+	 * BlendEngine dense, active set and incremental modes when present.
+	 * Releasing the dense deltas means the model can only be blended by the Java engine.
+	 *
+	 * @param releaseDense drop the shape major BSVertices once the tiled deltas are built
+	 * @see TiledBlendShapes
+	 */
+	public void buildTiledBlendShapes(boolean releaseDense)
+	{
+		if(mShared != null)
+		{
+			synchronized (mShared)
+			{
+				if(mShared.tiledBS == null)
+					mShared.buildTiledBlendShapes(releaseDense);
+				tiledBS = mShared.tiledBS;
+			}
+			if(releaseDense && tiledBS != null)
+				BSVertices = null;
+			return;
+		}
+		if(BSVertices != null)
+			tiledBS = TiledBlendShapes.build(BSVertices, nBS, nBlendVtx, TiledBlendShapes.TILE_VTX);
+		if(releaseDense && tiledBS != null)
+			BSVertices = null;
+	}
+
+	/**
+	 * Selects the engine performing the Blendshape interpolation.
+	 * When an engine is set initRenderScript() is not needed.
+	 *
+	 * @param engine multi-core Java engine, null to use RenderScript
+	 * @see BlendEngine
+	 */
+	public void setBlendEngine(BlendEngine engine)
+	{
+		mBlendEngine = engine;
+	}
+
+	/**
+	 * @return the multi-core Java engine, null when blending with RenderScript
+	 */
+	public BlendEngine getBlendEngine()
+	{
+		return mBlendEngine;
+	}
+
+	/**
+	 * Number of blendshapes accumulated by the Java engine in the last frame.
+	 * In BlendEngine.MODE_ACTIVE_SET this is the size of the active set, nBS otherwise.
+	 *
+	 * @return number of blendshapes, 0 if the model has not been blended by the Java engine yet
+	 */
+	public int getActiveBlendShapeCount()
+	{
+		return mBlendState != null ? mBlendState.activeCount : 0;
+	}
+
+	/**
+	 * Duration of the last Blendshape interpolation done by the Java engine
+	 * @return time in nanoseconds, 0 if the model has not been blended by the Java engine yet
+	 */
+	public long getLastBlendTime()
+	{
+		return mBlendState != null ? mBlendState.blendTime : 0;
+	}
+
 	/**
 	 * Applies the Blendshape interpolation for the current set of weights
 	 */
 	public void applyBlendShapes()
 	{
+		if(mBlendEngine != null)
+		{
+			mBlendEngine.blend(this);
+			return;
+		}
 		allocationA.copyFrom(BSWeights);
 		mScript.forEach_root(allocationPosRow, allocationPosRow);
 		allocationC.copyTo(outMatrix);
@@ -0,0 +1,185 @@
+package vml.com.vm.utils;
+
+/**
+ * Audio playback position for the lip-sync, between the position reports of the player.
+ * <p>
+ * Players report their position rarely or in coarse steps (MediaPlayer.getCurrentPosition() moves
+ * by tens of ms). The clock is told when the playback starts, pauses or stops and when a position is
+ * known ({@link #onPosition(int)}), from the callbacks of the player. In between, the position is
+ * extrapolated with a monotonic time source. The difference between a reported position and the
+ * extrapolated one is corrected over CORRECTION_MS by running slightly faster or slower, so the
+ * position never jumps nor goes back; only differences over SNAP_MS (a seek) are applied at once.
+ * <p>
+ * The reports and the reads can come from different threads.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see vml.com.vm.avatar.VMAvatar#setAudioClock(AudioClock)
+ */
+public class AudioClock
+{
+	/**time over which a difference with a reported position is corrected, in ms*/
+	public static final int CORRECTION_MS = 250;
+	/**differences with a reported position applied at once, in ms (seeks)*/
+	public static final int SNAP_MS = 100;
+
+	/**
+	 * Monotonic time
+	 */
+	public interface TimeSource
+	{
+		/**
+		 * @return current time in ns
+		 */
+		long nanoTime();
+	}
+
+	/**System.nanoTime(), monotonic*/
+	public static final TimeSource SYSTEM_TIME = new TimeSource()
+	{
+		@Override
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+	};
+
+	private final TimeSource mTime;
+	private boolean mPlaying;
+	/**position at mAnchorNs in ms*/
+	private double mAnchor;
+	private long mAnchorNs;
+	/**difference corrected from mAnchorNs on, in ms*/
+	private double mCorrection;
+	/**last position returned, the positions returned do not go back while playing*/
+	private double mLast;
+
+	public AudioClock()
+	{
+		this(SYSTEM_TIME);
+	}
+
+	/**
+	 * @param time monotonic time source
+	 */
+	public AudioClock(TimeSource time)
+	{
+		mTime = time;
+	}
+
+	/**
+	 * The playback starts or resumes
+	 * @param positionMs position in ms
+	 */
+	public synchronized void start(int positionMs)
+	{
+		mPlaying = true;
+		snap(positionMs, mTime.nanoTime());
+	}
+
+	/**
+	 * The playback pauses, the position is held
+	 * @param positionMs position in ms
+	 */
+	public synchronized void pause(int positionMs)
+	{
+		mPlaying = false;
+		snap(positionMs, mTime.nanoTime());
+	}
+
+	/**
+	 * The playback ends, the last position is held
+	 */
+	public synchronized void stop()
+	{
+		if(!mPlaying) return;
+		long now = mTime.nanoTime();
+		double position = estimate(now);
+		mPlaying = false;
+		snap(position, now);
+	}
+
+	/**
+	 * A position reported by the player now
+	 * @param positionMs position in ms
+	 */
+	public void onPosition(int positionMs)
+	{
+		onPosition(positionMs, mTime.nanoTime());
+	}
+
+	/**
+	 * A position reported by the player
+	 * @param positionMs position in ms
+	 * @param sampleTimeNs time the position was read at, from the time source
+	 */
+	public synchronized void onPosition(int positionMs, long sampleTimeNs)
+	{
+		if(!mPlaying)
+		{
+			snap(positionMs, sampleTimeNs);
+			return;
+		}
+		//reports older than the last one are dropped
+		if(sampleTimeNs < mAnchorNs) return;
+
+		double estimate = estimate(sampleTimeNs);
+		double error = positionMs - estimate;
+		if(Math.abs(error) > SNAP_MS)
+		{
+			snap(positionMs, sampleTimeNs);
+		}
+		else
+		{
+			mAnchor = estimate;
+			mAnchorNs = sampleTimeNs;
+			mCorrection = error;
+		}
+	}
+
+	/**
+	 * @return true between start() and pause() or stop()
+	 */
+	public synchronized boolean isPlaying()
+	{
+		return mPlaying;
+	}
+
+	/**
+	 * @return the current position in ms
+	 */
+	public int getPosition()
+	{
+		return getPosition(mTime.nanoTime());
+	}
+
+	/**
+	 * @param nowNs time from the time source
+	 * @return the position at that time in ms
+	 */
+	public synchronized int getPosition(long nowNs)
+	{
+		double position = Math.max(mLast, estimate(nowNs));
+		mLast = position;
+		return (int) Math.floor(position);
+	}
+
+	private void snap(double position, long timeNs)
+	{
+		mAnchor = position;
+		mAnchorNs = timeNs;
+		mCorrection = 0.0;
+		mLast = position;
+	}
+
+	/**
+	 * Extrapolated position: the position of the anchor plus the time elapsed, with the correction
+	 * applied linearly over CORRECTION_MS. The slope stays positive since |mCorrection| &lt;= SNAP_MS &lt; CORRECTION_MS.
+	 */
+	private double estimate(long timeNs)
+	{
+		if(!mPlaying) return mAnchor;
+		double elapsed = Math.max(0L, timeNs - mAnchorNs) / 1e6;
+		return mAnchor + elapsed + mCorrection * Math.min(1.0, elapsed / CORRECTION_MS);
+	}
+}
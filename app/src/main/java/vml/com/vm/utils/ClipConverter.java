@@ -0,0 +1,146 @@
+package vml.com.vm.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Command-line converter from the animation XML files to .vclip, runs on a plain JVM with kXML 2.
+ * <pre>
+ * java -cp &lt;app classes&gt;:kxml2.jar vml.com.vm.utils.ClipConverter [--tolerance t] input output
+ * </pre>
+ * input and output are either two files or two directories, in which case every .xml file
+ * of the input directory with a keyframeList is converted.
+ * <ul>
+ * <li>--tolerance t: largest weight error of the 8 bit channels, 0.002 by default. 0 stores every channel on 16 bits</li>
+ * </ul>
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see ClipFormat
+ */
+public class ClipConverter
+{
+	/**pull parser used outside of Android*/
+	private static final String PARSER = "org.kxml2.io.KXmlParser";
+
+	private float mTolerance = ClipFormat.DEFAULT_TOLERANCE;
+	private final KeyFrameParser mParser = new KeyFrameParser();
+
+	public static void main(String[] args)
+	{
+		ClipConverter converter = new ClipConverter();
+		int i = 0;
+		try
+		{
+			for(; i < args.length && args[i].startsWith("--"); i++)
+			{
+				if(args[i].equals("--tolerance"))
+					converter.mTolerance = Float.parseFloat(args[++i]);
+				else
+					usage("unknown option " + args[i]);
+			}
+			if(args.length - i != 2)
+				usage("expected an input and an output");
+
+			File in = new File(args[i]);
+			File out = new File(args[i + 1]);
+			if(in.isDirectory())
+			{
+				if(!out.isDirectory() && !out.mkdirs())
+					throw new IOException("can not create " + out);
+				File[] files = in.listFiles();
+				if(files == null)
+					throw new IOException("can not list " + in);
+				for(File f : files)
+				{
+					String name = f.getName();
+					if(name.endsWith(".xml"))
+						converter.convert(f, new File(out, name.substring(0, name.length() - 4) + ClipFormat.EXTENSION));
+				}
+			}
+			else
+				converter.convert(in, out);
+		}
+		catch (NumberFormatException e)
+		{
+			usage("invalid tolerance");
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			usage("missing option value");
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void usage(String error)
+	{
+		System.err.println(error);
+		System.err.println("usage: ClipConverter [--tolerance t] input.xml|dir output.vclip|dir");
+		System.exit(2);
+	}
+
+	/**
+	 * Reads an animation XML file
+	 * @param in XML file
+	 * @return the clip
+	 * @throws IOException reading or syntax problem
+	 */
+	KeyFrameParser.Clip parse(File in) throws IOException
+	{
+		InputStream is = new FileInputStream(in);
+		try
+		{
+			XmlPullParser parser = XmlPullParserFactory.newInstance(PARSER, null).newPullParser();
+			parser.setInput(is, null);
+			return mParser.parse(parser);
+		}
+		catch (XmlPullParserException e)
+		{
+			throw new IOException(in + ": " + e.getMessage(), e);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Converts one file, XML files without keys (avatar descriptions) are skipped
+	 * @param in animation XML file
+	 * @param out .vclip file
+	 * @throws IOException conversion problem
+	 */
+	void convert(File in, File out) throws IOException
+	{
+		KeyFrameParser.Clip clip = parse(in);
+		if(clip.keys.isEmpty())
+		{
+			System.out.println(in.getName() + " has no keys, skipped");
+			return;
+		}
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+		try
+		{
+			ClipFormat.write(clip, mTolerance, os);
+		}
+		finally
+		{
+			os.close();
+		}
+		System.out.println(in.getName() + " (" + in.length() + " bytes) -> " + out.getName() + " (" + out.length() + " bytes)");
+	}
+}
@@ -0,0 +1,456 @@
+package vml.com.vm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The .vclip animation clip format: the keys of an animation XML file with quantized, delta coded weights.
+ * <p>
+ * Everything is little-endian. The file starts with a fixed size header:
+ * <pre>
+ *  0  magic "VCLP"
+ *  4  version
+ *  8  number of face weights per key
+ * 12  number of keys
+ * 16  time of the first key (ms)
+ * 20  time step (ms), 0 when the key times are stored
+ * 24  flags (FLAG_NODDING, FLAG_TIMES)
+ * 28  size of the key data in bytes
+ * 32  name, gender and hair model: UTF-8 length (short, -1 for null) and bytes
+ *     channel table, one entry per face weight plus the nodding channel with FLAG_NODDING:
+ *       bits (byte, 0 for a constant channel, 8 or 16), min (float), scale (float)
+ *     key times with FLAG_TIMES: one varint difference to the previous time per key after the first
+ *     key data
+ * </pre>
+ * A channel value is quantized to q = round((value - min) / scale), on 8 bits when the error stays
+ * below the requested tolerance, on 16 bits otherwise, and decoded as min + q * scale.
+ * The key data is the difference of q with the previous key, key after key and channel after channel
+ * (constant channels skipped), as a stream of varints: an odd varint v is the non zero difference
+ * zigzag(difference) = (v >>> 1) + 1, an even one a run of (v >>> 1) + 1 zero differences.
+ * Most channels are zero or change slowly, so most of a key fits in a few bytes.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see ClipConverter
+ */
+public final class ClipFormat
+{
+	/**file extension*/
+	public static final String EXTENSION = ".vclip";
+	/**"VCLP" read as a little-endian int*/
+	public static final int MAGIC = 'V' | ('C' << 8) | ('L' << 16) | ('P' << 24);
+	/**current version*/
+	public static final int VERSION = 1;
+	/**default quantization tolerance, far below what can be seen on a face*/
+	public static final float DEFAULT_TOLERANCE = 0.002f;
+
+	/**size of the fixed header*/
+	static final int HEADER_SIZE = 32;
+	/**size of a channel table entry*/
+	static final int CHANNEL_ENTRY_SIZE = 9;
+
+	/**the last channel is the head nodding*/
+	static final int FLAG_NODDING = 1;
+	/**the key times are stored, they are not first + k * step*/
+	static final int FLAG_TIMES = 2;
+
+	private ClipFormat()
+	{
+	}
+
+	/**
+	 * @param name file name
+	 * @return true if the file is a .vclip file
+	 */
+	public static boolean isClip(String name)
+	{
+		return name.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Loads a clip in the .vclip format or in the animation XML format
+	 * @param is clip data, not closed
+	 * @return the clip
+	 * @throws IOException reading or format problem
+	 */
+	public static KeyFrameParser.Clip load(InputStream is) throws IOException
+	{
+		BufferedInputStream in = new BufferedInputStream(is);
+		in.mark(4);
+		int magic = in.read() | (in.read() << 8) | (in.read() << 16) | (in.read() << 24);
+		in.reset();
+		if(magic != MAGIC)
+			return new KeyFrameParser().parse(in);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream(16 * 1024);
+		byte[] buffer = new byte[8 * 1024];
+		int n;
+		while((n = in.read(buffer)) > 0) data.write(buffer, 0, n);
+		return read(ByteBuffer.wrap(data.toByteArray()));
+	}
+
+	/**
+	 * Writes a clip in the .vclip format
+	 * @param clip clip to write
+	 * @param tolerance largest quantization error accepted on the 8 bit channels
+	 * @param out destination, not closed
+	 * @throws IOException writing problem
+	 */
+	public static void write(KeyFrameParser.Clip clip, float tolerance, OutputStream out) throws IOException
+	{
+		ByteBuffer data = encode(clip, tolerance);
+		out.write(data.array(), 0, data.limit());
+	}
+
+	/**
+	 * Encodes a clip in the .vclip format
+	 * @param clip clip to encode, every key with the same number of weights
+	 * @param tolerance largest quantization error accepted on the 8 bit channels
+	 * @return little-endian heap buffer holding the whole file
+	 * @throws IOException when the clip can not be encoded
+	 */
+	public static ByteBuffer encode(KeyFrameParser.Clip clip, float tolerance) throws IOException
+	{
+		List<KeyFrame> keys = clip.keys;
+		int nKeys = keys.size();
+		int nWeights = nKeys > 0 ? keys.get(0).pose.faceWeights.length : 0;
+		boolean nodding = false;
+		for(KeyFrame key : keys)
+		{
+			if(key.pose.faceWeights.length != nWeights)
+				throw new IOException("keys with different numbers of weights");
+			nodding |= key.noddingValue != 0.0f;
+		}
+		int nChannels = nWeights + (nodding ? 1 : 0);
+
+		//times
+		int first = nKeys > 0 ? keys.get(0).time : 0;
+		int step = nKeys > 1 ? keys.get(1).time - first : 0;
+		boolean regular = step > 0;
+		for(int k=0; k<nKeys && regular; k++)
+			regular = keys.get(k).time == first + k * step;
+		if(!regular) step = 0;
+
+		//quantization
+		byte[] bits = new byte[nChannels];
+		float[] min = new float[nChannels];
+		float[] scale = new float[nChannels];
+		float[] column = new float[nKeys];
+		for(int c=0; c<nChannels; c++)
+		{
+			for(int k=0; k<nKeys; k++)
+				column[k] = channel(keys.get(k), c, nWeights);
+			quantization(column, nKeys, tolerance, c, bits, min, scale);
+		}
+
+		//key data
+		VarintWriter stream = new VarintWriter();
+		if(!regular)
+		{
+			for(int k=1; k<nKeys; k++)
+			{
+				int delta = keys.get(k).time - keys.get(k - 1).time;
+				if(delta < 0)
+					throw new IOException("key times are not increasing");
+				stream.writeVarint(delta);
+			}
+		}
+		int timesSize = stream.size();
+		int[] previous = new int[nChannels];
+		for(int k=0; k<nKeys; k++)
+		{
+			KeyFrame key = keys.get(k);
+			for(int c=0; c<nChannels; c++)
+			{
+				if(bits[c] == 0) continue;
+				int q = Math.round((channel(key, c, nWeights) - min[c]) / scale[c]);
+				stream.writeDelta(q - previous[c]);
+				previous[c] = q;
+			}
+		}
+		stream.flushZeros();
+
+		byte[][] strings = { utf8(clip.name), utf8(clip.gender), utf8(clip.hairModel) };
+		int size = HEADER_SIZE + CHANNEL_ENTRY_SIZE * nChannels + stream.size();
+		for(byte[] s : strings)
+			size += 2 + (s != null ? s.length : 0);
+
+		ByteBuffer data = ByteBuffer.allocate(size);
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		data.putInt(MAGIC);
+		data.putInt(VERSION);
+		data.putInt(nWeights);
+		data.putInt(nKeys);
+		data.putInt(first);
+		data.putInt(step);
+		data.putInt((nodding ? FLAG_NODDING : 0) | (regular ? 0 : FLAG_TIMES));
+		data.putInt(stream.size() - timesSize);
+		for(byte[] s : strings)
+		{
+			data.putShort((short) (s != null ? s.length : -1));
+			if(s != null) data.put(s);
+		}
+		for(int c=0; c<nChannels; c++)
+		{
+			data.put(bits[c]);
+			data.putFloat(min[c]);
+			data.putFloat(scale[c]);
+		}
+		data.put(stream.buffer(), 0, stream.size());
+		data.position(0);
+		return data;
+	}
+
+	/**
+	 * Chooses the quantization of a channel
+	 */
+	private static void quantization(float[] values, int n, float tolerance, int c, byte[] bits, float[] min, float[] scale)
+	{
+		float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+		for(int k=0; k<n; k++)
+		{
+			lo = Math.min(lo, values[k]);
+			hi = Math.max(hi, values[k]);
+		}
+		if(n == 0 || lo == hi)
+		{
+			bits[c] = 0;
+			min[c] = n == 0 ? 0.0f : lo;
+			scale[c] = 0.0f;
+			return;
+		}
+		min[c] = lo;
+		bits[c] = 8;
+		scale[c] = (hi - lo) / 255.0f;
+		if(maxError(values, n, lo, scale[c]) > tolerance)
+		{
+			bits[c] = 16;
+			scale[c] = (hi - lo) / 65535.0f;
+		}
+	}
+
+	private static float maxError(float[] values, int n, float min, float scale)
+	{
+		float error = 0.0f;
+		for(int k=0; k<n; k++)
+			error = Math.max(error, Math.abs(min + Math.round((values[k] - min) / scale) * scale - values[k]));
+		return error;
+	}
+
+	private static float channel(KeyFrame key, int c, int nWeights)
+	{
+		return c < nWeights ? key.pose.faceWeights[c] : key.noddingValue;
+	}
+
+	/**
+	 * Decodes a clip in the .vclip format
+	 * @param data the whole file, from its position
+	 * @return the clip
+	 * @throws IOException when the data is not a supported .vclip file
+	 */
+	public static KeyFrameParser.Clip read(ByteBuffer data) throws IOException
+	{
+		ByteBuffer in = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			if(in.limit() < HEADER_SIZE || in.getInt() != MAGIC)
+				throw new IOException("not a .vclip file");
+			int version = in.getInt();
+			if(version > VERSION)
+				throw new IOException("unsupported .vclip version " + version);
+			int nWeights = in.getInt();
+			int nKeys = in.getInt();
+			int first = in.getInt();
+			int step = in.getInt();
+			int flags = in.getInt();
+			in.getInt();
+			if(nWeights < 0 || nKeys < 0)
+				throw new IOException("corrupted .vclip header");
+
+			KeyFrameParser.Clip clip = new KeyFrameParser.Clip();
+			clip.name = readString(in);
+			clip.gender = readString(in);
+			clip.hairModel = readString(in);
+
+			int nChannels = nWeights + ((flags & FLAG_NODDING) != 0 ? 1 : 0);
+			int[] active = new int[nChannels];
+			int nActive = 0;
+			float[] min = new float[nChannels];
+			float[] scale = new float[nChannels];
+			for(int c=0; c<nChannels; c++)
+			{
+				int bits = in.get();
+				min[c] = in.getFloat();
+				scale[c] = in.getFloat();
+				if(bits != 0) active[nActive++] = c;
+			}
+
+			//constant channels keep the min of the table
+			float[] values = min.clone();
+			int[] q = new int[nChannels];
+			int time = first;
+			VarintReader stream = new VarintReader(in);
+			ArrayList<KeyFrame> keys = new ArrayList<KeyFrame>(nKeys);
+			if((flags & FLAG_TIMES) != 0)
+			{
+				int[] times = new int[nKeys];
+				for(int k=0; k<nKeys; k++)
+				{
+					if(k > 0) time += stream.readVarint();
+					times[k] = time;
+				}
+				for(int k=0; k<nKeys; k++)
+					keys.add(decodeKey(stream, times[k], active, nActive, min, scale, q, values, nWeights));
+			}
+			else
+			{
+				for(int k=0; k<nKeys; k++, time += step)
+					keys.add(decodeKey(stream, time, active, nActive, min, scale, q, values, nWeights));
+			}
+			clip.keys = keys;
+			return clip;
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("truncated .vclip file");
+		}
+	}
+
+	private static KeyFrame decodeKey(VarintReader stream, int time, int[] active, int nActive,
+			float[] min, float[] scale, int[] q, float[] values, int nWeights) throws IOException
+	{
+		for(int i=0; i<nActive; i++)
+		{
+			int c = active[i];
+			q[c] += stream.readDelta();
+			values[c] = min[c] + q[c] * scale[c];
+		}
+		KeyFrame key = new KeyFrame();
+		key.time = time;
+		key.pose = new FacePose(values, nWeights);
+		if(values.length > nWeights) key.noddingValue = values[nWeights];
+		return key;
+	}
+
+	private static byte[] utf8(String s) throws IOException
+	{
+		return s != null ? s.getBytes("UTF-8") : null;
+	}
+
+	private static String readString(ByteBuffer in) throws IOException
+	{
+		int length = in.getShort();
+		if(length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Writes the key data varints, zero differences are gathered in runs
+	 */
+	static class VarintWriter
+	{
+		private byte[] mBuffer = new byte[4 * 1024];
+		private int mSize;
+		private int mZeros;
+
+		void writeDelta(int delta)
+		{
+			if(delta == 0)
+			{
+				mZeros++;
+				return;
+			}
+			flushZeros();
+			int zigzag = (delta << 1) ^ (delta >> 31);
+			writeVarint(((zigzag - 1) << 1) | 1);
+		}
+
+		void flushZeros()
+		{
+			if(mZeros > 0)
+			{
+				writeVarint((mZeros - 1) << 1);
+				mZeros = 0;
+			}
+		}
+
+		void writeVarint(int v)
+		{
+			if(mSize + 5 > mBuffer.length)
+			{
+				byte[] grown = new byte[2 * mBuffer.length];
+				System.arraycopy(mBuffer, 0, grown, 0, mSize);
+				mBuffer = grown;
+			}
+			while((v & ~0x7f) != 0)
+			{
+				mBuffer[mSize++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			mBuffer[mSize++] = (byte) v;
+		}
+
+		byte[] buffer()
+		{
+			return mBuffer;
+		}
+
+		int size()
+		{
+			return mSize;
+		}
+	}
+
+	/**
+	 * Reads the key data varints
+	 */
+	static class VarintReader
+	{
+		private final ByteBuffer mIn;
+		private int mZeros;
+
+		VarintReader(ByteBuffer in)
+		{
+			mIn = in;
+		}
+
+		int readDelta() throws IOException
+		{
+			if(mZeros > 0)
+			{
+				mZeros--;
+				return 0;
+			}
+			int v = readVarint();
+			if((v & 1) == 0)
+			{
+				mZeros = v >>> 1;
+				return 0;
+			}
+			int zigzag = (v >>> 1) + 1;
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		int readVarint() throws IOException
+		{
+			int v = 0;
+			for(int shift=0; shift<35; shift+=7)
+			{
+				byte b = mIn.get();
+				v |= (b & 0x7f) << shift;
+				if(b >= 0) return v;
+			}
+			throw new IOException("corrupted .vclip varint");
+		}
+	}
+}
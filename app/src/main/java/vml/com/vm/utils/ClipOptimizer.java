@@ -0,0 +1,212 @@
+package vml.com.vm.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Decimates animation clips into SparseClips and reports the key reduction and the error.
+ * Usable at runtime ({@link #optimize(List, float)}) and from the command line on a plain JVM with kXML 2:
+ * <pre>
+ * java -cp &lt;app classes&gt;:kxml2.jar vml.com.vm.utils.ClipOptimizer [--error e] file.xml|dir ...
+ * </pre>
+ * Every animation XML file given, or found in the directories given, is decimated and reported.
+ * <ul>
+ * <li>--error e: largest interpolation error of the weights, 0.001 by default</li>
+ * </ul>
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see SparseClip
+ */
+public class ClipOptimizer
+{
+	/**default largest interpolation error, a tenth of the 8 bit weight quantization step*/
+	public static final float DEFAULT_MAX_ERROR = 0.001f;
+
+	/**pull parser used outside of Android*/
+	private static final String PARSER = "org.kxml2.io.KXmlParser";
+
+	/**
+	 * Result of the decimation of a clip
+	 */
+	public static class Report
+	{
+		/**clip name, the file name for the command line*/
+		public String name;
+		/**keys of the original clip, all the channels*/
+		public int sourceKeys;
+		/**keys of the sparse clip, all the channels*/
+		public int keys;
+		/**channels left with their first and last keys only*/
+		public int flatChannels;
+		/**largest difference measured between the original and the sparse clips*/
+		public float maxError;
+
+		/**
+		 * @return original keys per kept key
+		 */
+		public float getReduction()
+		{
+			return keys > 0 ? (float) sourceKeys / keys : 0.0f;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%-34s %8d %8d %7.1fx %6d %10.6f", name, sourceKeys, keys, getReduction(), flatChannels, maxError);
+		}
+	}
+
+	private ClipOptimizer()
+	{
+	}
+
+	/**
+	 * Decimates a clip
+	 * @param keys keys sorted by time
+	 * @param maxError largest interpolation error of the channels
+	 * @return the sparse clip
+	 */
+	public static SparseClip optimize(List<KeyFrame> keys, float maxError)
+	{
+		return SparseClip.build(keys, maxError);
+	}
+
+	/**
+	 * Measures the decimation of a clip: the sparse clip is evaluated at every original key time
+	 * and halfway between the keys, and compared to the linear interpolation of the original keys.
+	 *
+	 * @param name clip name for the report
+	 * @param keys original keys
+	 * @param clip sparse clip built from the keys
+	 * @return the report
+	 */
+	public static Report measure(String name, List<KeyFrame> keys, SparseClip clip)
+	{
+		Report report = new Report();
+		report.name = name;
+		report.sourceKeys = clip.getSourceKeyCount();
+		report.keys = clip.getKeyCount();
+		for(int c=0; c<clip.nChannels; c++)
+		{
+			if(clip.getKeyCount(c) <= 2) report.flatChannels++;
+		}
+
+		int[] cursor = clip.newCursor();
+		float[] weights = new float[clip.nWeights];
+		float error = 0.0f;
+		for(int k=0; k<keys.size(); k++)
+		{
+			KeyFrame cur = keys.get(k);
+			KeyFrame next = k + 1 < keys.size() ? keys.get(k + 1) : cur;
+			int[] times = { cur.time, (cur.time + next.time) / 2 };
+			for(int time : times)
+			{
+				float weight = next.time > cur.time ? (float)(time - cur.time)/(float)(next.time - cur.time) : 0.0f;
+				float nodding = clip.evaluate(time, cursor, weights);
+				for(int c=0; c<clip.nWeights; c++)
+				{
+					float expected = weight*next.pose.faceWeights[c]+(1-weight)*cur.pose.faceWeights[c];
+					error = Math.max(error, Math.abs(weights[c] - expected));
+				}
+				error = Math.max(error, Math.abs(nodding - (weight*next.noddingValue+(1-weight)*cur.noddingValue)));
+			}
+		}
+		report.maxError = error;
+		return report;
+	}
+
+	public static void main(String[] args)
+	{
+		float maxError = DEFAULT_MAX_ERROR;
+		int i = 0;
+		try
+		{
+			for(; i < args.length && args[i].startsWith("--"); i++)
+			{
+				if(args[i].equals("--error"))
+					maxError = Float.parseFloat(args[++i]);
+				else
+					usage("unknown option " + args[i]);
+			}
+			if(i == args.length)
+				usage("expected files or directories");
+
+			List<File> files = new ArrayList<File>();
+			for(; i < args.length; i++)
+			{
+				File f = new File(args[i]);
+				File[] listed = f.isDirectory() ? f.listFiles() : new File[] { f };
+				if(listed == null)
+					throw new IOException("can not list " + f);
+				for(File l : listed)
+				{
+					if(l.getName().endsWith(".xml")) files.add(l);
+				}
+			}
+
+			System.out.println(String.format("%-34s %8s %8s %8s %6s %10s", "clip", "keys", "sparse", "ratio", "flat", "max error"));
+			Report total = new Report();
+			total.name = "total";
+			for(File f : files)
+			{
+				List<KeyFrame> keys = parse(f);
+				if(keys.isEmpty()) continue;
+				Report report = measure(f.getParentFile().getName() + "/" + f.getName(), keys, optimize(keys, maxError));
+				System.out.println(report);
+				total.sourceKeys += report.sourceKeys;
+				total.keys += report.keys;
+				total.flatChannels += report.flatChannels;
+				total.maxError = Math.max(total.maxError, report.maxError);
+			}
+			System.out.println(total);
+		}
+		catch (NumberFormatException e)
+		{
+			usage("invalid error");
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			usage("missing option value");
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void usage(String error)
+	{
+		System.err.println(error);
+		System.err.println("usage: ClipOptimizer [--error e] file.xml|dir ...");
+		System.exit(2);
+	}
+
+	private static List<KeyFrame> parse(File in) throws IOException
+	{
+		InputStream is = new FileInputStream(in);
+		try
+		{
+			XmlPullParser parser = XmlPullParserFactory.newInstance(PARSER, null).newPullParser();
+			parser.setInput(is, null);
+			return new KeyFrameParser().parse(parser).keys;
+		}
+		catch (XmlPullParserException e)
+		{
+			throw new IOException(in + ": " + e.getMessage(), e);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+}
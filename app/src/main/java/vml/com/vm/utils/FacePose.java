@@ -31,5 +31,15 @@ public class FacePose
 	{
 		faceWeights= faceW.clone();
 	}
+
+	/**Class constructor
+	 * @param faceW 		Input face blendshapes weights
+	 * @param count			number of weights to copy from faceW
+	 * */
+	public FacePose(float[] faceW, int count)
+	{
+		faceWeights= new float[count];
+		System.arraycopy(faceW, 0, faceWeights, 0, count);
+	}
 	
 }
\ No newline at end of file
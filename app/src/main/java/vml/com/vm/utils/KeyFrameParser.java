@@ -0,0 +1,325 @@
+package vml.com.vm.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Streaming parser of the animation clip XML files (keyframeList of faceWeights and headNodding).
+ * <p>
+ * The DOM path builds the whole document and then splits every faceWeights text into Strings,
+ * one per weight. Here the document is pulled event by event and the weights are tokenized
+ * straight from the parser character buffer into a reused float array: apart from the KeyFrames
+ * themselves nothing is allocated per weight. The floats are the ones Float.parseFloat() gives.
+ * <p>
+ * A parser instance is not thread-safe but can be reused for several clips.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ */
+public class KeyFrameParser
+{
+	/**
+	 * Parsed clip
+	 */
+	public static class Clip
+	{
+		/**animation name attribute*/
+		public String name;
+		/**gender attribute of the gender element, null if absent*/
+		public String gender;
+		/**hair_model attribute of the hair_model element, null if absent*/
+		public String hairModel;
+		/**keys in file order*/
+		public List<KeyFrame> keys = new ArrayList<KeyFrame>();
+	}
+
+	/**
+	 * Receives the keys as soon as they are parsed
+	 */
+	public interface KeyListener
+	{
+		/**
+		 * Called when the keyframeList starts, the clip attributes are known
+		 * @param clip clip being parsed, without keys
+		 * @throws IOException to stop the parsing
+		 */
+		void onHeader(Clip clip) throws IOException;
+
+		/**
+		 * Called for every key, in file order
+		 * @param key parsed key
+		 * @throws IOException to stop the parsing
+		 */
+		void onKey(KeyFrame key) throws IOException;
+	}
+
+	/**doubles with this many significant digits or less are exact in a long*/
+	private static final int MAX_DIGITS = 18;
+	/**largest power of ten exactly representable as a double*/
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	/**double ulps of uncertainty around a float rounding midpoint*/
+	private static final long MIDPOINT_MARGIN = 8;
+
+	/**tokenized values of the current element, grown when needed*/
+	private float[] mValues = new float[128];
+	/**number of values in mValues*/
+	private int mCount;
+	/**start and length of the text returned by getTextCharacters()*/
+	private final int[] mHolder = new int[2];
+
+	/**
+	 * Parses a clip with the platform pull parser
+	 * @param is clip XML, not closed
+	 * @return the clip
+	 * @throws IOException reading or syntax problem
+	 */
+	public Clip parse(InputStream is) throws IOException
+	{
+		try
+		{
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(is, null);
+			return parse(parser);
+		}
+		catch (XmlPullParserException e)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Parses a clip
+	 * @param parser pull parser with its input set
+	 * @return the clip
+	 * @throws XmlPullParserException syntax problem
+	 * @throws IOException reading problem
+	 */
+	public Clip parse(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		return parse(parser, null);
+	}
+
+	/**
+	 * Parses a clip, handing the keys over as they are read. With a slow stream (a download)
+	 * the first keys can be used long before the document ends.
+	 * @param parser pull parser with its input set
+	 * @param listener receives the keys instead of the clip key list, can be null
+	 * @return the clip
+	 * @throws XmlPullParserException syntax problem
+	 * @throws IOException reading problem
+	 */
+	public Clip parse(XmlPullParser parser, KeyListener listener) throws XmlPullParserException, IOException
+	{
+		Clip clip = new Clip();
+		KeyFrame key = null;
+		int depth = 0;
+		int event = parser.getEventType();
+		while(event != XmlPullParser.END_DOCUMENT)
+		{
+			if(event == XmlPullParser.START_TAG)
+			{
+				depth++;
+				String tag = parser.getName();
+				if(tag.equals("key"))
+				{
+					key = new KeyFrame();
+					key.time = Integer.parseInt(parser.getAttributeValue(null, "t"));
+				}
+				else if(tag.equals("faceWeights") && key != null)
+				{
+					readValues(parser);
+					depth--;
+					key.pose = new FacePose(mValues, mCount);
+				}
+				else if(tag.equals("headNodding") && key != null)
+				{
+					readValues(parser);
+					depth--;
+					if(mCount > 0) key.noddingValue = mValues[0];
+				}
+				else if(tag.equals("animation"))
+					clip.name = parser.getAttributeValue(null, "name");
+				else if(tag.equals("gender"))
+					clip.gender = parser.getAttributeValue(null, "gender");
+				else if(tag.equals("hair_model"))
+					clip.hairModel = parser.getAttributeValue(null, "hair_model");
+				else if(tag.equals("keyframeList") && listener != null)
+					listener.onHeader(clip);
+			}
+			else if(event == XmlPullParser.END_TAG && --depth == 0)
+				break;
+			else if(event == XmlPullParser.END_TAG && key != null && parser.getName().equals("key"))
+			{
+				if(listener != null)
+					listener.onKey(key);
+				else
+					clip.keys.add(key);
+				key = null;
+			}
+			event = parser.next();
+		}
+		//a stream cut in the middle of the document
+		if(depth != 0)
+			throw new IOException("truncated clip, " + clip.keys.size() + " keys read");
+		return clip;
+	}
+
+	/**
+	 * Tokenizes the text of the current element into mValues, leaves the parser on its end tag
+	 */
+	private void readValues(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		mCount = 0;
+		int event = parser.next();
+		while(event == XmlPullParser.TEXT)
+		{
+			char[] text = parser.getTextCharacters(mHolder);
+			tokenize(text, mHolder[0], mHolder[0] + mHolder[1]);
+			event = parser.next();
+		}
+	}
+
+	/**
+	 * Appends the whitespace separated floats of buf[start, end) to mValues
+	 */
+	void tokenize(char[] buf, int start, int end)
+	{
+		int i = start;
+		while(i < end)
+		{
+			while(i < end && isSpace(buf[i])) i++;
+			if(i == end) break;
+			int tokenStart = i;
+			while(i < end && !isSpace(buf[i])) i++;
+			if(mCount == mValues.length)
+			{
+				float[] grown = new float[2 * mValues.length];
+				System.arraycopy(mValues, 0, grown, 0, mCount);
+				mValues = grown;
+			}
+			mValues[mCount++] = parseFloat(buf, tokenStart, i);
+		}
+	}
+
+	/**
+	 * @return the values tokenized from the last element
+	 */
+	float[] values()
+	{
+		return mValues;
+	}
+
+	/**
+	 * @return number of values tokenized from the last element
+	 */
+	int count()
+	{
+		return mCount;
+	}
+
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Parses a decimal float without allocating, same result as Float.parseFloat().
+	 * <p>
+	 * Up to 18 significant digits are accumulated in a long and scaled by an exact power of ten in
+	 * double precision, within a few double ulps of the exact value. Rounding that double to float is
+	 * then correct unless it lies right next to the midpoint of two floats; those rare cases, and
+	 * everything that is not a plain decimal (NaN, hexadecimal, subnormals...), go to Float.parseFloat().
+	 *
+	 * @param s characters
+	 * @param start first character of the number
+	 * @param end end of the number (exclusive)
+	 * @return the float value
+	 * @throws NumberFormatException when the characters are not a number
+	 */
+	public static float parseFloat(char[] s, int start, int end)
+	{
+		int i = start;
+		boolean negative = false;
+		if(i < end && (s[i] == '-' || s[i] == '+'))
+		{
+			negative = s[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean anyDigit = false;
+		for(; i < end && s[i] >= '0' && s[i] <= '9'; i++)
+		{
+			anyDigit = true;
+			if(digits < MAX_DIGITS)
+			{
+				mantissa = 10 * mantissa + (s[i] - '0');
+				if(mantissa != 0) digits++;
+			}
+			else
+				exp10++;
+		}
+		if(i < end && s[i] == '.')
+		{
+			for(i++; i < end && s[i] >= '0' && s[i] <= '9'; i++)
+			{
+				anyDigit = true;
+				if(digits < MAX_DIGITS)
+				{
+					mantissa = 10 * mantissa + (s[i] - '0');
+					if(mantissa != 0) digits++;
+					exp10--;
+				}
+			}
+		}
+		if(anyDigit && i < end && (s[i] == 'e' || s[i] == 'E'))
+		{
+			i++;
+			boolean negativeExp = false;
+			if(i < end && (s[i] == '-' || s[i] == '+'))
+			{
+				negativeExp = s[i] == '-';
+				i++;
+			}
+			int exp = 0;
+			boolean expDigit = false;
+			for(; i < end && s[i] >= '0' && s[i] <= '9'; i++)
+			{
+				expDigit = true;
+				if(exp < 10000) exp = 10 * exp + (s[i] - '0');
+			}
+			if(!expDigit) return slowParseFloat(s, start, end);
+			exp10 += negativeExp ? -exp : exp;
+		}
+		if(!anyDigit || i != end)
+			return slowParseFloat(s, start, end);
+		if(mantissa == 0)
+			return negative ? -0.0f : 0.0f;
+		if(exp10 < -22 || exp10 > 22)
+			return slowParseFloat(s, start, end);
+
+		double d = exp10 < 0 ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+		float f = (float) d;
+		if(f < Float.MIN_NORMAL || f > Float.MAX_VALUE)
+			return slowParseFloat(s, start, end);
+		//bits of the double below the float precision, 1 << 28 is halfway between two floats
+		long low = Double.doubleToRawLongBits(d) & ((1L << 29) - 1);
+		if(Math.abs(low - (1L << 28)) <= MIDPOINT_MARGIN)
+			return slowParseFloat(s, start, end);
+		return negative ? -f : f;
+	}
+
+	private static float slowParseFloat(char[] s, int start, int end)
+	{
+		return Float.parseFloat(new String(s, start, end - start));
+	}
+}
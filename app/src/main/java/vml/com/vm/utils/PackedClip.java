@@ -0,0 +1,381 @@
+package vml.com.vm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable animation clip stored as arrays instead of KeyFrame and FacePose objects.
+ * <p>
+ * A List&lt;KeyFrame&gt; costs a KeyFrame, a FacePose and a float array per key, spread over the heap,
+ * and the player follows three references to reach a weight. Here the face weights of all the keys are
+ * in one array, key after key: the weights of key k are weights[k*nWeights] .. weights[(k+1)*nWeights-1].
+ * The key times and the nodding values are in two arrays of their own.
+ * <p>
+ * {@link #pack(List)} and {@link #toKeys()} convert from and to the keyframe lists of the parsers.
+ * Keys arriving one by one or in batches are gathered by a {@link Builder}, which merges them in time
+ * order instead of sorting the whole clip again.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see KeyFrame
+ */
+public final class PackedClip
+{
+	/**number of face weights per key*/
+	public final int nWeights;
+
+	/**number of keys, the arrays can be longer*/
+	private final int count;
+	/**key times in ms, increasing*/
+	private final int[] times;
+	/**face weights of the keys, key after key*/
+	private final float[] weights;
+	/**head nodding value of the keys*/
+	private final float[] nodding;
+
+	private PackedClip(int nWeights, int count, int[] times, float[] weights, float[] nodding)
+	{
+		this.nWeights = nWeights;
+		this.count = count;
+		this.times = times;
+		this.weights = weights;
+		this.nodding = nodding;
+	}
+
+	/**
+	 * Packs a list of keys, sorted by time first if they are not.
+	 * Linear for sorted keys, the times are checked in one pass.
+	 * @param keys keys, every one with the same number of face weights
+	 * @return the clip
+	 */
+	public static PackedClip pack(List<KeyFrame> keys)
+	{
+		return new Builder(keys.size()).addAll(keys).build();
+	}
+
+	/**
+	 * @return the keys as a new keyframe list
+	 */
+	public List<KeyFrame> toKeys()
+	{
+		List<KeyFrame> keys = new ArrayList<KeyFrame>(count);
+		for(int k=0; k<count; k++)
+		{
+			KeyFrame key = new KeyFrame();
+			key.time = times[k];
+			key.pose = new FacePose(getWeights(k, new float[nWeights]));
+			key.noddingValue = nodding[k];
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	/**
+	 * @return number of keys
+	 */
+	public int getKeyCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return time of the last key, 0 for an empty clip
+	 */
+	public int getEndTime()
+	{
+		return count > 0 ? times[count - 1] : 0;
+	}
+
+	/**
+	 * @param key key index
+	 * @return time of the key in ms
+	 */
+	public int getTime(int key)
+	{
+		return times[key];
+	}
+
+	/**
+	 * @param key key index
+	 * @param weight face weight index
+	 * @return the face weight of the key
+	 */
+	public float getWeight(int key, int weight)
+	{
+		return weights[key * nWeights + weight];
+	}
+
+	/**
+	 * @param key key index
+	 * @param out receives the nWeights face weights of the key
+	 * @return out
+	 */
+	public float[] getWeights(int key, float[] out)
+	{
+		System.arraycopy(weights, key * nWeights, out, 0, nWeights);
+		return out;
+	}
+
+	/**
+	 * @param key key index
+	 * @return head nodding value of the key
+	 */
+	public float getNodding(int key)
+	{
+		return nodding[key];
+	}
+
+	/**
+	 * Interpolates the face weights between a key and the next one
+	 *
+	 * @param key key index, below getKeyCount()-1
+	 * @param weight interpolation step, 0 at the key and 1 at the next key
+	 * @param out receives the nWeights face weights
+	 */
+	public void interpolate(int key, float weight, float[] out)
+	{
+		int cur = key * nWeights;
+		int next = cur + nWeights;
+		for(int i=0; i<nWeights; i++)
+		{
+			out[i]=weight*weights[next + i]+(1-weight)*weights[cur + i];
+		}
+	}
+
+	/**
+	 * @return size of the keys of the clip in bytes
+	 */
+	public int getDataSize()
+	{
+		return 4 * count * (2 + nWeights);
+	}
+
+	/**
+	 * Gathers keys into packed clips. Keys are appended when they come in time order, the usual case,
+	 * and merged into their place otherwise: a batch of keys is merged in one pass over the clip,
+	 * a late key is moved back past the keys after it only. Keys at the same time stay in the order
+	 * they were added.
+	 * <p>
+	 * build() does not copy: the clip it returns reads the first keys of the arrays of the builder, which
+	 * keeps its spare capacity. Keys appended after a build go past the keys of the clip and leave it
+	 * unchanged, so a clip built after every key costs nothing more. The arrays are copied only when
+	 * a key has to be merged among the keys of a built clip, unless the built clips have been given
+	 * up with {@link #recycle()}.
+	 */
+	public static final class Builder
+	{
+		/**number of face weights per key, -1 before the first key*/
+		private int nWeights = -1;
+		private int count;
+		private int[] times;
+		private float[] weights;
+		private float[] nodding;
+		/**number of first keys read by the built clips, they are not written again*/
+		private int shared;
+		/**the arrays come from a clip built elsewhere, which may append to them*/
+		private boolean borrowed;
+
+		/**
+		 * @param capacity number of keys expected
+		 */
+		public Builder(int capacity)
+		{
+			times = new int[capacity];
+			nodding = new float[capacity];
+			weights = new float[0];
+		}
+
+		public Builder()
+		{
+			this(16);
+		}
+
+		/**
+		 * Starts from the keys of a clip, whose arrays are copied on the first addition
+		 * @param clip keys to start from
+		 */
+		public Builder(PackedClip clip)
+		{
+			count = clip.count;
+			nWeights = count > 0 ? clip.nWeights : -1;
+			times = clip.times;
+			weights = clip.weights;
+			nodding = clip.nodding;
+			shared = count;
+			borrowed = true;
+		}
+
+		/**
+		 * @return number of keys added
+		 */
+		public int getKeyCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Adds a key
+		 * @param time key time in ms
+		 * @param faceWeights face weights of the key, copied
+		 * @param noddingValue head nodding value
+		 * @return this builder
+		 */
+		public Builder add(int time, float[] faceWeights, float noddingValue)
+		{
+			checkWeights(faceWeights.length, count);
+			int pos = count;
+			if(count > 0 && time < times[count - 1])
+				pos = upperBound(time);
+			reserve(count + 1, pos);
+			if(pos < count)
+			{
+				System.arraycopy(times, pos, times, pos + 1, count - pos);
+				System.arraycopy(nodding, pos, nodding, pos + 1, count - pos);
+				System.arraycopy(weights, pos * nWeights, weights, (pos + 1) * nWeights, (count - pos) * nWeights);
+			}
+			set(pos, time, faceWeights, noddingValue);
+			count++;
+			return this;
+		}
+
+		/**
+		 * Adds a key
+		 * @param key key, its weights are copied
+		 * @return this builder
+		 */
+		public Builder add(KeyFrame key)
+		{
+			return add(key.time, key.pose.faceWeights, key.noddingValue);
+		}
+
+		/**
+		 * Adds a batch of keys: appended if they follow the keys already added, merged otherwise.
+		 * The batch is sorted only if its times are not increasing.
+		 * @param keys keys, every one with the same number of face weights
+		 * @return this builder
+		 */
+		public Builder addAll(List<KeyFrame> keys)
+		{
+			int m = keys.size();
+			if(m == 0) return this;
+			for(int k=0; k<m; k++)
+				checkWeights(keys.get(k).pose.faceWeights.length, count + k);
+			for(int k=1; k<m; k++)
+			{
+				if(keys.get(k).time < keys.get(k - 1).time)
+				{
+					keys = new ArrayList<KeyFrame>(keys);
+					Collections.sort(keys, new KeyFrameComparator()); //sort with respect to time
+					break;
+				}
+			}
+
+			boolean append = count == 0 || keys.get(0).time >= times[count - 1];
+			reserve(count + m, append ? count : upperBound(keys.get(0).time));
+			if(append)
+			{
+				for(int k=0; k<m; k++)
+				{
+					KeyFrame key = keys.get(k);
+					set(count + k, key.time, key.pose.faceWeights, key.noddingValue);
+				}
+			}
+			else
+			{
+				//merge from the end, the keys already added move up at most once
+				int i = count - 1;
+				for(int j=m-1, dst=count+m-1; j>=0; dst--)
+				{
+					KeyFrame key = keys.get(j);
+					if(i >= 0 && times[i] > key.time)
+					{
+						times[dst] = times[i];
+						nodding[dst] = nodding[i];
+						System.arraycopy(weights, i * nWeights, weights, dst * nWeights, nWeights);
+						i--;
+					}
+					else
+					{
+						set(dst, key.time, key.pose.faceWeights, key.noddingValue);
+						j--;
+					}
+				}
+			}
+			count += m;
+			return this;
+		}
+
+		/**
+		 * @return a clip of the keys added so far, sharing the arrays of the builder
+		 */
+		public PackedClip build()
+		{
+			shared = Math.max(shared, count);
+			return new PackedClip(Math.max(nWeights, 0), count, times, weights, nodding);
+		}
+
+		/**
+		 * Gives up the clips built so far: the keys they read can be moved again instead of copied.
+		 * Only for a builder whose clips are all read by the calling thread, which does not use
+		 * them anymore.
+		 */
+		public void recycle()
+		{
+			if(!borrowed) shared = 0;
+		}
+
+		private void checkWeights(int length, int key)
+		{
+			if(nWeights < 0)
+				nWeights = length;
+			else if(length != nWeights)
+				throw new IllegalArgumentException("key " + key + " has " + length + " weights instead of " + nWeights);
+		}
+
+		/**
+		 * Makes room for a number of keys, copying the arrays if the keys from the given one on are
+		 * read by a built clip
+		 * @param keys number of keys
+		 * @param firstWritten first key written
+		 */
+		private void reserve(int keys, int firstWritten)
+		{
+			int capacity = times.length;
+			if(keys > capacity)
+				capacity = Math.max(keys, capacity + (capacity >> 1));
+			else if(!borrowed && firstWritten >= shared && weights.length >= capacity * nWeights)
+				return;
+			times = Arrays.copyOf(times, capacity);
+			nodding = Arrays.copyOf(nodding, capacity);
+			weights = Arrays.copyOf(weights, capacity * nWeights);
+			shared = 0;
+			borrowed = false;
+		}
+
+		private void set(int pos, int time, float[] faceWeights, float noddingValue)
+		{
+			times[pos] = time;
+			nodding[pos] = noddingValue;
+			System.arraycopy(faceWeights, 0, weights, pos * nWeights, nWeights);
+		}
+
+		/**
+		 * @return index of the first key after time
+		 */
+		private int upperBound(int time)
+		{
+			int lo = 0, hi = count;
+			while(lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if(times[mid] <= time)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+}
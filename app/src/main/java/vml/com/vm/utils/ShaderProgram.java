@@ -0,0 +1,479 @@
+package vml.com.vm.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.opengl.GLES20;
+
+/**
+ * Linked shader program with its active attributes and uniforms.
+ * <p>
+ * The attributes and uniforms are reflected once, when the program is created, instead of being
+ * looked up by name every frame. Arrays are reflected element by element: "name[i]" for every element
+ * and "name" for the first one.
+ * <p>
+ * The values uploaded through the uniform*() methods are remembered per location and an upload of the
+ * value a uniform already holds is skipped, so the uniforms which seldom change (samplers, materials
+ * shared by several models) cost nothing per draw. The values are per program, so they stay valid
+ * across glUseProgram() calls. Uniforms set with GLES20 directly must be followed by
+ * {@link #invalidate()}.
+ * <p>
+ * The GL calls go through the {@link GL} interface, GLES20 on a device.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see VMShaderUtil#createAndLinkProgram(int, int, String[])
+ */
+public class ShaderProgram
+{
+	/**
+	 * The GL calls used by the program
+	 */
+	public interface GL
+	{
+		void glGetProgramiv(int program, int pname, int[] params, int offset);
+		/**
+		 * @return name of the active attribute, size[sizeOffset] and type[typeOffset] are set
+		 */
+		String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+		/**
+		 * @return name of the active uniform, size[sizeOffset] and type[typeOffset] are set
+		 */
+		String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+		int glGetAttribLocation(int program, String name);
+		int glGetUniformLocation(int program, String name);
+		void glUseProgram(int program);
+		void glUniform1i(int location, int x);
+		void glUniform1f(int location, float x);
+		void glUniform3f(int location, float x, float y, float z);
+		void glUniform4f(int location, float x, float y, float z, float w);
+		void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+		int glGetError();
+	}
+
+	/**GLES20, the names are read into a byte buffer since glGetActiveAttrib() returns them from Android 4.2 only*/
+	public static final GL GLES = new GL()
+	{
+		private byte[] mName = new byte[64];
+		private final int[] mLength = new int[1];
+
+		@Override
+		public void glGetProgramiv(int program, int pname, int[] params, int offset)
+		{
+			GLES20.glGetProgramiv(program, pname, params, offset);
+		}
+
+		@Override
+		public String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset)
+		{
+			reserve(program, GLES20.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH);
+			GLES20.glGetActiveAttrib(program, index, mName.length, mLength, 0, size, sizeOffset, type, typeOffset, mName, 0);
+			return new String(mName, 0, mLength[0]);
+		}
+
+		@Override
+		public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset)
+		{
+			reserve(program, GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
+			GLES20.glGetActiveUniform(program, index, mName.length, mLength, 0, size, sizeOffset, type, typeOffset, mName, 0);
+			return new String(mName, 0, mLength[0]);
+		}
+
+		private void reserve(int program, int pname)
+		{
+			GLES20.glGetProgramiv(program, pname, mLength, 0);
+			if(mName.length < mLength[0]) mName = new byte[mLength[0]];
+		}
+
+		@Override
+		public int glGetAttribLocation(int program, String name)
+		{
+			return GLES20.glGetAttribLocation(program, name);
+		}
+
+		@Override
+		public int glGetUniformLocation(int program, String name)
+		{
+			return GLES20.glGetUniformLocation(program, name);
+		}
+
+		@Override
+		public void glUseProgram(int program)
+		{
+			GLES20.glUseProgram(program);
+		}
+
+		@Override
+		public void glUniform1i(int location, int x)
+		{
+			GLES20.glUniform1i(location, x);
+		}
+
+		@Override
+		public void glUniform1f(int location, float x)
+		{
+			GLES20.glUniform1f(location, x);
+		}
+
+		@Override
+		public void glUniform3f(int location, float x, float y, float z)
+		{
+			GLES20.glUniform3f(location, x, y, z);
+		}
+
+		@Override
+		public void glUniform4f(int location, float x, float y, float z, float w)
+		{
+			GLES20.glUniform4f(location, x, y, z, w);
+		}
+
+		@Override
+		public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset)
+		{
+			GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+		}
+
+		@Override
+		public int glGetError()
+		{
+			return GLES20.glGetError();
+		}
+	};
+
+	/**
+	 * Active attribute or uniform (one element of an array)
+	 */
+	public static class Variable
+	{
+		/**name, with the index for the elements of arrays*/
+		public final String name;
+		/**GL type, GLES20.GL_FLOAT_VEC3...*/
+		public final int type;
+		/**location, used to set it*/
+		public final int location;
+
+		Variable(String name, int type, int location)
+		{
+			this.name = name;
+			this.type = type;
+			this.location = location;
+		}
+	}
+
+	private final GL mGL;
+	/**program handle*/
+	private final int mProgram;
+	private final Map<String,Variable> mAttributes = new LinkedHashMap<String,Variable>();
+	private final Map<String,Variable> mUniforms = new LinkedHashMap<String,Variable>();
+
+	/**uniform locations, sorted, the index is the slot of the values below*/
+	private final int[] mLocations;
+	/**last values uploaded per slot, 16 floats per slot (ints are kept as their bits)*/
+	private final float[] mValues;
+	/**the value of a slot is known*/
+	private final boolean[] mKnown;
+
+	/**
+	 * Links a program with VMShaderUtil and reflects it
+	 *
+	 * @param vertexShaderHandle already compiled vertex shader
+	 * @param fragmentShaderHandle already compiled fragment shader
+	 * @param attributes attributes bound to the locations 0..n-1, can be null
+	 * @return the program
+	 */
+	public static ShaderProgram create(int vertexShaderHandle, int fragmentShaderHandle, String[] attributes)
+	{
+		return new ShaderProgram(GLES, VMShaderUtil.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes));
+	}
+
+	/**
+	 * Reflects a linked program
+	 *
+	 * @param gl GL calls
+	 * @param program linked program handle
+	 */
+	public ShaderProgram(GL gl, int program)
+	{
+		mGL = gl;
+		mProgram = program;
+
+		int[] count = new int[1];
+		int[] size = new int[1];
+		int[] type = new int[1];
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_ATTRIBUTES, count, 0);
+		for(int i=0; i<count[0]; i++)
+		{
+			String name = gl.glGetActiveAttrib(program, i, size, 0, type, 0);
+			mAttributes.put(name, new Variable(name, type[0], gl.glGetAttribLocation(program, name)));
+		}
+
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+		for(int i=0; i<count[0]; i++)
+		{
+			String name = gl.glGetActiveUniform(program, i, size, 0, type, 0);
+			//arrays are reported as "name" or "name[0]" depending on the driver
+			boolean array = size[0] > 1 || name.endsWith("[0]");
+			if(name.endsWith("[0]")) name = name.substring(0, name.length() - 3);
+			if(!array)
+			{
+				mUniforms.put(name, new Variable(name, type[0], gl.glGetUniformLocation(program, name)));
+				continue;
+			}
+			for(int e=0; e<size[0]; e++)
+			{
+				String element = name + "[" + e + "]";
+				Variable v = new Variable(element, type[0], gl.glGetUniformLocation(program, element));
+				mUniforms.put(element, v);
+				if(e == 0) mUniforms.put(name, v);
+			}
+		}
+		VMShaderUtil.checkGlError(gl, "ShaderProgram reflection");
+
+		int[] locations = new int[mUniforms.size()];
+		int n = 0;
+		for(Variable v : mUniforms.values())
+			if(v.location >= 0) locations[n++] = v.location;
+		Arrays.sort(locations, 0, n);
+		//the first element of an array is registered twice
+		int unique = 0;
+		for(int i=0; i<n; i++)
+			if(unique == 0 || locations[unique - 1] != locations[i]) locations[unique++] = locations[i];
+		mLocations = Arrays.copyOf(locations, unique);
+		mValues = new float[16 * unique];
+		mKnown = new boolean[unique];
+	}
+
+	/**
+	 * @return the program handle
+	 */
+	public int getHandle()
+	{
+		return mProgram;
+	}
+
+	/**
+	 * Makes the program current
+	 */
+	public void use()
+	{
+		mGL.glUseProgram(mProgram);
+	}
+
+	/**
+	 * @param name attribute name
+	 * @return the attribute, null if the program has no such active attribute
+	 */
+	public Variable getAttribute(String name)
+	{
+		return mAttributes.get(name);
+	}
+
+	/**
+	 * @param name uniform name, "name[i]" for the elements of arrays
+	 * @return the uniform, null if the program has no such active uniform
+	 */
+	public Variable getUniform(String name)
+	{
+		return mUniforms.get(name);
+	}
+
+	/**
+	 * @param name attribute name
+	 * @return the location of the attribute, -1 if it is not active
+	 */
+	public int getAttribLocation(String name)
+	{
+		Variable v = mAttributes.get(name);
+		return v != null ? v.location : -1;
+	}
+
+	/**
+	 * @param name uniform name, "name[i]" for the elements of arrays
+	 * @return the location of the uniform, -1 if it is not active (setting it does nothing)
+	 */
+	public int getUniformLocation(String name)
+	{
+		Variable v = mUniforms.get(name);
+		return v != null ? v.location : -1;
+	}
+
+	/**
+	 * @param name attribute name
+	 * @return the location of the attribute
+	 * @throws RuntimeException if the attribute is not active
+	 */
+	public int requireAttribLocation(String name)
+	{
+		int location = getAttribLocation(name);
+		if(location == -1)
+			throw new RuntimeException("Could not get attrib location for " + name);
+		return location;
+	}
+
+	/**
+	 * @param name uniform name
+	 * @return the location of the uniform
+	 * @throws RuntimeException if the uniform is not active
+	 */
+	public int requireUniformLocation(String name)
+	{
+		int location = getUniformLocation(name);
+		if(location == -1)
+			throw new RuntimeException("Could not get uniform location for " + name);
+		return location;
+	}
+
+	/**
+	 * @return the names of the active attributes
+	 */
+	public String[] getAttributeNames()
+	{
+		return mAttributes.keySet().toArray(new String[mAttributes.size()]);
+	}
+
+	/**
+	 * @return the names of the active uniforms, with the elements of the arrays
+	 */
+	public String[] getUniformNames()
+	{
+		return mUniforms.keySet().toArray(new String[mUniforms.size()]);
+	}
+
+	/**
+	 * Forgets the values uploaded, the next upload of every uniform is done
+	 */
+	public void invalidate()
+	{
+		Arrays.fill(mKnown, false);
+	}
+
+	/**
+	 * Sets an int or sampler uniform, skipped if it holds this value already
+	 * @param location location of the uniform, -1 does nothing
+	 */
+	public void uniform1i(int location, int x)
+	{
+		int slot = slot(location);
+		if(slot == SKIP || (slot >= 0 && !changed(slot, Float.intBitsToFloat(x)))) return;
+		mGL.glUniform1i(location, x);
+	}
+
+	/**
+	 * Sets a float uniform, skipped if it holds this value already
+	 * @param location location of the uniform, -1 does nothing
+	 */
+	public void uniform1f(int location, float x)
+	{
+		int slot = slot(location);
+		if(slot == SKIP || (slot >= 0 && !changed(slot, x))) return;
+		mGL.glUniform1f(location, x);
+	}
+
+	/**
+	 * Sets a vec3 uniform, skipped if it holds this value already
+	 * @param location location of the uniform, -1 does nothing
+	 */
+	public void uniform3f(int location, float x, float y, float z)
+	{
+		int slot = slot(location);
+		if(slot == SKIP || (slot >= 0 && !changed(slot, x, y, z))) return;
+		mGL.glUniform3f(location, x, y, z);
+	}
+
+	/**
+	 * Sets a vec4 uniform, skipped if it holds this value already
+	 * @param location location of the uniform, -1 does nothing
+	 */
+	public void uniform4f(int location, float x, float y, float z, float w)
+	{
+		int slot = slot(location);
+		if(slot == SKIP || (slot >= 0 && !changed(slot, x, y, z, w))) return;
+		mGL.glUniform4f(location, x, y, z, w);
+	}
+
+	/**
+	 * Sets a mat4 uniform, skipped if it holds this value already.
+	 * Arrays of matrices (count &gt; 1) and transposed matrices are always uploaded.
+	 * @param location location of the uniform, -1 does nothing
+	 */
+	public void uniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset)
+	{
+		int slot = slot(location);
+		if(slot == SKIP) return;
+		if(slot >= 0)
+		{
+			if(count != 1 || transpose)
+				mKnown[slot] = false;
+			else if(!changed(slot, value, offset))
+				return;
+		}
+		mGL.glUniformMatrix4fv(location, count, transpose, value, offset);
+	}
+
+	/**location -1, uploads are ignored by GL*/
+	private static final int SKIP = Integer.MIN_VALUE;
+
+	/**
+	 * @return the slot of the location, SKIP for -1, -1 when the location was not reflected (always uploaded)
+	 */
+	private int slot(int location)
+	{
+		if(location == -1) return SKIP;
+		int slot = Arrays.binarySearch(mLocations, location);
+		return slot >= 0 ? slot : -1;
+	}
+
+	/**
+	 * Stores the value of a slot
+	 * @return true if it differs from the previous one
+	 */
+	private boolean changed(int slot, float x)
+	{
+		int o = 16 * slot;
+		float[] v = mValues;
+		if(mKnown[slot] && same(v[o], x)) return false;
+		v[o] = x;
+		mKnown[slot] = true;
+		return true;
+	}
+
+	private boolean changed(int slot, float x, float y, float z)
+	{
+		int o = 16 * slot;
+		float[] v = mValues;
+		if(mKnown[slot] && same(v[o], x) && same(v[o+1], y) && same(v[o+2], z)) return false;
+		v[o] = x; v[o+1] = y; v[o+2] = z;
+		mKnown[slot] = true;
+		return true;
+	}
+
+	private boolean changed(int slot, float x, float y, float z, float w)
+	{
+		int o = 16 * slot;
+		float[] v = mValues;
+		if(mKnown[slot] && same(v[o], x) && same(v[o+1], y) && same(v[o+2], z) && same(v[o+3], w)) return false;
+		v[o] = x; v[o+1] = y; v[o+2] = z; v[o+3] = w;
+		mKnown[slot] = true;
+		return true;
+	}
+
+	private boolean changed(int slot, float[] value, int offset)
+	{
+		int o = 16 * slot;
+		float[] v = mValues;
+		boolean same = mKnown[slot];
+		for(int i=0; i<16 && same; i++)
+			same = same(v[o+i], value[offset+i]);
+		if(same) return false;
+		System.arraycopy(value, offset, v, o, 16);
+		mKnown[slot] = true;
+		return true;
+	}
+
+	/**bitwise, so a change of the sign of 0 is uploaded*/
+	private static boolean same(float a, float b)
+	{
+		return Float.floatToRawIntBits(a) == Float.floatToRawIntBits(b);
+	}
+}
@@ -0,0 +1,228 @@
+package vml.com.vm.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Animation clip decimated channel by channel, with a bounded error.
+ * <p>
+ * The clips carry a key every 16 ms for every blendshape, but most channels are flat or move
+ * linearly for long stretches. Every channel (the face weights, then the head nodding) keeps only
+ * the keys needed for the linear interpolation between them to stay within maxError of the linear
+ * interpolation of the original keys. The kept keys keep their original values.
+ * <p>
+ * The keys of channel c are times[trackStart[c]] .. times[trackStart[c+1]-1], with their values
+ * at the same indices of values. Every track keeps the first and last keys of the clip.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see ClipOptimizer
+ */
+public class SparseClip
+{
+	/**number of face weights*/
+	public final int nWeights;
+	/**number of channels, the face weights and the head nodding*/
+	public final int nChannels;
+	/**largest interpolation error allowed at build time*/
+	public final float maxError;
+	/**number of keys of the original clip*/
+	public final int nSourceKeys;
+	/**start of each channel in times and values (nChannels+1 entries)*/
+	public final int[] trackStart;
+	/**key times of the channels, increasing within each channel*/
+	public final int[] times;
+	/**key values of the channels*/
+	public final float[] values;
+
+	SparseClip(int nWeights, float maxError, int nSourceKeys, int[] trackStart, int[] times, float[] values)
+	{
+		this.nWeights = nWeights;
+		this.nChannels = nWeights + 1;
+		this.maxError = maxError;
+		this.nSourceKeys = nSourceKeys;
+		this.trackStart = trackStart;
+		this.times = times;
+		this.values = values;
+	}
+
+	/**
+	 * Decimates the keys of a clip
+	 *
+	 * @param keys keys sorted by time, every one with the same number of weights
+	 * @param maxError largest difference allowed between the interpolated channels of the clip and of the keys
+	 * @return the sparse clip
+	 */
+	public static SparseClip build(List<KeyFrame> keys, float maxError)
+	{
+		int nKeys = keys.size();
+		if(nKeys == 0)
+			throw new IllegalArgumentException("no keys");
+		int nWeights = keys.get(0).pose.faceWeights.length;
+		int nChannels = nWeights + 1;
+		//margin for the float interpolation at playback
+		double error = Math.abs(maxError) * (1.0 - 1e-4);
+
+		int[] sourceTimes = new int[nKeys];
+		for(int k=0; k<nKeys; k++)
+			sourceTimes[k] = keys.get(k).time;
+		float[] channel = new float[nKeys];
+		int[] kept = new int[nKeys];
+		int[] counts = new int[nChannels];
+		int[][] keptKeys = new int[nChannels][];
+		for(int c=0; c<nChannels; c++)
+		{
+			for(int k=0; k<nKeys; k++)
+				channel[k] = c < nWeights ? keys.get(k).pose.faceWeights[c] : keys.get(k).noddingValue;
+			counts[c] = decimate(sourceTimes, channel, nKeys, error, kept);
+			keptKeys[c] = Arrays.copyOf(kept, counts[c]);
+		}
+
+		int[] trackStart = new int[nChannels + 1];
+		for(int c=0; c<nChannels; c++)
+			trackStart[c + 1] = trackStart[c] + counts[c];
+		int[] times = new int[trackStart[nChannels]];
+		float[] values = new float[times.length];
+		for(int c=0; c<nChannels; c++)
+		{
+			for(int i=0; i<counts[c]; i++)
+			{
+				KeyFrame key = keys.get(keptKeys[c][i]);
+				times[trackStart[c] + i] = key.time;
+				values[trackStart[c] + i] = c < nWeights ? key.pose.faceWeights[c] : key.noddingValue;
+			}
+		}
+		return new SparseClip(nWeights, maxError, nKeys, trackStart, times, values);
+	}
+
+	/**
+	 * Greedy decimation of one channel: from every kept key, the next kept key is the farthest one
+	 * whose line from the kept key passes within error of all the keys in between. The slopes
+	 * allowed by the keys in between are narrowed key after key, so a channel is done in one pass.
+	 *
+	 * @param t key times
+	 * @param v key values
+	 * @param n number of keys
+	 * @param error largest error allowed
+	 * @param kept indices of the kept keys
+	 * @return number of kept keys
+	 */
+	static int decimate(int[] t, float[] v, int n, double error, int[] kept)
+	{
+		int count = 0;
+		kept[count++] = 0;
+		int start = 0;
+		while(start < n - 1)
+		{
+			double lo = Double.NEGATIVE_INFINITY, hi = Double.POSITIVE_INFINITY;
+			int end = start + 1;
+			for(int j=start+1; j<n; j++)
+			{
+				double dt = t[j] - t[start];
+				if(dt <= 0)
+					break;
+				double slope = (v[j] - v[start]) / dt;
+				if(slope < lo || slope > hi)
+					break;
+				end = j;
+				lo = Math.max(lo, (v[j] - error - v[start]) / dt);
+				hi = Math.min(hi, (v[j] + error - v[start]) / dt);
+				if(lo > hi)
+					break;
+			}
+			kept[count++] = end;
+			start = end;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of keys of all the channels
+	 */
+	public int getKeyCount()
+	{
+		return times.length;
+	}
+
+	/**
+	 * @return number of keys of the original clip, all the channels
+	 */
+	public int getSourceKeyCount()
+	{
+		return nSourceKeys * nChannels;
+	}
+
+	/**
+	 * @param channel channel index, nWeights for the head nodding
+	 * @return number of keys of the channel
+	 */
+	public int getKeyCount(int channel)
+	{
+		return trackStart[channel + 1] - trackStart[channel];
+	}
+
+	/**
+	 * @return time of the last key
+	 */
+	public int getEndTime()
+	{
+		int end = 0;
+		for(int c=0; c<nChannels; c++)
+			end = Math.max(end, times[trackStart[c + 1] - 1]);
+		return end;
+	}
+
+	/**
+	 * @return a cursor for evaluate(), one per player
+	 */
+	public int[] newCursor()
+	{
+		int[] cursor = new int[nChannels];
+		for(int c=0; c<nChannels; c++)
+			cursor[c] = trackStart[c];
+		return cursor;
+	}
+
+	/**
+	 * Interpolates every channel at a time, the values are held before the first key and after the last one.
+	 * Each channel moves its cursor forward during playback and searches on seeks, nothing is allocated.
+	 *
+	 * @param time time in ms
+	 * @param cursor cursor from newCursor(), key of each channel at or before the last time evaluated
+	 * @param weights receives the nWeights face weights
+	 * @return the head nodding value
+	 */
+	public float evaluate(int time, int[] cursor, float[] weights)
+	{
+		for(int c=0; c<nWeights; c++)
+			weights[c] = evaluate(c, time, cursor);
+		return evaluate(nWeights, time, cursor);
+	}
+
+	private float evaluate(int c, int time, int[] cursor)
+	{
+		int first = trackStart[c];
+		int last = trackStart[c + 1] - 1;
+		int i = cursor[c];
+		if(times[i] > time)
+		{
+			//seek backwards
+			if(times[first] >= time)
+			{
+				cursor[c] = first;
+				return values[first];
+			}
+			i = Arrays.binarySearch(times, first, i, time);
+			if(i < 0) i = -i - 2;
+		}
+		else
+		{
+			while(i < last && times[i + 1] <= time) i++;
+		}
+		cursor[c] = i;
+		if(i == last)
+			return values[last];
+		float weight = (float)(time - times[i])/(float)(times[i + 1] - times[i]);
+		return weight*values[i + 1]+(1-weight)*values[i];
+	}
+}
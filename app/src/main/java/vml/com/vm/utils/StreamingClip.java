@@ -0,0 +1,384 @@
+package vml.com.vm.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Animation clip played while it is still being received.
+ * <p>
+ * A reader thread parses the animation XML from a stream (a download, a socket...) and appends
+ * the keys to a ring buffer as they arrive. The player does not wait for the end of the document:
+ * {@link #awaitLead()} returns as soon as the first keys covering the lead time are buffered.
+ * The player then reads the keys by index with {@link #getKey(int)} and gives back the ones it
+ * is done with with {@link #release(int)}. The reader thread waits when the ring is full, so a
+ * long clip is never held in memory entirely.
+ * <p>
+ * One reader thread appends, one player thread reads. A key not received yet when it is needed is
+ * an underrun: the player keeps the last pose until it arrives, see {@link #getUnderruns()}.
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ *
+ * @see vml.com.vm.avatar.VMAvatar#playStream(StreamingClip)
+ */
+public class StreamingClip
+{
+	private static String TAG = "StreamingClip";
+
+	/**default ring size, 16 seconds of 16 ms keys*/
+	public static final int DEFAULT_CAPACITY = 1024;
+	/**default time buffered before the playback starts*/
+	public static final int DEFAULT_LEAD_MS = 250;
+
+	/**clip name, gender and hair model, known once the header is read*/
+	private volatile KeyFrameParser.Clip mHeader;
+
+	private final KeyFrame[] mRing;
+	private final int mMask;
+	private final int mLeadMs;
+	private final Object mLock = new Object();
+	/**number of keys received*/
+	private volatile int mWritten;
+	/**keys below this index are not used anymore*/
+	private volatile int mReleased;
+	private volatile boolean mComplete;
+	private volatile IOException mError;
+	private volatile int mUnderruns;
+	private volatile boolean mClosed;
+
+	/**times of the first and last keys received*/
+	private int mFirstTime, mLastTime;
+
+	private Thread mReader;
+	private InputStream mInput;
+	/**times of the stream, for the statistics*/
+	private long mOpenNs, mLeadNs = -1, mCompleteNs = -1;
+
+	/**
+	 * @param capacity number of keys buffered at most, rounded up to a power of two
+	 * @param leadMs animation time buffered before the playback starts
+	 */
+	public StreamingClip(int capacity, int leadMs)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mRing = new KeyFrame[size];
+		mMask = size - 1;
+		mLeadMs = leadMs;
+	}
+
+	public StreamingClip()
+	{
+		this(DEFAULT_CAPACITY, DEFAULT_LEAD_MS);
+	}
+
+	/**
+	 * Starts reading a clip, with the platform pull parser.
+	 * Returns once the clip header (name, gender, hair model) is read, the keys are read in the background.
+	 * @param is animation XML, closed at the end
+	 * @throws IOException reading or syntax problem before the keys
+	 */
+	public void open(InputStream is) throws IOException
+	{
+		XmlPullParser parser = Xml.newPullParser();
+		try
+		{
+			parser.setInput(is, null);
+		}
+		catch (XmlPullParserException e)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+		open(parser, is);
+	}
+
+	/**
+	 * Starts reading a clip from a channel, see open(InputStream)
+	 * @param channel animation XML, closed at the end
+	 * @throws IOException reading or syntax problem before the keys
+	 */
+	public void open(ReadableByteChannel channel) throws IOException
+	{
+		open(Channels.newInputStream(channel));
+	}
+
+	/**
+	 * Starts reading a clip, see open(InputStream)
+	 * @param parser pull parser with its input set
+	 * @param is input of the parser, closed at the end
+	 * @throws IOException reading or syntax problem before the keys
+	 */
+	public void open(final XmlPullParser parser, final InputStream is) throws IOException
+	{
+		if(mReader != null)
+			throw new IllegalStateException("stream already open");
+		mOpenNs = System.nanoTime();
+		mInput = is;
+		mReader = new Thread("ClipStream")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					new KeyFrameParser().parse(parser, new KeyFrameParser.KeyListener()
+					{
+						@Override
+						public void onHeader(KeyFrameParser.Clip clip)
+						{
+							synchronized (mLock)
+							{
+								mHeader = clip;
+								mLock.notifyAll();
+							}
+						}
+
+						@Override
+						public void onKey(KeyFrame key) throws IOException
+						{
+							append(key);
+						}
+					});
+					if(mHeader == null)
+						throw new IOException("no keyframeList in the clip");
+				}
+				catch (XmlPullParserException e)
+				{
+					mError = new IOException(e.getMessage(), e);
+				}
+				catch (IOException e)
+				{
+					if(!mClosed) mError = e;
+				}
+				finally
+				{
+					try
+					{
+						is.close();
+					}
+					catch (IOException e)
+					{
+						Log.w(TAG, "can not close the clip stream", e);
+					}
+					synchronized (mLock)
+					{
+						mComplete = true;
+						mCompleteNs = System.nanoTime();
+						mLock.notifyAll();
+					}
+				}
+			}
+		};
+		mReader.setDaemon(true);
+		mReader.start();
+
+		synchronized (mLock)
+		{
+			try
+			{
+				while(mHeader == null && !mComplete) mLock.wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				close();
+				throw new InterruptedIOException("interrupted while opening the clip stream");
+			}
+		}
+		if(mHeader == null)
+		{
+			throw mError != null ? mError : new IOException("no keyframeList in the clip");
+		}
+	}
+
+	/**
+	 * Appends a key, waiting while the ring is full. Called by the reader thread.
+	 */
+	void append(KeyFrame key) throws IOException
+	{
+		synchronized (mLock)
+		{
+			try
+			{
+				while(mWritten - mReleased >= mRing.length && !mClosed) mLock.wait();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("clip stream closed");
+			}
+			if(mClosed)
+				throw new InterruptedIOException("clip stream closed");
+			if(mWritten == 0) mFirstTime = key.time;
+			mLastTime = key.time;
+			mRing[mWritten & mMask] = key;
+			//the volatile write publishes the slot
+			mWritten++;
+			if(mLeadNs < 0 && isLeadBuffered()) mLeadNs = System.nanoTime();
+			mLock.notifyAll();
+		}
+	}
+
+	private boolean isLeadBuffered()
+	{
+		return mWritten > 1 && mLastTime - mFirstTime >= mLeadMs;
+	}
+
+	/**
+	 * Waits until the lead time is buffered, or the whole clip if it is shorter
+	 * @throws IOException problem reading the stream before the lead time was buffered
+	 */
+	public void awaitLead() throws IOException
+	{
+		synchronized (mLock)
+		{
+			try
+			{
+				while(!mComplete && !isLeadBuffered()) mLock.wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while buffering the clip stream");
+			}
+		}
+		if(mWritten == 0 && mError != null) throw mError;
+	}
+
+	/**
+	 * @return clip name, gender and hair model, without keys
+	 */
+	public KeyFrameParser.Clip getHeader()
+	{
+		return mHeader;
+	}
+
+	/**
+	 * @return number of keys received so far
+	 */
+	public int getKeyCount()
+	{
+		return mWritten;
+	}
+
+	/**
+	 * @return true when every key has been received (or the stream failed)
+	 */
+	public boolean isComplete()
+	{
+		return mComplete;
+	}
+
+	/**
+	 * @return the problem that stopped the stream, null if none
+	 */
+	public IOException getError()
+	{
+		return mError;
+	}
+
+	/**
+	 * @return index of the first key still buffered, the keys before were released
+	 */
+	public int getFirstIndex()
+	{
+		return mReleased;
+	}
+
+	/**
+	 * Reads a key, called by the player
+	 * @param index key index, from the last released index to getKeyCount()-1
+	 * @return the key
+	 */
+	public KeyFrame getKey(int index)
+	{
+		if(index < mReleased || index >= mWritten)
+			throw new IndexOutOfBoundsException("key " + index + " not buffered, " + mReleased + " to " + mWritten);
+		return mRing[index & mMask];
+	}
+
+	/**
+	 * Gives back the keys the player does not need anymore, called by the player
+	 * @param index first key still needed
+	 */
+	public void release(int index)
+	{
+		if(index <= mReleased) return;
+		synchronized (mLock)
+		{
+			int end = Math.min(index, mWritten);
+			for(int i=mReleased; i<end; i++) mRing[i & mMask] = null;
+			mReleased = end;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Counts a key needed by the player but not received yet, called by the player
+	 */
+	public void underrun()
+	{
+		mUnderruns++;
+	}
+
+	/**
+	 * @return number of times the player had to hold its pose waiting for a key
+	 */
+	public int getUnderruns()
+	{
+		return mUnderruns;
+	}
+
+	/**
+	 * @return time from open() to the lead time buffered in ns, -1 if not reached yet
+	 */
+	public long getLeadLatencyNs()
+	{
+		synchronized (mLock)
+		{
+			return mLeadNs < 0 ? -1 : mLeadNs - mOpenNs;
+		}
+	}
+
+	/**
+	 * @return time from open() to the last key in ns, -1 if not complete yet
+	 */
+	public long getCompleteLatencyNs()
+	{
+		synchronized (mLock)
+		{
+			return mCompleteNs < 0 ? -1 : mCompleteNs - mOpenNs;
+		}
+	}
+
+	/**
+	 * Stops the reader thread, closing the stream
+	 */
+	public void close()
+	{
+		synchronized (mLock)
+		{
+			mClosed = true;
+			mLock.notifyAll();
+		}
+		if(mReader != null)
+		{
+			mReader.interrupt();
+			try
+			{
+				//unblocks a reader waiting for data
+				mInput.close();
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "can not close the clip stream", e);
+			}
+		}
+	}
+}
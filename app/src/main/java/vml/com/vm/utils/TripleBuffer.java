@@ -0,0 +1,81 @@
+package vml.com.vm.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of frames from one producer thread to one consumer thread.
+ * <p>
+ * Three frames are allocated up front: the producer writes the back frame, the consumer reads the
+ * front frame and the third one holds the latest published frame. {@link #publish()} swaps the back
+ * frame with the latest one, {@link #acquire()} swaps the front frame with the latest one if a new
+ * frame was published since. Each side owns its frame until its next swap, so a frame is never read
+ * while it is written: the consumer always sees complete frames, the newest one, and frames published
+ * in between are dropped. Nothing blocks and nothing is allocated.
+ *
+ * @param <T> frame type
+ *
+ * @author Roger Blanco i Ribera, Sunjin Jung
+ */
+public class TripleBuffer<T>
+{
+	/**set in mLatest when the latest frame was not acquired yet*/
+	private static final int FRESH = 4;
+	private static final int INDEX = 3;
+
+	private final Object[] mFrames;
+	/**index of the latest frame, with FRESH*/
+	private final AtomicInteger mLatest;
+	/**index of the frame written by the producer, producer only*/
+	private int mBack = 0;
+	/**index of the frame read by the consumer, consumer only*/
+	private int mFront = 1;
+
+	/**
+	 * @param back first frame written by the producer
+	 * @param front frame read by the consumer before the first publish()
+	 * @param spare third frame
+	 */
+	public TripleBuffer(T back, T front, T spare)
+	{
+		mFrames = new Object[] { back, front, spare };
+		mLatest = new AtomicInteger(2);
+	}
+
+	/**
+	 * @return the frame to write, called by the producer. It has the content of an older frame
+	 */
+	@SuppressWarnings("unchecked")
+	public T getBack()
+	{
+		return (T) mFrames[mBack];
+	}
+
+	/**
+	 * Publishes the back frame, which must be complete, called by the producer.
+	 * getBack() returns another frame afterwards.
+	 */
+	public void publish()
+	{
+		mBack = mLatest.getAndSet(mBack | FRESH) & INDEX;
+	}
+
+	/**
+	 * Takes the latest published frame, called by the consumer
+	 * @return the newest frame, the same one as the last call if nothing was published since
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire()
+	{
+		if((mLatest.get() & FRESH) != 0)
+			mFront = mLatest.getAndSet(mFront) & INDEX;
+		return (T) mFrames[mFront];
+	}
+
+	/**
+	 * @return true if a frame was published since the last acquire()
+	 */
+	public boolean hasFresh()
+	{
+		return (mLatest.get() & FRESH) != 0;
+	}
+}
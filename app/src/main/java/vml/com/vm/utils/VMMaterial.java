@@ -47,6 +47,11 @@ public class VMMaterial
 	//**normal map data*/
 	private Bitmap mNorm = null;
 
+	/**textures of the released materials, deleted on the rendering thread*/
+	private static int[] sReleasedTextures = new int[8];
+	/**number of textures in sReleasedTextures*/
+	private static int sReleasedCount = 0;
+
 	
 	/**
 	 * Construct a material with the given data
@@ -174,5 +179,65 @@ public class VMMaterial
 		}
 
 	}
+
+	/**
+	 * Releases the textures of a material nothing draws anymore. Can be called from any thread:
+	 * the OpenGL textures are deleted by the next deleteReleasedTextures() on the rendering thread.
+	 * The material has no texture afterwards.
+	 */
+	public void releaseTextures()
+	{
+		synchronized (VMMaterial.class)
+		{
+			queueRelease(textureID);
+			queueRelease(bumpID);
+			queueRelease(normalID);
+		}
+		textureID = -1;
+		bumpID = -1;
+		normalID = -1;
+		//never uploaded
+		if (mTexture != null) mTexture.recycle();
+		if (mBump != null) mBump.recycle();
+		if (mNorm != null) mNorm.recycle();
+		mTexture = null;
+		mBump = null;
+		mNorm = null;
+	}
+
+	private static void queueRelease(int id)
+	{
+		if (id == -1)
+			return;
+		if (sReleasedCount == sReleasedTextures.length)
+		{
+			int[] grown = new int[sReleasedTextures.length * 2];
+			System.arraycopy(sReleasedTextures, 0, grown, 0, sReleasedCount);
+			sReleasedTextures = grown;
+		}
+		sReleasedTextures[sReleasedCount++] = id;
+	}
+
+	/**
+	 * Deletes the textures of the materials released since the last call, on the rendering thread
+	 * @return number of textures deleted
+	 */
+	public static synchronized int deleteReleasedTextures()
+	{
+		int count = sReleasedCount;
+		if (count == 0)
+			return 0;
+		GLES20.glDeleteTextures(count, sReleasedTextures, 0);
+		sReleasedCount = 0;
+		return count;
+	}
+
+	/**
+	 * @return number of textures waiting for deleteReleasedTextures()
+	 */
+	public static synchronized int getReleasedTextureCount()
+	{
+		return sReleasedCount;
+	}
 	
 }
@@ -209,9 +209,20 @@ public class VMShaderUtil
 	 * @param op operation to check error
 	 */
 	public static void checkGlError(String op) 
+	{
+		checkGlError(ShaderProgram.GLES, op);
+	}
+
+	/**
+	 * Checks for errors on the last GL operation
+	 *
+	 * @param gl GL calls
+	 * @param op operation to check error
+	 */
+	public static void checkGlError(ShaderProgram.GL gl, String op)
 	{
 	    int error;
-	    while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) 
+	    while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) 
 	    {
 	        Log.e(TAG, op + ": glError " + error);
 	        throw new RuntimeException(op + ": glError " + error);
@@ -0,0 +1,153 @@
+package vml.com.vm.avatar;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import vml.com.vm.blend.AssetCache;
+import vml.com.vm.blend.VMBOLoader;
+import vml.com.vm.blend.VMBOModel;
+import vml.com.vm.utils.VMMaterial;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frame boundary swapping of the extra head models.
+ */
+public class AccessorySetTest {
+    private static final String ASSETS = "src/main/assets/";
+
+    private AssetCache cache;
+    private AssetCache.Source source;
+
+    @Before
+    public void setUp() {
+        cache = new AssetCache();
+        source = new AssetCache.Source() {
+            @Override
+            public InputStream open(String path) throws IOException {
+                return new FileInputStream(ASSETS + path);
+            }
+
+            @Override
+            public long getLength(String path) {
+                return new File(ASSETS + path).length();
+            }
+
+            @Override
+            public VMBOModel loadModel(String path, int layout) throws IOException {
+                return VMBOLoader.loadModel(open(path), path, layout);
+            }
+
+            @Override
+            public VMMaterial loadMaterial(String path) {
+                return new VMMaterial();
+            }
+        };
+    }
+
+    private VMBOModel model(String path) throws IOException {
+        return cache.acquireModel(source, path, VMBOLoader.LAYOUT_SHAPE_MAJOR);
+    }
+
+    private VMMaterial material(String path) throws IOException {
+        return cache.acquireMaterial(source, path);
+    }
+
+    @Test
+    public void replaceTakesEffectAtTheNextFrame() throws IOException {
+        AccessorySet set = new AccessorySet(cache);
+        set.add("Data/girl_upperTeeth.bob", model("Data/girl_upperTeeth.bob"), material("Data/girl_upperTeeth.mtl"));
+        set.add("Data/girl_cloth.bob", model("Data/girl_cloth.bob"), material("Data/girlCloth.mtl"));
+        set.add("Data/girl_new_hair.bob", model("Data/girl_new_hair.bob"), material("Data/girlHair_20200220.mtl"));
+        VMBOModel oldHair = set.models.get(2);
+
+        VMBOModel newHair = model("Data/girl_new_hair2.bob");
+        VMMaterial hairMaterial = material("Data/girlHair_20200220.mtl");
+        set.queueReplace("Data/girl_new_hair.bob", "Data/girl_new_hair2.bob", newHair, hairMaterial);
+
+        //nothing changes until the frame boundary
+        assertTrue(set.hasPending());
+        assertSame(oldHair, set.models.get(2));
+        assertEquals("Data/girl_new_hair.bob", set.getNames().get(2));
+
+        assertEquals(1, set.applyPending());
+        assertFalse(set.hasPending());
+        assertEquals(Arrays.asList("Data/girl_upperTeeth.bob", "Data/girl_cloth.bob", "Data/girl_new_hair2.bob"), set.getNames());
+        assertSame(newHair, set.models.get(2));
+        assertSame(hairMaterial, set.materials.get(2));
+        assertEquals(0, cache.getRefCount("Data/girl_new_hair.bob"));
+        assertEquals(1, cache.getRefCount("Data/girlHair_20200220.mtl"));
+        assertEquals(0, set.applyPending());
+    }
+
+    @Test
+    public void batchesAreAppliedTogether() throws IOException {
+        AccessorySet set = new AccessorySet(cache);
+        set.add("Data/girl_cloth.bob", model("Data/girl_cloth.bob"), material("Data/girlCloth.mtl"));
+        set.add("Data/girl_new_hair.bob", model("Data/girl_new_hair.bob"), material("Data/girlHair_20200220.mtl"));
+
+        set.queueReplace(new String[]{"Data/girl_cloth.bob", "Data/girl_new_hair.bob"},
+                new String[]{"Data/girl_cloth.bob", "Data/girl_new_hair2.bob"},
+                new VMBOModel[]{model("Data/girl_cloth.bob"), model("Data/girl_new_hair2.bob")},
+                new VMMaterial[]{material("Data/girlCloth_2.mtl"), material("Data/girlHair_20200220.mtl")});
+        assertEquals(2, set.applyPending());
+        assertEquals(Arrays.asList("Data/girl_cloth.bob", "Data/girl_new_hair2.bob"), set.getNames());
+        assertEquals(1, cache.getRefCount("Data/girl_cloth.bob"));
+        assertEquals(0, cache.getRefCount("Data/girlCloth.mtl"));
+        assertEquals(1, cache.getRefCount("Data/girlCloth_2.mtl"));
+    }
+
+    @Test
+    public void attachAndDetach() throws IOException {
+        AccessorySet set = new AccessorySet(cache);
+        set.add("Data/girl_upperTeeth.bob", model("Data/girl_upperTeeth.bob"), material("Data/girl_upperTeeth.mtl"));
+        set.queueAttach("Data/cap.bob", model("Data/cap.bob"), new VMMaterial());
+        set.queueDetach("Data/girl_upperTeeth.bob");
+        set.queueDetach("Data/not_attached.bob");
+        assertEquals(3, set.applyPending());
+        assertEquals(Arrays.asList("Data/cap.bob"), set.getNames());
+        assertEquals(0, cache.getRefCount("Data/girl_upperTeeth.bob"));
+
+        set.release();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void texturesAreReleasedWithTheLastReference() throws IOException {
+        AccessorySet set = new AccessorySet(cache);
+        VMMaterial shared = material("Data/girlCloth.mtl");
+        set.add("Data/girl_cloth.bob", model("Data/girl_cloth.bob"), shared);
+        set.add("Data/cap.bob", model("Data/cap.bob"), material("Data/girlCloth.mtl"));
+        shared.textureID = 7;
+        shared.normalID = 8;
+        int released = VMMaterial.getReleasedTextureCount();
+
+        //the cap still uses the material
+        set.queueDetach("Data/girl_cloth.bob");
+        set.applyPending();
+        assertEquals(7, shared.textureID);
+        assertEquals(released, VMMaterial.getReleasedTextureCount());
+
+        set.queueReplace("Data/cap.bob", "Data/cap.bob", model("Data/cap.bob"), material("Data/girlCloth_2.mtl"));
+        set.applyPending();
+        assertEquals(-1, shared.textureID);
+        assertEquals(-1, shared.normalID);
+        assertEquals(released + 2, VMMaterial.getReleasedTextureCount());
+    }
+
+    @Test
+    public void releaseGivesBackTheQueuedParts() throws IOException {
+        AccessorySet set = new AccessorySet(cache);
+        set.queueAttach("Data/cap.bob", model("Data/cap.bob"), material("Data/girlCloth.mtl"));
+        assertEquals(2, cache.size());
+        set.release();
+        assertFalse(set.hasPending());
+        assertEquals(0, cache.size());
+    }
+}
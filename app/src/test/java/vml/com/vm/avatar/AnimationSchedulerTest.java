@@ -0,0 +1,149 @@
+package vml.com.vm.avatar;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the animation scheduler on a manual clock.
+ */
+public class AnimationSchedulerTest {
+    private static final long MS = 1000000L;
+
+    /** frames are run by the test, requestFrame() only counts the requests */
+    private static class ManualClock implements AnimationScheduler.Clock {
+        long now;
+        boolean requested;
+
+        public void requestFrame(AnimationScheduler scheduler) {
+            requested = true;
+        }
+
+        /** runs a frame if one was requested */
+        boolean frame(AnimationScheduler scheduler, long elapsedMs) {
+            now += elapsedMs * MS;
+            if (!requested) return false;
+            requested = false;
+            scheduler.doFrame(now);
+            return true;
+        }
+    }
+
+    private static class Client implements AnimationScheduler.Client {
+        int rate = AnimationScheduler.RATE_FULL;
+        final List<Integer> ticks = new ArrayList<Integer>();
+
+        public void tick(int dt) {
+            ticks.add(dt);
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        int time() {
+            int sum = 0;
+            for (int dt : ticks) sum += dt;
+            return sum;
+        }
+    }
+
+    @Test
+    public void ticksAtAFixedStep() {
+        ManualClock clock = new ManualClock();
+        AnimationScheduler scheduler = new AnimationScheduler(clock);
+        Client client = new Client();
+        scheduler.register(client);
+        assertTrue(clock.requested);
+
+        //the first frame ticks once, then the time elapsed is stepped whatever the frame rate
+        assertTrue(clock.frame(scheduler, 0));
+        assertEquals(1, client.ticks.size());
+        long elapsed = 0;
+        int[] frames = {16, 17, 16, 8, 8, 33, 16, 25, 7, 16};
+        for (int frame : frames) {
+            assertTrue(clock.frame(scheduler, frame));
+            elapsed += frame;
+        }
+        for (int dt : client.ticks) assertEquals(AnimationScheduler.STEP_MS, dt);
+        assertEquals(1 + elapsed / AnimationScheduler.STEP_MS, client.ticks.size());
+    }
+
+    @Test
+    public void skipsAheadAfterAStall() {
+        ManualClock clock = new ManualClock();
+        AnimationScheduler scheduler = new AnimationScheduler(clock);
+        Client client = new Client();
+        scheduler.register(client);
+        clock.frame(scheduler, 0);
+        client.ticks.clear();
+
+        clock.frame(scheduler, 1000);
+        assertEquals(AnimationScheduler.MAX_STEPS, client.ticks.size());
+        clock.frame(scheduler, 16);
+        assertEquals(AnimationScheduler.MAX_STEPS + 1, client.ticks.size());
+    }
+
+    @Test
+    public void ticksIdleClientsLessAndSleepingClientsNot() {
+        ManualClock clock = new ManualClock();
+        AnimationScheduler scheduler = new AnimationScheduler(clock);
+        Client full = new Client();
+        Client idle = new Client();
+        Client asleep = new Client();
+        idle.rate = AnimationScheduler.RATE_IDLE;
+        asleep.rate = AnimationScheduler.RATE_NONE;
+        scheduler.register(full);
+        scheduler.register(idle);
+        scheduler.register(asleep);
+        assertEquals(3, scheduler.getClientCount());
+
+        clock.frame(scheduler, 0);
+        for (int f = 0; f < 99; f++) assertTrue(clock.frame(scheduler, AnimationScheduler.STEP_MS));
+        assertEquals(100, full.ticks.size());
+        assertEquals(100 / AnimationScheduler.IDLE_STEPS, idle.ticks.size());
+        //an idle client gets the time of all the steps
+        assertEquals(full.time(), idle.time());
+        assertTrue(asleep.ticks.isEmpty());
+
+        //the sleeping client wakes up with the time of its next step only
+        asleep.rate = AnimationScheduler.RATE_FULL;
+        scheduler.wake();
+        clock.frame(scheduler, AnimationScheduler.STEP_MS);
+        assertEquals(1, asleep.ticks.size());
+        assertEquals(AnimationScheduler.STEP_MS, (int) asleep.ticks.get(0));
+
+        scheduler.unregister(full);
+        scheduler.unregister(asleep);
+        assertEquals(1, scheduler.getClientCount());
+        clock.frame(scheduler, AnimationScheduler.STEP_MS);
+        assertEquals(101, full.ticks.size());
+    }
+
+    @Test
+    public void stopsRequestingFramesWhenEveryClientSleeps() {
+        ManualClock clock = new ManualClock();
+        AnimationScheduler scheduler = new AnimationScheduler(clock);
+        Client client = new Client();
+        scheduler.register(client);
+        clock.frame(scheduler, 0);
+        clock.frame(scheduler, 16);
+        assertEquals(2, client.ticks.size());
+
+        client.rate = AnimationScheduler.RATE_NONE;
+        assertTrue(clock.frame(scheduler, 16));
+        assertFalse(clock.frame(scheduler, 16));
+        assertFalse(clock.frame(scheduler, 5000));
+
+        //the time slept is not animated
+        client.rate = AnimationScheduler.RATE_FULL;
+        scheduler.wake();
+        assertTrue(clock.frame(scheduler, 16));
+        assertEquals(3, client.ticks.size());
+        assertTrue(clock.frame(scheduler, 16));
+        assertEquals(4, client.ticks.size());
+    }
+}
@@ -0,0 +1,117 @@
+package vml.com.vm.avatar;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the parallel part loading used by VMAvatarLoader.
+ */
+public class AvatarPartLoaderTest {
+
+    @Test
+    public void sharedExecutorIsBounded() {
+        ExecutorService executor = AvatarPartLoader.sharedExecutor();
+        assertSame(executor, AvatarPartLoader.sharedExecutor());
+        int threads = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        assertTrue(threads >= 2 && threads <= AvatarPartLoader.MAX_THREADS);
+    }
+
+    @Test
+    public void partsLoadConcurrently() throws IOException {
+        //every part waits for the others: this only completes if they all run at the same time
+        final CountDownLatch started = new CountDownLatch(2);
+        AvatarPartLoader loader = new AvatarPartLoader("avatar.xml");
+        Future<String> face = loader.submit("face.bob", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                return "face";
+            }
+        });
+        Future<String> hair = loader.submit("hair.bob", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                Thread.sleep(20);
+                return "hair";
+            }
+        });
+        assertEquals("face", loader.get(face));
+        assertEquals("hair", loader.get(hair));
+        LoadTimings timings = loader.finish();
+
+        List<LoadTimings.Part> parts = timings.getParts();
+        assertEquals(2, parts.size());
+        assertEquals("hair.bob", timings.getSlowest().name);
+        assertTrue(timings.getSlowest().durationNs >= TimeUnit.MILLISECONDS.toNanos(20));
+        for (LoadTimings.Part p : parts) {
+            assertTrue(p.thread.startsWith("AvatarLoader-"));
+            assertTrue(p.startNs >= 0);
+        }
+        assertTrue(timings.getWallTimeNs() >= timings.getSlowest().durationNs);
+        assertTrue(timings.toString().contains("hair.bob"));
+    }
+
+    @Test
+    public void failuresAreRethrown() {
+        AvatarPartLoader loader = new AvatarPartLoader("avatar.xml");
+        Future<Object> missing = loader.submit("missing.bob", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new FileNotFoundException("missing.bob");
+            }
+        });
+        try {
+            loader.get(missing);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e instanceof FileNotFoundException);
+        }
+        assertEquals(1, loader.getTimings().getParts().size());
+    }
+
+    @Test
+    public void serialTasksRunInOrder() throws InterruptedException {
+        AvatarPartLoader.SerialExecutor serial = new AvatarPartLoader.SerialExecutor(AvatarPartLoader.sharedExecutor());
+        final List<Integer> order = new ArrayList<Integer>();
+        final AtomicInteger running = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            final int task = i;
+            serial.execute(new Runnable() {
+                @Override
+                public void run() {
+                    assertEquals(1, running.incrementAndGet());
+                    try {
+                        //the first tasks are the slowest, they would complete last on a pool
+                        Thread.sleep(task < 4 ? 10 : 0);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    synchronized (order) {
+                        order.add(task);
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 20; i++) assertEquals(Integer.valueOf(i), order.get(i));
+    }
+}
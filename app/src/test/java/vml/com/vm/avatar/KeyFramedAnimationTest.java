@@ -0,0 +1,427 @@
+package vml.com.vm.avatar;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import vml.com.vm.utils.AudioClock;
+import vml.com.vm.utils.KeyFrame;
+import vml.com.vm.utils.KeyFrameParser;
+import vml.com.vm.utils.SparseClip;
+import vml.com.vm.utils.StreamingClip;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the key framed animation: same poses as the former allocating interpolation, no allocation per update,
+ * key lookup at any key times, and the playback of a clip while it is received.
+ */
+public class KeyFramedAnimationTest {
+
+    /**
+     * Records what the animation sets
+     */
+    static class RecordingTarget implements KeyFramedAnimation.Target {
+        final int count;
+        float[] weights;
+        float nodding;
+        int poses;
+        boolean blinking;
+
+        RecordingTarget(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void setFaceWeights(float[] weights) {
+            this.weights = weights;
+            poses++;
+        }
+
+        @Override
+        public void headNod(float value) {
+            nodding = value;
+        }
+
+        @Override
+        public void doBlinking(boolean doBlink) {
+            blinking = doBlink;
+        }
+
+        @Override
+        public int getWeightCount() {
+            return count;
+        }
+    }
+
+    private List<KeyFrame> keys;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream is = new FileInputStream("src/main/assets/animation_data_girl1.xml");
+        try {
+            XmlPullParser parser = new KXmlParser();
+            parser.setInput(is, null);
+            keys = new KeyFrameParser().parse(parser).keys;
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void interpolatesLikeBefore() {
+        int count = keys.get(0).pose.faceWeights.length;
+        RecordingTarget target = new RecordingTarget(count);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setKeys(keys);
+        anim.start();
+
+        float[] previous = null;
+        for (int t = 0; t < keys.get(keys.size() - 1).time; t += 7) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+            int idx = t / 16;
+            float w = (float) (t - keys.get(idx).time) / (float) (keys.get(idx + 1).time - keys.get(idx).time);
+            float[] cur = keys.get(idx).pose.faceWeights;
+            float[] next = keys.get(idx + 1).pose.faceWeights;
+            for (int i = 0; i < count; i++) {
+                assertEquals(Float.floatToIntBits(w * next[i] + (1 - w) * cur[i]), Float.floatToIntBits(target.weights[i]));
+            }
+            assertEquals(w * keys.get(idx + 1).noddingValue + (1 - w) * keys.get(idx).noddingValue, target.nodding, 0);
+            //the array handed at the previous update is not the one written
+            assertNotSame(previous, target.weights);
+            previous = target.weights;
+        }
+
+        //past the last key the pose is held
+        int poses = target.poses;
+        anim.setAudioTiming(keys.get(keys.size() - 1).time + 100);
+        anim.update(16);
+        assertEquals(poses, target.poses);
+    }
+
+    /**
+     * Last key at or before t, by linear search
+     */
+    private static int linearFind(List<KeyFrame> keys, int t) {
+        int idx = -1;
+        for (int k = 0; k < keys.size() && keys.get(k).time <= t; k++) idx = k;
+        return idx;
+    }
+
+    private static List<KeyFrame> retime(List<KeyFrame> keys, Random random, int minGap, int maxGap) {
+        List<KeyFrame> result = new ArrayList<KeyFrame>();
+        int time = random.nextInt(50);
+        for (KeyFrame k : keys) {
+            KeyFrame key = new KeyFrame();
+            key.time = time;
+            key.pose = k.pose;
+            key.noddingValue = k.noddingValue;
+            result.add(key);
+            time += minGap + random.nextInt(maxGap - minGap + 1);
+        }
+        return result;
+    }
+
+    @Test
+    public void findsKeysAtAnyTimes() {
+        Random random = new Random(3);
+        List<KeyFrame> sparse = retime(keys, random, 1, 200);
+        KeyFramedAnimation anim = new KeyFramedAnimation(new RecordingTarget(0));
+        anim.setKeys(sparse);
+        anim.start();
+        int end = sparse.get(sparse.size() - 1).time + 100;
+        int t = -20;
+        for (int n = 0; n < 20000; n++) {
+            if (random.nextInt(50) == 0) {
+                //seek anywhere
+                t = random.nextInt(end + 100) - 50;
+            } else {
+                t += random.nextInt(40);
+            }
+            assertEquals("time " + t, linearFind(sparse, t), anim.findKey(t));
+        }
+    }
+
+    @Test
+    public void findsKeysAddedFromAnotherThread() throws InterruptedException {
+        final KeyFramedAnimation anim = new KeyFramedAnimation(new RecordingTarget(0));
+        final List<KeyFrame> added = new ArrayList<KeyFrame>(keys);
+        //late keys, one key in three is added before the previous one
+        for (int k = 2; k < added.size(); k += 3) Collections.swap(added, k, k - 1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (KeyFrame key : added) anim.addKey(key.time, key.pose);
+            }
+        };
+        producer.start();
+        //the updating thread packs the keys received so far while they are added
+        while (producer.isAlive()) anim.findKey(keys.get(keys.size() / 2).time);
+        producer.join();
+
+        for (int k = 0; k < keys.size(); k++) {
+            int t = keys.get(k).time;
+            assertEquals("time " + t, linearFind(keys, t), anim.findKey(t));
+        }
+    }
+
+    @Test
+    public void playsJitteredAndSparseClips() {
+        Random random = new Random(11);
+        List<KeyFrame> jittered = retime(keys, random, 11, 21);
+        List<KeyFrame> sparse = new ArrayList<KeyFrame>();
+        for (int k = 0; k < keys.size(); k += 1 + random.nextInt(5)) sparse.add(keys.get(k));
+
+        for (List<KeyFrame> clip : Arrays.asList(jittered, sparse)) {
+            int count = clip.get(0).pose.faceWeights.length;
+            RecordingTarget target = new RecordingTarget(count);
+            KeyFramedAnimation anim = new KeyFramedAnimation(target);
+            anim.setKeys(clip);
+            anim.start();
+            for (int t = clip.get(0).time; t < clip.get(clip.size() - 1).time; t += 1 + random.nextInt(20)) {
+                anim.setAudioTiming(t);
+                anim.update(16);
+                int idx = linearFind(clip, t);
+                KeyFrame cur = clip.get(idx);
+                KeyFrame next = clip.get(idx + 1);
+                float w = (float) (t - cur.time) / (float) (next.time - cur.time);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(Float.floatToIntBits(w * next.pose.faceWeights[i] + (1 - w) * cur.pose.faceWeights[i]),
+                            Float.floatToIntBits(target.weights[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void holdsThePoseBeforeTheFirstKey() {
+        List<KeyFrame> late = retime(keys, new Random(1), 16, 16);
+        for (KeyFrame k : late) k.time += 500;
+        RecordingTarget target = new RecordingTarget(keys.get(0).pose.faceWeights.length);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setKeys(late);
+        anim.start();
+        anim.setAudioTiming(100);
+        anim.update(16);
+        assertEquals(0, target.poses);
+        anim.setAudioTiming(late.get(0).time);
+        anim.update(16);
+        assertEquals(1, target.poses);
+    }
+
+    /**
+     * Checks the pose set at time t against the interpolation of the keys around it
+     */
+    private static void assertInterpolated(List<KeyFrame> keys, int t, RecordingTarget target) {
+        int idx = linearFind(keys, t);
+        KeyFrame cur = keys.get(idx);
+        KeyFrame next = keys.get(idx + 1);
+        float w = (float) (t - cur.time) / (float) (next.time - cur.time);
+        for (int i = 0; i < target.count; i++) {
+            assertEquals("time " + t, w * next.pose.faceWeights[i] + (1 - w) * cur.pose.faceWeights[i],
+                    target.weights[i], 1e-6f);
+        }
+    }
+
+    /**
+     * Waits for the reader thread of the clip
+     */
+    private static void awaitKeys(StreamingClip clip, int count, boolean complete) throws InterruptedException {
+        long deadline = System.nanoTime() + 5000000000L;
+        while ((clip.getKeyCount() < count || clip.isComplete() != complete) && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(count, clip.getKeyCount());
+        assertEquals(complete, clip.isComplete());
+    }
+
+    @Test
+    public void holdsThePoseWhileTheStreamIsBehind() throws Exception {
+        byte[] xml = readFile("src/main/assets/animation_data_girl1.xml");
+        String text = new String(xml, "UTF-8");
+        List<Integer> cuts = new ArrayList<Integer>();
+        for (int i = text.indexOf("<key "); i >= 0; i = text.indexOf("<key ", i + 1)) cuts.add(i);
+
+        //the test is the producer, the clip receives the header and the first keys only
+        PipedOutputStream producer = new PipedOutputStream();
+        PipedInputStream is = new PipedInputStream(producer, 1 << 16);
+        XmlPullParser parser = new KXmlParser();
+        parser.setInput(is, "UTF-8");
+        int received = 40;
+        producer.write(xml, 0, cuts.get(received));
+        producer.flush();
+        StreamingClip clip = new StreamingClip(StreamingClip.DEFAULT_CAPACITY, 0);
+        clip.open(parser, is);
+        awaitKeys(clip, received, false);
+
+        RecordingTarget target = new RecordingTarget(keys.get(0).pose.faceWeights.length);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setStream(clip);
+        anim.start();
+
+        //the audio advances by one animation step per update
+        int t = keys.get(0).time;
+        for (; t < keys.get(received - 1).time; t += 16) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+            assertInterpolated(keys, t, target);
+        }
+
+        //past the last key received: the pose is held and every update is an underrun
+        int poses = target.poses;
+        float[] held = target.weights.clone();
+        for (int i = 0; i < 10; i++, t += 16) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+        }
+        assertEquals(poses, target.poses);
+        assertArrayEquals(held, target.weights, 0.0f);
+        assertEquals(10, clip.getUnderruns());
+        //the keys played are given back
+        assertTrue(clip.getFirstIndex() >= received - 2);
+
+        //the producer catches up, the playback goes on at the audio timing
+        producer.write(xml, cuts.get(received), xml.length - cuts.get(received));
+        producer.close();
+        awaitKeys(clip, keys.size(), true);
+        for (int i = 0; i < 10; i++, t += 16) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+            assertInterpolated(keys, t, target);
+        }
+        assertEquals(poses + 10, target.poses);
+        assertEquals(10, clip.getUnderruns());
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        File f = new File(path);
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream is = new DataInputStream(new FileInputStream(f));
+        try {
+            is.readFully(data);
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void playsSparseClips() {
+        SparseClip sparse = SparseClip.build(keys, 0.001f);
+        int count = sparse.nWeights;
+        RecordingTarget target = new RecordingTarget(count);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setSparseClip(sparse);
+        anim.start();
+        for (int t = 0; t < keys.get(keys.size() - 1).time; t += 5) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+            int idx = linearFind(keys, t);
+            KeyFrame cur = keys.get(idx);
+            KeyFrame next = keys.get(idx + 1);
+            float w = (float) (t - cur.time) / (float) (next.time - cur.time);
+            for (int i = 0; i < count; i++) {
+                assertEquals(w * next.pose.faceWeights[i] + (1 - w) * cur.pose.faceWeights[i], target.weights[i], 0.0011f);
+            }
+            //the head nods along the same curve as with the dense keys
+            assertEquals(w * next.noddingValue + (1 - w) * cur.noddingValue, target.nodding, 0.0011f);
+        }
+    }
+
+    @Test
+    public void followsTheAudioClock() {
+        final long[] now = {0};
+        AudioClock clock = new AudioClock(new AudioClock.TimeSource() {
+            public long nanoTime() {
+                return now[0];
+            }
+        });
+        RecordingTarget target = new RecordingTarget(keys.get(0).pose.faceWeights.length);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setKeys(keys);
+        anim.setAudioClock(clock);
+        anim.start();
+        clock.start(0);
+        for (int t = 0; t < 2000; t += 16) {
+            now[0] = t * 1000000L;
+            if (t % 200 == 0) clock.onPosition(t);
+            anim.update(16);
+            assertEquals(t, clock.getPosition());
+            assertEquals(linearFind(keys, t), anim.getCurrentIdxFromAudioTiming());
+        }
+        //setAudioTiming() drives the animation again without the clock
+        anim.setAudioClock(null);
+        anim.setAudioTiming(100);
+        anim.update(16);
+        assertEquals(linearFind(keys, 100), anim.getCurrentIdxFromAudioTiming());
+    }
+
+    @Test
+    public void blendsToNeutral() {
+        int count = keys.get(0).pose.faceWeights.length;
+        RecordingTarget target = new RecordingTarget(count);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setKeys(keys);
+        anim.start();
+        anim.setAudioTiming(1000);
+        anim.update(16);
+        float[] stop = target.weights.clone();
+
+        anim.blend();
+        anim.update(250);
+        for (int i = 0; i < count; i++) assertEquals(0.5f * stop[i], target.weights[i], 1e-6f);
+        assertFalse(target.blinking);
+        anim.update(250);
+        for (int i = 0; i < count; i++) assertEquals(0.0f, target.weights[i], 0);
+        assertTrue(target.blinking);
+    }
+
+    @Test
+    public void updatesDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        RecordingTarget target = new RecordingTarget(keys.get(0).pose.faceWeights.length);
+        KeyFramedAnimation anim = new KeyFramedAnimation(target);
+        anim.setKeys(keys);
+        anim.start();
+        int end = keys.get(keys.size() - 1).time;
+
+        //warm up, the weight buffers are allocated by the first updates and the first blend
+        for (int t = 0; t < end; t += 16) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+        }
+        anim.blend();
+        for (int i = 0; i < 40; i++) anim.update(16);
+        anim.start();
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        int updates = 0;
+        for (int t = 0; t < end; t += 5, updates++) {
+            anim.setAudioTiming(t);
+            anim.update(16);
+        }
+        anim.blend();
+        for (int i = 0; i < 40; i++, updates++) anim.update(16);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        assertTrue(updates > 800);
+        assertEquals("bytes allocated by " + updates + " updates", 0, allocated);
+    }
+}
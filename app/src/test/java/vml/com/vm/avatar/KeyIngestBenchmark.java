@@ -0,0 +1,123 @@
+package vml.com.vm.avatar;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import vml.com.vm.utils.FacePose;
+import vml.com.vm.utils.KeyFrame;
+import vml.com.vm.utils.KeyFrameComparator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keyframe ingestion from 100 to 100,000 keys: setKeys() on sorted and shuffled keys, addKey() in order
+ * and with late keys, against the former setKeys() that sorted the list after every key.
+ * Every addKey() is followed by a findKey(), as the updates of a clip played while it is received:
+ * the keys are packed after each one. The time per key should stay flat as the clips grow.
+ * Run with -Dvml.bench=true, e.g. ./gradlew test -Dvml.bench=true --tests '*KeyIngestBenchmark'
+ */
+public class KeyIngestBenchmark {
+    private static final int WEIGHTS = 50;
+    private static final int RUNS = 5;
+    /** the former setKeys() is quadratic, it is not run on longer clips */
+    private static final int MAX_LEGACY_KEYS = 10000;
+
+    private static final KeyFramedAnimation.Target NO_TARGET = new KeyFramedAnimation.Target() {
+        public void setFaceWeights(float[] weights) {}
+        public void headNod(float value) {}
+        public void doBlinking(boolean doBlink) {}
+        public int getWeightCount() { return WEIGHTS; }
+    };
+
+    private static List<KeyFrame> keys(int n) {
+        Random random = new Random(n);
+        List<KeyFrame> keys = new ArrayList<KeyFrame>(n);
+        float[] weights = new float[WEIGHTS];
+        for (int k = 0; k < n; k++) {
+            for (int i = 0; i < WEIGHTS; i++) weights[i] = random.nextFloat();
+            KeyFrame key = new KeyFrame();
+            key.time = 16 * k;
+            key.pose = new FacePose(weights);
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /** setKeys() before: a copy of every key, and a sort of the list after each one */
+    private static List<KeyFrame> legacySetKeys(List<KeyFrame> animKeys) {
+        List<KeyFrame> keyframes = new ArrayList<KeyFrame>();
+        for (int i = 0; i < animKeys.size(); i++) {
+            KeyFrame key = new KeyFrame();
+            key.time = animKeys.get(i).time;
+            key.pose = animKeys.get(i).pose;
+            key.noddingValue = animKeys.get(i).noddingValue;
+            keyframes.add(key);
+            Collections.sort(keyframes, new KeyFrameComparator());
+        }
+        return keyframes;
+    }
+
+    @Test
+    public void compareIngestion() {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+        KeyFramedAnimation anim = new KeyFramedAnimation(NO_TARGET);
+        System.out.println("ns per key     keys   legacy  setKeys  shuffled   addKey  late keys");
+        for (int n = 100; n <= 100000; n *= 10) {
+            List<KeyFrame> sorted = keys(n);
+            List<KeyFrame> shuffled = new ArrayList<KeyFrame>(sorted);
+            Collections.shuffle(shuffled, new Random(1));
+            //live keys arriving up to 3 keys late
+            List<KeyFrame> late = new ArrayList<KeyFrame>(sorted);
+            Random random = new Random(2);
+            for (int k = 3; k < n; k += 1 + random.nextInt(4)) Collections.swap(late, k, k - 1 - random.nextInt(3));
+
+            long legacy = Long.MAX_VALUE, set = Long.MAX_VALUE, setShuffled = Long.MAX_VALUE;
+            long add = Long.MAX_VALUE, addLate = Long.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++) {
+                long start;
+                if (n <= MAX_LEGACY_KEYS) {
+                    start = System.nanoTime();
+                    legacySetKeys(sorted);
+                    legacy = Math.min(legacy, System.nanoTime() - start);
+                }
+
+                start = System.nanoTime();
+                anim.setKeys(sorted);
+                anim.start();
+                set = Math.min(set, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                anim.setKeys(shuffled);
+                anim.start();
+                setShuffled = Math.min(setShuffled, System.nanoTime() - start);
+
+                anim.clearKeys();
+                start = System.nanoTime();
+                for (KeyFrame key : sorted) {
+                    anim.addKey(key.time, key.pose);
+                    anim.findKey(key.time);
+                }
+                anim.start();
+                add = Math.min(add, System.nanoTime() - start);
+
+                anim.clearKeys();
+                start = System.nanoTime();
+                for (KeyFrame key : late) {
+                    anim.addKey(key.time, key.pose);
+                    anim.findKey(key.time);
+                }
+                anim.start();
+                addLate = Math.min(addLate, System.nanoTime() - start);
+                assertEquals(n - 1, anim.findKey(sorted.get(n - 1).time));
+            }
+            System.out.println(String.format("%17d %8s %8d %9d %8d %10d", n,
+                    n <= MAX_LEGACY_KEYS ? String.valueOf(legacy / n) : "-",
+                    set / n, setShuffled / n, add / n, addLate / n));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vml.com.vm.utils.VMMaterial;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sharing and reference counting of the AssetCache.
+ */
+public class AssetCacheTest {
+
+    /**
+     * Reads the files of a directory, counting the loads
+     */
+    static class FileSource implements AssetCache.Source {
+        final String root;
+        final AtomicInteger modelLoads = new AtomicInteger();
+        final AtomicInteger materialLoads = new AtomicInteger();
+        final AtomicInteger opens = new AtomicInteger();
+
+        FileSource(String root) {
+            this.root = root;
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            opens.incrementAndGet();
+            return new FileInputStream(root + path);
+        }
+
+        @Override
+        public long getLength(String path) throws IOException {
+            File file = new File(root + path);
+            if (!file.isFile()) throw new FileNotFoundException(file.getPath());
+            return file.length();
+        }
+
+        @Override
+        public VMBOModel loadModel(String path, int layout) throws IOException {
+            modelLoads.incrementAndGet();
+            return VMBOLoader.loadModel(open(path), path, layout);
+        }
+
+        @Override
+        public VMMaterial loadMaterial(String path) {
+            materialLoads.incrementAndGet();
+            return new VMMaterial();
+        }
+    }
+
+    @Test
+    public void instancesShareTheGeometry() throws IOException {
+        AssetCache cache = new AssetCache();
+        FileSource source = new FileSource(BlendEngineTest.ASSETS);
+        VMBOModel a = cache.acquireModel(source, "Data/girlFace.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        VMBOModel b = cache.acquireModel(source, "Data/girlFace.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+
+        assertEquals(1, source.modelLoads.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getRefCount("Data/girlFace.bob"));
+        assertNotSame(a, b);
+        assertTrue(a.isInstance());
+        assertSame(a.NVertices, b.NVertices);
+        assertSame(a.BSVertices, b.BSVertices);
+        assertSame(a.BSNormals, b.BSNormals);
+        assertNotSame(a.BSWeights, b.BSWeights);
+        assertNotSame(a.mVerticesBuffer, b.mVerticesBuffer);
+        assertNotSame(a.mNormalsBuffer, b.mNormalsBuffer);
+
+        //the sparse deltas are built once for both
+        a.buildSparseBlendShapes(SparseBlendShapes.DEFAULT_THRESHOLD, true);
+        b.buildSparseBlendShapes(SparseBlendShapes.DEFAULT_THRESHOLD, true);
+        assertNotNull(a.sparseBS);
+        assertSame(a.sparseBS, b.sparseBS);
+        assertNull(a.BSVertices);
+
+        assertTrue(cache.release(a));
+        assertFalse(cache.release(a));
+        assertEquals(1, cache.size());
+        assertTrue(cache.release(b));
+        assertEquals(0, cache.size());
+
+        //loaded again once everybody released it
+        VMBOModel c = cache.acquireModel(source, "Data/girlFace.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        assertEquals(2, source.modelLoads.get());
+        assertNotNull(c.BSVertices);
+        cache.release(c);
+    }
+
+    @Test
+    public void cachedAssetsAreNotReadAgain() throws IOException {
+        AssetCache cache = new AssetCache();
+        FileSource source = new FileSource(BlendEngineTest.ASSETS);
+        //hashed, then loaded
+        VMBOModel a = cache.acquireModel(source, "Data/girlTeeth.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        assertEquals(2, source.opens.get());
+
+        VMBOModel b = cache.acquireModel(source, "Data/girlTeeth.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        assertEquals(2, source.opens.get());
+        assertEquals(1, cache.getHitCount());
+
+        //loaded again once released, with the hash it already has
+        cache.release(a);
+        cache.release(b);
+        VMBOModel c = cache.acquireModel(source, "Data/girlTeeth.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        assertEquals(3, source.opens.get());
+        assertEquals(2, source.modelLoads.get());
+        cache.release(c);
+    }
+
+    @Test
+    public void instancesBlendIndependently() throws IOException {
+        AssetCache cache = new AssetCache();
+        FileSource source = new FileSource(BlendEngineTest.ASSETS);
+        VMBOModel a = cache.acquireModel(source, "Data/girlFace.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        VMBOModel b = cache.acquireModel(source, "Data/girlFace.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        BlendEngine engine = new BlendEngine(2);
+        a.setBlendEngine(engine);
+        b.setBlendEngine(engine);
+
+        Random random = new Random(5);
+        BlendEngineTest.randomWeights(a, random, 0.5f);
+        BlendEngineTest.randomWeights(b, random, 0.5f);
+        a.applyBlendShapes();
+        b.applyBlendShapes();
+        BlendEngineTest.assertBitExact(BlendEngineTest.renderScriptBlend(a), a);
+        BlendEngineTest.assertBitExact(BlendEngineTest.renderScriptBlend(b), b);
+        engine.release();
+    }
+
+    @Test
+    public void changedContentIsLoadedAgain() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "assetcache" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        File file = new File(dir, "part.bob");
+        try {
+            copy(new File(BlendEngineTest.ASSETS + "Data/eye.bob"), file);
+            AssetCache cache = new AssetCache();
+            FileSource source = new FileSource(dir.getPath() + File.separator);
+            VMBOModel eye = cache.acquireModel(source, "part.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+
+            copy(new File(BlendEngineTest.ASSETS + "Data/girlTongue.bob"), file);
+            VMBOModel tongue = cache.acquireModel(source, "part.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+            assertEquals(2, source.modelLoads.get());
+            assertEquals(2, cache.size());
+            assertNotEquals(eye.nVtx, tongue.nVtx);
+            cache.release(eye);
+            cache.release(tongue);
+            assertEquals(0, cache.size());
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void concurrentAcquiresLoadOnce() throws Exception {
+        final AssetCache cache = new AssetCache();
+        final FileSource source = new FileSource(BlendEngineTest.ASSETS);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] results = new Future<?>[8];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        return cache.acquireModel(source, "Data/girlTeeth.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+                    }
+                });
+            }
+            for (Future<?> f : results) assertNotNull(f.get());
+            assertEquals(1, source.modelLoads.get());
+            assertEquals(8, cache.getRefCount("Data/girlTeeth.bob"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void materialsAreSharedAndCounted() throws IOException {
+        AssetCache cache = new AssetCache();
+        FileSource source = new FileSource(BlendEngineTest.ASSETS);
+        VMMaterial a = cache.acquireMaterial(source, "Data/girlFace.mtl");
+        VMMaterial b = cache.acquireMaterial(source, "Data/girlFace.mtl");
+        assertSame(a, b);
+        assertEquals(1, source.materialLoads.get());
+        assertTrue(cache.release(a));
+        assertEquals(1, cache.size());
+        assertTrue(cache.release(b));
+        assertEquals(0, cache.size());
+        assertFalse(cache.release(b));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingAssetsAreNotCached() throws IOException {
+        AssetCache cache = new AssetCache();
+        try {
+            cache.acquireModel(new FileSource(BlendEngineTest.ASSETS), "Data/missing.bob", VMBOLoader.LAYOUT_SHAPE_MAJOR);
+        } finally {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package vml.com.vm.blend;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the multi-core Java engine against the RenderScript kernel (blend.rs) on the girl face.
+ */
+public class BlendEngineTest {
+    static final String ASSETS = "src/main/assets/";
+
+    private static VMBOModel face;
+
+    @BeforeClass
+    public static void loadFace() throws IOException {
+        face = loadModel("Data/girlFace.bob");
+        assertNotNull(face);
+    }
+
+    static VMBOModel loadModel(String path) throws IOException {
+        return VMBOLoader.loadModel(new FileInputStream(ASSETS + path), path);
+    }
+
+    /**
+     * Line by line port of root() in blend.rs for a single row
+     */
+    static float[] renderScriptBlend(VMBOModel model) {
+        float[] matN = model.NVertices;
+        float[] matB = model.BSVertices;
+        float[] matA = model.BSWeights;
+        int n = matN.length;
+        int k = model.nBS;
+        float[] outMatrix = new float[n];
+        for (int i = 0; i < n; i++) {
+            outMatrix[i] = matN[i];
+            for (int j = 0; j < k; j++) {
+                outMatrix[i] += matA[j] * matB[j * n + i];
+            }
+        }
+        return outMatrix;
+    }
+
+    static void randomWeights(VMBOModel model, Random random, float zeroRatio) {
+        for (int j = 0; j < model.nBS; j++) {
+            model.BSWeights[j] = random.nextFloat() < zeroRatio ? 0.0f : random.nextFloat() * 1.2f - 0.2f;
+        }
+    }
+
+    static void assertBitExact(float[] expected, VMBOModel model) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("coordinate " + i, Float.floatToIntBits(expected[i]),
+                    Float.floatToIntBits(model.mVerticesBuffer.get(i)));
+        }
+    }
+
+    @Test
+    public void matchesRenderScriptKernelBitForBit() {
+        Random random = new Random(42);
+        for (int threads = 1; threads <= 4; threads++) {
+            BlendEngine engine = new BlendEngine(threads);
+            face.setBlendEngine(engine);
+            for (int frame = 0; frame < 5; frame++) {
+                randomWeights(face, random, 0.8f);
+                face.applyBlendShapes();
+                assertBitExact(renderScriptBlend(face), face);
+            }
+            engine.release();
+        }
+        face.setBlendEngine(null);
+    }
+
+    @Test
+    public void activeSetSkipsOnlyZeroWeightsByDefault() {
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(BlendEngine.MODE_ACTIVE_SET);
+        face.setBlendEngine(engine);
+        Random random = new Random(3);
+        for (int frame = 0; frame < 5; frame++) {
+            randomWeights(face, random, 0.85f);
+            int nonZero = 0;
+            for (float w : face.BSWeights) if (w != 0.0f) nonZero++;
+
+            face.applyBlendShapes();
+            assertEquals(nonZero, face.getActiveBlendShapeCount());
+            float[] expected = renderScriptBlend(face);
+            for (int i = 0; i < expected.length; i++) {
+                assertTrue("coordinate " + i, expected[i] == face.mVerticesBuffer.get(i));
+            }
+        }
+        engine.release();
+        face.setBlendEngine(null);
+    }
+
+    @Test
+    public void activeSetEpsilonBoundsTheError() {
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(BlendEngine.MODE_ACTIVE_SET);
+        engine.setActiveSetEpsilon(0.05f);
+        face.setBlendEngine(engine);
+        randomWeights(face, new Random(11), 0.0f);
+        int expectedCount = 0;
+        for (int j = 0; j < face.nBS; j++) {
+            if (Math.abs(face.BSWeights[j]) <= 0.05f) {
+                face.BSWeights[j] *= 0.01f;
+            }
+            else expectedCount++;
+        }
+        face.applyBlendShapes();
+        assertEquals(expectedCount, face.getActiveBlendShapeCount());
+        assertTrue(face.getLastBlendTime() > 0);
+
+        float[] expected = renderScriptBlend(face);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], face.mVerticesBuffer.get(i), 1e-2f);
+        }
+        engine.release();
+        face.setBlendEngine(null);
+    }
+
+    @Test
+    public void leavesNonBlendingVerticesUntouched() {
+        float[] before = new float[3 * face.nVtx];
+        face.mVerticesBuffer.get(before);
+        face.mVerticesBuffer.rewind();
+
+        BlendEngine engine = new BlendEngine(3);
+        face.setBlendEngine(engine);
+        randomWeights(face, new Random(7), 0.5f);
+        face.applyBlendShapes();
+        engine.release();
+        face.setBlendEngine(null);
+
+        assertEquals(0, face.mVerticesBuffer.position());
+        for (int i = 3 * face.nBlendVtx; i < 3 * face.nVtx; i++) {
+            assertEquals(before[i], face.mVerticesBuffer.get(i), 0.0f);
+        }
+    }
+}
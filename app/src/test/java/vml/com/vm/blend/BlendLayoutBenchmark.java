@@ -0,0 +1,77 @@
+package vml.com.vm.blend;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Shape major layout, walked in the blend.rs order (shape inner loop) and shape by shape,
+ * versus the tiled layout. Single thread, dense blend.
+ * Run with -Dvml.bench=true, e.g. ./gradlew test -Dvml.bench=true --tests '*BlendLayoutBenchmark'
+ */
+public class BlendLayoutBenchmark {
+    private static final int FRAMES = 200;
+
+    @Test
+    public void compareLayouts() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+
+        System.out.println("mesh                  verts  shapes  blend.rs us  shape-major us  tiled us");
+        for (String path : new String[]{"Data/girlTongue.bob", "Data/girlFace.bob", "Data/girlTeeth.bob"}) {
+            VMBOModel model = BlendEngineTest.loadModel(path);
+            run(path, model.NVertices, model.BSVertices, model.nBS);
+        }
+        Random random = new Random(0);
+        for (int nVtx : new int[]{5000, 10000, 20000}) {
+            int nBS = 75;
+            float[] N = new float[3 * nVtx];
+            float[] B = new float[3 * nBS * nVtx];
+            for (int i = 0; i < N.length; i++) N[i] = random.nextFloat();
+            for (int i = 0; i < B.length; i++) B[i] = random.nextFloat() * 0.01f;
+            run("synthetic " + nVtx, N, B, nBS);
+        }
+    }
+
+    private static void run(String name, float[] N, float[] B, int nBS) {
+        int nVtx = N.length / 3;
+        float[] W = new float[nBS];
+        Random random = new Random(1);
+        for (int j = 0; j < nBS; j++) W[j] = random.nextFloat();
+        float[] out = new float[N.length];
+        TiledBlendShapes tiled = TiledBlendShapes.build(B, nBS, nVtx, TiledBlendShapes.TILE_VTX);
+
+        //warm up the kernels
+        for (int f = 0; f < FRAMES; f++) {
+            renderScriptOrder(N, B, W, nBS, out);
+            BlendEngine.blendDense(N, B, W, nBS, out, 0, N.length);
+            tiled.blend(N, W, out, 0, nVtx);
+        }
+        long tRS = System.nanoTime();
+        for (int f = 0; f < FRAMES; f++) renderScriptOrder(N, B, W, nBS, out);
+        long t0 = System.nanoTime();
+        for (int f = 0; f < FRAMES; f++) BlendEngine.blendDense(N, B, W, nBS, out, 0, N.length);
+        long t1 = System.nanoTime();
+        for (int f = 0; f < FRAMES; f++) tiled.blend(N, W, out, 0, nVtx);
+        long t2 = System.nanoTime();
+
+        double rs = (t0 - tRS) / 1000.0 / FRAMES;
+        double shapeMajor = (t1 - t0) / 1000.0 / FRAMES;
+        double tiledUs = (t2 - t1) / 1000.0 / FRAMES;
+        System.out.println(String.format("%-20s %6d %7d %12.1f %15.1f %9.1f",
+                name, nVtx, nBS, rs, shapeMajor, tiledUs));
+    }
+
+    /**
+     * blend.rs access pattern: for every coordinate, all the blendshapes (stride n)
+     */
+    private static void renderScriptOrder(float[] N, float[] B, float[] W, int nBS, float[] out) {
+        int n = N.length;
+        for (int i = 0; i < n; i++) {
+            float v = N[i];
+            for (int j = 0; j < nBS; j++) v += W[j] * B[j * n + i];
+            out[i] = v;
+        }
+    }
+}
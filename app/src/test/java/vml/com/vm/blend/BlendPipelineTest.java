@@ -0,0 +1,148 @@
+package vml.com.vm.blend;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the pipelined blending: the frames drawn are the ones blended synchronously, one frame later at depth 2,
+ * and the buffers drawn are not written until the next frame.
+ */
+public class BlendPipelineTest {
+
+    private static VMBOModel face;
+
+    @BeforeClass
+    public static void loadFace() throws IOException {
+        face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        assertNotNull(face);
+    }
+
+    private static float[] copy(FloatBuffer buffer) {
+        if (buffer == null) return null;
+        float[] out = new float[buffer.capacity()];
+        for (int i = 0; i < out.length; i++) out[i] = buffer.get(i);
+        return out;
+    }
+
+    /**
+     * Vertices, normals and tangents of a model
+     */
+    private static float[][] snapshot(VMBOModel model) {
+        return new float[][]{copy(model.mVerticesBuffer), copy(model.mNormalsBuffer), copy(model.mTangentsBuffer)};
+    }
+
+    private static void assertSameFrame(String message, float[][] expected, VMBOModel model) {
+        float[][] actual = snapshot(model);
+        for (int b = 0; b < expected.length; b++) {
+            if (expected[b] == null) continue;
+            for (int i = 0; i < expected[b].length; i++) {
+                if (Float.floatToIntBits(expected[b][i]) != Float.floatToIntBits(actual[b][i]))
+                    fail(message + ", buffer " + b + ", coordinate " + i + ": " + expected[b][i] + " != " + actual[b][i]);
+            }
+        }
+    }
+
+    private static BlendEngine engine(int mode) {
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(mode);
+        engine.setDeformNormals(true);
+        return engine;
+    }
+
+    /**
+     * Runs frames at the given depths, the pipelined model must show the frames of a model blended synchronously
+     * with the same weights and the same engine settings
+     */
+    private static void runFrames(int mode, int[] depths) {
+        VMBOModel reference = face.createInstance();
+        VMBOModel pipelined = face.createInstance();
+        BlendEngine referenceEngine = engine(mode);
+        BlendEngine pipelinedEngine = engine(mode);
+        reference.setBlendEngine(referenceEngine);
+        pipelined.setBlendEngine(pipelinedEngine);
+        BlendPipeline pipeline = new BlendPipeline(depths[0], pipelined);
+
+        Random random = new Random(mode);
+        //frames of the reference, the first one is the neutral face
+        List<float[][]> frames = new ArrayList<float[][]>();
+        frames.add(snapshot(reference));
+        BlendPipeline.Timings timings = new BlendPipeline.Timings();
+        for (int frame = 0; frame < depths.length; frame++) {
+            BlendEngineTest.randomWeights(reference, random, 0.8f);
+            System.arraycopy(reference.BSWeights, 0, pipelined.BSWeights, 0, face.nBS);
+            reference.applyBlendShapes();
+            frames.add(snapshot(reference));
+
+            pipeline.setDepth(depths[frame]);
+            pipeline.beginFrame();
+            //the weights can be changed as soon as the frame has started
+            BlendEngineTest.randomWeights(pipelined, random, 0.5f);
+            int shown = frames.size() - depths[frame];
+            assertSameFrame("frame " + frame + " at depth " + depths[frame], frames.get(shown), pipelined);
+            pipeline.endFrame();
+
+            pipeline.getTimings(timings);
+            assertEquals(frame + 1, timings.frames);
+            assertEquals(depths[frame], timings.depth);
+        }
+        pipeline.release();
+        referenceEngine.release();
+        pipelinedEngine.release();
+    }
+
+    @Test
+    public void depthOneShowsTheCurrentFrame() {
+        runFrames(BlendEngine.MODE_DENSE, new int[]{1, 1, 1, 1});
+    }
+
+    @Test
+    public void depthTwoShowsThePreviousFrame() {
+        runFrames(BlendEngine.MODE_DENSE, new int[]{2, 2, 2, 2, 2, 2});
+        runFrames(BlendEngine.MODE_SPARSE, new int[]{2, 2, 2, 2});
+    }
+
+    @Test
+    public void incrementalFramesSurviveDepthChanges() {
+        runFrames(BlendEngine.MODE_INCREMENTAL, new int[]{2, 2, 2, 1, 1, 2, 2, 1, 2, 2, 2, 2});
+    }
+
+    @Test
+    public void drawnBuffersAreNotWrittenBeforeTheNextFrame() throws InterruptedException {
+        VMBOModel model = face.createInstance();
+        BlendEngine engine = engine(BlendEngine.MODE_DENSE);
+        model.setBlendEngine(engine);
+        BlendPipeline pipeline = new BlendPipeline(BlendPipeline.DEPTH_THROUGHPUT, model);
+        Random random = new Random(7);
+
+        FloatBuffer previous = null;
+        for (int frame = 0; frame < 6; frame++) {
+            BlendEngineTest.randomWeights(model, random, 0.5f);
+            pipeline.beginFrame();
+            FloatBuffer drawn = model.mVerticesBuffer;
+            assertNotSame(previous, drawn);
+            float[][] content = snapshot(model);
+            //the worker is done with the next frame long before
+            Thread.sleep(50);
+            assertSameFrame("frame " + frame, content, model);
+            pipeline.endFrame();
+            previous = drawn;
+        }
+
+        BlendPipeline.Timings timings = pipeline.getTimings(new BlendPipeline.Timings());
+        assertEquals(6, timings.frames);
+        assertTrue(timings.blendNs > 0);
+        assertTrue(timings.submitNs >= 50000000L);
+        //the worker had a whole frame to blend
+        assertTrue(timings.waitNs < timings.submitNs);
+        pipeline.release();
+        engine.release();
+    }
+}
@@ -0,0 +1,160 @@
+package vml.com.vm.blend;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Bob2FormatTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static VMBOModel load(File f) throws IOException {
+        return VMBOLoader.loadModel(new FileInputStream(f), f.getName());
+    }
+
+    private static ByteBuffer map(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void roundTripsEveryAsset() throws IOException {
+        for (File f : BulkLoaderTest.bobFiles()) {
+            VMBOModel original = load(f);
+            ByteBuffer encoded = Bob2Format.encode(original);
+
+            //heap buffer: everything is copied
+            VMBOModel heap = VMBOLoader.loadModel(encoded, f.getName());
+            BulkLoaderTest.assertSameModel(f.getName(), original, heap);
+
+            //direct buffer: rendering buffers are views of the data
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.limit());
+            direct.put(encoded.duplicate());
+            VMBOModel wrapped = VMBOLoader.loadModel(direct, f.getName());
+            BulkLoaderTest.assertSameModel(f.getName(), original, wrapped);
+        }
+    }
+
+    @Test
+    public void sectionsAreAlignedAndLittleEndian() throws IOException {
+        VMBOModel face = load(new File(BlendEngineTest.ASSETS + "Data/girlFace.bob"));
+        ByteBuffer data = Bob2Format.encode(face).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('B', data.get(0));
+        assertEquals('2', data.get(3));
+        assertEquals(Bob2Format.VERSION, data.getInt(4));
+        assertEquals(face.nBlendVtx, data.getInt(8));
+        Bob2Format.Section[] sections = Bob2Format.readSections(data);
+        for (Bob2Format.Section s : sections) {
+            if (s != null) assertEquals(0, s.offset % 16);
+        }
+        Bob2Format.Section positions = sections[Bob2Format.SECTION_POSITIONS];
+        assertEquals(face.mVerticesBuffer.get(0), data.getFloat(positions.offset), 0.0f);
+        Bob2Format.Section indices = sections[Bob2Format.SECTION_INDICES];
+        assertEquals(2 * 3 * face.nFcs, indices.size);
+        assertEquals(face.mIndexBuffer.get(5), data.getShort(indices.offset + 10));
+    }
+
+    @Test
+    public void converterWritesMappableSparseFiles() throws IOException {
+        File in = new File(BlendEngineTest.ASSETS + "Data/girlTeeth.bob");
+        File out = tmp.newFile("girlTeeth.bob2");
+        Bob2Converter.main(new String[]{"--sparse", "0", "--sparse-only", in.getPath(), out.getPath()});
+
+        VMBOModel original = load(in);
+        VMBOModel mapped = VMBOLoader.loadModel(map(out), out.getName());
+        assertNotNull(mapped);
+        assertNull(mapped.BSVertices);
+        //blended buffers are copied out of the read-only mapping, the others are used in place
+        assertFalse(mapped.mVerticesBuffer.isReadOnly());
+        assertTrue(mapped.mTexCoordsBuffer.isReadOnly());
+
+        SparseBlendShapes expected = SparseBlendShapes.build(original.BSVertices, original.BSNormals,
+                original.nBS, original.nBlendVtx, 0.0f);
+        assertArrayEquals(expected.rowStart, mapped.sparseBS.rowStart);
+        assertArrayEquals(expected.vtxIdx, mapped.sparseBS.vtxIdx);
+        assertArrayEquals(expected.deltas, mapped.sparseBS.deltas, 0.0f);
+        assertArrayEquals(expected.normalDeltas, mapped.sparseBS.normalDeltas, 0.0f);
+
+        BlendEngine engine = new BlendEngine(2);
+        mapped.setBlendEngine(engine);
+        BlendEngineTest.randomWeights(mapped, new Random(3), 0.5f);
+        mapped.applyBlendShapes();
+        original.BSWeights = mapped.BSWeights;
+        BlendEngineTest.assertBitExact(BlendEngineTest.renderScriptBlend(original), mapped);
+        engine.release();
+    }
+
+    @Test
+    public void rejectsInvalidData() {
+        assertNull(VMBOLoader.loadModel(ByteBuffer.wrap(new byte[64]), "zeros"));
+        ByteBuffer truncated = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        truncated.putInt(0, Bob2Format.MAGIC);
+        truncated.putInt(4, Bob2Format.VERSION);
+        truncated.putInt(32, 1);
+        truncated.putInt(48, Bob2Format.SECTION_POSITIONS);
+        truncated.putInt(52, 64);
+        truncated.putInt(56, 1024);
+        assertNull(VMBOLoader.loadModel(truncated, "truncated"));
+    }
+
+    private File corrupted(String name, byte[] data, int length) throws IOException {
+        File f = tmp.newFile(name);
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(data, 0, length);
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void converterRejectsCorruptedFiles() throws Exception {
+        File in = new File(BlendEngineTest.ASSETS + "Data/girlTeeth.bob");
+        byte[] data = new byte[(int) in.length()];
+        DataInputStream is = new DataInputStream(new FileInputStream(in));
+        try {
+            is.readFully(data);
+        } finally {
+            is.close();
+        }
+        File truncated = corrupted("truncated.bob", data, data.length / 2);
+        //a negative number of vertices
+        data[4] = (byte) 0xFF;
+        File header = corrupted("header.bob", data, data.length);
+
+        for (File f : new File[]{truncated, header}) {
+            try {
+                Bob2Converter.run(new String[]{f.getPath(), new File(tmp.getRoot(), f.getName() + "2").getPath()});
+                fail(f.getName());
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(f.getName()));
+            }
+        }
+
+        try {
+            Bob2Converter.run(new String[]{"--sparse", "x", in.getPath(), "out.bob2"});
+            fail();
+        } catch (Bob2Converter.UsageException e) {
+            assertEquals("invalid threshold", e.getMessage());
+        }
+    }
+}
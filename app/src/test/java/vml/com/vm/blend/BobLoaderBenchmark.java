@@ -0,0 +1,48 @@
+package vml.com.vm.blend;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Parsing throughput of the bulk .bob loader against the per-value reader, on every asset.
+ * Files are read in memory first so only the parsing is measured.
+ * Run with -Dvml.bench=true, e.g. ./gradlew test -Dvml.bench=true --tests '*BobLoaderBenchmark'
+ */
+public class BobLoaderBenchmark {
+    private static final int RUNS = 5;
+
+    @Test
+    public void compareLoaders() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+
+        System.out.println("file                       MB   streamed MB/s   bulk MB/s");
+        for (File f : BulkLoaderTest.bobFiles()) {
+            byte[] bytes = new byte[(int) f.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            in.readFully(bytes);
+            in.close();
+
+            //warm up
+            VMBOLoader.loadModelStreamed(new ByteArrayInputStream(bytes), f.getName(), VMBOLoader.LAYOUT_SHAPE_MAJOR);
+            VMBOLoader.loadModel(new ByteArrayInputStream(bytes), f.getName());
+
+            long t0 = System.nanoTime();
+            for (int r = 0; r < RUNS; r++)
+                VMBOLoader.loadModelStreamed(new ByteArrayInputStream(bytes), f.getName(), VMBOLoader.LAYOUT_SHAPE_MAJOR);
+            long t1 = System.nanoTime();
+            for (int r = 0; r < RUNS; r++)
+                VMBOLoader.loadModel(new ByteArrayInputStream(bytes), f.getName());
+            long t2 = System.nanoTime();
+
+            double mb = bytes.length / (1024.0 * 1024.0);
+            System.out.println(String.format("%-22s %7.2f %15.1f %11.1f", f.getName(), mb,
+                    mb * RUNS / ((t1 - t0) * 1e-9), mb * RUNS / ((t2 - t1) * 1e-9)));
+        }
+    }
+}
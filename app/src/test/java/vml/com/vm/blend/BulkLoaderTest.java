@@ -0,0 +1,92 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bulk loader must produce the same model as the per-value reader for every asset.
+ */
+public class BulkLoaderTest {
+
+    static File[] bobFiles() {
+        File[] files = new File(BlendEngineTest.ASSETS + "Data").listFiles();
+        assertNotNull(files);
+        List<File> bobs = new ArrayList<>();
+        for (File f : files) if (f.getName().endsWith(".bob")) bobs.add(f);
+        assertFalse(bobs.isEmpty());
+        return bobs.toArray(new File[bobs.size()]);
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        assertEquals(0, buffer.position());
+        float[] out = new float[buffer.remaining()];
+        buffer.duplicate().get(out);
+        return out;
+    }
+
+    private static short[] toArray(ShortBuffer buffer) {
+        assertEquals(0, buffer.position());
+        short[] out = new short[buffer.remaining()];
+        buffer.duplicate().get(out);
+        return out;
+    }
+
+    static void assertSameModel(String name, VMBOModel expected, VMBOModel actual) {
+        assertEquals(name, expected.nBlendVtx, actual.nBlendVtx);
+        assertEquals(name, expected.nVtx, actual.nVtx);
+        assertEquals(name, expected.nFcs, actual.nFcs);
+        assertEquals(name, expected.nBS, actual.nBS);
+        assertEquals(name, expected.uNorm, actual.uNorm);
+        assertEquals(name, expected.uUV, actual.uUV);
+        assertArrayEquals(name, expected.BSNames, actual.BSNames);
+        assertArrayEquals(name, toArray(expected.mVerticesBuffer), toArray(actual.mVerticesBuffer), 0.0f);
+        assertArrayEquals(name, toArray(expected.mNormalsBuffer), toArray(actual.mNormalsBuffer), 0.0f);
+        assertArrayEquals(name, toArray(expected.mTexCoordsBuffer), toArray(actual.mTexCoordsBuffer), 0.0f);
+        assertArrayEquals(name, toArray(expected.mTangentsBuffer), toArray(actual.mTangentsBuffer), 0.0f);
+        assertArrayEquals(name, toArray(expected.mIndexBuffer), toArray(actual.mIndexBuffer));
+        assertArrayEquals(name, expected.NVertices, actual.NVertices, 0.0f);
+        assertArrayEquals(name, expected.NNormals, actual.NNormals, 0.0f);
+        assertArrayEquals(name, expected.BSVertices, actual.BSVertices, 0.0f);
+        assertArrayEquals(name, expected.BSNormals, actual.BSNormals, 0.0f);
+        assertEquals(name, expected.BSWeights.length, actual.BSWeights.length);
+    }
+
+    @Test
+    public void bulkLoaderMatchesStreamedLoader() throws IOException {
+        for (File f : bobFiles()) {
+            VMBOModel streamed = VMBOLoader.loadModelStreamed(new FileInputStream(f), f.getName(), VMBOLoader.LAYOUT_SHAPE_MAJOR);
+            VMBOModel bulk = VMBOLoader.loadModel(new FileInputStream(f), f.getName(), VMBOLoader.LAYOUT_SHAPE_MAJOR);
+            assertSameModel(f.getName(), streamed, bulk);
+        }
+    }
+
+    @Test
+    public void bulkLoaderFillsTiledLayout() throws IOException {
+        File f = new File(BlendEngineTest.ASSETS + "Data/girlTeeth.bob");
+        VMBOModel streamed = VMBOLoader.loadModelStreamed(new FileInputStream(f), f.getName(), VMBOLoader.LAYOUT_TILED);
+        VMBOModel bulk = VMBOLoader.loadModel(new FileInputStream(f), f.getName(), VMBOLoader.LAYOUT_TILED);
+        assertNull(bulk.BSVertices);
+        assertArrayEquals(streamed.tiledBS.data, bulk.tiledBS.data, 0.0f);
+    }
+
+    @Test
+    public void truncatedFileReturnsNull() throws IOException {
+        File f = new File(BlendEngineTest.ASSETS + "Data/girlTongue.bob");
+        byte[] bytes = new byte[(int) f.length() / 2];
+        FileInputStream in = new FileInputStream(f);
+        new DataInputStream(in).readFully(bytes);
+        in.close();
+        assertNull(VMBOLoader.loadModel(new ByteArrayInputStream(bytes), f.getName()));
+    }
+}
@@ -0,0 +1,118 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays a whole speech clip through MODE_INCREMENTAL and compares every frame with the full blend.
+ */
+public class IncrementalBlendTest {
+
+    static List<float[]> loadFaceWeights(String path) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new File(BlendEngineTest.ASSETS + path));
+        NodeList nodes = doc.getElementsByTagName("faceWeights");
+        List<float[]> frames = new ArrayList<>();
+        for (int k = 0; k < nodes.getLength(); k++) {
+            String[] tokens = nodes.item(k).getTextContent().trim().split("\\s+");
+            float[] w = new float[tokens.length];
+            for (int j = 0; j < w.length; j++) w[j] = Float.parseFloat(tokens[j]);
+            frames.add(w);
+        }
+        return frames;
+    }
+
+    private static float maxError(VMBOModel model, float[] expected) {
+        float max = 0.0f;
+        for (int i = 0; i < expected.length; i++) {
+            max = Math.max(max, Math.abs(expected[i] - model.mVerticesBuffer.get(i)));
+        }
+        return max;
+    }
+
+    private static float playClip(VMBOModel model, BlendEngine engine, List<float[]> clip) {
+        model.setBlendEngine(engine);
+        float max = 0.0f;
+        for (float[] w : clip) {
+            System.arraycopy(w, 0, model.BSWeights, 0, model.nBS);
+            model.applyBlendShapes();
+            max = Math.max(max, maxError(model, BlendEngineTest.renderScriptBlend(model)));
+        }
+        model.setBlendEngine(null);
+        return max;
+    }
+
+    @Test
+    public void staysCloseToFullBlendOverWholeClip() throws Exception {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        List<float[]> clip = loadFaceWeights("animation_data_girl1.xml");
+        assertTrue(clip.size() > 100);
+        assertEquals(face.nBS, clip.get(0).length);
+
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(BlendEngine.MODE_INCREMENTAL);
+        float dense = playClip(face, engine, clip);
+        assertTrue("max error " + dense, dense < 1e-4f);
+
+        face.buildSparseBlendShapes(0.0f, false);
+        float sparse = playClip(face, engine, clip);
+        assertTrue("max error " + sparse, sparse < 1e-4f);
+        engine.release();
+    }
+
+    @Test
+    public void appliesOnlyChangedWeights() throws Exception {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        BlendEngine engine = new BlendEngine(1);
+        engine.setMode(BlendEngine.MODE_INCREMENTAL);
+        engine.setRebuildInterval(1000);
+        face.setBlendEngine(engine);
+
+        face.BSWeights[3] = 0.5f;
+        face.BSWeights[10] = 0.25f;
+        face.applyBlendShapes();
+        assertEquals(2, face.getActiveBlendShapeCount());
+
+        face.applyBlendShapes();
+        assertEquals(0, face.getActiveBlendShapeCount());
+
+        face.BSWeights[10] = 0.0f;
+        face.BSWeights[20] = 0.75f;
+        face.applyBlendShapes();
+        assertEquals(2, face.getActiveBlendShapeCount());
+        assertEquals(0.0f, maxError(face, BlendEngineTest.renderScriptBlend(face)), 1e-5f);
+        engine.release();
+    }
+
+    @Test
+    public void rebuildIntervalResetsTheDrift() throws Exception {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        List<float[]> clip = loadFaceWeights("animation_data_girl1.xml");
+        BlendEngine engine = new BlendEngine(1);
+        engine.setMode(BlendEngine.MODE_INCREMENTAL);
+        engine.setRebuildInterval(4);
+        face.setBlendEngine(engine);
+
+        for (int k = 0; k < 10; k++) {
+            System.arraycopy(clip.get(k), 0, face.BSWeights, 0, face.nBS);
+            face.applyBlendShapes();
+            if (k % 5 == 0) {
+                //rebuilt from the neutral face: same arithmetic as the full blend
+                float[] expected = BlendEngineTest.renderScriptBlend(face);
+                for (int i = 0; i < expected.length; i++) {
+                    assertTrue("coordinate " + i, expected[i] == face.mVerticesBuffer.get(i));
+                }
+            }
+        }
+        engine.release();
+    }
+}
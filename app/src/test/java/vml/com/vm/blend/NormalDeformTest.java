@@ -0,0 +1,152 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the normal and tangent deformation done by the BlendEngine.
+ */
+public class NormalDeformTest {
+
+    /**
+     * normalize(NN + sum_j w_j * BN_j) for every blending vertex
+     */
+    static float[] referenceNormals(VMBOModel model) {
+        int n = model.NNormals.length;
+        float[] out = new float[n];
+        for (int i = 0; i < n; i++) {
+            double v = model.NNormals[i];
+            for (int j = 0; j < model.nBS; j++) v += model.BSWeights[j] * model.BSNormals[j * n + i];
+            out[i] = (float) v;
+        }
+        for (int o = 0; o < n; o += 3) {
+            double len = Math.sqrt(out[o] * out[o] + out[o + 1] * out[o + 1] + out[o + 2] * out[o + 2]);
+            for (int c = 0; c < 3; c++) out[o + c] /= len;
+        }
+        return out;
+    }
+
+    private static void assertTangentFrames(VMBOModel model, float[] staticTangents) {
+        for (int v = 0; v < model.nBlendVtx; v++) {
+            float[] n = new float[3];
+            float[] t = new float[3];
+            for (int c = 0; c < 3; c++) {
+                n[c] = model.mNormalsBuffer.get(3 * v + c);
+                t[c] = model.mTangentsBuffer.get(3 * v + c);
+            }
+            float ts = staticTangents[3 * v] + staticTangents[3 * v + 1] + staticTangents[3 * v + 2];
+            if (Float.isNaN(ts)) continue;
+            assertEquals("normal length " + v, 1.0f, (float) Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]), 1e-5f);
+            assertEquals("tangent length " + v, 1.0f, (float) Math.sqrt(t[0] * t[0] + t[1] * t[1] + t[2] * t[2]), 1e-5f);
+            assertEquals("n.t " + v, 0.0f, n[0] * t[0] + n[1] * t[1] + n[2] * t[2], 1e-5f);
+        }
+    }
+
+    private static float[] copy(FloatBuffer buffer, int count) {
+        float[] out = new float[count];
+        for (int i = 0; i < count; i++) out[i] = buffer.get(i);
+        return out;
+    }
+
+    @Test
+    public void denseNormalsMatchReference() throws IOException {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        float[] staticTangents = copy(face.mTangentsBuffer, 3 * face.nBlendVtx);
+        BlendEngine engine = new BlendEngine(3);
+        engine.setDeformNormals(true);
+        face.setBlendEngine(engine);
+
+        Random random = new Random(17);
+        for (int mode = BlendEngine.MODE_DENSE; mode <= BlendEngine.MODE_ACTIVE_SET; mode++) {
+            engine.setMode(mode);
+            BlendEngineTest.randomWeights(face, random, 0.8f);
+            face.applyBlendShapes();
+
+            float[] expected = referenceNormals(face);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("coordinate " + i, expected[i], face.mNormalsBuffer.get(i), 1e-5f);
+            }
+            assertEquals(0, face.mNormalsBuffer.position());
+            assertEquals(0, face.mTangentsBuffer.position());
+            assertTangentFrames(face, staticTangents);
+        }
+        engine.release();
+    }
+
+    @Test
+    public void sparseNormalsOnlyTouchActiveVertices() throws IOException {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        float[] neutral = copy(face.mNormalsBuffer, 3 * face.nBlendVtx);
+        face.buildSparseBlendShapes(0.0f, false);
+        assertNotNull(face.sparseBS.normalDeltas);
+
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(BlendEngine.MODE_SPARSE);
+        engine.setDeformNormals(true);
+        face.setBlendEngine(engine);
+
+        Random random = new Random(23);
+        for (int frame = 0; frame < 3; frame++) {
+            BlendEngineTest.randomWeights(face, random, 0.9f);
+            face.applyBlendShapes();
+
+            float[] expected = referenceNormals(face);
+            for (int v = 0; v < face.nBlendVtx; v++) {
+                boolean moved = false;
+                for (int j = 0; j < face.nBS; j++) {
+                    if (face.BSWeights[j] == 0.0f) continue;
+                    for (int c = 0; c < 3; c++) {
+                        int i = j * 3 * face.nBlendVtx + 3 * v + c;
+                        moved |= face.BSNormals[i] != 0.0f || face.BSVertices[i] != 0.0f;
+                    }
+                }
+                for (int c = 0; c < 3; c++) {
+                    float expectedValue = moved ? expected[3 * v + c] : neutral[3 * v + c];
+                    assertEquals("vertex " + v, expectedValue, face.mNormalsBuffer.get(3 * v + c), 1e-5f);
+                }
+            }
+        }
+        engine.release();
+    }
+
+    @Test
+    public void incrementalNormalsFollowTheClip() throws Exception {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        face.buildSparseBlendShapes(0.0f, false);
+        BlendEngine engine = new BlendEngine(2);
+        engine.setMode(BlendEngine.MODE_INCREMENTAL);
+        engine.setDeformNormals(true);
+        face.setBlendEngine(engine);
+
+        List<float[]> clip = IncrementalBlendTest.loadFaceWeights("animation_data_girl1.xml");
+        for (int k = 0; k < clip.size(); k += 2) {
+            System.arraycopy(clip.get(k), 0, face.BSWeights, 0, face.nBS);
+            face.applyBlendShapes();
+        }
+        float[] expected = referenceNormals(face);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("coordinate " + i, expected[i], face.mNormalsBuffer.get(i), 1e-4f);
+        }
+        engine.release();
+    }
+
+    @Test
+    public void normalsStayNeutralWhenDisabled() throws IOException {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        float[] neutral = copy(face.mNormalsBuffer, 3 * face.nVtx);
+        BlendEngine engine = new BlendEngine(2);
+        face.setBlendEngine(engine);
+        BlendEngineTest.randomWeights(face, new Random(29), 0.5f);
+        face.applyBlendShapes();
+        for (int i = 0; i < neutral.length; i++) {
+            assertEquals(neutral[i], face.mNormalsBuffer.get(i), 0.0f);
+        }
+        engine.release();
+    }
+}
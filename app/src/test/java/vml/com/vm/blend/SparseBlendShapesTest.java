@@ -0,0 +1,59 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SparseBlendShapesTest {
+
+    @Test
+    public void losslessThresholdMatchesDenseBlend() throws IOException {
+        VMBOModel teeth = BlendEngineTest.loadModel("Data/girlTeeth.bob");
+        float[] dense = teeth.BSVertices.clone();
+        teeth.buildSparseBlendShapes(0.0f, true);
+        assertNull(teeth.BSVertices);
+        assertTrue(teeth.sparseBS.sizeInBytes() < 4L * dense.length);
+
+        BlendEngine engine = new BlendEngine(3);
+        engine.setMode(BlendEngine.MODE_SPARSE);
+        teeth.setBlendEngine(engine);
+        Random random = new Random(5);
+        for (int frame = 0; frame < 5; frame++) {
+            BlendEngineTest.randomWeights(teeth, random, 0.8f);
+            teeth.applyBlendShapes();
+
+            teeth.BSVertices = dense;
+            float[] expected = BlendEngineTest.renderScriptBlend(teeth);
+            teeth.BSVertices = null;
+            for (int i = 0; i < expected.length; i++) {
+                assertTrue("coordinate " + i, expected[i] == teeth.mVerticesBuffer.get(i));
+            }
+        }
+        engine.release();
+    }
+
+    @Test
+    public void thresholdDropsOnlySmallDeltas() throws IOException {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        float threshold = SparseBlendShapes.DEFAULT_THRESHOLD;
+        SparseBlendShapes sparse = SparseBlendShapes.build(face.BSVertices, face.nBS, face.nBlendVtx, threshold);
+        assertTrue(sparse.size() < face.nBS * face.nBlendVtx);
+
+        int n = 3 * face.nBlendVtx;
+        float[] rebuilt = new float[face.BSVertices.length];
+        for (int j = 0; j < face.nBS; j++) {
+            for (int k = sparse.rowStart[j]; k < sparse.rowStart[j + 1]; k++) {
+                if (k > sparse.rowStart[j]) assertTrue(sparse.vtxIdx[k] > sparse.vtxIdx[k - 1]);
+                for (int c = 0; c < 3; c++) {
+                    rebuilt[j * n + 3 * sparse.vtxIdx[k] + c] = sparse.deltas[3 * k + c];
+                }
+            }
+        }
+        for (int i = 0; i < rebuilt.length; i++) {
+            assertEquals(face.BSVertices[i], rebuilt[i], threshold);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package vml.com.vm.blend;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Load time tangent generation: the former allocating loop of VMBOLoader against TangentGenerator
+ * on one and two threads, for every .bob asset.
+ * Run with -Dvml.bench=true, e.g. ./gradlew test -Dvml.bench=true --tests '*TangentBenchmark'
+ */
+public class TangentBenchmark {
+    private static final int RUNS = 50;
+
+    @Test
+    public void compareTangentGeneration() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+
+        System.out.println("file                   triangles  previous ms  1 thread ms  2 threads ms");
+        for (File f : BulkLoaderTest.bobFiles()) {
+            VMBOModel model = BlendEngineTest.loadModel("Data/" + f.getName());
+            float[] positions = new float[3 * model.nVtx];
+            float[] normals = new float[3 * model.nVtx];
+            float[] uvs = new float[2 * model.nVtx];
+            short[] faces = new short[3 * model.nFcs];
+            ((FloatBuffer) model.mVerticesBuffer.duplicate().position(0)).get(positions);
+            ((FloatBuffer) model.mNormalsBuffer.duplicate().position(0)).get(normals);
+            ((FloatBuffer) model.mTexCoordsBuffer.duplicate().position(0)).get(uvs);
+            ((ShortBuffer) model.mIndexBuffer.duplicate().position(0)).get(faces);
+            float[] tangents = new float[positions.length];
+
+            for (int r = 0; r < RUNS; r++) {
+                previousTangents(model);
+                TangentGenerator.generate(positions, normals, uvs, faces, model.nFcs, tangents, 1);
+                TangentGenerator.generate(positions, normals, uvs, faces, model.nFcs, tangents, 2);
+            }
+            long t0 = System.nanoTime();
+            for (int r = 0; r < RUNS; r++) previousTangents(model);
+            long t1 = System.nanoTime();
+            for (int r = 0; r < RUNS; r++)
+                TangentGenerator.generate(positions, normals, uvs, faces, model.nFcs, tangents, 1);
+            long t2 = System.nanoTime();
+            for (int r = 0; r < RUNS; r++)
+                TangentGenerator.generate(positions, normals, uvs, faces, model.nFcs, tangents, 2);
+            long t3 = System.nanoTime();
+            System.out.println(String.format("%-22s %10d %12.2f %12.2f %13.2f", f.getName(), model.nFcs,
+                    (t1 - t0) * 1e-6 / RUNS, (t2 - t1) * 1e-6 / RUNS, (t3 - t2) * 1e-6 / RUNS));
+        }
+    }
+
+    /**
+     * The loop VMBOLoader used before TangentGenerator, with its per triangle allocations
+     */
+    private static float[] previousTangents(VMBOModel model) {
+        float[] tanX = new float[model.nVtx];
+        float[] tanY = new float[model.nVtx];
+        float[] tanZ = new float[model.nVtx];
+        for (int face = 0; face < 3 * model.nFcs; face += 3) {
+            int idx0 = model.mIndexBuffer.get(face);
+            int idx1 = model.mIndexBuffer.get(face + 1);
+            int idx2 = model.mIndexBuffer.get(face + 2);
+            float[] v0 = {model.mVerticesBuffer.get(3 * idx0), model.mVerticesBuffer.get(3 * idx0 + 1), model.mVerticesBuffer.get(3 * idx0 + 2)};
+            float[] v1 = {model.mVerticesBuffer.get(3 * idx1), model.mVerticesBuffer.get(3 * idx1 + 1), model.mVerticesBuffer.get(3 * idx1 + 2)};
+            float[] v2 = {model.mVerticesBuffer.get(3 * idx2), model.mVerticesBuffer.get(3 * idx2 + 1), model.mVerticesBuffer.get(3 * idx2 + 2)};
+            float[] uv0 = {model.mTexCoordsBuffer.get(2 * idx0), model.mTexCoordsBuffer.get(2 * idx0 + 1)};
+            float[] uv1 = {model.mTexCoordsBuffer.get(2 * idx1), model.mTexCoordsBuffer.get(2 * idx1 + 1)};
+            float[] uv2 = {model.mTexCoordsBuffer.get(2 * idx2), model.mTexCoordsBuffer.get(2 * idx2 + 1)};
+            float[] edge1 = subtract(v1, v0);
+            float[] edge2 = subtract(v2, v0);
+            float[] deltaUV1 = subtract(uv1, uv0);
+            float[] deltaUV2 = subtract(uv2, uv0);
+            float f = 1.0f / (deltaUV1[0] * deltaUV2[1] - deltaUV2[0] * deltaUV1[1]);
+            float[] tangent = new float[3];
+            for (int c = 0; c < 3; c++) tangent[c] = f * (deltaUV2[1] * edge1[c] - deltaUV1[1] * edge2[c]);
+            tangent = normalize(tangent);
+            for (int idx : new int[]{idx0, idx1, idx2}) {
+                tanX[idx] = (tanX[idx] + tangent[0]) * 0.5f;
+                tanY[idx] = (tanY[idx] + tangent[1]) * 0.5f;
+                tanZ[idx] = (tanZ[idx] + tangent[2]) * 0.5f;
+            }
+        }
+        return tanX;
+    }
+
+    private static float[] subtract(float[] a, float[] b) {
+        float[] val = new float[a.length];
+        for (int i = 0; i < a.length; i++) val[i] = a[i] - b[i];
+        return val;
+    }
+
+    private static float[] normalize(float[] a) {
+        float sum = 0.0f;
+        for (float v : a) sum += v * v;
+        sum = (float) Math.sqrt(sum);
+        float[] val = new float[a.length];
+        for (int i = 0; i < a.length; i++) val[i] = a[i] / sum;
+        return val;
+    }
+}
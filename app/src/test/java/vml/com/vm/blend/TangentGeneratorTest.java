@@ -0,0 +1,122 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+public class TangentGeneratorTest {
+
+    /** unit quad in the z=0 plane, two triangles, 4 vertices */
+    private static final float[] QUAD = {0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0};
+    private static final float[] QUAD_NORMALS = {0, 0, 1, 0, 0, 1, 0, 0, 1, 0, 0, 1};
+    private static final short[] QUAD_FACES = {0, 1, 2, 0, 2, 3};
+
+    private static float[] generate(float[] positions, float[] normals, float[] uvs, short[] faces) {
+        float[] tangents = new float[positions.length];
+        TangentGenerator.generate(positions, normals, uvs, faces, faces.length / 3, tangents, 1);
+        return tangents;
+    }
+
+    /**
+     * Copies a whole buffer, whatever its position
+     */
+    private static void read(FloatBuffer buffer, float[] out) {
+        FloatBuffer view = buffer.duplicate();
+        view.position(0);
+        view.get(out);
+    }
+
+    private static void read(ShortBuffer buffer, short[] out) {
+        ShortBuffer view = buffer.duplicate();
+        view.position(0);
+        view.get(out);
+    }
+
+    private static void assertVector(float x, float y, float z, float[] v, int vertex) {
+        assertEquals("x " + vertex, x, v[3 * vertex], 1e-6f);
+        assertEquals("y " + vertex, y, v[3 * vertex + 1], 1e-6f);
+        assertEquals("z " + vertex, z, v[3 * vertex + 2], 1e-6f);
+    }
+
+    @Test
+    public void tangentFollowsU() {
+        float[] t = generate(QUAD, QUAD_NORMALS, new float[]{0, 0, 1, 0, 1, 1, 0, 1}, QUAD_FACES);
+        for (int v = 0; v < 4; v++) assertVector(1, 0, 0, t, v);
+
+        //u along y
+        t = generate(QUAD, QUAD_NORMALS, new float[]{0, 0, 0, 1, 1, 1, 1, 0}, QUAD_FACES);
+        for (int v = 0; v < 4; v++) assertVector(0, 1, 0, t, v);
+
+        //mirrored u
+        t = generate(QUAD, QUAD_NORMALS, new float[]{1, 0, 0, 0, 0, 1, 1, 1}, QUAD_FACES);
+        for (int v = 0; v < 4; v++) assertVector(-1, 0, 0, t, v);
+    }
+
+    @Test
+    public void sharedVerticesDoNotDependOnTriangleOrder() {
+        //vertex 0 is shared by two triangles whose tangents are (1,0,0) and (0,1,0)
+        float[] positions = {0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 1, 0, -1, 0, 0};
+        float[] uvs = {0, 0, 1, 0, 0, 1, 1, 0, 0, 1};
+        short[] faces = {0, 1, 2, 0, 3, 4};
+        short[] reversed = {0, 3, 4, 0, 1, 2};
+        float[] a = generate(positions, null, uvs, faces);
+        float[] b = generate(positions, null, uvs, reversed);
+        assertArrayEquals(a, b, 1e-6f);
+        float s = (float) Math.sqrt(0.5);
+        assertVector(s, s, 0, a, 0);
+    }
+
+    @Test
+    public void degenerateUVsGiveAPerpendicularUnitTangent() {
+        float[] t = generate(QUAD, QUAD_NORMALS, new float[8], QUAD_FACES);
+        for (int v = 0; v < 4; v++) {
+            float x = t[3 * v], y = t[3 * v + 1], z = t[3 * v + 2];
+            assertFalse(Float.isNaN(x + y + z));
+            assertEquals(1.0f, (float) Math.sqrt(x * x + y * y + z * z), 1e-6f);
+            assertEquals(0.0f, z, 1e-6f);
+        }
+    }
+
+    @Test
+    public void tangentsAreOrthogonalToNormals() {
+        float s = (float) Math.sqrt(0.5);
+        float[] tilted = {0, 0, s, 0, 0, s, 0, 0, s, 0, 0, s};
+        for (int i = 0; i < 4; i++) tilted[3 * i] = s;
+        float[] t = generate(QUAD, tilted, new float[]{0, 0, 1, 0, 1, 1, 0, 1}, QUAD_FACES);
+        for (int v = 0; v < 4; v++) assertVector(s, 0, -s, t, v);
+    }
+
+    @Test
+    public void threadsGiveTheSameResultOnLargeMeshes() throws IOException {
+        VMBOModel hair = BlendEngineTest.loadModel("Data/hair_center.bob");
+        float[] positions = new float[3 * hair.nVtx];
+        float[] normals = new float[3 * hair.nVtx];
+        float[] uvs = new float[2 * hair.nVtx];
+        short[] faces = new short[3 * hair.nFcs];
+        read(hair.mVerticesBuffer, positions);
+        read(hair.mNormalsBuffer, normals);
+        read(hair.mTexCoordsBuffer, uvs);
+        read(hair.mIndexBuffer, faces);
+
+        float[] single = new float[positions.length];
+        TangentGenerator.generate(positions, normals, uvs, faces, hair.nFcs, single, 1);
+        for (int threads = 2; threads <= 4; threads++) {
+            float[] multi = new float[positions.length];
+            TangentGenerator.generate(positions, normals, uvs, faces, hair.nFcs, multi, threads);
+            assertArrayEquals(single, multi, 1e-5f);
+        }
+
+        //the loader uses the generator
+        float[] loaded = new float[positions.length];
+        read(hair.mTangentsBuffer, loaded);
+        assertArrayEquals(single, loaded, 1e-5f);
+        for (int v = 0; v < hair.nVtx; v++) {
+            float x = single[3 * v], y = single[3 * v + 1], z = single[3 * v + 2];
+            assertEquals("vertex " + v, 1.0f, (float) Math.sqrt(x * x + y * y + z * z), 1e-5f);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package vml.com.vm.blend;
+
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TiledBlendShapesTest {
+
+    @Test
+    public void loaderLayoutMatchesBuiltLayout() throws IOException {
+        String path = "Data/girlFace.bob";
+        VMBOModel dense = BlendEngineTest.loadModel(path);
+        VMBOModel tiled = VMBOLoader.loadModel(new FileInputStream(BlendEngineTest.ASSETS + path), path,
+                VMBOLoader.LAYOUT_TILED);
+        assertNull(tiled.BSVertices);
+        assertNotNull(tiled.BSNormals);
+
+        TiledBlendShapes built = TiledBlendShapes.build(dense.BSVertices, dense.nBS, dense.nBlendVtx, TiledBlendShapes.TILE_VTX);
+        assertArrayEquals(built.data, tiled.tiledBS.data, 0.0f);
+    }
+
+    @Test
+    public void tiledKernelsMatchRenderScriptBitForBit() throws IOException {
+        VMBOModel face = BlendEngineTest.loadModel("Data/girlFace.bob");
+        float[] dense = face.BSVertices;
+        face.buildTiledBlendShapes(true);
+        assertNull(face.BSVertices);
+
+        Random random = new Random(31);
+        for (int mode = BlendEngine.MODE_DENSE; mode <= BlendEngine.MODE_ACTIVE_SET; mode++) {
+            //3 threads: chunk boundaries fall in the middle of tiles
+            BlendEngine engine = new BlendEngine(3);
+            engine.setMode(mode);
+            face.setBlendEngine(engine);
+            for (int frame = 0; frame < 3; frame++) {
+                BlendEngineTest.randomWeights(face, random, 0.7f);
+                face.applyBlendShapes();
+                face.BSVertices = dense;
+                float[] expected = BlendEngineTest.renderScriptBlend(face);
+                face.BSVertices = null;
+                BlendEngineTest.assertBitExact(expected, face);
+            }
+            engine.release();
+        }
+    }
+
+    @Test
+    public void oddTileSizes() {
+        int nBS = 5, nVtx = 37;
+        Random random = new Random(1);
+        float[] B = new float[3 * nBS * nVtx];
+        float[] N = new float[3 * nVtx];
+        float[] W = new float[nBS];
+        for (int i = 0; i < B.length; i++) B[i] = random.nextFloat();
+        for (int i = 0; i < N.length; i++) N[i] = random.nextFloat();
+        for (int j = 0; j < nBS; j++) W[j] = random.nextFloat();
+
+        float[] expected = new float[N.length];
+        BlendEngine.blendDense(N, B, W, nBS, expected, 0, N.length);
+        for (int tileVtx = 1; tileVtx <= 40; tileVtx += 3) {
+            TiledBlendShapes tiled = TiledBlendShapes.build(B, nBS, nVtx, tileVtx);
+            float[] out = new float[N.length];
+            tiled.blend(N, W, out, 0, 11);
+            tiled.blend(N, W, out, 11, nVtx);
+            assertArrayEquals("tile " + tileVtx, expected, out, 0.0f);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the audio clock alone, and replays position traces of a player against it to measure
+ * the lip-sync error.
+ */
+public class AudioClockTest {
+    private static final long MS = 1000000L;
+
+    private static class ManualTime implements AudioClock.TimeSource {
+        long now;
+
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    @Test
+    public void extrapolatesBetweenReports() {
+        ManualTime time = new ManualTime();
+        AudioClock clock = new AudioClock(time);
+        assertEquals(0, clock.getPosition());
+        clock.start(100);
+        assertTrue(clock.isPlaying());
+        time.now = 40 * MS;
+        assertEquals(140, clock.getPosition());
+
+        //a report 20 ms ahead is caught up over CORRECTION_MS
+        clock.onPosition(160);
+        assertEquals(140, clock.getPosition());
+        time.now += AudioClock.CORRECTION_MS / 2 * MS;
+        assertEquals(140 + AudioClock.CORRECTION_MS / 2 + 10, clock.getPosition());
+        time.now += AudioClock.CORRECTION_MS / 2 * MS;
+        assertEquals(160 + AudioClock.CORRECTION_MS, clock.getPosition());
+
+        //a report behind slows the clock down, it does not go back
+        int before = clock.getPosition();
+        clock.onPosition(before - 60);
+        for (int f = 0; f < 30; f++) {
+            time.now += 16 * MS;
+            int position = clock.getPosition();
+            assertTrue(position > before);
+            before = position;
+        }
+    }
+
+    @Test
+    public void snapsOnSeeksAndHoldsWhenPaused() {
+        ManualTime time = new ManualTime();
+        AudioClock clock = new AudioClock(time);
+        clock.start(0);
+        time.now = 100 * MS;
+        clock.onPosition(5000);
+        assertEquals(5000, clock.getPosition());
+        time.now += 10 * MS;
+        clock.onPosition(1000);
+        assertEquals(1000, clock.getPosition());
+
+        time.now += 50 * MS;
+        clock.pause(1050);
+        assertFalse(clock.isPlaying());
+        time.now += 1000 * MS;
+        assertEquals(1050, clock.getPosition());
+        clock.start(1050);
+        time.now += 20 * MS;
+        assertEquals(1070, clock.getPosition());
+
+        clock.stop();
+        time.now += 1000 * MS;
+        assertEquals(1070, clock.getPosition());
+        //reports older than the last one are dropped
+        clock.start(2000);
+        clock.onPosition(0, time.now - 10 * MS);
+        assertEquals(2000, clock.getPosition());
+    }
+
+    /**
+     * Position reports of a player: a sample of the position every periodMs (plus the delay of the
+     * callback), rounded to the steps of the audio output, with some jitter, and a seek.
+     */
+    private static class PositionTrace {
+        final double rate;
+        final int seekAtMs, seekByMs;
+        final long[] sampleMs;
+        final int[] reported;
+
+        PositionTrace(long seed, int durationMs, int periodMs, int quantumMs, double rate, int seekAtMs, int seekByMs) {
+            this.rate = rate;
+            this.seekAtMs = seekAtMs;
+            this.seekByMs = seekByMs;
+            Random random = new Random(seed);
+            int n = durationMs / periodMs;
+            sampleMs = new long[n];
+            reported = new int[n];
+            long t = 0;
+            for (int i = 0; i < n; i++) {
+                t += periodMs + random.nextInt(30);
+                sampleMs[i] = t;
+                double position = truePosition(t) + random.nextInt(11) - 5;
+                reported[i] = (int) (Math.round(position / quantumMs) * quantumMs);
+            }
+        }
+
+        double truePosition(double ms) {
+            return ms * rate + (ms >= seekAtMs ? seekByMs : 0);
+        }
+    }
+
+    /** sync error of a trace replayed frame by frame */
+    private static class Replay {
+        double meanError, maxError;
+        /** largest difference of the position from one frame to the next with the frame time */
+        double maxJitter;
+        int backwards;
+
+        Replay(PositionTrace trace, boolean polling) {
+            ManualTime time = new ManualTime();
+            AudioClock clock = new AudioClock(time);
+            clock.start(0);
+            int next = 0, frames = 0, last = 0, lastReported = 0;
+            //the seek is known at the first report after it
+            boolean seekReported = false, jump = false;
+            long end = trace.sampleMs[trace.sampleMs.length - 1];
+            for (long t = 16; t < end; t += 16) {
+                time.now = t * MS;
+                while (next < trace.sampleMs.length && trace.sampleMs[next] <= t) {
+                    lastReported = trace.reported[next];
+                    if (!seekReported && trace.sampleMs[next] >= trace.seekAtMs) seekReported = jump = true;
+                    clock.onPosition(lastReported, trace.sampleMs[next] * MS);
+                    next++;
+                }
+                int position = polling ? lastReported : clock.getPosition();
+                boolean seek = t >= trace.seekAtMs && !seekReported;
+                if (t > 500 && !seek && !jump) {
+                    double error = Math.abs(position - trace.truePosition(t));
+                    meanError += error;
+                    maxError = Math.max(maxError, error);
+                    maxJitter = Math.max(maxJitter, Math.abs(position - last - 16));
+                    if (position < last) backwards++;
+                    frames++;
+                }
+                if (!seek) jump = false;
+                last = position;
+            }
+            meanError /= frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean error %5.1f ms, max error %5.1f ms, max jitter %5.1f ms, backwards %d",
+                    meanError, maxError, maxJitter, backwards);
+        }
+    }
+
+    @Test
+    public void followsPlayerTraces() {
+        PositionTrace[] traces = {
+                new PositionTrace(1, 20000, 200, 20, 1.0, 8000, 1500),
+                //audio running 0.3% fast, reported every 500 ms
+                new PositionTrace(2, 20000, 500, 40, 1.003, 12000, 3000),
+                new PositionTrace(3, 20000, 100, 10, 0.998, 5000, 700),
+        };
+        for (PositionTrace trace : traces) {
+            Replay clock = new Replay(trace, false);
+            Replay polling = new Replay(trace, true);
+            System.out.println("clock:   " + clock);
+            System.out.println("reports: " + polling);
+            assertEquals(0, clock.backwards);
+            assertTrue(clock.toString(), clock.maxError < 40);
+            assertTrue(clock.toString(), clock.meanError < polling.meanError);
+            //a frame moves the position by the frame time, within a few ms
+            assertTrue(clock.toString(), clock.maxJitter <= 4);
+        }
+    }
+}
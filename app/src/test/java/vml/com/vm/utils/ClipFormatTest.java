@@ -0,0 +1,118 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the .vclip encoding against the animation XML files.
+ */
+public class ClipFormatTest {
+
+    static KeyFrameParser.Clip parse(File f) throws Exception {
+        InputStream is = new FileInputStream(f);
+        try {
+            return KeyFrameParserTest.pullParse(new KeyFrameParser(), is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Checks that b is a within tolerance copy of a
+     */
+    static void assertSameClip(KeyFrameParser.Clip a, KeyFrameParser.Clip b, float tolerance) {
+        assertEquals(a.name, b.name);
+        assertEquals(a.gender, b.gender);
+        assertEquals(a.hairModel, b.hairModel);
+        assertEquals(a.keys.size(), b.keys.size());
+        for (int k = 0; k < a.keys.size(); k++) {
+            KeyFrame e = a.keys.get(k);
+            KeyFrame g = b.keys.get(k);
+            assertEquals(e.time, g.time);
+            assertEquals(e.noddingValue, g.noddingValue, tolerance);
+            assertArrayEquals(e.pose.faceWeights, g.pose.faceWeights, tolerance);
+        }
+    }
+
+    @Test
+    public void assetClipsRoundTrip() throws Exception {
+        for (File f : KeyFrameParserTest.clipFiles()) {
+            KeyFrameParser.Clip clip = parse(f);
+            ByteBuffer data = ClipFormat.encode(clip, ClipFormat.DEFAULT_TOLERANCE);
+            assertSameClip(clip, ClipFormat.read(data), ClipFormat.DEFAULT_TOLERANCE);
+            //the 16 bit channels are much closer
+            assertSameClip(clip, ClipFormat.read(ClipFormat.encode(clip, 0.0f)), 1e-4f);
+            assertTrue(f.getName() + " " + data.limit() + " bytes", data.limit() * 10 < f.length());
+        }
+    }
+
+    @Test
+    public void irregularTimesAndNodding() throws Exception {
+        KeyFrameParser.Clip clip = new KeyFrameParser.Clip();
+        clip.name = "test";
+        int[] times = {0, 10, 40, 41, 100};
+        for (int k = 0; k < times.length; k++) {
+            KeyFrame key = new KeyFrame();
+            key.time = times[k];
+            key.pose = new FacePose(new float[]{k * 0.1f, 0.0f, -3.0f, k == 2 ? 1.0f : 0.0f});
+            key.noddingValue = 0.01f * k;
+            clip.keys.add(key);
+        }
+        KeyFrameParser.Clip decoded = ClipFormat.read(ClipFormat.encode(clip, 0.0f));
+        assertSameClip(clip, decoded, 1e-4f);
+        assertNull(decoded.gender);
+        assertEquals(-3.0f, decoded.keys.get(4).pose.faceWeights[2], 0);
+
+        KeyFrameParser.Clip empty = new KeyFrameParser.Clip();
+        assertSameClip(empty, ClipFormat.read(ClipFormat.encode(empty, 0.0f)), 0);
+    }
+
+    @Test
+    public void loadRecognizesBothFormats() throws Exception {
+        File f = new File(KeyFrameParserTest.ASSETS + "Data/joy.xml");
+        KeyFrameParser.Clip clip = parse(f);
+        ByteBuffer data = ClipFormat.encode(clip, ClipFormat.DEFAULT_TOLERANCE);
+        byte[] bytes = new byte[data.limit()];
+        data.get(bytes);
+        assertSameClip(clip, ClipFormat.load(new ByteArrayInputStream(bytes)), ClipFormat.DEFAULT_TOLERANCE);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFilesAreRejected() throws Exception {
+        KeyFrameParser.Clip clip = parse(new File(KeyFrameParserTest.ASSETS + "Data/joy.xml"));
+        ByteBuffer data = ClipFormat.encode(clip, ClipFormat.DEFAULT_TOLERANCE);
+        data.limit(data.limit() / 2);
+        ClipFormat.read(data);
+    }
+
+    @Test
+    public void converterWritesTheDirectory() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "vclip" + System.nanoTime());
+        try {
+            ClipConverter.main(new String[]{KeyFrameParserTest.ASSETS + "Data", dir.getPath()});
+            File converted = new File(dir, "sadness" + ClipFormat.EXTENSION);
+            assertTrue(converted.isFile());
+            byte[] bytes = new byte[(int) converted.length()];
+            InputStream is = new FileInputStream(converted);
+            try {
+                assertEquals(bytes.length, is.read(bytes));
+            } finally {
+                is.close();
+            }
+            assertSameClip(parse(new File(KeyFrameParserTest.ASSETS + "Data/sadness.xml")),
+                    ClipFormat.read(ByteBuffer.wrap(bytes)), ClipFormat.DEFAULT_TOLERANCE);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+}
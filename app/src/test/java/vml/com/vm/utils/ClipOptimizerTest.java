@@ -0,0 +1,75 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the error bound of the clip decimation, and reports it on the asset clips.
+ */
+public class ClipOptimizerTest {
+
+    static List<File> reportedClips() {
+        List<File> files = new ArrayList<File>();
+        for (File f : new File(KeyFrameParserTest.ASSETS + "ManAnimation").listFiles()) files.add(f);
+        for (File f : new File(KeyFrameParserTest.ASSETS).listFiles()) {
+            if (f.getName().startsWith("animation_data")) files.add(f);
+        }
+        return files;
+    }
+
+    private static KeyFrame key(int time, float... weights) {
+        KeyFrame key = new KeyFrame();
+        key.time = time;
+        key.pose = new FacePose(weights);
+        return key;
+    }
+
+    @Test
+    public void assetClipsStayWithinTheError() throws Exception {
+        float[] errors = {ClipOptimizer.DEFAULT_MAX_ERROR, 0.01f};
+        for (float maxError : errors) {
+            System.out.println("max error " + maxError);
+            for (File f : reportedClips()) {
+                List<KeyFrame> keys = ClipFormatTest.parse(f).keys;
+                SparseClip clip = ClipOptimizer.optimize(keys, maxError);
+                ClipOptimizer.Report report = ClipOptimizer.measure(f.getName(), keys, clip);
+                System.out.println(report);
+                assertTrue(report.toString(), report.maxError <= maxError * 1.0001f);
+                assertTrue(report.toString(), report.getReduction() > 5);
+                assertEquals(keys.get(keys.size() - 1).time, clip.getEndTime());
+            }
+        }
+    }
+
+    @Test
+    public void flatAndLinearChannelsKeepTheirEnds() {
+        List<KeyFrame> keys = new ArrayList<KeyFrame>();
+        for (int k = 0; k < 100; k++) {
+            //flat, linear, a peak at key 50
+            keys.add(key(16 * k, 0.25f, k * 0.01f, k == 50 ? 1.0f : 0.0f));
+        }
+        SparseClip clip = SparseClip.build(keys, 0.001f);
+        assertEquals(2, clip.getKeyCount(0));
+        assertEquals(2, clip.getKeyCount(1));
+        assertEquals(5, clip.getKeyCount(2));
+        assertEquals(2, clip.getKeyCount(3));
+        assertTrue(ClipOptimizer.measure("test", keys, clip).maxError <= 0.001f);
+
+        int[] cursor = clip.newCursor();
+        float[] weights = new float[3];
+        clip.evaluate(800, cursor, weights);
+        assertArrayEquals(new float[]{0.25f, 0.5f, 1.0f}, weights, 1e-6f);
+        //seek back, then past the end and before the start
+        clip.evaluate(408, cursor, weights);
+        assertArrayEquals(new float[]{0.25f, 0.255f, 0.0f}, weights, 1e-6f);
+        clip.evaluate(5000, cursor, weights);
+        assertArrayEquals(new float[]{0.25f, 0.99f, 0.0f}, weights, 1e-6f);
+        clip.evaluate(-10, cursor, weights);
+        assertArrayEquals(new float[]{0.25f, 0.0f, 0.0f}, weights, 1e-6f);
+    }
+}
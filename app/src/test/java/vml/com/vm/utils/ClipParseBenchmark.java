@@ -0,0 +1,91 @@
+package vml.com.vm.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Animation clip parsing: the former DOM parsing against the pull parser, time and bytes allocated
+ * per clip on the calling thread, and the size and decoding time of the .vclip files.
+ * Run with -Dvml.bench=true, e.g. ./gradlew test -Dvml.bench=true --tests '*ClipParseBenchmark'
+ */
+public class ClipParseBenchmark {
+    private static final int RUNS = 50;
+
+    @Test
+    public void compareClipParsing() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        KeyFrameParser parser = new KeyFrameParser();
+
+        System.out.println("file                          KB   DOM ms   DOM KB alloc   pull ms   pull KB alloc");
+        for (File f : KeyFrameParserTest.clipFiles()) {
+            byte[] xml = read(f);
+            long domNs = Long.MAX_VALUE, pullNs = Long.MAX_VALUE, domBytes = 0, pullBytes = 0;
+            for (int r = 0; r < RUNS; r++) {
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                KeyFrameParserTest.domParse(new ByteArrayInputStream(xml));
+                domNs = Math.min(domNs, System.nanoTime() - start);
+                domBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+                bytes = threads.getThreadAllocatedBytes(thread);
+                start = System.nanoTime();
+                KeyFrameParserTest.pullParse(parser, new ByteArrayInputStream(xml));
+                pullNs = Math.min(pullNs, System.nanoTime() - start);
+                pullBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+            }
+            System.out.println(String.format("%-26s %6d %8.2f %14d %9.2f %15d", f.getName(), xml.length / 1024,
+                    domNs / 1e6, domBytes / 1024, pullNs / 1e6, pullBytes / 1024));
+        }
+    }
+
+    @Test
+    public void compareClipDecoding() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("vml.bench"));
+        KeyFrameParser parser = new KeyFrameParser();
+
+        System.out.println("file                       XML KB  vclip KB  ratio  pull us  vclip 8 bit us  vclip 16 bit us");
+        for (File f : KeyFrameParserTest.clipFiles()) {
+            byte[] xml = read(f);
+            KeyFrameParser.Clip clip = KeyFrameParserTest.pullParse(parser, new ByteArrayInputStream(xml));
+            ByteBuffer packed = ClipFormat.encode(clip, ClipFormat.DEFAULT_TOLERANCE);
+            ByteBuffer packed16 = ClipFormat.encode(clip, 0.0f);
+            long pullNs = Long.MAX_VALUE, decodeNs = Long.MAX_VALUE, decode16Ns = Long.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                KeyFrameParserTest.pullParse(parser, new ByteArrayInputStream(xml));
+                pullNs = Math.min(pullNs, System.nanoTime() - start);
+                start = System.nanoTime();
+                ClipFormat.read(packed);
+                decodeNs = Math.min(decodeNs, System.nanoTime() - start);
+                start = System.nanoTime();
+                ClipFormat.read(packed16);
+                decode16Ns = Math.min(decode16Ns, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-26s %6d %9.1f %6.1f %8d %15d %16d", f.getName(), xml.length / 1024,
+                    packed.limit() / 1024.0, xml.length / (double) packed.limit(),
+                    pullNs / 1000, decodeNs / 1000, decode16Ns / 1000));
+        }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        InputStream is = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < data.length) off += is.read(data, off, data.length - off);
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,201 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the pull parser reads the same keys as the former DOM parsing, bit for bit.
+ */
+public class KeyFrameParserTest {
+    static final String ASSETS = "src/main/assets/";
+
+    /**
+     * @return every animation clip of the assets
+     */
+    static List<File> clipFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File f : new File(ASSETS).listFiles()) {
+            if (f.getName().startsWith("animation_data")) files.add(f);
+        }
+        for (File f : new File(ASSETS + "Data").listFiles()) {
+            if (f.getName().endsWith(".xml") && !f.getName().equals("animation.xml")) files.add(f);
+        }
+        assertFalse(files.isEmpty());
+        return files;
+    }
+
+    /**
+     * The DOM parsing the clips were read with before the pull parser
+     */
+    static KeyFrameParser.Clip domParse(InputStream is) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+        Element animEl = doc.getDocumentElement();
+        animEl.normalize();
+        KeyFrameParser.Clip clip = new KeyFrameParser.Clip();
+        clip.name = animEl.getAttributes().getNamedItem("name").getNodeValue();
+        Element genderEl = (Element) animEl.getElementsByTagName("gender").item(0);
+        if (genderEl != null) clip.gender = genderEl.getAttribute("gender");
+        Element hairEl = (Element) animEl.getElementsByTagName("hair_model").item(0);
+        if (hairEl != null) clip.hairModel = hairEl.getAttribute("hair_model");
+
+        NodeList keyList = ((Element) animEl.getElementsByTagName("keyframeList").item(0)).getElementsByTagName("key");
+        for (int k = 0; k < keyList.getLength(); k++) {
+            Element curEl = (Element) keyList.item(k);
+            String[] partsFW = ((Text) curEl.getElementsByTagName("faceWeights").item(0).getFirstChild()).getNodeValue().split(" ");
+            float[] fw = new float[partsFW.length];
+            for (int j = 0; j < partsFW.length; j++) fw[j] = Float.parseFloat(partsFW[j]);
+            KeyFrame key = new KeyFrame();
+            key.time = Integer.parseInt(curEl.getAttribute("t"));
+            key.pose = new FacePose(fw);
+            Element headNoddingNode = (Element) curEl.getElementsByTagName("headNodding").item(0);
+            if (headNoddingNode != null) {
+                key.noddingValue = Float.parseFloat(((Text) headNoddingNode.getFirstChild()).getNodeValue().split(" ")[0]);
+            }
+            clip.keys.add(key);
+        }
+        return clip;
+    }
+
+    static KeyFrameParser.Clip pullParse(KeyFrameParser parser, InputStream is) throws Exception {
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(is, null);
+        return parser.parse(xml);
+    }
+
+    @Test
+    public void sameKeysAsTheDomParsing() throws Exception {
+        KeyFrameParser parser = new KeyFrameParser();
+        for (File f : clipFiles()) {
+            InputStream a = new FileInputStream(f);
+            InputStream b = new FileInputStream(f);
+            try {
+                KeyFrameParser.Clip expected = domParse(a);
+                KeyFrameParser.Clip actual = pullParse(parser, b);
+                assertEquals(f.getName(), expected.name, actual.name);
+                assertEquals(f.getName(), expected.gender, actual.gender);
+                assertEquals(f.getName(), expected.hairModel, actual.hairModel);
+                assertEquals(f.getName(), expected.keys.size(), actual.keys.size());
+                for (int k = 0; k < expected.keys.size(); k++) {
+                    KeyFrame e = expected.keys.get(k);
+                    KeyFrame g = actual.keys.get(k);
+                    assertEquals(e.time, g.time);
+                    assertEquals(Float.floatToRawIntBits(e.noddingValue), Float.floatToRawIntBits(g.noddingValue));
+                    assertEquals(e.pose.faceWeights.length, g.pose.faceWeights.length);
+                    for (int i = 0; i < e.pose.faceWeights.length; i++) {
+                        assertEquals(f.getName() + " key " + k + " weight " + i,
+                                Float.floatToRawIntBits(e.pose.faceWeights[i]), Float.floatToRawIntBits(g.pose.faceWeights[i]));
+                    }
+                }
+            } finally {
+                a.close();
+                b.close();
+            }
+        }
+    }
+
+    @Test
+    public void parseFloatMatchesTheJdk() {
+        Random random = new Random(13);
+        for (int n = 0; n < 1000000; n++) {
+            String s;
+            switch (n % 4) {
+                case 0:
+                    s = Double.toString(random.nextDouble() * 2 - 1);
+                    break;
+                case 1:
+                    s = Float.toString(Float.intBitsToFloat(random.nextInt()));
+                    break;
+                case 2:
+                    s = Float.toString((float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10)));
+                    break;
+                default:
+                    s = String.format("%." + random.nextInt(20) + "f", random.nextDouble());
+                    break;
+            }
+            assertParsedLikeTheJdk(s);
+        }
+    }
+
+    @Test
+    public void parseFloatRoundsMidpointsLikeTheJdk() {
+        Random random = new Random(17);
+        for (int n = 0; n < 200000; n++) {
+            float f = Float.intBitsToFloat(random.nextInt(0x7f000000));
+            BigDecimal midpoint = new BigDecimal(f).add(new BigDecimal(Math.nextUp(f))).divide(BigDecimal.valueOf(2));
+            assertParsedLikeTheJdk(midpoint.toString());
+            int digits = 9 + random.nextInt(12);
+            assertParsedLikeTheJdk(midpoint.round(new MathContext(digits, RoundingMode.FLOOR)).toString());
+            assertParsedLikeTheJdk(midpoint.round(new MathContext(digits, RoundingMode.CEILING)).toString());
+        }
+    }
+
+    @Test
+    public void parseFloatEdgeCases() {
+        String[] cases = {"0", "-0", "0.0", "-0.0", "+1", "1.", ".5", "-.5", "00012.5000", "1e3", "1E-3", "2.5e+10",
+                "3.4028235e38", "3.4028236e38", "1e39", "1.17549435E-38", "1.4e-45", "1e-50",
+                "0.1", "0.3", "16777217", "33554431", "1.000000059604644775390625", "1.00000005960464477539062500001",
+                "0.12345678901234567890123", "123456789012345678901234567890",
+                "NaN", "-Infinity", "1.5f", "0x1p3"};
+        for (String s : cases) assertParsedLikeTheJdk(s);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsGarbage() {
+        char[] s = "1.2.3".toCharArray();
+        KeyFrameParser.parseFloat(s, 0, s.length);
+    }
+
+    @Test
+    public void tokenizesAnyWhitespace() throws Exception {
+        KeyFrameParser parser = new KeyFrameParser();
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new StringReader("<animation name=\"a\"><keyframeList><key t=\"40\">"
+                + "<faceWeights>\n\t 0.5  -1e-2\n0.25 </faceWeights><headNodding>0.125 0.5</headNodding></key>"
+                + "</keyframeList></animation>"));
+        KeyFrameParser.Clip clip = parser.parse(xml);
+        assertEquals("a", clip.name);
+        assertNull(clip.gender);
+        assertEquals(1, clip.keys.size());
+        assertEquals(40, clip.keys.get(0).time);
+        assertArrayEquals(new float[]{0.5f, -0.01f, 0.25f}, clip.keys.get(0).pose.faceWeights, 0);
+        assertEquals(0.125f, clip.keys.get(0).noddingValue, 0);
+    }
+
+    @Test
+    public void growsTheValueBuffer() {
+        KeyFrameParser parser = new KeyFrameParser();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) text.append(i).append(' ');
+        char[] chars = text.toString().toCharArray();
+        parser.tokenize(chars, 0, chars.length);
+        assertEquals(1000, parser.count());
+        assertEquals(999f, parser.values()[999], 0);
+    }
+
+    private static void assertParsedLikeTheJdk(String s) {
+        char[] chars = ("  " + s + " ").toCharArray();
+        float expected = Float.parseFloat(s);
+        float actual = KeyFrameParser.parseFloat(chars, 2, 2 + s.length());
+        assertEquals(s, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+}
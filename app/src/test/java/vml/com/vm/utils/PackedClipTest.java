@@ -0,0 +1,174 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that packed clips hold the same keys as the keyframe lists.
+ */
+public class PackedClipTest {
+
+    private static KeyFrame key(int time, float nodding, float... weights) {
+        KeyFrame key = new KeyFrame();
+        key.time = time;
+        key.pose = new FacePose(weights);
+        key.noddingValue = nodding;
+        return key;
+    }
+
+    @Test
+    public void packsTheAssetClips() throws Exception {
+        for (File f : KeyFrameParserTest.clipFiles()) {
+            List<KeyFrame> keys = ClipFormatTest.parse(f).keys;
+            if (keys.isEmpty()) continue;
+            PackedClip clip = PackedClip.pack(keys);
+            int nWeights = keys.get(0).pose.faceWeights.length;
+            assertEquals(nWeights, clip.nWeights);
+            assertEquals(keys.size(), clip.getKeyCount());
+            assertEquals(keys.get(keys.size() - 1).time, clip.getEndTime());
+
+            List<KeyFrame> unpacked = clip.toKeys();
+            float[] expected = new float[nWeights];
+            float[] actual = new float[nWeights];
+            for (int k = 0; k < keys.size(); k++) {
+                KeyFrame key = keys.get(k);
+                assertEquals(key.time, clip.getTime(k));
+                assertEquals(key.noddingValue, clip.getNodding(k), 0.0f);
+                assertArrayEquals(key.pose.faceWeights, clip.getWeights(k, actual), 0.0f);
+                assertEquals(key.time, unpacked.get(k).time);
+                assertArrayEquals(key.pose.faceWeights, unpacked.get(k).pose.faceWeights, 0.0f);
+
+                if (k + 1 < keys.size()) {
+                    float[] cur = key.pose.faceWeights;
+                    float[] next = keys.get(k + 1).pose.faceWeights;
+                    for (int i = 0; i < nWeights; i++) expected[i] = 0.3f * next[i] + 0.7f * cur[i];
+                    clip.interpolate(k, 0.3f, actual);
+                    assertArrayEquals(expected, actual, 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sortsTheKeys() {
+        List<KeyFrame> keys = new ArrayList<KeyFrame>();
+        keys.add(key(32, 0.2f, 0.3f, 0.4f));
+        keys.add(key(0, 0.0f, 0.1f, 0.2f));
+        keys.add(key(16, 0.1f, 0.2f, 0.3f));
+        PackedClip clip = PackedClip.pack(keys);
+        assertEquals(32, keys.get(0).time);
+        for (int k = 0; k < 3; k++) {
+            assertEquals(16 * k, clip.getTime(k));
+            assertEquals(0.1f * k, clip.getNodding(k), 1e-6f);
+            assertEquals(0.1f * k + 0.1f, clip.getWeight(k, 0), 1e-6f);
+            assertEquals(0.1f * k + 0.2f, clip.getWeight(k, 1), 1e-6f);
+        }
+
+        PackedClip empty = PackedClip.pack(Collections.<KeyFrame>emptyList());
+        assertEquals(0, empty.getKeyCount());
+        assertEquals(0, empty.getEndTime());
+        assertTrue(empty.toKeys().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeysOfDifferentSizes() {
+        List<KeyFrame> keys = new ArrayList<KeyFrame>();
+        keys.add(key(0, 0.0f, 0.1f, 0.2f));
+        keys.add(key(16, 0.0f, 0.1f));
+        PackedClip.pack(keys);
+    }
+
+    private static List<KeyFrame> randomKeys(Random random, int n, int maxTime) {
+        List<KeyFrame> keys = new ArrayList<KeyFrame>();
+        for (int k = 0; k < n; k++) {
+            //few distinct times, so that keys share their time
+            keys.add(key(random.nextInt(maxTime), k, random.nextFloat(), k));
+        }
+        return keys;
+    }
+
+    /** the reference: a stable sort of all the keys in the order they were added */
+    private static void assertSameKeys(List<KeyFrame> added, PackedClip clip) {
+        List<KeyFrame> sorted = new ArrayList<KeyFrame>(added);
+        Collections.sort(sorted, new KeyFrameComparator());
+        assertEquals(sorted.size(), clip.getKeyCount());
+        for (int k = 0; k < sorted.size(); k++) {
+            assertEquals(sorted.get(k).time, clip.getTime(k));
+            //the nodding value is the order the key was added in
+            assertEquals(sorted.get(k).noddingValue, clip.getNodding(k), 0.0f);
+            assertArrayEquals(sorted.get(k).pose.faceWeights, clip.getWeights(k, new float[2]), 0.0f);
+        }
+    }
+
+    @Test
+    public void buildsInTimeOrder() {
+        Random random = new Random(7);
+        for (int run = 0; run < 50; run++) {
+            List<KeyFrame> added = new ArrayList<KeyFrame>();
+            PackedClip.Builder builder = new PackedClip.Builder(random.nextInt(4));
+            PackedClip previous = null;
+            List<KeyFrame> previousKeys = null;
+            for (int batch = 0; batch < 6; batch++) {
+                List<KeyFrame> keys = randomKeys(random, random.nextInt(20), 50);
+                for (int k = 0; k < keys.size(); k++) keys.get(k).noddingValue = added.size() + k;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        builder.addAll(keys);
+                        break;
+                    case 1:
+                        Collections.sort(keys, new KeyFrameComparator());
+                        builder.addAll(keys);
+                        break;
+                    default:
+                        for (KeyFrame key : keys) builder.add(key);
+                        break;
+                }
+                added.addAll(keys);
+                PackedClip clip = builder.build();
+                assertSameKeys(added, clip);
+                //the clips built before are not changed by the keys added after
+                if (previous != null) assertSameKeys(previousKeys, previous);
+                previous = clip;
+                previousKeys = new ArrayList<KeyFrame>(added);
+            }
+            assertSameKeys(added, new PackedClip.Builder(previous).build());
+        }
+    }
+
+    @Test
+    public void appendsAfterABuiltClip() {
+        PackedClip clip = PackedClip.pack(randomKeys(new Random(3), 10, 100));
+        PackedClip.Builder builder = new PackedClip.Builder(clip);
+        builder.add(key(1000, 0.0f, 1.0f, 1.0f));
+        builder.add(key(-1, 0.0f, 2.0f, 2.0f));
+        PackedClip grown = builder.build();
+        assertEquals(10, clip.getKeyCount());
+        assertEquals(12, grown.getKeyCount());
+        assertEquals(-1, grown.getTime(0));
+        assertEquals(2.0f, grown.getWeight(0, 1), 0.0f);
+        assertEquals(1000, grown.getEndTime());
+        for (int k = 0; k < 10; k++) assertEquals(clip.getTime(k), grown.getTime(k + 1));
+    }
+
+    @Test
+    public void recycledBuilderMergesInPlace() {
+        Random random = new Random(11);
+        List<KeyFrame> added = new ArrayList<KeyFrame>();
+        PackedClip.Builder builder = new PackedClip.Builder();
+        for (int k = 0; k < 200; k++) {
+            //every third key is late
+            KeyFrame key = key(k % 3 == 2 ? 16 * k - 40 : 16 * k, k, random.nextFloat(), random.nextFloat());
+            builder.recycle();
+            builder.add(key);
+            added.add(key);
+            assertSameKeys(added, builder.build());
+        }
+    }
+}
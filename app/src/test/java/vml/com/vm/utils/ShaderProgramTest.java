@@ -0,0 +1,275 @@
+package vml.com.vm.utils;
+
+import android.opengl.GLES20;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the reflection of a shader program and the skipping of the redundant uniform uploads
+ * against a GL fake recording the calls.
+ */
+public class ShaderProgramTest {
+
+    /**
+     * Program of the avatar shaders as a driver would report it, records every call
+     */
+    static class RecordingGL implements ShaderProgram.GL {
+        final List<String> calls = new ArrayList<String>();
+        final List<String[]> attributes = new ArrayList<String[]>();
+        final List<String[]> uniforms = new ArrayList<String[]>();
+        final Map<String, Integer> locations = new HashMap<String, Integer>();
+        int nextLocation = 0;
+        int error = GLES20.GL_NO_ERROR;
+
+        void attribute(String name, int type) {
+            attributes.add(new String[]{name, "1", Integer.toString(type)});
+            locations.put("a:" + name, nextLocation++);
+        }
+
+        /**
+         * @param reported name reported by glGetActiveUniform()
+         * @param size array size
+         * @param locationNames names glGetUniformLocation() resolves
+         */
+        void uniform(String reported, int size, int type, String... locationNames) {
+            uniforms.add(new String[]{reported, Integer.toString(size), Integer.toString(type)});
+            for (String n : locationNames) locations.put("u:" + n, nextLocation++);
+        }
+
+        int count(String prefix) {
+            int n = 0;
+            for (String c : calls) if (c.startsWith(prefix)) n++;
+            return n;
+        }
+
+        @Override
+        public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+            calls.add("glGetProgramiv " + pname);
+            params[offset] = pname == GLES20.GL_ACTIVE_ATTRIBUTES ? attributes.size() : uniforms.size();
+        }
+
+        private String active(List<String[]> list, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+            String[] v = list.get(index);
+            size[sizeOffset] = Integer.parseInt(v[1]);
+            type[typeOffset] = Integer.parseInt(v[2]);
+            return v[0];
+        }
+
+        @Override
+        public String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+            calls.add("glGetActiveAttrib " + index);
+            return active(attributes, index, size, sizeOffset, type, typeOffset);
+        }
+
+        @Override
+        public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+            calls.add("glGetActiveUniform " + index);
+            return active(uniforms, index, size, sizeOffset, type, typeOffset);
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            calls.add("glGetAttribLocation " + name);
+            Integer location = locations.get("a:" + name);
+            return location != null ? location : -1;
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            calls.add("glGetUniformLocation " + name);
+            Integer location = locations.get("u:" + name);
+            return location != null ? location : -1;
+        }
+
+        @Override
+        public void glUseProgram(int program) {
+            calls.add("glUseProgram " + program);
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            calls.add("glUniform1i " + location + " " + x);
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            calls.add("glUniform1f " + location + " " + x);
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            calls.add("glUniform3f " + location + " " + x + " " + y + " " + z);
+        }
+
+        @Override
+        public void glUniform4f(int location, float x, float y, float z, float w) {
+            calls.add("glUniform4f " + location + " " + x + " " + y + " " + z + " " + w);
+        }
+
+        @Override
+        public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+            calls.add("glUniformMatrix4fv " + location + " " + count + " " + value[offset]);
+        }
+
+        @Override
+        public int glGetError() {
+            int e = error;
+            error = GLES20.GL_NO_ERROR;
+            return e;
+        }
+    }
+
+    private RecordingGL gl;
+    private ShaderProgram program;
+
+    @Before
+    public void setUp() {
+        gl = new RecordingGL();
+        gl.attribute("rm_Vertex", GLES20.GL_FLOAT_VEC3);
+        gl.attribute("rm_Normal", GLES20.GL_FLOAT_VEC3);
+        gl.attribute("rm_TexCoord0", GLES20.GL_FLOAT_VEC2);
+        gl.uniform("matViewProjection", 1, GLES20.GL_FLOAT_MAT4, "matViewProjection");
+        gl.uniform("fvLightPosition[0]", 2, GLES20.GL_FLOAT_VEC3, "fvLightPosition[0]", "fvLightPosition[1]");
+        gl.uniform("fvAmbient", 1, GLES20.GL_FLOAT_VEC4, "fvAmbient");
+        gl.uniform("fSpecularPower", 1, GLES20.GL_FLOAT, "fSpecularPower");
+        gl.uniform("baseMap", 1, GLES20.GL_SAMPLER_2D, "baseMap");
+        gl.uniform("iTextured", 1, GLES20.GL_INT, "iTextured");
+        program = new ShaderProgram(gl, 7);
+    }
+
+    @Test
+    public void reflectsEveryActiveVariableOnce() {
+        int queries = gl.calls.size();
+        assertEquals(Arrays.asList("rm_Vertex", "rm_Normal", "rm_TexCoord0"), Arrays.asList(program.getAttributeNames()));
+        assertEquals(0, program.getAttribLocation("rm_Vertex"));
+        assertEquals(GLES20.GL_FLOAT_VEC2, program.getAttribute("rm_TexCoord0").type);
+        assertEquals(-1, program.getAttribLocation("rm_Tangent"));
+        assertNull(program.getAttribute("rm_Tangent"));
+
+        //arrays are reflected per element, the name without index is the first one
+        assertEquals(program.getUniformLocation("fvLightPosition[0]"), program.getUniformLocation("fvLightPosition"));
+        assertNotEquals(program.getUniformLocation("fvLightPosition[0]"), program.getUniformLocation("fvLightPosition[1]"));
+        assertEquals(GLES20.GL_FLOAT_VEC3, program.getUniform("fvLightPosition[1]").type);
+        assertEquals(GLES20.GL_SAMPLER_2D, program.getUniform("baseMap").type);
+        assertEquals(-1, program.getUniformLocation("normalMap"));
+        assertEquals(8, program.getUniformNames().length);
+
+        try {
+            program.requireAttribLocation("rm_Tangent");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("rm_Tangent"));
+        }
+        assertEquals(program.getUniformLocation("fvAmbient"), program.requireUniformLocation("fvAmbient"));
+
+        //the lookups above and the frames do not query GL anymore
+        program.use();
+        program.uniform1i(program.getUniformLocation("baseMap"), 0);
+        assertEquals(queries + 2, gl.calls.size());
+        assertEquals(0, gl.count("glGetUniformLocation fvLightPosition ") + gl.count("glGetUniformLocation normalMap"));
+    }
+
+    @Test
+    public void reflectsArraysReportedWithoutIndex() {
+        RecordingGL other = new RecordingGL();
+        other.uniform("fvLightPosition", 2, GLES20.GL_FLOAT_VEC3, "fvLightPosition[0]", "fvLightPosition[1]");
+        other.uniform("fvSingle[0]", 1, GLES20.GL_FLOAT_VEC3, "fvSingle[0]");
+        ShaderProgram p = new ShaderProgram(other, 1);
+        assertEquals(0, p.getUniformLocation("fvLightPosition"));
+        assertEquals(1, p.getUniformLocation("fvLightPosition[1]"));
+        assertEquals(2, p.getUniformLocation("fvSingle"));
+        assertEquals(2, p.getUniformLocation("fvSingle[0]"));
+    }
+
+    @Test
+    public void skipsRedundantUploads() {
+        int ambient = program.getUniformLocation("fvAmbient");
+        int power = program.getUniformLocation("fSpecularPower");
+        int base = program.getUniformLocation("baseMap");
+        int light1 = program.getUniformLocation("fvLightPosition[1]");
+        int mvp = program.getUniformLocation("matViewProjection");
+        float[] matrix = new float[16];
+        gl.calls.clear();
+
+        //two models with the same material, drawn twice
+        for (int frame = 0; frame < 2; frame++) {
+            for (int model = 0; model < 2; model++) {
+                matrix[0] = frame;
+                program.uniformMatrix4fv(mvp, 1, false, matrix, 0);
+                program.uniform4f(ambient, 0.1f, 0.2f, 0.3f, 1.0f);
+                program.uniform1f(power, 20.0f);
+                program.uniform1i(base, 0);
+                program.uniform3f(light1, 1, 2, 3);
+            }
+        }
+        assertEquals(1, gl.count("glUniform4f"));
+        assertEquals(1, gl.count("glUniform1f"));
+        assertEquals(1, gl.count("glUniform1i"));
+        assertEquals(1, gl.count("glUniform3f"));
+        //the matrix changes once per frame
+        assertEquals(2, gl.count("glUniformMatrix4fv"));
+
+        //changes are uploaded, bitwise
+        program.uniform1f(power, 21.0f);
+        program.uniform4f(ambient, 0.1f, 0.2f, 0.3f, 0.5f);
+        program.uniform3f(light1, 1, 2, -0.0f);
+        program.uniform3f(light1, 1, 2, 0.0f);
+        assertEquals(2, gl.count("glUniform1f"));
+        assertEquals(2, gl.count("glUniform4f"));
+        assertEquals(3, gl.count("glUniform3f"));
+
+        //an int and a float with the same bits are different uniforms
+        program.uniform1i(base, 1);
+        assertEquals("glUniform1i " + base + " 1", gl.calls.get(gl.calls.size() - 1));
+    }
+
+    @Test
+    public void uploadsAgainAfterInvalidate() {
+        int base = program.getUniformLocation("baseMap");
+        gl.calls.clear();
+        program.uniform1i(base, 0);
+        program.uniform1i(base, 0);
+        program.invalidate();
+        program.uniform1i(base, 0);
+        assertEquals(2, gl.count("glUniform1i"));
+    }
+
+    @Test
+    public void inactiveAndUnknownLocations() {
+        gl.calls.clear();
+        //-1 is ignored by GL, nothing is uploaded
+        program.uniform1i(-1, 3);
+        program.uniform3f(program.getUniformLocation("fvEyeRotation"), 1, 2, 3);
+        assertEquals(0, gl.calls.size());
+
+        //a location which was not reflected is always uploaded
+        program.uniform1f(99, 1.0f);
+        program.uniform1f(99, 1.0f);
+        assertEquals(2, gl.count("glUniform1f 99"));
+
+        //arrays of matrices are always uploaded
+        int mvp = program.getUniformLocation("matViewProjection");
+        float[] matrices = new float[32];
+        program.uniformMatrix4fv(mvp, 2, false, matrices, 0);
+        program.uniformMatrix4fv(mvp, 2, false, matrices, 0);
+        program.uniformMatrix4fv(mvp, 1, false, matrices, 0);
+        program.uniformMatrix4fv(mvp, 1, false, matrices, 0);
+        assertEquals(3, gl.count("glUniformMatrix4fv"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void reportsReflectionErrors() {
+        RecordingGL failing = new RecordingGL();
+        failing.error = GLES20.GL_INVALID_OPERATION;
+        new ShaderProgram(failing, 0);
+    }
+}
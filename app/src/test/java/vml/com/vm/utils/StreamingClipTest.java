@@ -0,0 +1,196 @@
+package vml.com.vm.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays clips served over a local socket, standing in for the animation server.
+ */
+public class StreamingClipTest {
+    private static final File CLIP = new File(KeyFrameParserTest.ASSETS + "animation_data_girl1.xml");
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private volatile Exception serverError;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        if (serverThread != null) serverThread.join(5000);
+        if (serverError != null) throw serverError;
+    }
+
+    /**
+     * Serves the clip key by key, waiting msPerKey between keys, and stopping after maxKeys keys
+     */
+    private void serve(final byte[] xml, final int msPerKey, final int maxKeys) {
+        serverThread = new Thread("ClipServer") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        List<Integer> cuts = keyOffsets(xml);
+                        out.write(xml, 0, cuts.get(0));
+                        out.flush();
+                        int keys = Math.min(maxKeys, cuts.size() - 1);
+                        for (int k = 0; k < keys; k++) {
+                            out.write(xml, cuts.get(k), cuts.get(k + 1) - cuts.get(k));
+                            out.flush();
+                            if (msPerKey > 0) Thread.sleep(msPerKey);
+                        }
+                        if (keys == cuts.size() - 1) out.write(xml, cuts.get(keys), xml.length - cuts.get(keys));
+                        out.flush();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    if (!server.isClosed()) serverError = e;
+                }
+            }
+        };
+        serverThread.start();
+    }
+
+    private static List<Integer> keyOffsets(byte[] xml) throws IOException {
+        String text = new String(xml, "UTF-8");
+        List<Integer> offsets = new ArrayList<Integer>();
+        for (int i = text.indexOf("<key "); i >= 0; i = text.indexOf("<key ", i + 1)) offsets.add(i);
+        offsets.add(text.indexOf("</keyframeList>"));
+        return offsets;
+    }
+
+    private StreamingClip connect(int capacity, int leadMs) throws Exception {
+        Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        InputStream is = socket.getInputStream();
+        XmlPullParser parser = new KXmlParser();
+        parser.setInput(is, "UTF-8");
+        StreamingClip clip = new StreamingClip(capacity, leadMs);
+        clip.open(parser, is);
+        return clip;
+    }
+
+    /**
+     * Reads every key of the clip, releasing them as they are read.
+     * The playback itself is checked by KeyFramedAnimationTest.
+     */
+    private static List<KeyFrame> readAll(StreamingClip clip) throws InterruptedException {
+        List<KeyFrame> keys = new ArrayList<KeyFrame>();
+        int next = 0;
+        while (true) {
+            //the keys are counted before the end is signalled
+            boolean complete = clip.isComplete();
+            if (next < clip.getKeyCount()) {
+                keys.add(clip.getKey(next));
+                clip.release(++next);
+            } else if (complete) {
+                return keys;
+            } else {
+                //waiting for the reader thread
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void playbackStartsBeforeTheDownloadEnds() throws Exception {
+        byte[] xml = read(CLIP);
+        //the keys arrive 4 times faster than they are played
+        serve(xml, 4, Integer.MAX_VALUE);
+        StreamingClip clip = connect(StreamingClip.DEFAULT_CAPACITY, StreamingClip.DEFAULT_LEAD_MS);
+        assertEquals("speech_emotion_animation", clip.getHeader().name);
+        assertEquals("30002", clip.getHeader().gender);
+
+        clip.awaitLead();
+        long firstFrameNs = clip.getLeadLatencyNs();
+        assertTrue(firstFrameNs > 0);
+        assertFalse(clip.isComplete());
+        assertTrue(clip.getKey(clip.getKeyCount() - 1).time >= StreamingClip.DEFAULT_LEAD_MS);
+
+        List<KeyFrame> keys = readAll(clip);
+        assertNull(clip.getError());
+        assertTrue(firstFrameNs * 2 < clip.getCompleteLatencyNs());
+
+        List<KeyFrame> expected = ClipFormatTest.parse(CLIP).keys;
+        assertEquals(expected.size(), keys.size());
+        for (int k = 0; k < keys.size(); k++) {
+            assertEquals(expected.get(k).time, keys.get(k).time);
+            assertArrayEquals(expected.get(k).pose.faceWeights, keys.get(k).pose.faceWeights, 0);
+            assertEquals(expected.get(k).noddingValue, keys.get(k).noddingValue, 0);
+        }
+    }
+
+    @Test
+    public void theRingBoundsTheBufferedKeys() throws Exception {
+        serve(read(CLIP), 0, Integer.MAX_VALUE);
+        StreamingClip clip = connect(16, 100);
+        clip.awaitLead();
+        Thread.sleep(200);
+        //nothing released, the reader waits
+        assertEquals(16, clip.getKeyCount());
+        assertFalse(clip.isComplete());
+        try {
+            clip.getKey(16);
+            fail("key 16 is not buffered");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        assertEquals(269, readAll(clip).size());
+    }
+
+    @Test
+    public void aBrokenStreamKeepsTheReceivedKeys() throws Exception {
+        serve(read(CLIP), 0, 40);
+        StreamingClip clip = connect(StreamingClip.DEFAULT_CAPACITY, 10000);
+        //shorter than the lead time, awaitLead() returns at the end
+        clip.awaitLead();
+        assertTrue(clip.isComplete());
+        assertNotNull(clip.getError());
+        assertEquals(40, readAll(clip).size());
+    }
+
+    @Test
+    public void closeStopsAWaitingReader() throws Exception {
+        serve(read(CLIP), 1000, Integer.MAX_VALUE);
+        StreamingClip clip = connect(StreamingClip.DEFAULT_CAPACITY, 100);
+        clip.close();
+        long start = System.nanoTime();
+        while (!clip.isComplete() && System.nanoTime() - start < 2000000000L) Thread.sleep(1);
+        assertTrue(clip.isComplete());
+        assertNull(clip.getError());
+        server.close();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        InputStream is = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < data.length) off += is.read(data, off, data.length - off);
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,139 @@
+package vml.com.vm.utils;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frame handoff of the triple buffer, alone and between two threads under contention.
+ */
+public class TripleBufferTest {
+
+    /** a frame is complete when all its values are its sequence number */
+    private static class Frame {
+        final float[] values = new float[64];
+        long sequence;
+
+        void write(long seq) {
+            sequence = seq;
+            for (int i = 0; i < values.length; i++) values[i] = seq;
+        }
+
+        boolean isComplete() {
+            for (float v : values) if (v != (float) sequence) return false;
+            return true;
+        }
+    }
+
+    private static TripleBuffer<Frame> newBuffer() {
+        return new TripleBuffer<Frame>(new Frame(), new Frame(), new Frame());
+    }
+
+    @Test
+    public void acquiresTheNewestFrame() {
+        TripleBuffer<Frame> buffer = newBuffer();
+        Frame initial = buffer.acquire();
+        assertFalse(buffer.hasFresh());
+        assertSame(initial, buffer.acquire());
+
+        buffer.getBack().write(1);
+        buffer.publish();
+        assertTrue(buffer.hasFresh());
+        assertEquals(1, buffer.acquire().sequence);
+        assertFalse(buffer.hasFresh());
+
+        //the frames published in between are dropped
+        for (int seq = 2; seq <= 5; seq++) {
+            Frame back = buffer.getBack();
+            assertNotSame(back, buffer.acquire());
+            back.write(seq);
+            buffer.publish();
+        }
+        Frame front = buffer.acquire();
+        assertEquals(5, front.sequence);
+        assertSame(front, buffer.acquire());
+        assertNotSame(front, buffer.getBack());
+    }
+
+    private static void handoff(TripleBuffer<Frame> buffer, int frames) {
+        for (int seq = 0; seq < frames; seq++) {
+            buffer.getBack().sequence = seq;
+            buffer.publish();
+            if ((seq & 1) == 0) buffer.acquire();
+        }
+    }
+
+    @Test
+    public void handoffDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        TripleBuffer<Frame> buffer = newBuffer();
+
+        //warm up, so the loop is compiled before it is measured
+        for (int i = 0; i < 20; i++) handoff(buffer, 100000);
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        handoff(buffer, 100000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        assertEquals("bytes allocated by 100000 handoffs", 0, allocated);
+    }
+
+    @Test
+    public void noTornFramesUnderContention() throws Exception {
+        final TripleBuffer<Frame> buffer = newBuffer();
+        final int frames = 200000;
+        //the producer stays at most this many frames ahead of the consumer, so the handoffs interleave
+        final int lead = 4;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicLong seen = new AtomicLong();
+        final long[] acquired = new long[1];
+
+        Thread producer = new Thread("producer") {
+            @Override
+            public void run() {
+                for (int seq = 1; seq <= frames && failure.get() == null; seq++) {
+                    while (seq - seen.get() > lead && failure.get() == null) Thread.yield();
+                    buffer.getBack().write(seq);
+                    buffer.publish();
+                }
+            }
+        };
+        Thread consumer = new Thread("consumer") {
+            @Override
+            public void run() {
+                long last = 0;
+                while (last < frames && failure.get() == null) {
+                    Frame frame = buffer.acquire();
+                    //read twice: the producer must not write the frame while it is held
+                    if (!frame.isComplete() || !frame.isComplete()) {
+                        failure.set("torn frame " + frame.sequence);
+                    } else if (frame.sequence < last) {
+                        failure.set("frame " + frame.sequence + " after " + last);
+                    } else if (frame.sequence > last) {
+                        acquired[0]++;
+                        seen.set(frame.sequence);
+                    } else {
+                        Thread.yield();
+                    }
+                    last = frame.sequence;
+                }
+            }
+        };
+        consumer.start();
+        producer.start();
+        producer.join(60000);
+        consumer.join(60000);
+        //stops both threads if they are stuck
+        failure.compareAndSet(null, consumer.isAlive() ? "no progress after " + seen.get() + " frames" : null);
+        assertNull(failure.get(), failure.get());
+        assertEquals(frames, buffer.acquire().sequence);
+        //each new frame acquired is at most lead frames after the previous one
+        assertTrue(acquired[0] + " new frames acquired", acquired[0] >= frames / lead);
+    }
+}